@@ -0,0 +1,46 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing an OAuth2 request, which happens on every request made while logged in
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StackMobSessionBenchmarks {
+
+    private StackMobSession session;
+
+    @Setup
+    public void setUp() {
+        session = new StackMobSession(StackMob.OAuthVersion.Two, 0, "KEY", "SECRET", "user", "username");
+        session.setOAuth2TokensAndExpiration("token", "mackey", "refresh", 3600);
+    }
+
+    @Benchmark
+    public String generateMacToken() {
+        return session.generateMacToken("GET", "/book?publisher=Penguin", "api.stackmob.com", "443");
+    }
+}
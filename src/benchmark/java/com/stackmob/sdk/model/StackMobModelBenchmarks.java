@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.api.StackMobGeoPoint;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.testobjects.Author;
+import com.stackmob.sdk.testobjects.Book;
+import com.stackmob.sdk.testobjects.Library;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a library of books, each with an author, to JSON with its relations expanded, and reading it back
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StackMobModelBenchmarks {
+
+    @Param({"1", "20"})
+    public int books;
+
+    private Library library;
+    private String json;
+
+    @Setup
+    public void setUp() {
+        library = new Library();
+        library.setID("central");
+        library.name = "Central Library";
+        library.books = new Book[books];
+        library.bookList = new ArrayList<Book>();
+        for(int i = 0; i < books; i++) {
+            Author author = new Author("Author " + i, new StackMobGeoPoint(-122.4194, 37.7749));
+            author.setID("author" + i);
+            Book book = new Book("Title " + i, "Publisher " + (i % 3), author);
+            book.setID("book" + i);
+            library.books[i] = book;
+            library.bookList.add(book);
+        }
+        json = library.toJson(StackMobOptions.depthOf(2));
+    }
+
+    @Benchmark
+    public String toJson() {
+        return library.toJson(StackMobOptions.depthOf(2));
+    }
+
+    @Benchmark
+    public Library fillFromJson() throws StackMobException {
+        Library filled = new Library();
+        filled.fillFromJson(json);
+        return filled;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobSession;
+import com.stackmob.sdk.callback.StackMobNoopCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import org.openjdk.jmh.annotations.*;
+import org.scribe.model.OAuthRequest;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a query into request arguments, a query string and a URI, and building a complete signed request from
+ * them the way a GET does, without sending it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StackMobRequestBenchmarks {
+
+    private static final StackMobRedirectedCallback redirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+    };
+
+    @Param({"One", "Two"})
+    public StackMob.OAuthVersion oauthVersion;
+
+    private StackMobQuery query;
+    private List<Map.Entry<String, String>> arguments;
+    private String queryString;
+    private StackMobRequestWithoutPayload request;
+
+    @Setup
+    public void setUp() {
+        // OAuth1 signing reads the server time from the current StackMob
+        StackMobSession session = new StackMob(oauthVersion, 0, "KEY", "SECRET").getSession();
+        if(oauthVersion == StackMob.OAuthVersion.Two) session.setOAuth2TokensAndExpiration("token", "mackey", "refresh", 3600);
+        query = new StackMobQuery("book")
+                .fieldIsEqualTo("publisher", "Penguin")
+                .fieldIsGreaterThan("pages", 100)
+                .fieldIsIn("genre", Arrays.asList("fiction", "poetry", "drama"))
+                .fieldIsOrderedBy("title", StackMobQuery.Ordering.ASCENDING)
+                .isInRange(0, 49);
+        arguments = query.getArguments();
+        queryString = StackMobRequest.formatQueryString(arguments);
+        request = new StackMobRequestWithoutPayload(null,
+                                                    session,
+                                                    HttpVerbWithoutPayload.GET,
+                                                    StackMobOptions.none(),
+                                                    arguments,
+                                                    "book",
+                                                    new StackMobNoopCallback(),
+                                                    redirectedCallback);
+    }
+
+    @Benchmark
+    public List<Map.Entry<String, String>> getArguments() {
+        return query.getArguments();
+    }
+
+    @Benchmark
+    public String formatQueryString() {
+        return StackMobRequest.formatQueryString(arguments);
+    }
+
+    @Benchmark
+    public URI createURI() throws URISyntaxException {
+        return request.createURI("https", "api.stackmob.com", "/book", queryString);
+    }
+
+    @Benchmark
+    public OAuthRequest buildRequest() throws URISyntaxException {
+        URI uri = request.createURI(request.getScheme(), request.urlFormat, request.getPath(), StackMobRequest.formatQueryString(request.params));
+        return request.getOAuthRequest(uri.getScheme(), HttpVerbWithoutPayload.GET, uri.toString());
+    }
+}
@@ -18,10 +18,12 @@ package com.stackmob.sdk.api;
 
 import com.stackmob.sdk.callback.*;
 import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
 import com.stackmob.sdk.net.HttpVerbWithPayload;
 import com.stackmob.sdk.net.HttpVerbWithoutPayload;
 import com.stackmob.sdk.request.*;
 import com.stackmob.sdk.util.Pair;
+import com.stackmob.sdk.util.StackMobExecutor;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,7 +31,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * The StackMob object is your interface for accessing StackMob's many features. Its functions include:
@@ -68,7 +70,9 @@ public class StackMob {
     private String passwordField;
     private String apiUrlFormat;
     private String pushUrlFormat;
-    private ExecutorService executor;
+    private volatile ExecutorService executor;
+    // a copy shares the executor of the StackMob it was made from, and mustn't shut it down
+    private boolean sharedExecutor = false;
     private StackMobDatastore datastore;
 
     private final Object urlFormatLock = new Object();
@@ -145,7 +149,7 @@ public class StackMob {
     };
 
     private static ExecutorService createNewExecutor() {
-        return Executors.newCachedThreadPool();
+        return StackMobExecutionPolicy.standard().createExecutor();
     }
 
     private static StackMob stackmob;
@@ -252,6 +256,7 @@ public class StackMob {
         this.apiUrlFormat = other.apiUrlFormat;
         this.pushUrlFormat = other.pushUrlFormat;
         this.executor = other.executor;
+        this.sharedExecutor = true;
     }
 
     /**
@@ -284,6 +289,7 @@ public class StackMob {
     public void login(Map<String, String> params,
                       StackMobOptions options,
                       StackMobRawCallback callback) {
+        callback = forgettingUser(callback);
         List<Map.Entry<String, String>> paramList = new LinkedList<Map.Entry<String, String>>(params.entrySet());
         StackMobRequest req;
         if(getSession().isOAuth2()) {
@@ -323,11 +329,37 @@ public class StackMob {
         }
     }
 
+    /**
+     * Refresh the current OAuth2 login in the background shortly before it expires, so requests never wait for a
+     * refresh. Logins that last less than the margin are refreshed halfway through instead. If a background refresh
+     * fails, the login is refreshed as usual when a request finds it expired.
+     * @param marginMillis how long before expiry to refresh, in milliseconds
+     */
+    public void enableBackgroundTokenRefresh(long marginMillis) {
+        if(marginMillis < 0) throw new IllegalArgumentException("The margin can't be negative");
+        session.setTokenRefresher(new StackMobTokenRefresher(this, marginMillis));
+    }
+
+    /**
+     * Stop refreshing the OAuth2 login in the background. See {@link #enableBackgroundTokenRefresh(long)}
+     */
+    public void disableBackgroundTokenRefresh() {
+        session.setTokenRefresher(null);
+    }
+
+    /**
+     * refresh the login, sharing a refresh already in progress
+     */
+    void refreshLoginShared(Runnable done) {
+        StackMobAccessTokenRequest.sendSharedRefresh(executor, session, this.apiUrlFormat, done);
+    }
+
     /**
      * Call the logout method on StackMob, invalidating the current user's credentials.
      * @param callback callback to be called when the server returns. May execute in a separate thread.
      */
     public void logout(StackMobRawCallback callback) {
+        callback = forgettingUser(callback);
         new StackMobUserBasedRequest(this.executor,
                                      this.session,
                                      "logout",
@@ -337,6 +369,27 @@ public class StackMob {
         session.setOAuth2TokensAndExpiration(null, null, null, 0);
     }
 
+    /**
+     * cached responses may hold data only the previous user could see, so they're dropped when a login or logout is
+     * sent, and again when it finishes in case reads made in the meantime were cached
+     */
+    private StackMobRawCallback forgettingUser(StackMobRawCallback callback) {
+        session.clearCachedResponses();
+        return new StackMobDatastore.ForwardingCallback(callback) {
+            @Override
+            public void unsent(StackMobException e) {
+                session.clearCachedResponses();
+                super.unsent(e);
+            }
+
+            @Override
+            public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+                session.clearCachedResponses();
+                super.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+            }
+        };
+    }
+
     // ================================================================================================================
     // Social API Integration
 
@@ -358,6 +411,7 @@ public class StackMob {
                              String username,
                              StackMobOptions options,
                              StackMobRawCallback callback)  {
+        callback = forgettingUser(callback);
 
         List<Map.Entry<String, String>> paramList = new LinkedList<Map.Entry<String, String>>();
         paramList.add(new Pair<String, String>("tw_tk", token));
@@ -495,6 +549,7 @@ public class StackMob {
                               String username,
                               StackMobOptions options,
                               StackMobRawCallback callback) {
+        callback = forgettingUser(callback);
         List<Map.Entry<String, String>> paramList = new LinkedList<Map.Entry<String, String>>();
         paramList.add(new Pair<String, String>("fb_at", token));
 
@@ -630,6 +685,7 @@ public class StackMob {
                            String sig,
                            StackMobOptions options,
                            StackMobRawCallback callback) {
+        callback = forgettingUser(callback);
         List<Map.Entry<String, String>> paramList = new LinkedList<Map.Entry<String, String>>();
         paramList.add(new Pair<String, String>("gigya_uid", gigyaUid));
         paramList.add(new Pair<String, String>("gigya_ts", timestamp));
@@ -808,7 +864,7 @@ public class StackMob {
             Map.Entry<String, Date> sessionCookie = session.getCookieManager().getSessionCookie();
             if(sessionCookie != null) {
                 boolean cookieIsStillValid =
-                        sessionCookie.getValue() == null || sessionCookie.getValue().before(new Date());
+                        sessionCookie.getValue() == null || sessionCookie.getValue().after(new Date());
                 return cookieIsStillValid && !this.isLoggedOut();
             }
         }
@@ -878,6 +934,45 @@ public class StackMob {
         return executor;
     }
 
+    /**
+     * Replace the executor used for requests with one following the given policy. Work already running or waiting
+     * for a thread on the old executor finishes there, and then it shuts down. Anything requests already in progress
+     * submit later, such as retries, redirects and token refreshes, runs on the new executor.
+     * @param policy the policy for the new executor
+     */
+    public synchronized void setExecutionPolicy(StackMobExecutionPolicy policy) {
+        ExecutorService replaced = this.executor;
+        this.executor = policy.createExecutor();
+        if(this.datastore != null) this.datastore.setExecutor(executor);
+        if(replaced != null && !sharedExecutor) StackMobExecutor.replace(replaced, executor);
+        sharedExecutor = false;
+    }
+
+    /**
+     * Report the timings and outcomes of requests to a listener, such as a {@link StackMobMetrics}. See
+     * {@link StackMobSession#setMetricsListener(StackMobMetricsListener)}
+     * @param listener the listener to use, or null to stop reporting
+     */
+    public void setMetricsListener(StackMobMetricsListener listener) {
+        session.setMetricsListener(listener);
+    }
+
+    /**
+     * The number of requests waiting for a thread to process them.
+     * @return the queue depth, or 0 if the executor doesn't report it
+     */
+    public int getRequestQueueDepth() {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    /**
+     * The number of threads currently processing requests.
+     * @return the active count, or 0 if the executor doesn't report it
+     */
+    public int getActiveRequestCount() {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getActiveCount() : 0;
+    }
+
     /**
      * Get the callback used for redirected requests.
      * @return the redirected callback
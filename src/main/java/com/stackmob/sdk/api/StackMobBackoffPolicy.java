@@ -0,0 +1,159 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before retrying a request that couldn't be sent or got a 503. Retries are scheduled on a
+ * timer, so no thread is held while waiting. A 503 with a Retry-After header waits as long as the header asks; other
+ * retries wait as long as the policy says. The callback's retry count still limits the number of attempts. Requests
+ * that couldn't connect or lost their connection are only retried when that's turned on:
+ * <pre>
+ * {@code
+ * stackmob.getSession().setBackoffPolicy(StackMobBackoffPolicy.decorrelatedJitter(200, 10000).withMaxElapsed(30000)
+ *                                                             .withConnectionFailureRetries(true));
+ * }
+ * </pre>
+ * Subclass and override {@link #getDelayMillis(int, long)} for a custom schedule.
+ */
+public class StackMobBackoffPolicy {
+
+    public static final long STOP = -1;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+    public static final long DEFAULT_MAX_ELAPSED_MILLIS = 60000;
+
+    private enum Strategy { EXPONENTIAL, DECORRELATED_JITTER, NONE }
+
+    private final Strategy strategy;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private long maxElapsedMillis = DEFAULT_MAX_ELAPSED_MILLIS;
+    private boolean retryConnectionFailures = false;
+    private final Random random = new Random();
+
+    protected StackMobBackoffPolicy(long baseDelayMillis, long maxDelayMillis) {
+        this(Strategy.EXPONENTIAL, baseDelayMillis, maxDelayMillis);
+    }
+
+    private StackMobBackoffPolicy(Strategy strategy, long baseDelayMillis, long maxDelayMillis) {
+        if(baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) throw new IllegalArgumentException("The delays must satisfy 0 <= base <= max");
+        this.strategy = strategy;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * the default policy: decorrelated jitter from {@value #DEFAULT_BASE_DELAY_MILLIS}ms up to
+     * {@value #DEFAULT_MAX_DELAY_MILLIS}ms, giving up after {@value #DEFAULT_MAX_ELAPSED_MILLIS}ms
+     * @return a new policy with the defaults
+     */
+    public static StackMobBackoffPolicy standard() {
+        return decorrelatedJitter(DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * double the delay after each attempt
+     * @param baseDelayMillis the delay before the first retry
+     * @param maxDelayMillis the longest delay
+     * @return a new policy
+     */
+    public static StackMobBackoffPolicy exponential(long baseDelayMillis, long maxDelayMillis) {
+        return new StackMobBackoffPolicy(Strategy.EXPONENTIAL, baseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * pick each delay at random between the base delay and three times the previous one, so clients that failed
+     * together don't all retry together
+     * @param baseDelayMillis the shortest delay
+     * @param maxDelayMillis the longest delay
+     * @return a new policy
+     */
+    public static StackMobBackoffPolicy decorrelatedJitter(long baseDelayMillis, long maxDelayMillis) {
+        return new StackMobBackoffPolicy(Strategy.DECORRELATED_JITTER, baseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * never retry automatically, even if the server sends a Retry-After header
+     * @return a new policy
+     */
+    public static StackMobBackoffPolicy none() {
+        return new StackMobBackoffPolicy(Strategy.NONE, 0, 0);
+    }
+
+    /**
+     * stop retrying once this long has passed since the first failure
+     * @param millis the time in milliseconds
+     * @return the policy with the new limit
+     */
+    public StackMobBackoffPolicy withMaxElapsed(long millis) {
+        this.maxElapsedMillis = millis;
+        return this;
+    }
+
+    /**
+     * set whether to retry requests that failed to connect or lost their connection. Requests that may have reached
+     * the server are only retried if repeating them is safe: GET, HEAD, PUT and DELETE. This is off by default, so
+     * connection failures go straight to the callback
+     * @param retry whether to retry connection failures
+     * @return the policy with the new setting
+     */
+    public StackMobBackoffPolicy withConnectionFailureRetries(boolean retry) {
+        this.retryConnectionFailures = retry;
+        return this;
+    }
+
+    public boolean isRetryingConnectionFailures() {
+        return retryConnectionFailures && strategy != Strategy.NONE;
+    }
+
+    /**
+     * how long to wait before the next attempt
+     * @param attempt the number of the retry, starting at 1
+     * @param previousDelayMillis the delay before the previous retry, or 0 for the first
+     * @return the delay in milliseconds, or {@link #STOP} to give up
+     */
+    public long getDelayMillis(int attempt, long previousDelayMillis) {
+        switch(strategy) {
+            case EXPONENTIAL:
+                long delay = baseDelayMillis << Math.min(attempt - 1, 30);
+                return delay < 0 ? maxDelayMillis : Math.min(maxDelayMillis, delay);
+            case DECORRELATED_JITTER:
+                long upper = Math.max(baseDelayMillis, Math.min(maxDelayMillis, previousDelayMillis * 3));
+                return baseDelayMillis + (long) (random.nextDouble() * (upper - baseDelayMillis));
+            default:
+                return STOP;
+        }
+    }
+
+    /**
+     * decide how long to wait before the next attempt, taking the time already spent retrying into account. This is
+     * called by the SDK
+     * @param attempt the number of the retry, starting at 1
+     * @param previousDelayMillis the delay before the previous retry, or 0 for the first
+     * @param retryAfterMillis the delay the server asked for, or -1 if it didn't
+     * @param elapsedMillis the time since the first failure
+     * @return the delay in milliseconds, or {@link #STOP} to give up
+     */
+    public long getRetryDelayMillis(int attempt, long previousDelayMillis, long retryAfterMillis, long elapsedMillis) {
+        if(strategy == Strategy.NONE) return STOP;
+        long delay = retryAfterMillis >= 0 ? retryAfterMillis : getDelayMillis(attempt, previousDelayMillis);
+        if(delay == STOP || elapsedMillis + delay > maxElapsedMillis) return STOP;
+        return delay;
+    }
+}
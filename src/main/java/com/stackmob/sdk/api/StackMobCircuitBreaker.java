@@ -0,0 +1,276 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.exception.StackMobCircuitOpenException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stops sending requests to a host that is failing, so requests fail fast through
+ * {@link com.stackmob.sdk.callback.StackMobRawCallback#unsent(com.stackmob.sdk.exception.StackMobException)} instead of
+ * tying up threads and adding load during an outage. Each host, after redirects, has its own circuit:
+ * <ul>
+ *     <li>closed: requests are sent, and the outcomes of the most recent are tracked. Once enough have been seen and
+ *     either the failure rate or the slow request rate reaches its threshold, the circuit opens</li>
+ *     <li>open: requests fail immediately with a {@link StackMobCircuitOpenException}. After the open duration the
+ *     circuit becomes half open</li>
+ *     <li>half open: a few trial requests are sent. If they all succeed the circuit closes, and if any fails it opens
+ *     again</li>
+ * </ul>
+ * Connection failures and 5xx responses count as failures. Set one on the session to use it:
+ * <pre>
+ * {@code
+ * stackmob.getSession().setCircuitBreaker(new StackMobCircuitBreaker().withFailureRateThreshold(0.5).withOpenDuration(30000));
+ * }
+ * </pre>
+ */
+public class StackMobCircuitBreaker {
+
+    public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    public static final double DEFAULT_SLOW_REQUEST_RATE_THRESHOLD = 1.0;
+    public static final long DEFAULT_SLOW_REQUEST_MILLIS = 10000;
+    public static final int DEFAULT_WINDOW_SIZE = 50;
+    public static final int DEFAULT_MINIMUM_REQUESTS = 10;
+    public static final long DEFAULT_OPEN_DURATION_MILLIS = 30000;
+    public static final int DEFAULT_TRIAL_REQUESTS = 3;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private double slowRequestRateThreshold = DEFAULT_SLOW_REQUEST_RATE_THRESHOLD;
+    private long slowRequestMillis = DEFAULT_SLOW_REQUEST_MILLIS;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int minimumRequests = DEFAULT_MINIMUM_REQUESTS;
+    private long openDurationMillis = DEFAULT_OPEN_DURATION_MILLIS;
+    private int trialRequests = DEFAULT_TRIAL_REQUESTS;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    /**
+     * open the circuit once at least this fraction of recent requests have failed
+     * @param rate the failure rate, between 0 and 1
+     * @return the breaker with the new threshold
+     */
+    public StackMobCircuitBreaker withFailureRateThreshold(double rate) {
+        this.failureRateThreshold = rate;
+        return this;
+    }
+
+    /**
+     * open the circuit once at least this fraction of recent requests have been slow, whether or not they succeeded.
+     * The default of 1 only opens the circuit if every request is slow
+     * @param rate the slow request rate, between 0 and 1
+     * @return the breaker with the new threshold
+     */
+    public StackMobCircuitBreaker withSlowRequestRateThreshold(double rate) {
+        this.slowRequestRateThreshold = rate;
+        return this;
+    }
+
+    /**
+     * set how long a request can take before it counts as slow
+     * @param millis the time in milliseconds
+     * @return the breaker with the new limit
+     */
+    public StackMobCircuitBreaker withSlowRequestThreshold(long millis) {
+        this.slowRequestMillis = millis;
+        return this;
+    }
+
+    /**
+     * set how many of the most recent requests the rates are calculated from. Changing it closes every circuit and
+     * forgets their history
+     * @param requests the window size
+     * @return the breaker with the new window size
+     */
+    public StackMobCircuitBreaker withWindowSize(int requests) {
+        if(requests < 1) throw new IllegalArgumentException("The window must hold at least one request");
+        if(requests != windowSize) {
+            this.windowSize = requests;
+            reset();
+        }
+        return this;
+    }
+
+    /**
+     * set how many requests must have been seen before the circuit can open
+     * @param requests the minimum number of requests
+     * @return the breaker with the new minimum
+     */
+    public StackMobCircuitBreaker withMinimumRequests(int requests) {
+        this.minimumRequests = requests;
+        return this;
+    }
+
+    /**
+     * set how long the circuit stays open before trial requests are let through
+     * @param millis the time in milliseconds
+     * @return the breaker with the new duration
+     */
+    public StackMobCircuitBreaker withOpenDuration(long millis) {
+        this.openDurationMillis = millis;
+        return this;
+    }
+
+    /**
+     * set how many trial requests must succeed to close a half open circuit
+     * @param requests the number of trial requests
+     * @return the breaker with the new trial count
+     */
+    public StackMobCircuitBreaker withTrialRequests(int requests) {
+        if(requests < 1) throw new IllegalArgumentException("At least one trial request is required");
+        this.trialRequests = requests;
+        return this;
+    }
+
+    /**
+     * get the state of a host's circuit
+     * @param host the host, including its scheme, such as https://api.stackmob.com
+     * @return the state
+     */
+    public State getState(String host) {
+        Circuit circuit = circuits.get(host);
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    /**
+     * check that a request can be sent to a host. This is called by the SDK before each request
+     * @param host the host, including its scheme
+     * @throws StackMobCircuitOpenException if the host's circuit is open
+     */
+    public void acquirePermission(String host) throws StackMobCircuitOpenException {
+        getCircuit(host).acquirePermission(host);
+    }
+
+    /**
+     * record the outcome of a request sent after {@link #acquirePermission(String)}. This is called by the SDK
+     * @param host the host, including its scheme
+     * @param succeeded false if the request couldn't be sent or got a 5xx response
+     * @param latencyMillis how long the request took
+     */
+    public void record(String host, boolean succeeded, long latencyMillis) {
+        getCircuit(host).record(succeeded, latencyMillis);
+    }
+
+    /**
+     * close every circuit and forget their history
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    private Circuit getCircuit(String host) {
+        Circuit circuit = circuits.get(host);
+        if(circuit == null) {
+            Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(host, created);
+            if(circuit == null) circuit = created;
+        }
+        return circuit;
+    }
+
+    /*
+     * One host's circuit. Outcomes are kept in a ring buffer so the rates cover the most recent requests
+     */
+    private class Circuit {
+        // fixed when the circuit is created, in case the breaker's window size changes while it's in use
+        private final int size = windowSize;
+        private final boolean[] failed = new boolean[size];
+        private final boolean[] slow = new boolean[size];
+        private int next = 0;
+        private int count = 0;
+        private int failures = 0;
+        private int slowRequests = 0;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private int trialsStarted;
+        private int trialsSucceeded;
+
+        synchronized State getState() {
+            return state;
+        }
+
+        synchronized void acquirePermission(String host) throws StackMobCircuitOpenException {
+            long now = System.currentTimeMillis();
+            if(state == State.OPEN) {
+                long retryAfter = openedAt + openDurationMillis - now;
+                if(retryAfter > 0) throw new StackMobCircuitOpenException(host, retryAfter);
+                state = State.HALF_OPEN;
+                openedAt = now;
+                trialsStarted = 0;
+                trialsSucceeded = 0;
+            }
+            if(state == State.HALF_OPEN) {
+                // trials that never report back shouldn't hold the circuit half open forever
+                if(trialsStarted >= trialRequests && now - openedAt >= openDurationMillis) {
+                    openedAt = now;
+                    trialsStarted = trialsSucceeded;
+                }
+                if(trialsStarted >= trialRequests) throw new StackMobCircuitOpenException(host, openedAt + openDurationMillis - now);
+                trialsStarted++;
+            }
+        }
+
+        synchronized void record(boolean succeeded, long latencyMillis) {
+            if(state == State.HALF_OPEN) {
+                if(!succeeded) {
+                    open();
+                } else if(++trialsSucceeded >= trialRequests) {
+                    close();
+                }
+                return;
+            }
+            if(state == State.OPEN) return;
+
+            if(count == size) {
+                if(failed[next]) failures--;
+                if(slow[next]) slowRequests--;
+            } else {
+                count++;
+            }
+            failed[next] = !succeeded;
+            slow[next] = latencyMillis >= slowRequestMillis;
+            if(failed[next]) failures++;
+            if(slow[next]) slowRequests++;
+            next = (next + 1) % size;
+
+            if(count >= minimumRequests &&
+               ((double) failures / count >= failureRateThreshold || (double) slowRequests / count >= slowRequestRateThreshold)) {
+                open();
+            }
+        }
+
+        private void open() {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+
+        private void close() {
+            state = State.CLOSED;
+            next = 0;
+            count = 0;
+            failures = 0;
+            slowRequests = 0;
+            for(int i = 0; i < size; i++) {
+                failed[i] = false;
+                slow[i] = false;
+            }
+        }
+    }
+}
@@ -16,8 +16,11 @@
 package com.stackmob.sdk.api;
 
 import com.google.gson.*;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobCountCallback;
 import com.stackmob.sdk.callback.StackMobRawCallback;
 import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
 import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.net.HttpVerb;
 import com.stackmob.sdk.net.HttpVerbWithPayload;
@@ -32,7 +35,9 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Make calls to StackMob's API directly. This class lets you call CRUD methods, as well as talk to any custom APIs you have.
@@ -40,7 +45,7 @@ import java.util.concurrent.ExecutorService;
 public class StackMobDatastore {
 
 
-    private ExecutorService executor;
+    private volatile ExecutorService executor;
     private StackMobSession session;
     private String host;
     private StackMobRedirectedCallback redirectedCallback;
@@ -60,20 +65,21 @@ public class StackMobDatastore {
         this.session = session;
     }
 
+    /**
+     * set the executor that runs requests
+     * @param executor the executor to use
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
     /**
      * do a get request on the StackMob platform
      * @param path the path to get
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
     public void get(String path, StackMobRawCallback callback) {
-        new StackMobRequestWithoutPayload(this.executor,
-                                          this.session,
-                                          HttpVerbWithoutPayload.GET,
-                                          StackMobOptions.none(),
-                                          StackMobRequest.EmptyParams,
-                                          path,
-                                          callback,
-                                          this.redirectedCallback).setUrlFormat(this.host).sendRequest();
+        get(path, StackMobRequest.EmptyParams, StackMobOptions.none(), callback);
     }
 
     /**
@@ -94,14 +100,7 @@ public class StackMobDatastore {
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
     private void get(String path, List<Map.Entry<String, String>> arguments, List<Map.Entry<String, String>> headers, StackMobRawCallback callback) {
-        new StackMobRequestWithoutPayload(this.executor,
-                                          this.session,
-                                          HttpVerbWithoutPayload.GET,
-                                          StackMobOptions.headers(headers),
-                                          arguments,
-                                          path,
-                                          callback,
-                                          this.redirectedCallback).setUrlFormat(this.host).sendRequest();
+        get(path, arguments, StackMobOptions.headers(headers), callback);
     }
 
     /**
@@ -111,7 +110,20 @@ public class StackMobDatastore {
      * @param options additional options, such as headers, to modify the request
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    private void get(String path, List<Map.Entry<String, String>> arguments, StackMobOptions options, StackMobRawCallback callback) {
+    void get(String path, List<Map.Entry<String, String>> arguments, StackMobOptions options, StackMobRawCallback callback) {
+        StackMobResponseCache cache = this.session.getResponseCache();
+        if(cache != null && !(callback instanceof StackMobStreamingCallback)) {
+            String schema = getSchema(path);
+            if(cache.getTimeToLive(schema) > 0) {
+                String key = getCacheKey(path, arguments, options);
+                StackMobResponseCache.Entry cached = cache.get(key);
+                if(cached != null) {
+                    deliver(cached, options, callback);
+                    return;
+                }
+                callback = new CachingCallback(cache, schema, key, callback);
+            }
+        }
         new StackMobRequestWithoutPayload(this.executor,
                 this.session,
                 HttpVerbWithoutPayload.GET,
@@ -239,7 +251,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        requestObject,
                                        path,
-                                       callback,
+                                       invalidating(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -258,7 +270,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        requestObject,
                                        path,
-                                       callback,
+                                       invalidating(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -276,7 +288,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        body,
                                        path,
-                                       callback,
+                                       invalidating(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -295,7 +307,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        body,
                                        path,
-                                       callback,
+                                       invalidating(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -313,7 +325,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        requestObjects,
                                        path,
-                                       callback,
+                                       invalidating(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -333,7 +345,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        relatedObject,
                                        String.format("%s/%s/%s", path, primaryId, relatedField),
-                                       callback,
+                                       invalidatingAll(callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -353,7 +365,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        relatedObject,
                                        String.format("%s/%s/%s", path, primaryId, relatedField),
-                                       callback,
+                                       invalidatingAll(callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -385,7 +397,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        requestObject,
                                        path + "/" + id,
-                                       callback,
+                                       invalidating(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -404,7 +416,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        body,
                                        path + "/" + id,
-                                       callback,
+                                       invalidating(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -471,7 +483,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        relatedIds,
                                        String.format("%s/%s/%s", path, primaryId, relatedField),
-                                       callback,
+                                       invalidating(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -487,7 +499,7 @@ public class StackMobDatastore {
                 StackMobOptions.none(),
                 StackMobRequest.EmptyParams,
                 path,
-                callback,
+                invalidating(path, callback),
                 this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -534,7 +546,7 @@ public class StackMobDatastore {
                                           StackMobOptions.headers(headers),
                                           StackMobRequest.EmptyParams,
                                           String.format("%s/%s/%s/%s", path, primaryId, field, ids.toString()),
-                                          callback,
+                                          cascadeDeletes ? invalidatingAll(callback) : invalidating(path, callback),
                                           this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -564,7 +576,7 @@ public class StackMobDatastore {
                                           StackMobOptions.headers(headers),
                                           StackMobRequest.EmptyParams,
                                           String.format("%s/%s/%s/%s", path, primaryId, field, idToDelete),
-                                          callback,
+                                          cascadeDelete ? invalidatingAll(callback) : invalidating(path, callback),
                                           this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -585,7 +597,7 @@ public class StackMobDatastore {
                 StackMobOptions.none(),
                 query.getArguments(),
                 query.getObjectName(),
-                callback,
+                invalidating(query.getObjectName(), callback),
                 this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -637,4 +649,390 @@ public class StackMobDatastore {
         });
     }
 
+    // ================================================================================================================
+    // Response cache
+
+    /**
+     * the schema a path belongs to, which is its first segment
+     */
+    private static String getSchema(String path) {
+        String trimmed = path.startsWith("/") ? path.substring(1) : path;
+        int slash = trimmed.indexOf('/');
+        return slash < 0 ? trimmed : trimmed.substring(0, slash);
+    }
+
+    /**
+     * answer a read from the cache on the executor, like any other response
+     */
+    private void deliver(final StackMobResponseCache.Entry cached, final StackMobOptions options, final StackMobRawCallback callback) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.setDone(HttpVerbWithoutPayload.GET, cached.getUrl(), options.getHeaders(), "", 200, copy(cached.getHeaders()), copy(cached.getBody()));
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            callback.unsent(new StackMobException(e.getMessage()));
+        }
+    }
+
+    /**
+     * callbacks may modify the response they're given, so the cache and each caller get their own copy
+     */
+    private static byte[] copy(byte[] body) {
+        return body == null ? null : body.clone();
+    }
+
+    private static List<Map.Entry<String, String>> copy(List<Map.Entry<String, String>> headers) {
+        return headers == null ? null : new ArrayList<Map.Entry<String, String>>(headers);
+    }
+
+    /**
+     * everything that identifies the response to a read: where it goes, the query string and the headers
+     */
+    private String getCacheKey(String path, List<Map.Entry<String, String>> arguments, StackMobOptions options) {
+        // the scheme the request will actually go out on, which the session may override
+        StringBuilder builder = new StringBuilder(this.session.isHTTPS(options.isHTTPS()) ? "https://" : "http://").append(this.host);
+        builder.append(path.startsWith("/") ? "" : "/").append(path);
+        char separator = '?';
+        for(Map.Entry<String, String> argument : arguments) {
+            builder.append(separator).append(argument.getKey()).append('=').append(argument.getValue());
+            separator = '&';
+        }
+        Map<String, String> headers = new TreeMap<String, String>();
+        for(Map.Entry<String, String> header : options.getHeaders()) {
+            headers.put(header.getKey().toLowerCase(), header.getValue());
+        }
+        for(Map.Entry<String, String> header : headers.entrySet()) {
+            builder.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * drop the cached reads of the schema a write goes to, both now and when it finishes, so reads sent in between
+     * aren't cached either
+     */
+    private StackMobRawCallback invalidating(String path, StackMobRawCallback callback) {
+        StackMobResponseCache cache = this.session.getResponseCache();
+        if(cache == null) return callback;
+        String schema = getSchema(path);
+        cache.invalidate(schema);
+        return new InvalidatingCallback(cache, schema, callback);
+    }
+
+    /**
+     * drop every cached read, both now and when the write finishes. Posting a related object or cascading a delete
+     * changes the related schema too, which can't be told from the name of the relation
+     */
+    private StackMobRawCallback invalidatingAll(StackMobRawCallback callback) {
+        StackMobResponseCache cache = this.session.getResponseCache();
+        if(cache == null) return callback;
+        cache.clear();
+        return new InvalidatingCallback(cache, null, callback);
+    }
+
+    /**
+     * Passes everything through to the wrapped callback
+     */
+    static abstract class ForwardingCallback extends StackMobRawCallback {
+        protected final StackMobRawCallback callback;
+
+        ForwardingCallback(StackMobRawCallback callback) {
+            this.callback = callback;
+            setRetriesRemaining(callback.getRetriesRemaining());
+        }
+
+        @Override
+        public void unsent(StackMobException e) {
+            callback.unsent(e);
+        }
+
+        @Override
+        public void temporaryPasswordResetRequired(StackMobException e) {
+            callback.temporaryPasswordResetRequired(e);
+        }
+
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            callback.setDone(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+        }
+
+        @Override
+        public boolean retry(int afterMilliseconds) {
+            return callback.retry(afterMilliseconds);
+        }
+
+        @Override
+        public boolean redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            return callback.redirected(originalUrl, redirectHeaders, redirectBody, newURL);
+        }
+
+        @Override
+        public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            callback.circularRedirect(originalUrl, redirectHeaders, redirectBody, newURL);
+        }
+    }
+
+    /**
+     * Stores successful reads in the response cache
+     */
+    private static class CachingCallback extends ForwardingCallback {
+        private final StackMobResponseCache cache;
+        private final String schema;
+        private final String key;
+        private final long generation;
+
+        CachingCallback(StackMobResponseCache cache, String schema, String key, StackMobRawCallback callback) {
+            super(callback);
+            this.cache = cache;
+            this.schema = schema;
+            this.key = key;
+            this.generation = cache.getGeneration(schema);
+        }
+
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            if(Http.isSuccess(responseStatusCode)) {
+                long expiresAt = System.currentTimeMillis() + cache.getTimeToLive(schema);
+                cache.put(schema, key, generation, new StackMobResponseCache.Entry(schema, requestURL, copy(responseHeaders), copy(responseBody), expiresAt));
+            }
+            super.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+        }
+    }
+
+    /**
+     * Drops the cached reads of a schema, or of every schema if it's null, once a write to it finishes
+     */
+    private static class InvalidatingCallback extends ForwardingCallback {
+        private final StackMobResponseCache cache;
+        private final String schema;
+
+        InvalidatingCallback(StackMobResponseCache cache, String schema, StackMobRawCallback callback) {
+            super(callback);
+            this.cache = cache;
+            this.schema = schema;
+        }
+
+        private void invalidate() {
+            if(schema == null) {
+                cache.clear();
+            } else {
+                cache.invalidate(schema);
+            }
+        }
+
+        @Override
+        public void unsent(StackMobException e) {
+            invalidate();
+            super.unsent(e);
+        }
+
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            invalidate();
+            super.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+        }
+    }
+
+    // ================================================================================================================
+    // Futures
+
+    private static StackMobCallback completing(final StackMobFuture<String> future) {
+        return new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                future.complete(responseBody);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                future.fail(e);
+            }
+        };
+    }
+
+    private static StackMobCountCallback completingCount(final StackMobFuture<Long> future) {
+        return new StackMobCountCallback() {
+            @Override
+            public void success(long count) {
+                future.complete(count);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                future.fail(e);
+            }
+        };
+    }
+
+    /**
+     * do a get request on the StackMob platform
+     * @param path the path to get
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> getAsync(String path) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        get(path, completing(future));
+        return future;
+    }
+
+    /**
+     * do a get request on the StackMob platform
+     * @param path the path to get
+     * @param options additional options, such as headers, to modify the request
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> getAsync(String path, StackMobOptions options) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        get(path, options, completing(future));
+        return future;
+    }
+
+    /**
+     * do a get request on the StackMob platform
+     * @param query the query to run
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> getAsync(StackMobQuery query) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        get(query, completing(future));
+        return future;
+    }
+
+    /**
+     * do a get request on the StackMob platform
+     * @param query the query to run
+     * @param options additional options, such as headers, to modify the request
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> getAsync(StackMobQuery query, StackMobOptions options) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        get(query, options, completing(future));
+        return future;
+    }
+
+    /**
+     * do a post request on the StackMob platform for a single object
+     * @param path the path to post to
+     * @param requestObject the object to serialize and send in the POST body. this object will be serialized with Gson
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> postAsync(String path, Object requestObject) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        post(path, requestObject, completing(future));
+        return future;
+    }
+
+    /**
+     * do a post request on the StackMob platform for a single object
+     * @param path the path to post to
+     * @param requestObject the object to serialize and send in the POST body. this object will be serialized with Gson
+     * @param options additional options, such as headers, to modify the request
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> postAsync(String path, Object requestObject, StackMobOptions options) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        post(path, requestObject, options, completing(future));
+        return future;
+    }
+
+    /**
+     * do a post request on the StackMob platform for a single object
+     * @param path the path to post to
+     * @param body the json body
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> postAsync(String path, String body) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        post(path, body, completing(future));
+        return future;
+    }
+
+    /**
+     * do a put request on the StackMob platform
+     * @param path the path to put
+     * @param id the id of the object to put
+     * @param requestObject the object to serialize and send in the PUT body. this object will be serialized with Gson
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> putAsync(String path, String id, Object requestObject) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        put(path, id, requestObject, completing(future));
+        return future;
+    }
+
+    /**
+     * do a put request on the StackMob platform
+     * @param path the path to put
+     * @param id the id of the object to put
+     * @param body the json body
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> putAsync(String path, String id, String body) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        put(path, id, body, completing(future));
+        return future;
+    }
+
+    /**
+     * do a DELETE request to the StackMob platform
+     * @param path the path to delete
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> deleteAsync(String path) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        delete(path, completing(future));
+        return future;
+    }
+
+    /**
+     * do a DELETE request to the StackMob platform
+     * @param path the path to delete
+     * @param id the id of the object to delete
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> deleteAsync(String path, String id) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        delete(path, id, completing(future));
+        return future;
+    }
+
+    /**
+     * do a DELETE request to the StackMob platform, with query parameters.
+     *
+     * warning! this has the ability to delete a substantial amount of data in one request. use with care!
+     *
+     * @param query the query on which to match elements to be deleted
+     * @return a future of the response body
+     */
+    public StackMobFuture<String> deleteAsync(StackMobQuery query) {
+        StackMobFuture<String> future = new StackMobFuture<String>(session.getLogger());
+        delete(query, completing(future));
+        return future;
+    }
+
+    /**
+     * retrieve the number of objects for a schema on the StackMob platform
+     * @param path the path to count
+     * @return a future of the count
+     */
+    public StackMobFuture<Long> countAsync(String path) {
+        StackMobFuture<Long> future = new StackMobFuture<Long>(session.getLogger());
+        count(path, completingCount(future));
+        return future;
+    }
+
+    /**
+     * retrieve the number of objects for a query on the StackMob platform
+     * @param query the query to send
+     * @return a future of the count
+     */
+    public StackMobFuture<Long> countAsync(StackMobQuery query) {
+        StackMobFuture<Long> future = new StackMobFuture<Long>(session.getLogger());
+        count(query, completingCount(future));
+        return future;
+    }
+
 }
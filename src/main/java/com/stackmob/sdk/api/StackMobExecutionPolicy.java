@@ -0,0 +1,266 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.util.StackMobExecutor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controls how many requests {@link StackMob} and {@link com.stackmob.sdk.push.StackMobPush} process at once, and
+ * what happens to requests made faster than they can be handled. Calls can be chained:
+ * <pre>
+ * {@code
+ * stackmob.setExecutionPolicy(StackMobExecutionPolicy.standard().withMaxThreads(16).withQueueSize(500)
+ *                                                         .withRejectionStrategy(RejectionStrategy.BLOCK));
+ * }
+ * </pre>
+ */
+public class StackMobExecutionPolicy {
+
+    public static final int DEFAULT_MAX_THREADS = 64;
+    public static final int DEFAULT_QUEUE_SIZE = 2048;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 60000;
+    public static final int DEFAULT_MAX_VIRTUAL_THREADS = 10000;
+
+    // how often a blocked caller checks whether the executor has shut down
+    private static final long BLOCK_POLL_MILLIS = 100;
+
+    /**
+     * What to do with a request when every thread is busy and the queue is full. The strategy applies to starting
+     * requests; responses arriving on a non-blocking transport's I/O threads are never rejected, blocked on or run
+     * there, and go to a shared overflow thread when the executor is full
+     */
+    public enum RejectionStrategy {
+        /**
+         * Don't send the request. Its callback's unsent method is called with the reason
+         */
+        REJECT,
+        /**
+         * Run the work on the thread that made the request, which slows the caller down to the rate requests are
+         * completing. Don't use this if requests are made from a thread that must not block, such as a UI thread
+         */
+        CALLER_RUNS,
+        /**
+         * Block the thread making the request until there is room in the queue
+         */
+        BLOCK
+    }
+
+    private int maxThreads = DEFAULT_MAX_THREADS;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private RejectionStrategy rejectionStrategy = RejectionStrategy.REJECT;
+    private boolean virtualThreads = false;
+    private boolean daemonThreads = false;
+
+    /**
+     * the default policy: {@value #DEFAULT_MAX_THREADS} threads, a queue of {@value #DEFAULT_QUEUE_SIZE} requests and
+     * rejection once both are full
+     * @return a new policy with the defaults
+     */
+    public static StackMobExecutionPolicy standard() {
+        return new StackMobExecutionPolicy();
+    }
+
+    /**
+     * a policy that runs each request on its own virtual thread when the JVM supports them (Java 21 and later), so
+     * a blocking transport can have {@value #DEFAULT_MAX_VIRTUAL_THREADS} requests in flight without the memory cost
+     * of platform threads. Older JVMs fall back to the standard policy's platform threads
+     * @return a new policy using virtual threads where available
+     * @see #isVirtualThreadSupported()
+     */
+    public static StackMobExecutionPolicy virtualThreads() {
+        if(!isVirtualThreadSupported()) return standard();
+        return new StackMobExecutionPolicy().withVirtualThreads(true).withMaxThreads(DEFAULT_MAX_VIRTUAL_THREADS);
+    }
+
+    /**
+     * whether this JVM can run requests on virtual threads
+     * @return true on Java 21 and later
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.FACTORY != null;
+    }
+
+    /**
+     * run requests on virtual threads instead of platform threads. This is ignored on JVMs without virtual threads.
+     * The thread and queue limits still apply, but can be set far higher since virtual threads cost kilobytes rather
+     * than megabytes of stack
+     * @param virtualThreads whether to use virtual threads
+     * @return the policy with virtual threads set
+     */
+    public StackMobExecutionPolicy withVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * run requests on daemon threads, which don't keep the JVM running. This is off by default, so a program that
+     * makes a request and then returns from main still gets its callback. Virtual threads are always daemon threads
+     * @param daemonThreads whether to use daemon threads
+     * @return the policy with daemon threads set
+     */
+    public StackMobExecutionPolicy withDaemonThreads(boolean daemonThreads) {
+        this.daemonThreads = daemonThreads;
+        return this;
+    }
+
+    /**
+     * set the most threads that will process requests at once. Idle threads are stopped after the keep alive time
+     * @param maxThreads the maximum number of threads
+     * @return the policy with the new thread limit
+     */
+    public StackMobExecutionPolicy withMaxThreads(int maxThreads) {
+        if(maxThreads < 1) throw new IllegalArgumentException("At least one thread is required");
+        this.maxThreads = maxThreads;
+        return this;
+    }
+
+    /**
+     * set how many requests can wait for a thread. Use 0 to hand requests straight to a thread or reject them
+     * @param queueSize the maximum number of waiting requests
+     * @return the policy with the new queue size
+     */
+    public StackMobExecutionPolicy withQueueSize(int queueSize) {
+        if(queueSize < 0) throw new IllegalArgumentException("The queue size can't be negative");
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * set how long an idle thread is kept around
+     * @param millis the keep alive time in milliseconds
+     * @return the policy with the new keep alive time
+     */
+    public StackMobExecutionPolicy withKeepAlive(long millis) {
+        this.keepAliveMillis = millis;
+        return this;
+    }
+
+    /**
+     * set what happens to requests once all threads are busy and the queue is full
+     * @param strategy the strategy to use
+     * @return the policy with the new strategy
+     */
+    public StackMobExecutionPolicy withRejectionStrategy(RejectionStrategy strategy) {
+        this.rejectionStrategy = strategy;
+        return this;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public RejectionStrategy getRejectionStrategy() {
+        return rejectionStrategy;
+    }
+
+    public boolean usesDaemonThreads() {
+        return daemonThreads;
+    }
+
+    /**
+     * whether executors created from this policy will actually use virtual threads
+     * @return true if virtual threads were requested and this JVM supports them
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads && isVirtualThreadSupported();
+    }
+
+    /**
+     * create an executor that follows this policy
+     * @return a new executor
+     */
+    public StackMobExecutor createExecutor() {
+        BlockingQueue<Runnable> queue = queueSize == 0 ? new SynchronousQueue<Runnable>() : new ArrayBlockingQueue<Runnable>(queueSize);
+        if(usesVirtualThreads()) {
+            return new StackMobExecutor(maxThreads, keepAliveMillis, queue, createRejectionHandler(), VirtualThreads.FACTORY);
+        }
+        return new StackMobExecutor(maxThreads, keepAliveMillis, queue, createRejectionHandler(), daemonThreads);
+    }
+
+    private RejectedExecutionHandler createRejectionHandler() {
+        switch(rejectionStrategy) {
+            case CALLER_RUNS: return new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    if(executor.isShutdown()) throw new RejectedExecutionException("The executor has been shut down");
+                    r.run();
+                }
+            };
+            case BLOCK: return new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    if(executor.isShutdown()) throw new RejectedExecutionException("The executor has been shut down");
+                    try {
+                        // nothing takes work from the queue of an executor that has shut down, so stop waiting then
+                        while(!executor.getQueue().offer(r, BLOCK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                            if(executor.isShutdown()) throw new RejectedExecutionException("The executor has been shut down");
+                        }
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for room in the queue");
+                    }
+                }
+            };
+            default: return new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    if(executor.isShutdown()) throw new RejectedExecutionException("The executor has been shut down");
+                    throw new RejectedExecutionException(String.format("Too many requests in progress (%d running, %d queued)", executor.getActiveCount(), executor.getQueue().size()));
+                }
+            };
+        }
+    }
+
+    /**
+     * The SDK targets Java 6, so virtual threads are looked up reflectively the first time they're needed
+     */
+    private static class VirtualThreads {
+        static final ThreadFactory FACTORY = lookup();
+
+        private static ThreadFactory lookup() {
+            try {
+                // Thread.ofVirtual().name("StackMob virtual worker ", 1).factory()
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "StackMob virtual worker ", 1L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch(Exception e) {
+                return null;
+            } catch(LinkageError e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.StackMobLogger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The eventual result of an asynchronous StackMob call, returned by the {@code ...Async} methods on
+ * {@link StackMobDatastore} and {@link com.stackmob.sdk.model.StackMobModel}. Futures can be waited on like any
+ * {@link Future}, but can also be chained and joined without blocking a thread:
+ * <pre>
+ * {@code
+ * StackMobFuture<Long> total = datastore.countAsync("task").map(new StackMobFuture.Transform<Long, Long>() {
+ *     public Long apply(Long count) {
+ *         return count * 2;
+ *     }
+ * });
+ * StackMobFuture<List<String>> all = StackMobFuture.allOf(Arrays.asList(datastore.getAsync("task/1"), datastore.getAsync("task/2")));
+ * }
+ * </pre>
+ * Listeners and transforms run on the thread that completes the future, usually one of the SDK's executor threads,
+ * or immediately on the calling thread if the future is already complete. A listener that throws is logged and
+ * doesn't stop the others being called.
+ * <p>
+ * Not every call has an async variant yet. Head requests, bulk and related posts, atomic counters, saving several
+ * models at once and the {@link com.stackmob.sdk.model.StackMobUser} calls still only take callbacks.
+ * @param <T> the type of the result
+ */
+public class StackMobFuture<T> implements Future<T> {
+
+    /**
+     * Turns the result of one future into the result of another
+     * @param <T> the type of the input
+     * @param <U> the type of the output
+     */
+    public interface Transform<T, U> {
+        /**
+         * @param value the result of the original future
+         * @return the result of the new future
+         * @throws StackMobException to fail the new future
+         */
+        U apply(T value) throws StackMobException;
+    }
+
+    /**
+     * Receives the outcome of a future
+     * @param <T> the type of the result
+     */
+    public static abstract class Listener<T> {
+        /**
+         * the future completed successfully
+         * @param result the result
+         */
+        public abstract void success(T result);
+
+        /**
+         * the future failed or was cancelled
+         * @param e the reason
+         */
+        public abstract void failure(StackMobException e);
+    }
+
+    private enum State { PENDING, SUCCEEDED, FAILED, CANCELLED }
+
+    private final StackMobLogger logger;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final List<Listener<? super T>> listeners = new ArrayList<Listener<? super T>>();
+    private State state = State.PENDING;
+    private T result;
+    private StackMobException error;
+
+    /**
+     * create a pending future. Listeners that throw are reported to the global StackMob's logger
+     */
+    public StackMobFuture() {
+        this(null);
+    }
+
+    /**
+     * create a pending future
+     * @param logger where listeners that throw are reported, or null for the global StackMob's logger
+     */
+    public StackMobFuture(StackMobLogger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * create a future that's already succeeded
+     * @param value the result
+     * @param <T> the type of the result
+     * @return a completed future
+     */
+    public static <T> StackMobFuture<T> completed(T value) {
+        StackMobFuture<T> future = new StackMobFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * create a future that's already failed
+     * @param e the reason
+     * @param <T> the type of the result
+     * @return a failed future
+     */
+    public static <T> StackMobFuture<T> failed(StackMobException e) {
+        StackMobFuture<T> future = new StackMobFuture<T>();
+        future.fail(e);
+        return future;
+    }
+
+    /**
+     * join several futures into one that succeeds with all of their results, in order, once they have all succeeded.
+     * It fails as soon as any of them fails
+     * @param futures the futures to join
+     * @param <T> the type of the results
+     * @return a future of the list of results
+     */
+    public static <T> StackMobFuture<List<T>> allOf(Collection<? extends StackMobFuture<? extends T>> futures) {
+        final StackMobFuture<List<T>> joined = new StackMobFuture<List<T>>();
+        final List<T> results = new ArrayList<T>(futures.size());
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        if(futures.isEmpty()) {
+            joined.complete(results);
+            return joined;
+        }
+        int index = 0;
+        for(StackMobFuture<? extends T> future : futures) {
+            results.add(null);
+            final int position = index++;
+            future.addListener(new Listener<T>() {
+                @Override
+                public void success(T result) {
+                    synchronized(results) {
+                        results.set(position, result);
+                    }
+                    if(remaining.decrementAndGet() == 0) {
+                        synchronized(results) {
+                            joined.complete(new ArrayList<T>(results));
+                        }
+                    }
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    joined.fail(e);
+                }
+            });
+        }
+        return joined;
+    }
+
+    /**
+     * succeed with the given result. This is called by the SDK
+     * @param value the result
+     * @return false if the future was already complete
+     */
+    public boolean complete(T value) {
+        List<Listener<? super T>> toNotify;
+        synchronized(this) {
+            if(state != State.PENDING) return false;
+            result = value;
+            state = State.SUCCEEDED;
+            toNotify = drainListeners();
+        }
+        latch.countDown();
+        for(Listener<? super T> listener : toNotify) notify(listener);
+        return true;
+    }
+
+    /**
+     * fail with the given exception. This is called by the SDK
+     * @param e the reason
+     * @return false if the future was already complete
+     */
+    public boolean fail(StackMobException e) {
+        return finish(State.FAILED, e);
+    }
+
+    /**
+     * Stop waiting for the result. The request itself may still reach StackMob; its result is ignored
+     * @param mayInterruptIfRunning ignored, since no thread is dedicated to the request
+     * @return false if the future was already complete
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(State.CANCELLED, new StackMobException("The request was cancelled"));
+    }
+
+    private boolean finish(State failedState, StackMobException e) {
+        List<Listener<? super T>> toNotify;
+        synchronized(this) {
+            if(state != State.PENDING) return false;
+            error = e;
+            state = failedState;
+            toNotify = drainListeners();
+        }
+        latch.countDown();
+        for(Listener<? super T> listener : toNotify) notify(listener);
+        return true;
+    }
+
+    private List<Listener<? super T>> drainListeners() {
+        List<Listener<? super T>> drained = new ArrayList<Listener<? super T>>(listeners);
+        listeners.clear();
+        return drained;
+    }
+
+    private void notify(Listener<? super T> listener) {
+        T value;
+        StackMobException e;
+        synchronized(this) {
+            value = result;
+            e = error;
+        }
+        try {
+            if(e == null) {
+                listener.success(value);
+            } else {
+                listener.failure(e);
+            }
+        } catch(RuntimeException thrown) {
+            // one misbehaving listener shouldn't stop the others from hearing about the result
+            StackMobLogger log = getLogger();
+            if(log != null) log.logWarning("A future's listener threw an exception: %s", StackMobLogger.getStackTrace(thrown));
+        }
+    }
+
+    private StackMobLogger getLogger() {
+        if(logger != null) return logger;
+        StackMob stackmob = StackMob.getStackMob();
+        return stackmob == null ? null : stackmob.getSession().getLogger();
+    }
+
+    /**
+     * be told when the future completes. If it already has, the listener is called immediately
+     * @param listener the listener
+     * @return this future
+     */
+    public StackMobFuture<T> addListener(Listener<? super T> listener) {
+        synchronized(this) {
+            if(state == State.PENDING) {
+                listeners.add(listener);
+                return this;
+            }
+        }
+        notify(listener);
+        return this;
+    }
+
+    /**
+     * create a future whose result is this one's, transformed
+     * @param transform the transformation to apply to the result
+     * @param <U> the type of the new result
+     * @return a future of the transformed result
+     */
+    public <U> StackMobFuture<U> map(final Transform<? super T, ? extends U> transform) {
+        final StackMobFuture<U> mapped = new StackMobFuture<U>(logger);
+        addListener(new Listener<T>() {
+            @Override
+            public void success(T value) {
+                try {
+                    mapped.complete(transform.apply(value));
+                } catch(StackMobException e) {
+                    mapped.fail(e);
+                } catch(RuntimeException e) {
+                    mapped.fail(new StackMobException(e.toString()));
+                }
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                mapped.fail(e);
+            }
+        });
+        return mapped;
+    }
+
+    /**
+     * start another asynchronous call once this one succeeds
+     * @param transform creates the next call from this one's result
+     * @param <U> the type of the next call's result
+     * @return a future of the next call's result
+     */
+    public <U> StackMobFuture<U> flatMap(final Transform<? super T, StackMobFuture<U>> transform) {
+        final StackMobFuture<U> chained = new StackMobFuture<U>(logger);
+        addListener(new Listener<T>() {
+            @Override
+            public void success(T value) {
+                StackMobFuture<U> next;
+                try {
+                    next = transform.apply(value);
+                } catch(StackMobException e) {
+                    chained.fail(e);
+                    return;
+                } catch(RuntimeException e) {
+                    chained.fail(new StackMobException(e.toString()));
+                    return;
+                }
+                if(next == null) {
+                    chained.fail(new StackMobException("The flatMap transform returned null instead of a future"));
+                    return;
+                }
+                next.addListener(new Listener<U>() {
+                    @Override
+                    public void success(U result) {
+                        chained.complete(result);
+                    }
+
+                    @Override
+                    public void failure(StackMobException e) {
+                        chained.fail(e);
+                    }
+                });
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                chained.fail(e);
+            }
+        });
+        return chained;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == State.CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != State.PENDING;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!latch.await(timeout, unit)) throw new TimeoutException();
+        return report();
+    }
+
+    private synchronized T report() throws ExecutionException {
+        if(state == State.CANCELLED) throw new CancellationException();
+        if(state == State.FAILED) throw new ExecutionException(error);
+        return result;
+    }
+}
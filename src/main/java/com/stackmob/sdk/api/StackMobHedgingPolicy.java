@@ -0,0 +1,151 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a second copy of a slow read so one slow connection doesn't hold up the response. If a GET or HEAD hasn't
+ * been answered after the hedge delay, the same request is sent again, the first answer is used and the other is
+ * discarded. Other verbs are never hedged, since they may not be safe to repeat.
+ * <pre>
+ * {@code
+ * StackMobHedgingPolicy hedging = StackMobHedgingPolicy.atPercentile(0.95);
+ * datastore.get("task", StackMobOptions.hedged(hedging), callback);
+ * }
+ * </pre>
+ * A percentile policy learns the delay from the latencies of the requests it's used with, so create one and share it
+ * between requests rather than creating one per request.
+ */
+public class StackMobHedgingPolicy {
+
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 500;
+    public static final long DEFAULT_MINIMUM_DELAY_MILLIS = 10;
+
+    private static final int WINDOW_SIZE = 256;
+    private static final int MIN_SAMPLES = 20;
+
+    private final double percentile;
+    private final long[] window = new long[WINDOW_SIZE];
+    private int samples = 0;
+    private int next = 0;
+    private final long fixedDelayMillis;
+    private long initialDelayMillis = DEFAULT_INITIAL_DELAY_MILLIS;
+    private long minimumDelayMillis = DEFAULT_MINIMUM_DELAY_MILLIS;
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    private StackMobHedgingPolicy(double percentile, long fixedDelayMillis) {
+        this.percentile = percentile;
+        this.fixedDelayMillis = fixedDelayMillis;
+    }
+
+    /**
+     * hedge requests that have taken longer than the given percentile of recent latencies. Until enough requests have
+     * completed to estimate it, the initial delay is used
+     * @param percentile the percentile, between 0 and 1. 0.95 hedges roughly the slowest 5% of requests
+     * @return a new policy
+     */
+    public static StackMobHedgingPolicy atPercentile(double percentile) {
+        if(percentile <= 0 || percentile >= 1) throw new IllegalArgumentException("The percentile must be between 0 and 1");
+        return new StackMobHedgingPolicy(percentile, -1);
+    }
+
+    /**
+     * hedge requests that have taken longer than a fixed time
+     * @param millis the delay in milliseconds
+     * @return a new policy
+     */
+    public static StackMobHedgingPolicy fixedDelay(long millis) {
+        if(millis < 0) throw new IllegalArgumentException("The delay can't be negative");
+        return new StackMobHedgingPolicy(-1, millis);
+    }
+
+    /**
+     * set the delay used before enough latencies have been recorded to estimate the percentile
+     * @param millis the delay in milliseconds
+     * @return the policy with the new initial delay
+     */
+    public StackMobHedgingPolicy withInitialDelay(long millis) {
+        this.initialDelayMillis = millis;
+        return this;
+    }
+
+    /**
+     * set the shortest delay a percentile policy will use, so a run of fast responses doesn't double every request
+     * @param millis the delay in milliseconds
+     * @return the policy with the new minimum delay
+     */
+    public StackMobHedgingPolicy withMinimumDelay(long millis) {
+        this.minimumDelayMillis = millis;
+        return this;
+    }
+
+    /**
+     * how long to wait for an answer before sending the hedge
+     * @return the delay in milliseconds
+     */
+    public synchronized long getHedgeDelayMillis() {
+        if(fixedDelayMillis >= 0) return fixedDelayMillis;
+        if(samples < MIN_SAMPLES) return initialDelayMillis;
+        long[] sorted = Arrays.copyOf(window, samples);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * samples) - 1;
+        return Math.max(minimumDelayMillis, sorted[Math.max(0, index)]);
+    }
+
+    /**
+     * record how long a request took. This is called by the SDK
+     * @param millis the latency in milliseconds
+     */
+    public synchronized void recordLatency(long millis) {
+        window[next] = millis;
+        next = (next + 1) % WINDOW_SIZE;
+        if(samples < WINDOW_SIZE) samples++;
+    }
+
+    /**
+     * record that a hedge was sent. This is called by the SDK
+     */
+    public void recordHedge() {
+        hedgesSent.incrementAndGet();
+    }
+
+    /**
+     * record that a hedge was answered before the original. This is called by the SDK
+     */
+    public void recordHedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+
+    /**
+     * the number of duplicate requests sent so far
+     * @return the hedge count
+     */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    /**
+     * the number of duplicate requests that were answered before the original
+     * @return the count of winning hedges
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies that can be recorded from many threads without locking. Times are counted in
+ * buckets of microseconds, four to each power of two, so a percentile is accurate to within about a quarter of its
+ * value however long the times get, and the histogram never grows.
+ */
+public class StackMobLatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 62 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketOf(long micros) {
+        if(micros < SUB_BUCKETS) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return (exponent - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * the largest time that falls in a bucket, in microseconds
+     */
+    static long upperBoundOf(int bucket) {
+        if(bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+    }
+
+    /**
+     * add a time to the histogram. Negative times, which mean the time wasn't measured, are ignored
+     * @param nanos the time in nanoseconds
+     */
+    public void record(long nanos) {
+        if(nanos < 0) return;
+        counts.incrementAndGet(bucketOf(nanos / 1000));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long current;
+        while(nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) { }
+    }
+
+    /**
+     * the number of times recorded
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * the longest time recorded
+     * @return the time in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * the mean of the times recorded
+     * @return the time in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * the time that the given fraction of recorded times were at or below
+     * @param percentile between 0 and 100, such as 99 for the 99th percentile
+     * @return the time in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        if(percentile < 0 || percentile > 100) throw new IllegalArgumentException("The percentile must be between 0 and 100");
+        long total = count.get();
+        if(total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) return Math.min(upperBoundOf(i) * 1000 + 999, max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * forget everything recorded so far
+     */
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A metrics listener that keeps its own counters and a latency histogram for each phase of a request. Read them
+ * whenever you like, or extend this class to also pass each event on to another metrics system.
+ * <pre>
+ * {@code
+ * StackMobMetrics metrics = new StackMobMetrics();
+ * stackmob.setMetricsListener(metrics);
+ * ...
+ * long p99 = metrics.getTotalHistogram().getPercentileNanos(99);
+ * }
+ * </pre>
+ */
+public class StackMobMetrics extends StackMobMetricsListener {
+
+    private final StackMobLatencyHistogram total = new StackMobLatencyHistogram();
+    private final StackMobLatencyHistogram[] phases = new StackMobLatencyHistogram[StackMobRequestMetrics.Phase.values().length];
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong redirects = new AtomicLong();
+    private final AtomicLong unsent = new AtomicLong();
+    private final AtomicLong tokenRefreshes = new AtomicLong();
+    private final AtomicLong failedTokenRefreshes = new AtomicLong();
+
+    public StackMobMetrics() {
+        for(int i = 0; i < phases.length; i++) phases[i] = new StackMobLatencyHistogram();
+    }
+
+    @Override
+    public void requestCompleted(StackMobRequestMetrics metrics) {
+        requests.incrementAndGet();
+        if(metrics.getStatusCode() >= 400 || metrics.getStatusCode() < 0) errors.incrementAndGet();
+        total.record(metrics.getTotalNanos());
+        for(StackMobRequestMetrics.Phase phase : StackMobRequestMetrics.Phase.values()) {
+            phases[phase.ordinal()].record(metrics.getNanos(phase));
+        }
+    }
+
+    @Override
+    public void requestRetried(HttpVerb verb, String schema) {
+        retries.incrementAndGet();
+    }
+
+    @Override
+    public void requestRedirected(HttpVerb verb, String schema) {
+        redirects.incrementAndGet();
+    }
+
+    @Override
+    public void requestUnsent(HttpVerb verb, String schema, StackMobException e) {
+        unsent.incrementAndGet();
+    }
+
+    @Override
+    public void tokenRefreshed(boolean succeeded) {
+        (succeeded ? tokenRefreshes : failedTokenRefreshes).incrementAndGet();
+    }
+
+    /**
+     * the latency of whole requests
+     * @return the histogram
+     */
+    public StackMobLatencyHistogram getTotalHistogram() {
+        return total;
+    }
+
+    /**
+     * the latency of one phase of requests
+     * @param phase the phase
+     * @return the histogram
+     */
+    public StackMobLatencyHistogram getHistogram(StackMobRequestMetrics.Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * the number of responses received
+     * @return the count
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * the number of responses with a 4xx or 5xx status code
+     * @return the count
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getRedirectCount() {
+        return redirects.get();
+    }
+
+    public long getUnsentCount() {
+        return unsent.get();
+    }
+
+    public long getTokenRefreshCount() {
+        return tokenRefreshes.get();
+    }
+
+    public long getFailedTokenRefreshCount() {
+        return failedTokenRefreshes.get();
+    }
+
+    /**
+     * forget everything recorded so far
+     */
+    public void reset() {
+        total.reset();
+        for(StackMobLatencyHistogram histogram : phases) histogram.reset();
+        requests.set(0);
+        errors.set(0);
+        retries.set(0);
+        redirects.set(0);
+        unsent.set(0);
+        tokenRefreshes.set(0);
+        failedTokenRefreshes.set(0);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+
+/**
+ * Hears about each request the sdk makes, so the timings and counts can be passed on to your own metrics system. Set
+ * one with {@link StackMob#setMetricsListener(StackMobMetricsListener)} and override the methods you need; the
+ * defaults do nothing. {@link StackMobMetrics} is a listener that keeps counters and latency histograms itself.
+ * Methods are called on the threads doing the requests, so they should be quick and must be thread safe.
+ */
+public abstract class StackMobMetricsListener {
+
+    /**
+     * a response was received and handled
+     * @param metrics the timings of the request
+     */
+    public void requestCompleted(StackMobRequestMetrics metrics) { }
+
+    /**
+     * a request is going to be sent again after a failure or a 503
+     * @param verb the HTTP verb
+     * @param schema the schema or API method the request went to
+     */
+    public void requestRetried(HttpVerb verb, String schema) { }
+
+    /**
+     * a request was redirected to another host
+     * @param verb the HTTP verb
+     * @param schema the schema or API method the request went to
+     */
+    public void requestRedirected(HttpVerb verb, String schema) { }
+
+    /**
+     * a request couldn't be sent, and its callback's unsent method was called
+     * @param verb the HTTP verb
+     * @param schema the schema or API method the request went to
+     * @param e the reason
+     */
+    public void requestUnsent(HttpVerb verb, String schema, StackMobException e) { }
+
+    /**
+     * the OAuth2 login was refreshed
+     * @param succeeded whether a new token was received
+     */
+    public void tokenRefreshed(boolean succeeded) { }
+}
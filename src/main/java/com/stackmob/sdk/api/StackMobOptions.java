@@ -50,6 +50,7 @@ public class StackMobOptions {
     private int expandDepth = 0;
 
     private Boolean https = null;
+    private StackMobHedgingPolicy hedgingPolicy = null;
     private static final String SelectHeader = "X-StackMob-Select";
     private static final String ExpandHeader = "X-StackMob-Expand";
 
@@ -100,6 +101,15 @@ public class StackMobOptions {
     }
 
 
+    /**
+     * send a duplicate of a GET or HEAD request if it's slow to be answered, and use whichever answer comes first
+     * @param policy decides how long to wait before sending the duplicate
+     * @return options with hedging set
+     */
+    public static StackMobOptions hedged(StackMobHedgingPolicy policy) {
+        return none().withHedging(policy);
+    }
+
     /**
      * restricts the fields returned by a request. This is only supported on get request, login, and getLoggedInUser
      * @param fields the fields to return
@@ -197,6 +207,25 @@ public class StackMobOptions {
     }
 
 
+    /**
+     * send a duplicate of a GET or HEAD request if it's slow to be answered, and use whichever answer comes first.
+     * Other verbs ignore this
+     * @param policy decides how long to wait before sending the duplicate
+     * @return options with hedging set
+     */
+    public StackMobOptions withHedging(StackMobHedgingPolicy policy) {
+        this.hedgingPolicy = policy;
+        return this;
+    }
+
+    /**
+     * the hedging policy set by {@link #withHedging(StackMobHedgingPolicy)}
+     * @return the policy, or null if requests aren't hedged
+     */
+    public StackMobHedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
     /**
      * whether or not to use https
      * @return https
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.model.StackMobModel;
+import com.stackmob.sdk.util.Pair;
+import com.stackmob.sdk.util.StackMobParseTimer;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Reactive Streams {@link Publisher} of the results of a query. Rather than loading every match at once, each
+ * subscriber gets its own cursor through the results, and a page is only requested from StackMob (using a Range
+ * header, as {@link StackMobQuery#isInRange(Integer, Integer)} does) once the subscriber has asked for more objects
+ * than are already buffered. At most one page per subscriber is held in memory at a time. Create these with
+ * {@link StackMobModel#publish(Class, StackMobQuery)}:
+ * <pre>
+ * {@code
+ * StackMobModel.publish(Task.class, new StackMobQuery().fieldIsOrderedBy("createddate", Ordering.ASCENDING)).subscribe(subscriber);
+ * }
+ * </pre>
+ * Order the query on a field that doesn't change, or objects may be skipped or repeated as pages shift underneath
+ * the cursor. Any Range already set on the query is replaced. Signals are delivered on the SDK's executor threads,
+ * or on the thread calling {@link Subscription#request(long)} or {@link #subscribe(Subscriber)} when objects are
+ * already buffered, and never before {@link Subscriber#onSubscribe(Subscription)} returns.
+ * @param <T> the type of model being published
+ */
+public class StackMobQueryPublisher<T extends StackMobModel> implements Publisher<T> {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final String RangeHeader = "Range";
+
+    private final StackMob stackmob;
+    private final Class<T> theClass;
+    private final String path;
+    private final List<Map.Entry<String, String>> arguments;
+    private final List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+    private final boolean https;
+    private final int pageSize;
+
+    /**
+     * create a publisher of the results of a query. The query must already have its object name set
+     * @param stackmob the stackmob instance to run requests on
+     * @param theClass the class of your model
+     * @param query the query to run. It is copied, so later changes don't affect the publisher
+     * @param options options, such as select and expand, to apply to each page's request
+     * @param pageSize the most objects to fetch in one request
+     */
+    public StackMobQueryPublisher(StackMob stackmob, Class<T> theClass, StackMobQuery query, StackMobOptions options, int pageSize) {
+        if(pageSize < 1) throw new IllegalArgumentException("The page size must be at least 1");
+        this.stackmob = stackmob;
+        this.theClass = theClass;
+        this.path = "/" + query.getObjectName();
+        this.arguments = query.getArguments();
+        for(Map.Entry<String, String> header : query.getHeaders().entrySet()) {
+            if(!RangeHeader.equalsIgnoreCase(header.getKey())) headers.add(new Pair<String, String>(header.getKey(), header.getValue()));
+        }
+        this.headers.addAll(options.getHeaders());
+        this.https = options.isHTTPS();
+        this.pageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if(subscriber == null) throw new NullPointerException("subscriber can't be null");
+        PageSubscription subscription = new PageSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.subscribed();
+    }
+
+    /*
+     * One subscriber's cursor through the results. All signals go through drain, which only one thread runs at a
+     * time; a thread that finds it busy leaves a note in wip so the running thread goes round again. wip starts at 1
+     * so nothing is signalled until onSubscribe has returned, even if the subscriber requests from inside it
+     */
+    private class PageSubscription implements Subscription {
+        private final Subscriber<? super T> subscriber;
+        private final Queue<T> buffer = new ConcurrentLinkedQueue<T>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger(1);
+        private volatile boolean cancelled = false;
+        private volatile boolean fetching = false;
+        private volatile boolean exhausted = false;
+        private volatile Throwable error = null;
+        private volatile int nextStart = 0;
+
+        PageSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                error = new IllegalArgumentException("Subscribers must request a positive number of objects, not " + n);
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    if(current == Long.MAX_VALUE) break;
+                    next = current + n;
+                    if(next < 0) next = Long.MAX_VALUE;
+                } while(!requested.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        void subscribed() {
+            drainLoop();
+        }
+
+        private void drain() {
+            if(wip.getAndIncrement() != 0) return;
+            drainLoop();
+        }
+
+        private void drainLoop() {
+            int missed = 1;
+            do {
+                while(!cancelled) {
+                    if(error != null) {
+                        cancelled = true;
+                        subscriber.onError(error);
+                    } else if(!buffer.isEmpty() && requested.get() > 0) {
+                        if(requested.get() != Long.MAX_VALUE) requested.decrementAndGet();
+                        subscriber.onNext(buffer.poll());
+                        continue;
+                    } else if(buffer.isEmpty() && exhausted) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    } else if(buffer.isEmpty() && requested.get() > 0 && !fetching) {
+                        fetching = true;
+                        fetchPage(nextStart);
+                    }
+                    break;
+                }
+                if(cancelled) buffer.clear();
+                missed = wip.addAndGet(-missed);
+            } while(missed != 0);
+        }
+
+        private void fetchPage(final int start) {
+            List<Map.Entry<String, String>> pageHeaders = new ArrayList<Map.Entry<String, String>>(headers);
+            pageHeaders.add(new Pair<String, String>(RangeHeader, "objects=" + start + "-" + (start + pageSize - 1)));
+            stackmob.getDatastore().get(path, arguments, StackMobOptions.headers(pageHeaders).withHTTPS(https), new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    try {
+                        JsonArray array = StackMobParseTimer.parse(responseBody).getAsJsonArray();
+                        for(JsonElement elt : array) {
+                            try {
+                                buffer.add(StackMobModel.newFromJson(stackmob, theClass, elt.toString()));
+                            } catch (StackMobException ignore) { }
+                        }
+                        int total = getTotalObjectCountFromPagination();
+                        exhausted = array.size() < pageSize || (total >= 0 && start + array.size() >= total);
+                        nextStart = start + array.size();
+                    } catch(JsonParseException e) {
+                        error = new StackMobException(e.getMessage());
+                    } catch(IllegalStateException e) {
+                        error = new StackMobException("Expected a list of objects but got " + responseBody);
+                    }
+                    fetching = false;
+                    drain();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    error = e;
+                    fetching = false;
+                    drain();
+                }
+            });
+        }
+    }
+}
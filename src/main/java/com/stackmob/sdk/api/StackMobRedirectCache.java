@@ -0,0 +1,234 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which cluster StackMob has sent each host to, so later requests go straight there. It's read on every
+ * request and written from whichever thread got the redirect, so it's safe to share between threads. A temporary
+ * redirect (302) is only followed for a while before the original host is tried again; a permanent one (301) lasts
+ * until it's cleared, and can be saved to a file so a restarted app starts out on the right cluster:
+ * <pre>
+ * {@code
+ * stackmob.getSession().setRedirectCache(new StackMobRedirectCache().withPersistence(new File(dir, "redirects")));
+ * }
+ * </pre>
+ */
+public class StackMobRedirectCache {
+
+    public static final long DEFAULT_TEMPORARY_TTL_MILLIS = 5 * 60 * 1000;
+
+    private static final long PERMANENT = Long.MAX_VALUE;
+
+    private static class Entry {
+        final String newHost;
+        final long expiresAt;
+
+        Entry(String newHost, long expiresAt) {
+            this.newHost = newHost;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private volatile long temporaryTtlMillis = DEFAULT_TEMPORARY_TTL_MILLIS;
+    private volatile File file;
+
+    /**
+     * set how long temporary redirects are followed
+     * @param millis the time to follow each one for
+     * @return this cache
+     */
+    public StackMobRedirectCache withTemporaryTtl(long millis) {
+        this.temporaryTtlMillis = millis;
+        return this;
+    }
+
+    /**
+     * save permanent redirects to a file, loading any already saved there
+     * @param file the file to use, which is created when the first permanent redirect is saved
+     * @return this cache
+     */
+    public StackMobRedirectCache withPersistence(File file) {
+        this.file = file;
+        load();
+        return this;
+    }
+
+    /**
+     * get the host to send requests for a host to. This is called by the SDK on every request
+     * @param host the scheme and authority the request would go to
+     * @return where to send it instead, or the host itself if it hasn't been redirected
+     */
+    public String get(String host) {
+        Entry entry = entries.get(host);
+        if(entry == null) return host;
+        if(entry.expiresAt != PERMANENT && entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(host, entry);
+            return host;
+        }
+        return entry.newHost;
+    }
+
+    /**
+     * remember a redirect. This is called by the SDK
+     * @param oldHost the scheme and authority that was redirected
+     * @param newHost the scheme and authority it was redirected to
+     * @param permanent true to follow it until it's cleared, false to follow it for the temporary TTL
+     */
+    public void put(String oldHost, String newHost, boolean permanent) {
+        Entry previous = entries.put(oldHost, new Entry(newHost, permanent ? PERMANENT : System.currentTimeMillis() + temporaryTtlMillis));
+        // only a change to the permanent redirects needs saving
+        if(permanent ? previous == null || previous.expiresAt != PERMANENT || !previous.newHost.equals(newHost)
+                     : previous != null && previous.expiresAt == PERMANENT) {
+            save();
+        }
+    }
+
+    /**
+     * forget a redirect, so requests go to the original host again
+     * @param oldHost the scheme and authority that was redirected
+     */
+    public void remove(String oldHost) {
+        Entry previous = entries.remove(oldHost);
+        if(previous != null && previous.expiresAt == PERMANENT) save();
+    }
+
+    public void clear() {
+        entries.clear();
+        save();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * view this cache as a map from each redirected host to where it goes now. Redirects put in the map are
+     * followed until they're removed, like permanent ones
+     * @return a map backed by this cache
+     */
+    public Map<String, String> asMap() {
+        return new AbstractMap<String, String>() {
+            @Override public String get(Object host) {
+                if(!(host instanceof String)) return null;
+                String newHost = StackMobRedirectCache.this.get((String) host);
+                return newHost.equals(host) && !entries.containsKey(host) ? null : newHost;
+            }
+
+            @Override public boolean containsKey(Object host) {
+                return get(host) != null;
+            }
+
+            @Override public String put(String oldHost, String newHost) {
+                String previous = get(oldHost);
+                StackMobRedirectCache.this.put(oldHost, newHost, true);
+                return previous;
+            }
+
+            @Override public String remove(Object host) {
+                String previous = get(host);
+                if(previous != null) StackMobRedirectCache.this.remove((String) host);
+                return previous;
+            }
+
+            @Override public void clear() {
+                StackMobRedirectCache.this.clear();
+            }
+
+            @Override public Set<Map.Entry<String, String>> entrySet() {
+                Map<String, String> current = new HashMap<String, String>();
+                for(String host : entries.keySet()) {
+                    String newHost = get(host);
+                    if(newHost != null) current.put(host, newHost);
+                }
+                return Collections.unmodifiableMap(current).entrySet();
+            }
+        };
+    }
+
+    private synchronized void load() {
+        File source = file;
+        if(source == null || !source.exists()) return;
+        Properties saved = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(source);
+            saved.load(in);
+        } catch(IOException e) {
+            // a missing or corrupt file just means redirects are learned again
+            return;
+        } finally {
+            closeQuietly(in);
+        }
+        for(Map.Entry<Object, Object> redirect : saved.entrySet()) {
+            entries.putIfAbsent(redirect.getKey().toString(), new Entry(redirect.getValue().toString(), PERMANENT));
+        }
+    }
+
+    /**
+     * write the permanent redirects to a new file and move it over the old one, so a crash mid write can't leave a
+     * half written file behind
+     */
+    private synchronized void save() {
+        File target = file;
+        if(target == null) return;
+        Properties permanent = new Properties();
+        for(Map.Entry<String, Entry> redirect : entries.entrySet()) {
+            if(redirect.getValue().expiresAt == PERMANENT) permanent.setProperty(redirect.getKey(), redirect.getValue().newHost);
+        }
+        File temp = new File(target.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            permanent.store(out, "StackMob cluster redirects");
+            out.close();
+            out = null;
+            if(!temp.renameTo(target)) {
+                // some platforms won't rename over an existing file
+                target.delete();
+                temp.renameTo(target);
+            }
+        } catch(IOException e) {
+            // the redirects are still followed for the life of this process
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if(closeable == null) return;
+        try {
+            closeable.close();
+        } catch(IOException ignore) { }
+    }
+}
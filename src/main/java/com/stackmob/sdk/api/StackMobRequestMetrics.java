@@ -0,0 +1,121 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.net.HttpVerb;
+
+/**
+ * How long each phase of one request took, from when it was handed to the executor to when its callback returned.
+ * Each attempt is its own record, so a request that was redirected or retried reports one record per response.
+ * Phases that weren't measured, such as connecting on a transport that doesn't report it, are -1
+ */
+public class StackMobRequestMetrics {
+
+    public enum Phase {
+        /**
+         * waiting for an executor thread
+         */
+        QUEUE_WAIT,
+        /**
+         * getting a connection, new or pooled, including any TLS handshake. -1 if the transport can't tell, as with
+         * the default {@link com.stackmob.sdk.net.StackMobScribeTransport}
+         */
+        CONNECT,
+        /**
+         * from handing the request to the transport until the first byte of the response
+         */
+        FIRST_BYTE,
+        /**
+         * reading the rest of the response body
+         */
+        BODY_READ,
+        /**
+         * running the callback, including parsing
+         */
+        CALLBACK,
+        /**
+         * parsing the response JSON inside the callback
+         */
+        PARSE
+    }
+
+    private final HttpVerb verb;
+    private final String schema;
+    private final int statusCode;
+    private final long[] nanos;
+    private final long totalNanos;
+
+    /**
+     * create a record
+     * @param verb the HTTP verb
+     * @param schema the schema or API method the request went to
+     * @param statusCode the status code of the response
+     * @param nanos the time taken by each phase, in the order of {@link Phase}, or -1 where unknown
+     * @param totalNanos the time from start to finish
+     */
+    public StackMobRequestMetrics(HttpVerb verb, String schema, int statusCode, long[] nanos, long totalNanos) {
+        if(nanos.length != Phase.values().length) throw new IllegalArgumentException("Expected a time for every phase");
+        this.verb = verb;
+        this.schema = schema;
+        this.statusCode = statusCode;
+        this.nanos = nanos.clone();
+        this.totalNanos = totalNanos;
+    }
+
+    public HttpVerb getVerb() {
+        return verb;
+    }
+
+    /**
+     * the schema or API method the request went to, such as "user" for a request to "user/login"
+     * @return the schema
+     */
+    public String getSchema() {
+        return schema;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * how long a phase took
+     * @param phase the phase
+     * @return the time in nanoseconds, or -1 if it wasn't measured
+     */
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * how long the whole request took
+     * @return the time in nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(verb).append(' ').append(schema).append(' ').append(statusCode).append(": total=").append(totalNanos / 1000).append("us");
+        for(Phase phase : Phase.values()) {
+            if(nanos[phase.ordinal()] >= 0) builder.append(", ").append(phase.name().toLowerCase()).append('=').append(nanos[phase.ordinal()] / 1000).append("us");
+        }
+        return builder.toString();
+    }
+}
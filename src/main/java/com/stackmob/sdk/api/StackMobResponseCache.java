@@ -0,0 +1,301 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers repeated datastore reads from memory for a short while instead of going to StackMob every time. Responses
+ * are kept for a time to live that can be set per schema, and the least recently used ones are dropped once the
+ * cache holds more than its limit in bytes. Any post, put or delete made through {@link StackMobDatastore} on a
+ * schema drops everything cached for it. Changes made by other clients aren't seen until the cached responses
+ * expire, so keep the times short for data that changes often. Set one on the session to use it:
+ * <pre>
+ * {@code
+ * stackmob.getSession().setResponseCache(new StackMobResponseCache(2 * 1024 * 1024)
+ *                                               .withDefaultTimeToLive(30000)
+ *                                               .withTimeToLive("leaderboard", 5000));
+ * }
+ * </pre>
+ * Subclass and override {@link #get(String)}, {@link #put(String, String, long, Entry)} and
+ * {@link #invalidate(String)} to plug in a different store.
+ */
+public class StackMobResponseCache {
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_TIME_TO_LIVE = 60000;
+
+    // rough cost of the map entry, the Entry object and its arrays
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    /**
+     * A cached response
+     */
+    public static class Entry {
+        private final String schema;
+        private final String url;
+        private final List<Map.Entry<String, String>> headers;
+        private final byte[] body;
+        private final long expiresAt;
+        private final long weight;
+
+        public Entry(String schema, String url, List<Map.Entry<String, String>> headers, byte[] body, long expiresAt) {
+            this.schema = schema;
+            this.url = url;
+            this.headers = headers;
+            this.body = body;
+            this.expiresAt = expiresAt;
+            long weight = ENTRY_OVERHEAD_BYTES + (body == null ? 0 : body.length) + 2L * (url == null ? 0 : url.length());
+            if(headers != null) {
+                for(Map.Entry<String, String> header : headers) {
+                    weight += 2L * (length(header.getKey()) + length(header.getValue()));
+                }
+            }
+            this.weight = weight;
+        }
+
+        private static int length(String s) {
+            return s == null ? 0 : s.length();
+        }
+
+        public String getSchema() {
+            return schema;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public List<Map.Entry<String, String>> getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /**
+         * the approximate number of bytes this entry takes up
+         * @return the size
+         */
+        public long getWeight() {
+            return weight;
+        }
+    }
+
+    private final long maxBytes;
+    private long defaultTimeToLive = DEFAULT_TIME_TO_LIVE;
+    private final Map<String, Long> timesToLive = new ConcurrentHashMap<String, Long>();
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public StackMobResponseCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * create a cache holding at most about the given number of bytes of responses
+     * @param maxBytes the most bytes to keep
+     */
+    public StackMobResponseCache(long maxBytes) {
+        if(maxBytes < 1) throw new IllegalArgumentException("The cache must hold at least one byte");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * set how long responses are kept for schemas without their own time to live. The default is a minute
+     * @param millis the time to keep responses, or 0 to not cache them
+     * @return the cache
+     */
+    public StackMobResponseCache withDefaultTimeToLive(long millis) {
+        this.defaultTimeToLive = millis;
+        return this;
+    }
+
+    /**
+     * set how long responses are kept for one schema
+     * @param schema the schema name
+     * @param millis the time to keep responses, or 0 to not cache them
+     * @return the cache
+     */
+    public StackMobResponseCache withTimeToLive(String schema, long millis) {
+        timesToLive.put(schema.toLowerCase(), millis);
+        return this;
+    }
+
+    /**
+     * get how long responses for a schema are kept
+     * @param schema the schema name
+     * @return the time to live in milliseconds
+     */
+    public long getTimeToLive(String schema) {
+        Long ttl = timesToLive.get(schema.toLowerCase());
+        return ttl == null ? defaultTimeToLive : ttl;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * get the fresh cached response for a request, counting a hit or a miss. This is called by the SDK
+     * @param key identifies the request
+     * @return the entry, or null if there isn't a fresh one
+     */
+    public Entry get(String key) {
+        Entry entry;
+        synchronized(this) {
+            entry = entries.get(key);
+            if(entry != null && entry.getExpiresAt() <= System.currentTimeMillis()) {
+                remove(key);
+                entry = null;
+            }
+        }
+        (entry == null ? misses : hits).incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * the current generation of a schema, which changes every time it's invalidated. This is called by the SDK
+     * before sending a read, so a response that was in flight during a write isn't cached
+     * @param schema the schema name
+     * @return the generation
+     */
+    public long getGeneration(String schema) {
+        return generation(schema).get();
+    }
+
+    /**
+     * cache a response, unless its schema has been invalidated since the read was sent. This is called by the SDK
+     * @param schema the schema the response belongs to
+     * @param key identifies the request
+     * @param generation the schema's generation when the read was sent
+     * @param entry the response
+     */
+    public void put(String schema, String key, long generation, Entry entry) {
+        if(entry.getWeight() > maxBytes) return;
+        synchronized(this) {
+            // checked under the lock so an invalidation can't slip in between the check and the put
+            if(generation(schema).get() != generation) return;
+            remove(key);
+            entries.put(key, entry);
+            bytes += entry.getWeight();
+            Iterator<Entry> eldest = entries.values().iterator();
+            while(bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getWeight();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * drop every cached response for a schema. This is called by the SDK when it writes to the schema
+     * @param schema the schema name
+     */
+    public synchronized void invalidate(String schema) {
+        generation(schema).incrementAndGet();
+        Iterator<Entry> it = entries.values().iterator();
+        while(it.hasNext()) {
+            Entry entry = it.next();
+            if(entry.getSchema().equalsIgnoreCase(schema)) {
+                bytes -= entry.getWeight();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * forget every cached response
+     */
+    public synchronized void clear() {
+        for(AtomicLong generation : generations.values()) {
+            generation.incrementAndGet();
+        }
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * the number of reads answered from the cache
+     * @return the count
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * the number of reads that had to go to StackMob
+     * @return the count
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * the number of responses dropped to stay under the size limit
+     * @return the count
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * the approximate number of bytes held
+     * @return the size
+     */
+    public synchronized long getSizeInBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if(old != null) bytes -= old.getWeight();
+    }
+
+    private AtomicLong generation(String schema) {
+        String name = schema.toLowerCase();
+        AtomicLong generation = generations.get(name);
+        if(generation == null) {
+            synchronized(generations) {
+                generation = generations.get(name);
+                if(generation == null) {
+                    generation = new AtomicLong();
+                    generations.put(name, generation);
+                }
+            }
+        }
+        return generation;
+    }
+}
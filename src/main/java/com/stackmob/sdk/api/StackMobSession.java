@@ -16,27 +16,26 @@
 
 package com.stackmob.sdk.api;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.stackmob.sdk.api.StackMob.OAuthVersion;
+import com.stackmob.sdk.net.StackMobScribeTransport;
+import com.stackmob.sdk.net.StackMobTransport;
+import com.stackmob.sdk.request.StackMobRequestFactory;
 import com.stackmob.sdk.util.StackMobCookieManager;
 import com.stackmob.sdk.util.StackMobLogger;
-import org.apache.commons.codec.binary.Base64;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import com.stackmob.sdk.util.StackMobMacSigner;
 
 /**
  * Represent information about a users's login with StackMob. This class is only meant to be used within the SDK
  */
 public class StackMobSession {
 
-    private static String SIGNATURE_ALGORITHM = "HmacSHA1";
+    public static final int NO_REQUEST_COMPRESSION = -1;
 
     private String key;
     private String secret;
@@ -46,15 +45,32 @@ public class StackMobSession {
     private String lastUserLoginName;
     private long serverTimeDiff = 0;
     private OAuthVersion oauthVersion;
-    private String oauth2Token;
-    private String oauth2MacKey;
-    private String oauth2RefreshToken;
-    private Date oauth2TokenExpiration;
+    private volatile OAuth2Credentials oauth2Credentials = new OAuth2Credentials(null, null, null, null);
+    private StackMobTokenRefresher tokenRefresher = null;
     private Boolean httpsOverride = null;
     private StackMobCookieManager cookieManager = new StackMobCookieManager();
     private StackMobLogger logger = new StackMobLogger();
+    private StackMobTransport transport = new StackMobScribeTransport();
+    private boolean acceptCompressedResponses = true;
+    private int requestCompressionThreshold = NO_REQUEST_COMPRESSION;
+    private StackMobCircuitBreaker circuitBreaker = null;
+    private StackMobBackoffPolicy backoffPolicy = StackMobBackoffPolicy.standard();
+    private boolean coalesceReads = false;
+    private StackMobValidatorCache validatorCache = null;
+    private StackMobResponseCache responseCache = null;
+    private StackMobMetricsListener metricsListener = null;
     protected String userAgentName = "Java Client";
-    protected Map<String, String> cachedRedirects = new HashMap<String, String>();
+    private volatile StackMobRequestFactory requestFactory = null;
+    private volatile String requestFactoryUserAgentName = null;
+    private StackMobRedirectCache redirectCache = new StackMobRedirectCache();
+    /**
+     * the redirects in {@link #getRedirectCache()}, as a map
+     * @deprecated use {@link #getRedirectCache()} instead. This will be removed in the next release
+     */
+    @Deprecated
+    protected Map<String, String> cachedRedirects = redirectCache.asMap();
+    private final Object refreshLock = new Object();
+    private List<Runnable> refreshWaiters = null;
 
     public StackMobSession(OAuthVersion oauthVersion, int apiVersionNumber, String key, String secret, String userObjectName, String userIdName) {
         this.oauthVersion = oauthVersion;
@@ -73,11 +89,20 @@ public class StackMobSession {
         this.userIdName = that.userIdName;
         this.apiVersionNumber = that.apiVersionNumber;
         this.serverTimeDiff = that.serverTimeDiff;
-        this.oauth2Token = that.oauth2Token;
-        this.oauth2MacKey = that.oauth2MacKey;
-        this.oauth2TokenExpiration = that.oauth2TokenExpiration;
+        this.oauth2Credentials = new OAuth2Credentials(that.oauth2Credentials.token, that.oauth2Credentials.macKey, null, that.oauth2Credentials.expiration);
         this.cookieManager = that.cookieManager;
         this.logger = that.logger;
+        this.transport = that.transport;
+        this.acceptCompressedResponses = that.acceptCompressedResponses;
+        this.requestCompressionThreshold = that.requestCompressionThreshold;
+        this.circuitBreaker = that.circuitBreaker;
+        this.backoffPolicy = that.backoffPolicy;
+        this.coalesceReads = that.coalesceReads;
+        this.validatorCache = that.validatorCache;
+        this.responseCache = that.responseCache;
+        this.metricsListener = that.metricsListener;
+        this.redirectCache = that.redirectCache;
+        this.cachedRedirects = that.cachedRedirects;
         this.userAgentName = that.userAgentName;
     }
 
@@ -149,6 +174,16 @@ public class StackMobSession {
         return httpsOverride;
     }
 
+    /**
+     * whether a request goes out over https: the override if one is set, or else what the request asked for
+     * @param requested whether the request's options asked for https
+     * @return whether the request uses https
+     */
+    public boolean isHTTPS(boolean requested) {
+        Boolean override = httpsOverride;
+        return override == null ? requested : override;
+    }
+
     public OAuthVersion getOAuthVersion() {
         return oauthVersion;
     }
@@ -166,38 +201,100 @@ public class StackMobSession {
     }
 
     protected void setOAuth2TokensAndExpiration(String accessToken, String macKey, String refreshToken, Date expiration) {
-        oauth2Token = accessToken;
-        oauth2MacKey = macKey;
-        oauth2RefreshToken = refreshToken;
-        oauth2TokenExpiration = expiration;
+        // swapped in at once, so a request never signs with one token's id and another's key
+        oauth2Credentials = new OAuth2Credentials(accessToken, macKey, refreshToken, expiration);
+        StackMobTokenRefresher refresher = tokenRefresher;
+        if(refresher != null) refresher.schedule(expiration);
     }
 
     public Date getOAuth2TokenExpiration() {
-        return oauth2TokenExpiration;
+        return oauth2Credentials.expiration;
     }
 
     public boolean oauth2TokenValid() {
-        return oauth2TokenExpiration != null && oauth2TokenExpiration.after(new Date());
+        Date expiration = oauth2Credentials.expiration;
+        return expiration != null && expiration.after(new Date());
     }
 
     public boolean oauth2RefreshTokenValid() {
-        return oauth2RefreshToken != null;
+        return oauth2Credentials.refreshToken != null;
     }
 
     public String getOAuth2RefreshToken() {
-        return oauth2RefreshToken;
+        return oauth2Credentials.refreshToken;
     }
 
+    /**
+     * Set the refresher that renews the login before it expires, replacing and stopping any previous one
+     * @param refresher the refresher, or null to only refresh when a request finds the login expired
+     */
+    void setTokenRefresher(StackMobTokenRefresher refresher) {
+        StackMobTokenRefresher previous = tokenRefresher;
+        tokenRefresher = refresher;
+        if(previous != null) previous.stop();
+        if(refresher != null) refresher.schedule(oauth2Credentials.expiration);
+    }
+
+    /**
+     * Wait for the OAuth2 token refresh in progress, or start one if there isn't one. This is called by the SDK so
+     * concurrent requests that find the token expired send one refresh between them
+     * @param waiter run once the refresh finishes, whether or not it succeeded
+     * @return true if the caller should send the refresh and then call {@link #finishTokenRefresh()}, false if a
+     * refresh is already in progress
+     */
+    public boolean awaitTokenRefresh(Runnable waiter) {
+        synchronized(refreshLock) {
+            boolean start = refreshWaiters == null;
+            if(start) refreshWaiters = new ArrayList<Runnable>();
+            refreshWaiters.add(waiter);
+            return start;
+        }
+    }
+
+    /**
+     * Finish the refresh started by {@link #awaitTokenRefresh(Runnable)}, running everything that waited on it
+     */
+    public void finishTokenRefresh() {
+        List<Runnable> waiters;
+        synchronized(refreshLock) {
+            waiters = refreshWaiters;
+            refreshWaiters = null;
+        }
+        if(waiters == null) return;
+        for(Runnable waiter : waiters) {
+            try {
+                waiter.run();
+            } catch(Throwable t) {
+                logger.logError("Request waiting on a token refresh threw %s", StackMobLogger.getStackTrace(t));
+            }
+        }
+    }
+
+    /**
+     * Send requests for one host to another
+     * @param oldHost the scheme and authority that was redirected
+     * @param newHost the scheme and authority to use instead
+     * @param persist true for a permanent redirect, false for one that's only followed for a while
+     */
     public void setRedirect(String oldHost, String newHost, boolean persist) {
-        cachedRedirects.put(oldHost, newHost);
+        redirectCache.put(oldHost, newHost, persist);
     }
 
     public String getRedirect(String host) {
-        if(cachedRedirects.containsKey(host)) {
-            return cachedRedirects.get(host);
-        } else {
-            return host;
-        }
+        return redirectCache.get(host);
+    }
+
+    /**
+     * Replace the table of cluster redirects, for example with one that saves permanent redirects to a file
+     * @param cache the cache to use
+     */
+    public void setRedirectCache(StackMobRedirectCache cache) {
+        this.redirectCache = cache;
+        this.cachedRedirects = cache.asMap();
+    }
+
+    public StackMobRedirectCache getRedirectCache() {
+        return redirectCache;
     }
 
     public void setCookieManager(StackMobCookieManager store) {
@@ -224,37 +321,180 @@ public class StackMobSession {
         return logger;
     }
 
-    public String getUserAgent() {
-        return String.format("StackMob (%s; %s)", userAgentName, StackMob.getVersion());
+    /**
+     * Set the transport used to send requests. The default sends each request through scribe on a new
+     * HttpURLConnection; use {@link com.stackmob.sdk.net.StackMobPooledTransport} to reuse persistent connections per
+     * host, or {@link com.stackmob.sdk.net.StackMobNioTransport} to multiplex requests over a few non-blocking I/O
+     * threads. The previous transport is not shut down.
+     * @param transport the transport to use
+     */
+    public void setTransport(StackMobTransport transport) {
+        this.transport = transport;
     }
 
-    public String generateMacToken(String method, String uri, String host, String port) {
+    /**
+     * Access the current transport
+     * @return the transport that sends requests made with this session
+     */
+    public StackMobTransport getTransport() {
+        return transport;
+    }
 
-        String ts = String.valueOf(new Date().getTime()/1000);
-        String nonce = String.format("n%d", Math.round(Math.random() * 10000));
-        try {
-            String baseString = getNormalizedRequestString(ts, nonce, method, uri, host, port);
-            Mac mac = Mac.getInstance(SIGNATURE_ALGORITHM);
-            SecretKeySpec spec = new SecretKeySpec(oauth2MacKey.getBytes(), SIGNATURE_ALGORITHM);
-            try {
-                mac.init(spec);
-            } catch(InvalidKeyException ike) {
-                throw new IllegalStateException(ike);
-            }
-            byte[] rawMacBytes = mac.doFinal(baseString.getBytes());
-            byte[] b64Bytes = Base64.encodeBase64(rawMacBytes);
-            String calculatedMac = new String(b64Bytes);
-            return String.format("MAC id=\"%s\",ts=\"%s\",nonce=\"%s\",mac=\"%s\"", oauth2Token, ts, nonce, calculatedMac);
+    /**
+     * Set whether to ask StackMob to gzip responses. Compressed responses are decoded before they reach callbacks.
+     * This is on by default
+     * @param accept whether to accept gzipped responses
+     */
+    public void setAcceptCompressedResponses(boolean accept) {
+        this.acceptCompressedResponses = accept;
+    }
+
+    public boolean isAcceptingCompressedResponses() {
+        return acceptCompressedResponses;
+    }
+
+    /**
+     * Gzip request bodies of at least the given size, such as bulk saves. This is off by default
+     * @param bytes the smallest body to compress, or {@link #NO_REQUEST_COMPRESSION} to never compress
+     */
+    public void setRequestCompressionThreshold(int bytes) {
+        this.requestCompressionThreshold = bytes;
+    }
 
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException("This device doesn't have SHA1");
+    public int getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * Stop sending requests to a host while too many of them are failing, so they fail fast through
+     * {@link com.stackmob.sdk.callback.StackMobRawCallback#unsent(com.stackmob.sdk.exception.StackMobException)}.
+     * There is no circuit breaker by default
+     * @param breaker the circuit breaker to use, or null to always send requests
+     */
+    public void setCircuitBreaker(StackMobCircuitBreaker breaker) {
+        this.circuitBreaker = breaker;
+    }
+
+    public StackMobCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Set how long to wait between automatic retries, and whether connection failures are retried. The default is
+     * {@link StackMobBackoffPolicy#standard()}, which only retries when the server asks to with Retry-After
+     * @param policy the backoff policy to use
+     */
+    public void setBackoffPolicy(StackMobBackoffPolicy policy) {
+        this.backoffPolicy = policy;
+    }
+
+    public StackMobBackoffPolicy getBackoffPolicy() {
+        return backoffPolicy;
+    }
+
+    /**
+     * Send identical GET and HEAD requests made with this session only once while one is in flight, and give every
+     * caller the same response. Useful when many threads ask for the same hot object at once. Streaming callbacks are
+     * never coalesced. This is off by default
+     * @param coalesce whether to coalesce identical reads
+     */
+    public void setCoalesceReads(boolean coalesce) {
+        this.coalesceReads = coalesce;
+    }
+
+    public boolean isCoalescingReads() {
+        return coalesceReads;
+    }
+
+    /**
+     * Revalidate repeated GETs with ETag and Last-Modified instead of downloading unchanged responses again. There
+     * is no validator cache by default
+     * @param cache the cache to use, or null to always download
+     */
+    public void setValidatorCache(StackMobValidatorCache cache) {
+        this.validatorCache = cache;
+    }
+
+    public StackMobValidatorCache getValidatorCache() {
+        return validatorCache;
+    }
+
+    /**
+     * Answer repeated datastore reads from memory until they expire or the SDK writes to their schema. There is no
+     * response cache by default
+     * @param cache the cache to use, or null to always go to StackMob
+     */
+    public void setResponseCache(StackMobResponseCache cache) {
+        this.responseCache = cache;
+    }
+
+    public StackMobResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * forget every cached response and validator. This happens whenever a user logs in or out, since they may hold
+     * data only the previous user was allowed to see
+     */
+    public void clearCachedResponses() {
+        StackMobResponseCache responses = responseCache;
+        if(responses != null) responses.clear();
+        StackMobValidatorCache validators = validatorCache;
+        if(validators != null) validators.clear();
+    }
+
+    /**
+     * Report the timings of each request, and counts of retries, redirects, token refreshes and unsent requests, to
+     * a listener. There is no listener by default, and nothing is measured without one
+     * @param listener the listener to use, or null to stop reporting
+     */
+    public void setMetricsListener(StackMobMetricsListener listener) {
+        this.metricsListener = listener;
+    }
+
+    public StackMobMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    public String getUserAgent() {
+        return String.format("StackMob (%s; %s)", userAgentName, StackMob.getVersion());
+    }
+
+    /**
+     * get the shared pieces every request made with this session uses, building them the first time
+     * @return the factory
+     */
+    public StackMobRequestFactory getRequestFactory() {
+        StackMobRequestFactory factory = requestFactory;
+        // subclasses can change the user agent name, so the factory is rebuilt if it has
+        if(factory == null || requestFactoryUserAgentName != userAgentName) {
+            requestFactoryUserAgentName = userAgentName;
+            factory = new StackMobRequestFactory(this);
+            requestFactory = factory;
         }
+        return factory;
     }
 
-    private String getNormalizedRequestString(String timestamp, String nonce, String method,
-                                              String uri, String host, String port) {
-        return new StringBuilder(timestamp).append("\n").append(nonce).append("\n").append(method).append("\n")
-                .append(uri).append("\n").append(host).append("\n").append(port).append("\n\n").toString();
+    public String generateMacToken(String method, String uri, String host, String port) {
+        return oauth2Credentials.signer.sign(method, uri, host, port);
     }
 
-}
\ No newline at end of file
+    /**
+     * An OAuth2 login. These are never modified, only replaced, so they can be read without locking
+     */
+    private static class OAuth2Credentials {
+        final String token;
+        final String macKey;
+        final String refreshToken;
+        final Date expiration;
+        final StackMobMacSigner signer;
+
+        OAuth2Credentials(String token, String macKey, String refreshToken, Date expiration) {
+            this.token = token;
+            this.macKey = macKey;
+            this.refreshToken = refreshToken;
+            this.expiration = expiration;
+            this.signer = macKey == null ? null : new StackMobMacSigner(token, macKey);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.util.StackMobOverflow;
+import com.stackmob.sdk.util.StackMobScheduler;
+
+import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renews an OAuth2 login a little before it expires, so requests don't have to wait for a refresh. The refresh is
+ * scheduled again each time the session's tokens change. See {@link StackMob#enableBackgroundTokenRefresh(long)}
+ */
+class StackMobTokenRefresher {
+
+    private static final long MIN_RETRY_MILLIS = 1000;
+
+    private final StackMob stackmob;
+    private final long marginMillis;
+    private ScheduledFuture<?> pending;
+    private boolean stopped = false;
+
+    StackMobTokenRefresher(StackMob stackmob, long marginMillis) {
+        this.stackmob = stackmob;
+        this.marginMillis = marginMillis;
+    }
+
+    /**
+     * schedule the next refresh for a login expiring at the given time, replacing any that was scheduled
+     * @param expiration when the login expires, or null if there isn't one
+     */
+    synchronized void schedule(Date expiration) {
+        if(pending != null) pending.cancel(false);
+        pending = null;
+        if(stopped || expiration == null || !stackmob.getSession().oauth2RefreshTokenValid()) return;
+        long remaining = expiration.getTime() - System.currentTimeMillis();
+        // logins shorter than the margin are refreshed halfway through instead of continuously
+        long delay = Math.max(remaining - marginMillis, remaining / 2);
+        scheduleRefresh(Math.max(0, delay));
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if(pending != null) pending.cancel(false);
+        pending = null;
+    }
+
+    private void scheduleRefresh(long delayMillis) {
+        pending = StackMobScheduler.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                handOffRefresh();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * run the refresh on the executor. The scheduler has one thread for the whole process, so it must never send
+     * requests or wait for room on a saturated executor itself
+     */
+    private void handOffRefresh() {
+        try {
+            StackMobOverflow.handOff(stackmob.getExecutor(), new Runnable() {
+                @Override
+                public void run() {
+                    refresh();
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            stackmob.getSession().getLogger().logWarning("Background token refresh was rejected by the executor: %s", e.getMessage());
+            synchronized(this) {
+                if(!stopped) scheduleRefresh(MIN_RETRY_MILLIS);
+            }
+        }
+    }
+
+    private void refresh() {
+        if(!stackmob.getSession().oauth2RefreshTokenValid()) return;
+        final Date before = stackmob.getSession().getOAuth2TokenExpiration();
+        stackmob.getSession().getLogger().logInfo("Refreshing the login before it expires at %s", before);
+        stackmob.refreshLoginShared(new Runnable() {
+            @Override
+            public void run() {
+                // a successful refresh has already scheduled the next one through the session
+                Date after = stackmob.getSession().getOAuth2TokenExpiration();
+                if(after != before || after == null) return;
+                long remaining = after.getTime() - System.currentTimeMillis();
+                synchronized(StackMobTokenRefresher.this) {
+                    if(!stopped && remaining / 2 >= MIN_RETRY_MILLIS) scheduleRefresh(remaining / 2);
+                }
+            }
+        });
+    }
+}
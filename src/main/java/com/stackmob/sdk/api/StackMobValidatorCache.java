@@ -0,0 +1,148 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the ETag and Last-Modified validators and bodies of GET responses, so repeated reads of objects that
+ * haven't changed cost a header round trip instead of a full download. A GET with a cached entry is sent with
+ * If-None-Match and If-Modified-Since, and if StackMob answers 304 Not Modified the callback gets the cached response.
+ * The least recently used entries are dropped once the cache is full. Set one on the session to use it:
+ * <pre>
+ * {@code
+ * stackmob.getSession().setValidatorCache(new StackMobValidatorCache(500));
+ * }
+ * </pre>
+ */
+public class StackMobValidatorCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    /**
+     * A cached response and the validators to check it with
+     */
+    public static class Entry {
+        private final String eTag;
+        private final String lastModified;
+        private final List<Map.Entry<String, String>> headers;
+        private final byte[] body;
+
+        public Entry(String eTag, String lastModified, List<Map.Entry<String, String>> headers, byte[] body) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public List<Map.Entry<String, String>> getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    private final AtomicLong revalidated = new AtomicLong();
+    private final AtomicLong modified = new AtomicLong();
+
+    public StackMobValidatorCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * create a cache holding at most the given number of responses
+     * @param maxEntries the most responses to keep
+     */
+    public StackMobValidatorCache(final int maxEntries) {
+        if(maxEntries < 1) throw new IllegalArgumentException("The cache must hold at least one entry");
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, StackMobValidatorCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * get the cached response for a request. This is called by the SDK
+     * @param key identifies the request
+     * @return the entry, or null if there isn't one
+     */
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * cache a response that came with validators. This is called by the SDK
+     * @param key identifies the request
+     * @param entry the response
+     */
+    public synchronized void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    /**
+     * record whether a cached response was still current. This is called by the SDK
+     * @param notModified true if StackMob answered 304 Not Modified
+     */
+    public void recordRevalidation(boolean notModified) {
+        (notModified ? revalidated : modified).incrementAndGet();
+    }
+
+    /**
+     * the number of reads answered from the cache after a 304
+     * @return the count
+     */
+    public long getNotModifiedCount() {
+        return revalidated.get();
+    }
+
+    /**
+     * the number of reads sent with validators that got a new body anyway
+     * @return the count
+     */
+    public long getModifiedCount() {
+        return modified.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * forget every cached response
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
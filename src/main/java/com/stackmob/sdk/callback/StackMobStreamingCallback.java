@@ -0,0 +1,138 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.exception.StackMobHTTPResponseException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.util.Http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A callback that reads a successful response body as it arrives rather than receiving it all at once, so large
+ * responses don't have to fit in memory. Use it like {@link StackMobBinaryCallback}:
+ * <pre>
+ * {@code
+ * stackmob.getDatastore().get("export", new StackMobStreamingCallback() {
+ *     public void success(InputStream body) throws IOException {
+ *         JsonReader reader = new JsonReader(new InputStreamReader(body, "UTF-8"));
+ *         ...
+ *     }
+ *
+ *     public void failure(StackMobException e) {
+ *         ...
+ *     }
+ * }
+ * }
+ * </pre>
+ * Error responses are small, so they are still read in full and passed to {@link #failure(StackMobException)} as a
+ * {@link StackMobHTTPResponseException}. {@link #responseBody} is always null for streamed responses.
+ * <p>
+ * Streaming needs a blocking transport, {@link com.stackmob.sdk.net.StackMobScribeTransport} (the default) or
+ * {@link com.stackmob.sdk.net.StackMobPooledTransport}. A {@link com.stackmob.sdk.net.StackMobAsyncTransport} such as
+ * {@link com.stackmob.sdk.net.StackMobNioTransport} reads the whole body before handing it over, so requests made
+ * with this callback on one are reported to {@link #unsent(StackMobException)}.
+ */
+public abstract class StackMobStreamingCallback extends StackMobRawCallback {
+
+    @Override
+    public void unsent(StackMobException e) {
+        failure(e);
+    }
+
+    @Override
+    public void temporaryPasswordResetRequired(StackMobException e) {
+        failure(e);
+    }
+
+    @Override
+    public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+        failure(new StackMobException("Circular redirect detected from " + originalUrl + " to " + newURL));
+    }
+
+    /**
+     * the method that will be called with a successful response, before its body has been read
+     * @param requestVerb the HTTP verb that was requested
+     * @param requestURL the URL that was requested
+     * @param requestHeaders the headers in the request
+     * @param requestBody the body of the request. will be an empty string for GET, DELETE, etc...
+     * @param responseStatusCode the status code of the HTTP response from StackMob
+     * @param responseHeaders the response headers from StackMob
+     * @param body the unread response body. It is closed once this returns
+     */
+    public void setStream(HttpVerb requestVerb,
+                          String requestURL,
+                          List<Map.Entry<String, String>> requestHeaders,
+                          String requestBody,
+                          Integer responseStatusCode,
+                          List<Map.Entry<String, String>> responseHeaders,
+                          InputStream body) {
+        this.requestVerb = requestVerb;
+        this.requestURL = requestURL;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = requestBody;
+        this.responseStatusCode = responseStatusCode;
+        this.responseHeaders = responseHeaders;
+        this.responseBody = null;
+        try {
+            success(body);
+        } catch(IOException e) {
+            failure(new StackMobException(e.getMessage()));
+        } finally {
+            try {
+                body.close();
+            } catch(IOException ignore) { }
+        }
+    }
+
+    @Override
+    public void done(HttpVerb requestVerb,
+                     String requestURL,
+                     List<Map.Entry<String, String>> requestHeaders,
+                     String requestBody,
+                     Integer responseStatusCode,
+                     List<Map.Entry<String, String>> responseHeaders,
+                     byte[] responseBody) {
+        if(Http.isSuccess(responseStatusCode)) {
+            try {
+                success(new ByteArrayInputStream(responseBody));
+            } catch(IOException e) {
+                failure(new StackMobException(e.getMessage()));
+            }
+        } else {
+            failure(new StackMobHTTPResponseException(responseStatusCode, responseHeaders, responseBody));
+        }
+    }
+
+    /**
+     * override this method to read the body of a successful response. The stream is only valid until this returns
+     * @param body the response body as it arrives from StackMob
+     * @throws IOException if reading the body fails, which is passed on to {@link #failure(StackMobException)}
+     */
+    abstract public void success(InputStream body) throws IOException;
+
+    /**
+     * override this method to handle errors
+     * @param e a representation of the error that occurred
+     */
+    abstract public void failure(StackMobException e);
+}
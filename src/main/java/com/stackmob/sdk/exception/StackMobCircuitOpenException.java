@@ -0,0 +1,50 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.exception;
+
+/**
+ * A request that wasn't sent because too many recent requests to its host had failed. See
+ * {@link com.stackmob.sdk.api.StackMobCircuitBreaker}
+ */
+public class StackMobCircuitOpenException extends StackMobException {
+    private static final long serialVersionUID = 1L;
+
+    private String host;
+    private long retryAfterMillis;
+
+    public StackMobCircuitOpenException(String host, long retryAfterMillis) {
+        super(String.format("Requests to %s are failing, so the request wasn't sent. Requests will be tried again in %dms", host, retryAfterMillis));
+        this.host = host;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * get the host that's failing
+     * @return the host, including its scheme
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * get how long until a trial request will be let through to the host
+     * @return the time in milliseconds
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
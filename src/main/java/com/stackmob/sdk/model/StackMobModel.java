@@ -26,6 +26,7 @@ import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.util.Pair;
 import com.stackmob.sdk.util.TypeHints;
 import com.stackmob.sdk.util.SerializationMetadata;
+import com.stackmob.sdk.util.StackMobParseTimer;
 
 import static com.stackmob.sdk.util.SerializationMetadata.*;
 
@@ -207,7 +208,7 @@ public abstract class StackMobModel {
         stackmob.getDatastore().get(q, options, new StackMobCallback() {
             @Override
             public void success(String responseBody) {
-                JsonArray array = new JsonParser().parse(responseBody).getAsJsonArray();
+                JsonArray array = StackMobParseTimer.parse(responseBody).getAsJsonArray();
                 List<T> resultList = new ArrayList<T>();
                 for(JsonElement elt : array) {
                     try {
@@ -224,6 +225,44 @@ public abstract class StackMobModel {
         });
     }
 
+    /**
+     * publish the instances of your model within certain constraints, fetching them from the server a page at a time
+     * as subscribers ask for them
+     * @param theClass The class of your model
+     * @param q The query to run
+     * @return a publisher of the matching instances
+     */
+    public static <T extends StackMobModel> StackMobQueryPublisher<T> publish(Class<T> theClass, StackMobQuery q) {
+        return publish(StackMob.getStackMob(), theClass, q, new StackMobOptions(), StackMobQueryPublisher.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * publish the instances of your model within certain constraints, fetching them from the server a page at a time
+     * as subscribers ask for them
+     * @param theClass The class of your model
+     * @param q The query to run
+     * @param pageSize the most instances to fetch in one request
+     * @return a publisher of the matching instances
+     */
+    public static <T extends StackMobModel> StackMobQueryPublisher<T> publish(Class<T> theClass, StackMobQuery q, int pageSize) {
+        return publish(StackMob.getStackMob(), theClass, q, new StackMobOptions(), pageSize);
+    }
+
+    /**
+     * publish the instances of your model within certain constraints, fetching them from the server a page at a time
+     * as subscribers ask for them
+     * @param stackmob The stackmob instance to run requests on
+     * @param theClass The class of your model
+     * @param q The query to run
+     * @param options options, such as select and expand, to apply to each request
+     * @param pageSize the most instances to fetch in one request
+     * @return a publisher of the matching instances
+     */
+    public static <T extends StackMobModel> StackMobQueryPublisher<T> publish(StackMob stackmob, Class<T> theClass, StackMobQuery q, StackMobOptions options, int pageSize) {
+        q.setObjectName(getSchemaName(theClass));
+        return new StackMobQueryPublisher<T>(stackmob, theClass, q, options, pageSize);
+    }
+
     /**
      * run a count query on the server to count all the instances of your model within certain constraints
      * @param theClass The class of your model
@@ -274,6 +313,73 @@ public abstract class StackMobModel {
         stackmob.getDatastore().delete(q, callback);
     }
 
+    /**
+     * run a query on the server to get all the instances of your model within certain constraints
+     * @param theClass The class of your model
+     * @param q The query to run
+     * @return a future of the matching instances
+     */
+    public static <T extends StackMobModel> StackMobFuture<List<T>> queryAsync(Class<T> theClass, StackMobQuery q) {
+        return queryAsync(StackMob.getStackMob(), theClass, q, new StackMobOptions());
+    }
+
+    /**
+     * run a query on the server to get all the instances of your model within certain constraints
+     * @param theClass The class of your model
+     * @param q The query to run
+     * @param options options, such as select and expand, to apply to the request
+     * @return a future of the matching instances
+     */
+    public static <T extends StackMobModel> StackMobFuture<List<T>> queryAsync(Class<T> theClass, StackMobQuery q, StackMobOptions options) {
+        return queryAsync(StackMob.getStackMob(), theClass, q, options);
+    }
+
+    /**
+     * run a query on the server to get all the instances of your model within certain constraints
+     * @param stackmob The stackmob instance to run requests on
+     * @param theClass The class of your model
+     * @param q The query to run
+     * @param options options, such as select and expand, to apply to the request
+     * @return a future of the matching instances
+     */
+    public static <T extends StackMobModel> StackMobFuture<List<T>> queryAsync(StackMob stackmob, Class<T> theClass, StackMobQuery q, StackMobOptions options) {
+        final StackMobFuture<List<T>> future = new StackMobFuture<List<T>>(stackmob.getSession().getLogger());
+        query(stackmob, theClass, q, options, new StackMobQueryCallback<T>() {
+            @Override
+            public void success(List<T> result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                future.fail(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * run a count query on the server to count all the instances of your model within certain constraints
+     * @param theClass The class of your model
+     * @param q The query to run
+     * @return a future of the count
+     */
+    public static <T extends StackMobModel> StackMobFuture<Long> countAsync(Class<T> theClass, StackMobQuery q) {
+        return countAsync(StackMob.getStackMob(), theClass, q);
+    }
+
+    /**
+     * run a count query on the server to count all the instances of your model within certain constraints
+     * @param stackmob The stackmob instance to run requests on
+     * @param theClass The class of your model
+     * @param q The query to run
+     * @return a future of the count
+     */
+    public static <T extends StackMobModel> StackMobFuture<Long> countAsync(StackMob stackmob, Class<T> theClass, StackMobQuery q) {
+        q.setObjectName(getSchemaName(theClass));
+        return stackmob.getDatastore().countAsync(q);
+    }
+
     /**
      * create a new instance of the specified model class from a json string. Useful if you've serialized a model class for some
      * reason and now want to deserialize it.
@@ -545,9 +651,9 @@ public abstract class StackMobModel {
                 }
             }
         } catch(NoSuchFieldException e) {
-            stackmob.getSession().getLogger().logDebug(String.format("Ignoring extraneous json field:\nfield: %s\ndata: %s", jsonName, json.toString()));
+            stackmob.getSession().getLogger().logDebug("Ignoring extraneous json field:\nfield: %s\ndata: %s", jsonName, json);
         } catch(JsonSyntaxException e) {
-            stackmob.getSession().getLogger().logWarning(String.format("Incoming data does not match data model:\nfield: %s\ndata: %s", jsonName, json.toString()));
+            stackmob.getSession().getLogger().logWarning("Incoming data does not match data model:\nfield: %s\ndata: %s", jsonName, json);
         } catch(IllegalAccessException e) {
             throw new StackMobException(e.getMessage());
         } catch (InstantiationException e) {
@@ -863,7 +969,7 @@ public abstract class StackMobModel {
             public void success(String responseBody) {
                 boolean fillSucceeded = false;
                 try {
-                    StackMobModel.this.fillFromJson(new JsonParser().parse(responseBody));
+                    StackMobModel.this.fillFromJson(StackMobParseTimer.parse(responseBody));
                     fillSucceeded = true;
                 } catch (StackMobException e) {
                     failure(e);
@@ -913,7 +1019,7 @@ public abstract class StackMobModel {
             public void success(String responseBody) {
                 boolean fillSucceeded = false;
                 try {
-                    fillFromJson(new JsonParser().parse(responseBody), Arrays.asList("lastmoddate", "createddate"));
+                    fillFromJson(StackMobParseTimer.parse(responseBody), Arrays.asList("lastmoddate", "createddate"));
                     fillSucceeded = true;
                 } catch (StackMobException e) {
                     failure(e);
@@ -943,6 +1049,143 @@ public abstract class StackMobModel {
     }
 
 
+    /**
+     * Reload the object from the server. This is not thread safe, make
+     * sure the object isn't disturbed during the load. Use {@link #fetchAsync(StackMobModel)} for a future typed
+     * as your model class.
+     * @return a future of this object, completed once it has been reloaded
+     */
+    public StackMobFuture<? extends StackMobModel> fetchAsync() {
+        return fetchAsync(this, StackMobOptions.none());
+    }
+
+    /**
+     * Reload the object from the server. Use {@link StackMobOptions#depthOf(int)} to also save its children to the given depth.
+     * This is not thread safe, make sure the object isn't disturbed during the load. Use
+     * {@link #fetchAsync(StackMobModel, StackMobOptions)} for a future typed as your model class.
+     * @param options options, such and select and expand, to apply to the request
+     * @return a future of this object, completed once it has been reloaded
+     */
+    public StackMobFuture<? extends StackMobModel> fetchAsync(StackMobOptions options) {
+        return fetchAsync(this, options);
+    }
+
+    /**
+     * Reload a model object from the server. This is not thread safe, make
+     * sure the object isn't disturbed during the load.
+     * @param model the object to reload
+     * @return a future of the object, completed once it has been reloaded
+     */
+    public static <T extends StackMobModel> StackMobFuture<T> fetchAsync(T model) {
+        return fetchAsync(model, StackMobOptions.none());
+    }
+
+    /**
+     * Reload a model object from the server. Use {@link StackMobOptions#depthOf(int)} to also save its children to the given depth.
+     * This is not thread safe, make sure the object isn't disturbed during the load.
+     * @param model the object to reload
+     * @param options options, such and select and expand, to apply to the request
+     * @return a future of the object, completed once it has been reloaded
+     */
+    public static <T extends StackMobModel> StackMobFuture<T> fetchAsync(T model, StackMobOptions options) {
+        StackMobFuture<T> future = new StackMobFuture<T>(((StackMobModel) model).stackmob.getSession().getLogger());
+        model.fetch(options, completingWith(future, model));
+        return future;
+    }
+
+    /**
+     * Save the object to the server. Use {@link #saveAsync(StackMobModel)} for a future typed as your model class.
+     * @return a future of this object, completed once it has been saved
+     */
+    public StackMobFuture<? extends StackMobModel> saveAsync() {
+        return saveAsync(this, StackMobOptions.none());
+    }
+
+    /**
+     * Save the object to the server with options. Use {@link StackMobOptions#depthOf(int)} to also save its children to the given depth.
+     * Use {@link #saveAsync(StackMobModel, StackMobOptions)} for a future typed as your model class.
+     * @param options options, such and select and expand, to apply to the request
+     * @return a future of this object, completed once it has been saved
+     */
+    public StackMobFuture<? extends StackMobModel> saveAsync(StackMobOptions options) {
+        return saveAsync(this, options);
+    }
+
+    /**
+     * Save a model object to the server
+     * @param model the object to save
+     * @return a future of the object, completed once it has been saved
+     */
+    public static <T extends StackMobModel> StackMobFuture<T> saveAsync(T model) {
+        return saveAsync(model, StackMobOptions.none());
+    }
+
+    /**
+     * Save a model object to the server with options. Use {@link StackMobOptions#depthOf(int)} to also save its children to the given depth.
+     * @param model the object to save
+     * @param options options, such and select and expand, to apply to the request
+     * @return a future of the object, completed once it has been saved
+     */
+    public static <T extends StackMobModel> StackMobFuture<T> saveAsync(T model, StackMobOptions options) {
+        StackMobFuture<T> future = new StackMobFuture<T>(((StackMobModel) model).stackmob.getSession().getLogger());
+        model.save(options, completingWith(future, model));
+        return future;
+    }
+
+    /**
+     * delete the object from the server
+     * @return a future that completes once the delete is done
+     */
+    public StackMobFuture<Void> destroyAsync() {
+        final StackMobFuture<Void> future = new StackMobFuture<Void>(stackmob.getSession().getLogger());
+        destroy(new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                future.complete(null);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                future.fail(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * check whether the object exists on the server
+     * @return a future of whether it exists
+     */
+    public StackMobFuture<Boolean> existsAsync() {
+        final StackMobFuture<Boolean> future = new StackMobFuture<Boolean>(stackmob.getSession().getLogger());
+        exists(new StackMobExistsCallback() {
+            @Override
+            public void success(boolean exists) {
+                future.complete(exists);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                future.fail(e);
+            }
+        });
+        return future;
+    }
+
+    private static <T extends StackMobModel> StackMobCallback completingWith(final StackMobFuture<T> future, final T model) {
+        return new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                future.complete(model);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                future.fail(e);
+            }
+        };
+    }
+
     private <T extends StackMobModel> List<String> getIdsFromModels(List<T> models) {
         List<String> ids = new ArrayList<String>();
         for(T model : models) {
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses an HTTP/1.1 response from whatever bytes have arrived so far, for transports that don't block on a stream.
+ */
+class HttpResponseParser {
+
+    private enum State { STATUS_LINE, HEADERS, BODY_FIXED, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, BODY_UNTIL_CLOSE, DONE }
+
+    private final String verb;
+    private State state = State.STATUS_LINE;
+    private final StringBuilder line = new StringBuilder(64);
+    private String statusLine;
+    private int code;
+    private Map<String, String> headers;
+    private HttpWireFormat.ResponseHead head;
+    private BodyBuffer body;
+    private long remaining;
+    private boolean receivedAny = false;
+
+    HttpResponseParser(String verb) {
+        this.verb = verb;
+    }
+
+    /**
+     * consume as much of the buffer as belongs to this response
+     * @return true once the whole response has been read
+     */
+    boolean feed(ByteBuffer buf) throws IOException {
+        if(buf.hasRemaining()) receivedAny = true;
+        while(buf.hasRemaining() && state != State.DONE) {
+            switch(state) {
+                case STATUS_LINE:
+                    if(readLine(buf)) {
+                        statusLine = takeLine();
+                        code = HttpWireFormat.parseStatusCode(statusLine);
+                        headers = new HashMap<String, String>();
+                        state = State.HEADERS;
+                    }
+                    break;
+                case HEADERS:
+                    if(readLine(buf)) {
+                        String header = takeLine();
+                        if(header.length() > 0) {
+                            HttpWireFormat.parseHeaderLine(header, headers);
+                        } else if(code >= 100 && code < 200) {
+                            // interim response such as 100 Continue
+                            state = State.STATUS_LINE;
+                        } else {
+                            startBody();
+                        }
+                    }
+                    break;
+                case BODY_FIXED:
+                    remaining -= copy(buf, remaining);
+                    if(remaining == 0) state = State.DONE;
+                    break;
+                case CHUNK_SIZE:
+                    if(readLine(buf)) {
+                        String size = takeLine();
+                        int extension = size.indexOf(';');
+                        if(extension != -1) size = size.substring(0, extension);
+                        try {
+                            remaining = Long.parseLong(size.trim(), 16);
+                        } catch(NumberFormatException e) {
+                            throw new ProtocolException("Malformed chunk size: " + size);
+                        }
+                        state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                    }
+                    break;
+                case CHUNK_DATA:
+                    remaining -= copy(buf, remaining);
+                    if(remaining == 0) state = State.CHUNK_END;
+                    break;
+                case CHUNK_END:
+                    if(readLine(buf)) {
+                        takeLine();
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    if(readLine(buf) && takeLine().length() == 0) state = State.DONE;
+                    break;
+                case BODY_UNTIL_CLOSE:
+                    copy(buf, buf.remaining());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * the connection was closed by the server
+     * @return true if that completed the response
+     */
+    boolean eof() throws IOException {
+        if(state == State.BODY_UNTIL_CLOSE) {
+            state = State.DONE;
+            return true;
+        }
+        if(state != State.DONE) throw new EOFException("Connection closed before the response was complete");
+        return true;
+    }
+
+    /**
+     * whether any part of the response has arrived. A request that fails before this can safely be resent
+     */
+    boolean hasReceivedAny() {
+        return receivedAny;
+    }
+
+    boolean isKeepAlive() {
+        return state == State.DONE && head != null && HttpWireFormat.isKeepAlive(head, verb);
+    }
+
+    StackMobHttpResponse toResponse() {
+        return new StackMobHttpResponse(code, headers, body == null ? new ByteArrayInputStream(new byte[0]) : body.toInputStream());
+    }
+
+    /*
+     * Hands its buffer straight to the response stream, rather than copying it with toByteArray
+     */
+    private static class BodyBuffer extends ByteArrayOutputStream {
+        BodyBuffer(int size) {
+            super(size);
+        }
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    private void startBody() {
+        head = new HttpWireFormat.ResponseHead(statusLine.substring(0, 8), code, headers);
+        if(!HttpWireFormat.hasBody(verb, code)) {
+            state = State.DONE;
+        } else if(HttpWireFormat.isChunked(head)) {
+            body = new BodyBuffer(8192);
+            state = State.CHUNK_SIZE;
+        } else {
+            long length = HttpWireFormat.contentLength(head);
+            if(length >= 0) {
+                body = new BodyBuffer((int) Math.min(length, Integer.MAX_VALUE));
+                remaining = length;
+                state = length == 0 ? State.DONE : State.BODY_FIXED;
+            } else {
+                body = new BodyBuffer(8192);
+                state = State.BODY_UNTIL_CLOSE;
+            }
+        }
+    }
+
+    private long copy(ByteBuffer buf, long max) {
+        int n = (int) Math.min(buf.remaining(), max);
+        if(buf.hasArray()) {
+            body.write(buf.array(), buf.arrayOffset() + buf.position(), n);
+            buf.position(buf.position() + n);
+        } else {
+            byte[] chunk = new byte[n];
+            buf.get(chunk);
+            body.write(chunk, 0, n);
+        }
+        return n;
+    }
+
+    private boolean readLine(ByteBuffer buf) {
+        while(buf.hasRemaining()) {
+            char c = (char) (buf.get() & 0xff);
+            if(c == '\n') return true;
+            line.append(c);
+        }
+        return false;
+    }
+
+    private String takeLine() {
+        int len = line.length();
+        if(len > 0 && line.charAt(len - 1) == '\r') line.setLength(len - 1);
+        String result = line.toString();
+        line.setLength(0);
+        return result;
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes HTTP/1.1 messages for the transports that manage their own sockets.
+ */
+class HttpWireFormat {
+
+    static final String HTTP_VERSION = "HTTP/1.1";
+    static final String CRLF = "\r\n";
+    static final String ASCII = "ISO-8859-1";
+
+    static class ResponseHead {
+        final String version;
+        final int code;
+        final Map<String, String> headers;
+
+        ResponseHead(String version, int code, Map<String, String> headers) {
+            this.version = version;
+            this.code = code;
+            this.headers = headers;
+        }
+
+        String getHeader(String name) {
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                if(header.getKey().equalsIgnoreCase(name)) return header.getValue();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * whether a request can be sent again after a failure without risking a second write on the server. PUT isn't
+     * included, since StackMob uses it for [inc] counters
+     */
+    static boolean isIdempotent(String verb) {
+        return "GET".equals(verb) || "HEAD".equals(verb) || "DELETE".equals(verb) || "OPTIONS".equals(verb);
+    }
+
+    /**
+     * whether a request that failed on a reused connection should be sent again on a new one. That's only safe if the
+     * server can't have acted on it: nothing came back, it didn't time out (the server may just be slow), and either
+     * the request wasn't fully written or sending it twice does no harm
+     */
+    static boolean canResend(String verb, boolean fullyWritten, IOException failure) {
+        return !(failure instanceof SocketTimeoutException) && (!fullyWritten || isIdempotent(verb));
+    }
+
+    static int port(URL url) {
+        return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    }
+
+    static String hostHeader(URL url) {
+        return url.getPort() == -1 || url.getPort() == url.getDefaultPort() ? url.getHost() : url.getHost() + ":" + url.getPort();
+    }
+
+    static String requestTarget(URL url) {
+        String path = url.getPath();
+        StringBuilder target = new StringBuilder(path == null || path.length() == 0 ? "/" : path);
+        if(url.getQuery() != null) target.append("?").append(url.getQuery());
+        return target.toString();
+    }
+
+    /**
+     * the absolute form of the request target, which a request sent through an HTTP proxy uses
+     */
+    static String absoluteRequestTarget(URL url) {
+        return url.getProtocol() + "://" + hostHeader(url) + requestTarget(url);
+    }
+
+    /**
+     * the bytes of a request's body, gzipped if the request was marked with a gzip Content-Encoding
+     * @return the body, or null if the verb doesn't take one
+     */
+    static byte[] encodeRequestBody(OAuthRequest request) throws IOException {
+        if(request.getVerb() != Verb.POST && request.getVerb() != Verb.PUT) return null;
+        String contents = request.getBodyContents();
+        byte[] body = contents == null ? new byte[0] : contents.getBytes(request.getCharset());
+        return isGzipped(request) ? gzip(body) : body;
+    }
+
+    static boolean isGzipped(OAuthRequest request) {
+        for(Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if(header.getKey().equalsIgnoreCase("Content-Encoding") && header.getValue().trim().equalsIgnoreCase("gzip")) return true;
+        }
+        return false;
+    }
+
+    static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(body);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    static byte[] encodeRequestHead(String verb, URL url, Map<String, String> headers, byte[] body) throws IOException {
+        return encodeRequestHead(verb, url, headers, body, false);
+    }
+
+    static byte[] encodeRequestHead(String verb, URL url, Map<String, String> headers, byte[] body, boolean absoluteTarget) throws IOException {
+        StringBuilder head = new StringBuilder(512);
+        head.append(verb).append(' ').append(absoluteTarget ? absoluteRequestTarget(url) : requestTarget(url)).append(' ').append(HTTP_VERSION).append(CRLF);
+        head.append("Host: ").append(hostHeader(url)).append(CRLF);
+        for(Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            if(name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Connection")) continue;
+            head.append(name).append(": ").append(header.getValue()).append(CRLF);
+        }
+        if(body != null) head.append("Content-Length: ").append(body.length).append(CRLF);
+        head.append(CRLF);
+        return head.toString().getBytes(ASCII);
+    }
+
+    static void writeRequest(OutputStream out, String verb, URL url, Map<String, String> headers, byte[] body) throws IOException {
+        writeRequest(out, verb, url, headers, body, false);
+    }
+
+    static void writeRequest(OutputStream out, String verb, URL url, Map<String, String> headers, byte[] body, boolean absoluteTarget) throws IOException {
+        out.write(encodeRequestHead(verb, url, headers, body, absoluteTarget));
+        if(body != null) out.write(body);
+        out.flush();
+    }
+
+    /**
+     * read one CRLF or LF terminated line
+     * @return the line without its terminator, or null if the stream ended before any bytes were read
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int b;
+        boolean any = false;
+        while((b = in.read()) != -1) {
+            any = true;
+            if(b == '\n') {
+                int len = line.length();
+                if(len > 0 && line.charAt(len - 1) == '\r') line.setLength(len - 1);
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        if(any) throw new EOFException("Connection closed in the middle of a line");
+        return null;
+    }
+
+    static int parseStatusCode(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        if(statusLine == null || !statusLine.startsWith("HTTP/") || statusLine.length() < 12) {
+            throw new ProtocolException("Malformed status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(9, 12));
+        } catch(NumberFormatException e) {
+            throw new ProtocolException("Malformed status line: " + statusLine);
+        }
+    }
+
+    static void parseHeaderLine(String line, Map<String, String> headers) throws IOException {
+        int colon = line.indexOf(':');
+        if(colon <= 0) throw new ProtocolException("Malformed header: " + line);
+        // like HttpURLConnection.getHeaderField, the last of a repeated header wins
+        headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+    }
+
+    static ResponseHead readResponseHead(InputStream in) throws IOException {
+        while(true) {
+            String statusLine = readLine(in);
+            if(statusLine == null) throw new EOFException("Connection closed before a response was received");
+            int code = parseStatusCode(statusLine);
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while((line = readLine(in)) != null && line.length() > 0) {
+                parseHeaderLine(line, headers);
+            }
+            if(line == null) throw new EOFException("Connection closed in the middle of the response headers");
+            // skip interim responses such as 100 Continue
+            if(code >= 100 && code < 200) continue;
+            return new ResponseHead(statusLine.substring(0, 8), code, headers);
+        }
+    }
+
+    static boolean hasBody(String verb, int code) {
+        return !"HEAD".equals(verb) && code != 204 && code != 304 && (code < 100 || code >= 200);
+    }
+
+    static boolean isChunked(ResponseHead head) {
+        String transferEncoding = head.getHeader("Transfer-Encoding");
+        return transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+    }
+
+    static long contentLength(ResponseHead head) {
+        String length = head.getHeader("Content-Length");
+        if(length == null) return -1;
+        try {
+            return Long.parseLong(length.trim());
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * whether the connection can carry another request once this response's body has been read
+     */
+    static boolean isKeepAlive(ResponseHead head, String verb) {
+        String connection = head.getHeader("Connection");
+        if(connection != null && connection.toLowerCase().contains("close")) return false;
+        if(!HTTP_VERSION.equals(head.version) && (connection == null || !connection.toLowerCase().contains("keep-alive"))) return false;
+        // without framing the body runs until the server closes the connection
+        return !hasBody(verb, head.code) || isChunked(head) || contentLength(head) >= 0;
+    }
+
+    /**
+     * wrap the connection's stream so that it ends where the response body ends
+     */
+    static InputStream bodyStream(ResponseHead head, String verb, InputStream in) {
+        if(!hasBody(verb, head.code)) return new FixedLengthInputStream(in, 0);
+        if(isChunked(head)) return new ChunkedInputStream(in);
+        long length = contentLength(head);
+        if(length >= 0) return new FixedLengthInputStream(in, length);
+        return in;
+    }
+
+    static class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining == 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if(n == -1) throw new EOFException("Connection closed with " + remaining + " bytes of the body left");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        boolean isFinished() {
+            return remaining == 0;
+        }
+    }
+
+    static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long chunkRemaining = 0;
+        private boolean finished = false;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(finished) return -1;
+            if(chunkRemaining == 0) {
+                nextChunk();
+                if(finished) return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if(n == -1) throw new EOFException("Connection closed in the middle of a chunk");
+            chunkRemaining -= n;
+            if(chunkRemaining == 0) readLine(in); // the CRLF after the chunk data
+            return n;
+        }
+
+        private void nextChunk() throws IOException {
+            String sizeLine = readLine(in);
+            if(sizeLine == null) throw new EOFException("Connection closed before the last chunk");
+            int extension = sizeLine.indexOf(';');
+            if(extension != -1) sizeLine = sizeLine.substring(0, extension);
+            try {
+                chunkRemaining = Long.parseLong(sizeLine.trim(), 16);
+            } catch(NumberFormatException e) {
+                throw new ProtocolException("Malformed chunk size: " + sizeLine);
+            }
+            if(chunkRemaining == 0) {
+                // skip any trailers
+                String trailer;
+                while((trailer = readLine(in)) != null && trailer.length() > 0) { }
+                finished = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.OAuthRequest;
+
+import java.io.IOException;
+
+/**
+ * A transport that can send requests without blocking the calling thread. When the session's transport is one of
+ * these, requests don't occupy an executor thread while they're waiting on the network; the executor is only used
+ * to run callbacks once the response has arrived. Responses are read into memory in full, so these transports
+ * can't be used with {@link com.stackmob.sdk.callback.StackMobStreamingCallback}.
+ */
+public interface StackMobAsyncTransport extends StackMobTransport {
+
+    /**
+     * Receives the outcome of an asynchronous request. Methods are called on the transport's I/O threads, so they
+     * must return quickly and never block.
+     */
+    public interface Listener {
+        /**
+         * the complete response has been received
+         * @param response the response, with its body already read into memory
+         */
+        void completed(StackMobHttpResponse response);
+
+        /**
+         * the request couldn't be sent or the response couldn't be read
+         * @param e the reason
+         */
+        void failed(IOException e);
+    }
+
+    /**
+     * send a request, returning immediately
+     * @param request the request to send
+     * @param listener notified exactly once when the request completes or fails
+     */
+    void sendAsync(OAuthRequest request, Listener listener);
+}
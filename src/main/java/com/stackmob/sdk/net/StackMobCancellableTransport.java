@@ -0,0 +1,33 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.OAuthRequest;
+
+/**
+ * A transport that can abandon a request part way through, closing its connection rather than waiting for a
+ * response nobody wants, such as the slower of a pair of hedged requests.
+ */
+public interface StackMobCancellableTransport extends StackMobTransport {
+
+    /**
+     * stop a request sent through this transport. If it's still waiting for its response, its connection is closed
+     * and it fails with an IOException; if it has already been answered, or hasn't been sent yet, nothing happens
+     * @param request the request to cancel
+     */
+    void cancel(OAuthRequest request);
+}
@@ -0,0 +1,351 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps persistent connections to each host so they can be reused across requests. Each host gets a limited number
+ * of concurrently leased connections; idle connections are kept up to a total pool size and closed once they've been
+ * idle too long. TLS connections stay open while idle, so reused ones skip the handshake entirely, and new ones to a
+ * known host resume the cached TLS session.
+ */
+class StackMobConnectionPool {
+
+    static class Connection {
+        final String route;
+        final String host;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        // plain http through an HTTP proxy names the whole URL in the request line
+        final boolean absoluteTarget;
+        private final AtomicBoolean leased = new AtomicBoolean(true);
+        private long idleSince;
+        private boolean reused = false;
+
+        Connection(String route, String host, Socket socket, boolean absoluteTarget) throws IOException {
+            this.route = route;
+            this.host = host;
+            this.socket = socket;
+            this.absoluteTarget = absoluteTarget;
+            this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        }
+
+        boolean isReused() {
+            return reused;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch(IOException ignore) { }
+        }
+    }
+
+    private static class Route {
+        final Semaphore leases;
+        final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<Connection>();
+
+        Route(int maxConnections) {
+            leases = new Semaphore(maxConnections, true);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+    private final AtomicInteger idleCount = new AtomicInteger(0);
+    private final AtomicInteger leasedCount = new AtomicInteger(0);
+    private volatile boolean shutdown = false;
+    private ScheduledExecutorService reaper;
+
+    volatile int maxConnectionsPerHost;
+    volatile int maxIdleConnections;
+    volatile long idleTimeoutMillis;
+    volatile int connectTimeoutMillis;
+    volatile int readTimeoutMillis;
+    // null to use HttpsURLConnection's default, looked up each time so one installed later is still used
+    volatile SSLSocketFactory sslSocketFactory;
+
+    static String routeKey(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + HttpWireFormat.port(url);
+    }
+
+    private Route getRoute(String key) {
+        Route route = routes.get(key);
+        if(route == null) {
+            Route newRoute = new Route(maxConnectionsPerHost);
+            route = routes.putIfAbsent(key, newRoute);
+            if(route == null) route = newRoute;
+        }
+        return route;
+    }
+
+    /**
+     * lease a connection to the url's host, reusing an idle one if possible. Blocks for up to the connect timeout
+     * if the host is already at its connection limit
+     */
+    Connection acquire(URL url) throws IOException {
+        if(shutdown) throw new IOException("The connection pool has been shut down");
+        String key = routeKey(url);
+        Route route = getRoute(key);
+        try {
+            long wait = connectTimeoutMillis > 0 ? connectTimeoutMillis : Long.MAX_VALUE;
+            if(!route.leases.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a connection to " + key);
+            }
+        } catch(InterruptedException e) {
+            throw new IOException("Interrupted waiting for a connection to " + key);
+        }
+        try {
+            Connection conn;
+            long now = System.currentTimeMillis();
+            while((conn = route.idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                if(isUsable(conn, now)) {
+                    conn.leased.set(true);
+                    conn.reused = true;
+                    leasedCount.incrementAndGet();
+                    return conn;
+                }
+                conn.close();
+            }
+            conn = open(key, url);
+            leasedCount.incrementAndGet();
+            return conn;
+        } catch(IOException e) {
+            route.leases.release();
+            throw e;
+        } catch(RuntimeException e) {
+            route.leases.release();
+            throw e;
+        }
+    }
+
+    /**
+     * return a leased connection. Connections that can't carry another request are closed
+     * @param conn the connection
+     * @param reusable whether the last response was read completely and the server allows keep-alive
+     */
+    void release(Connection conn, boolean reusable) {
+        if(!conn.leased.compareAndSet(true, false)) return;
+        leasedCount.decrementAndGet();
+        Route route = getRoute(conn.route);
+        if(reusable && !shutdown && idleCount.incrementAndGet() <= maxIdleConnections) {
+            conn.idleSince = System.currentTimeMillis();
+            route.idle.offerFirst(conn);
+            startReaper();
+        } else {
+            if(reusable && !shutdown) idleCount.decrementAndGet();
+            conn.close();
+        }
+        route.leases.release();
+        // the pool may have been shut down while we were adding to it
+        if(shutdown) closeIdle();
+    }
+
+    private boolean isUsable(Connection conn, long now) {
+        return now - conn.idleSince < idleTimeoutMillis && !conn.socket.isClosed() && !conn.socket.isInputShutdown()
+                && !conn.socket.isOutputShutdown();
+    }
+
+    /**
+     * open a connection through each proxy the default ProxySelector picks for the url in turn, telling the selector
+     * about any that fail
+     */
+    private Connection open(String key, URL url) throws IOException {
+        URI uri;
+        try {
+            uri = new URI(url.getProtocol(), null, url.getHost(), url.getPort(), null, null, null);
+        } catch(URISyntaxException e) {
+            throw new IOException("Invalid URL " + url);
+        }
+        ProxySelector selector = ProxySelector.getDefault();
+        List<Proxy> proxies = selector == null ? null : selector.select(uri);
+        if(proxies == null || proxies.isEmpty()) proxies = Collections.singletonList(Proxy.NO_PROXY);
+        IOException failure = null;
+        for(Proxy proxy : proxies) {
+            try {
+                return open(key, url, proxy);
+            } catch(IOException e) {
+                if(selector != null && proxy.type() != Proxy.Type.DIRECT) selector.connectFailed(uri, proxy.address(), e);
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private Connection open(String key, URL url, Proxy proxy) throws IOException {
+        String host = url.getHost();
+        int port = HttpWireFormat.port(url);
+        boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        // a plain new Socket() would ask the ProxySelector again for a SOCKS proxy
+        Socket socket = new Socket(proxy.type() == Proxy.Type.SOCKS ? proxy : Proxy.NO_PROXY);
+        try {
+            socket.setTcpNoDelay(true);
+            if(proxy.type() == Proxy.Type.HTTP) {
+                InetSocketAddress address = (InetSocketAddress) proxy.address();
+                if(address.isUnresolved()) address = new InetSocketAddress(address.getHostName(), address.getPort());
+                socket.connect(address, connectTimeoutMillis);
+            } else if(proxy.type() == Proxy.Type.SOCKS) {
+                // the proxy looks the host up
+                socket.connect(InetSocketAddress.createUnresolved(host, port), connectTimeoutMillis);
+            } else {
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            }
+            socket.setSoTimeout(readTimeoutMillis);
+            if(secure) {
+                if(proxy.type() == Proxy.Type.HTTP) tunnel(socket, host, port);
+                SSLSocketFactory factory = sslSocketFactory != null ? sslSocketFactory : HttpsURLConnection.getDefaultSSLSocketFactory();
+                SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+                socket = sslSocket;
+                boolean verifiedByHandshake = enableHostnameVerification(sslSocket);
+                sslSocket.startHandshake();
+                // without endpoint identification, check the certificate the way HttpsURLConnection would
+                if(!verifiedByHandshake && !HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+                    throw new SSLPeerUnverifiedException("The certificate presented doesn't match " + host);
+                }
+            }
+            return new Connection(key, host, socket, !secure && proxy.type() == Proxy.Type.HTTP);
+        } catch(IOException e) {
+            try {
+                socket.close();
+            } catch(IOException ignore) { }
+            throw e;
+        }
+    }
+
+    /**
+     * ask an HTTP proxy for a tunnel to the host, which TLS then runs over
+     */
+    private static void tunnel(Socket socket, String host, int port) throws IOException {
+        String authority = host + ":" + port;
+        OutputStream out = socket.getOutputStream();
+        out.write(("CONNECT " + authority + " " + HttpWireFormat.HTTP_VERSION + HttpWireFormat.CRLF
+                   + "Host: " + authority + HttpWireFormat.CRLF + HttpWireFormat.CRLF).getBytes(HttpWireFormat.ASCII));
+        out.flush();
+        // read unbuffered, so nothing the server sends after the proxy's response is lost
+        HttpWireFormat.ResponseHead head = HttpWireFormat.readResponseHead(socket.getInputStream());
+        if(head.code != 200) throw new IOException("Unable to tunnel through the proxy to " + authority + ", it returned " + head.code);
+    }
+
+    private static boolean enableHostnameVerification(SSLSocket socket) {
+        // SSLParameters.setEndpointIdentificationAlgorithm was only added in Java 7 and Android 7.0
+        try {
+            SSLParameters params = socket.getSSLParameters();
+            Method setAlgorithm = SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm", String.class);
+            setAlgorithm.invoke(params, "HTTPS");
+            socket.setSSLParameters(params);
+            return true;
+        } catch(Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * close connections that have been idle longer than the idle timeout
+     * @return the number of connections closed
+     */
+    int evictIdleConnections() {
+        int evicted = 0;
+        long now = System.currentTimeMillis();
+        for(Route route : routes.values()) {
+            Iterator<Connection> it = route.idle.descendingIterator();
+            while(it.hasNext()) {
+                Connection conn = it.next();
+                if(!isUsable(conn, now) && route.idle.remove(conn)) {
+                    idleCount.decrementAndGet();
+                    conn.close();
+                    evicted++;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    private synchronized void startReaper() {
+        if(reaper != null || shutdown) return;
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "StackMob connection reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeIdle() {
+        for(Route route : routes.values()) {
+            Connection conn;
+            while((conn = route.idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                conn.close();
+            }
+        }
+    }
+
+    int getIdleConnectionCount() {
+        return idleCount.get();
+    }
+
+    int getLeasedConnectionCount() {
+        return leasedCount.get();
+    }
+
+    synchronized void shutdown() {
+        shutdown = true;
+        if(reaper != null) reaper.shutdownNow();
+        closeIdle();
+    }
+}
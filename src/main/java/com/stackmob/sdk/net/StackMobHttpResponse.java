@@ -0,0 +1,146 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A response as returned by a {@link StackMobTransport}. The body stream must be read to the end or closed, otherwise
+ * the underlying connection can't be handed back to its pool.
+ */
+public class StackMobHttpResponse {
+
+    private final int code;
+    private final Map<String, String> headers;
+    private final InputStream stream;
+    private long connectNanos = -1;
+    private long firstByteNanos = -1;
+
+    public StackMobHttpResponse(int code, Map<String, String> headers, InputStream stream) {
+        this.code = code;
+        this.headers = new HashMap<String, String>();
+        if(headers != null) {
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                // HttpURLConnection reports the status line under a null key
+                if(header.getKey() != null) this.headers.put(header.getKey(), header.getValue());
+            }
+        }
+        this.stream = stream;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * look up a header without regard to case
+     * @param name the header name
+     * @return the header value, or null if it wasn't sent
+     */
+    public String getHeader(String name) {
+        for(Map.Entry<String, String> header : headers.entrySet()) {
+            if(name.equalsIgnoreCase(header.getKey())) return header.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * the response body. May be null if the server didn't send one
+     * @return the body stream
+     */
+    public InputStream getStream() {
+        return stream;
+    }
+
+    /**
+     * record how long the transport took to get a connection and to see the first byte of the response, both
+     * measured from when it was handed the request
+     * @param connectNanos the time to connect, or -1 if unknown
+     * @param firstByteNanos the time to the first byte, or -1 if unknown
+     * @return this response
+     */
+    public StackMobHttpResponse withTimings(long connectNanos, long firstByteNanos) {
+        this.connectNanos = connectNanos;
+        this.firstByteNanos = firstByteNanos;
+        return this;
+    }
+
+    /**
+     * how long the transport took to get a connection, whether new or from a pool
+     * @return the time in nanoseconds, or -1 if the transport doesn't know
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * how long after the transport was handed the request the first byte of the response arrived
+     * @return the time in nanoseconds, or -1 if the transport doesn't know
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    /**
+     * whether the server compressed the body
+     * @return true if the body is gzipped
+     */
+    public boolean isCompressed() {
+        String encoding = getHeader("Content-Encoding");
+        return encoding != null && encoding.trim().equalsIgnoreCase("gzip");
+    }
+
+    /**
+     * the response body, decompressed if the server gzipped it
+     * @return the decoded body stream, or null if the server didn't send one
+     * @throws IOException if the body claims to be gzipped but isn't
+     */
+    public InputStream getDecodedStream() throws IOException {
+        if(stream == null || !isCompressed()) return stream;
+        return new GZIPInputStream(stream, 8192) {
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+                int n = super.read(buf, off, len);
+                if(n == -1) {
+                    // read past anything left after the gzip trailer so a pooled connection is seen to be finished
+                    byte[] rest = new byte[512];
+                    while(in.read(rest) != -1) { }
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * close the body stream, releasing the connection
+     */
+    public void close() {
+        if(stream != null) {
+            try {
+                stream.close();
+            } catch(IOException ignore) { }
+        }
+    }
+}
@@ -0,0 +1,986 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.OAuthRequest;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking transport. All in-flight requests are multiplexed over a small, fixed number of I/O threads using
+ * selectors, so thousands of concurrent calls cost thousands of sockets rather than thousands of threads. Connections
+ * are kept alive and reused per host like {@link StackMobPooledTransport}; when a host is at its connection limit,
+ * further requests queue without holding a thread until a connection frees up.
+ * <pre>
+ * {@code
+ * session.setTransport(new StackMobNioTransport().withIoThreads(2).withMaxConnectionsPerHost(256));
+ * }
+ * </pre>
+ * Settings should be made before the transport is first used. Response bodies are read into memory in full, so
+ * use {@link StackMobPooledTransport} for requests with a
+ * {@link com.stackmob.sdk.callback.StackMobStreamingCallback}.
+ */
+public class StackMobNioTransport implements StackMobAsyncTransport, StackMobCancellableTransport {
+
+    public static final int DEFAULT_IO_THREADS = 2;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 64;
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 64;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 30000;
+
+    // how often timeouts are checked
+    private static final long SWEEP_INTERVAL_MILLIS = 250;
+    private static final int PLAIN_BUFFER_SIZE = 16384;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private int ioThreads = DEFAULT_IO_THREADS;
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = 0;
+    private SSLContext sslContext;
+
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+    // requests that haven't completed yet, so they can be cancelled
+    private final ConcurrentHashMap<OAuthRequest, Exchange> inFlight = new ConcurrentHashMap<OAuthRequest, Exchange>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final Object lifecycleLock = new Object();
+    private volatile IoLoop[] loops;
+    // name lookups block, so they're kept off the I/O threads
+    private volatile ExecutorService resolver;
+    private volatile boolean shutdown = false;
+
+    /**
+     * set the number of threads that do all of the network I/O
+     * @param threads the number of I/O threads
+     * @return this transport
+     */
+    public StackMobNioTransport withIoThreads(int threads) {
+        if(threads < 1) throw new IllegalArgumentException("At least one I/O thread is required");
+        this.ioThreads = threads;
+        return this;
+    }
+
+    /**
+     * limit the number of open connections to a single host. Further requests queue until a connection is free, for
+     * up to the connect timeout
+     * @param max the maximum number of concurrent connections per host
+     * @return this transport
+     */
+    public StackMobNioTransport withMaxConnectionsPerHost(int max) {
+        if(max < 1) throw new IllegalArgumentException("At least one connection per host is required");
+        this.maxConnectionsPerHost = max;
+        return this;
+    }
+
+    /**
+     * set the number of idle connections kept open across all hosts
+     * @param max the maximum number of idle connections
+     * @return this transport
+     */
+    public StackMobNioTransport withMaxIdleConnections(int max) {
+        this.maxIdleConnections = max;
+        return this;
+    }
+
+    /**
+     * set how long a connection can stay idle before it's closed
+     * @param millis the idle timeout in milliseconds
+     * @return this transport
+     */
+    public StackMobNioTransport withIdleTimeout(long millis) {
+        this.idleTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * set the timeout for opening a connection, or waiting for one when the host is at its limit
+     * @param millis the timeout in milliseconds, 0 to wait forever
+     * @return this transport
+     */
+    public StackMobNioTransport withConnectTimeout(int millis) {
+        this.connectTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * set the longest the server can go without sending anything once the request has been sent
+     * @param millis the timeout in milliseconds, 0 to wait forever
+     * @return this transport
+     */
+    public StackMobNioTransport withReadTimeout(int millis) {
+        this.readTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * use a custom SSL context for https connections
+     * @param context the context
+     * @return this transport
+     */
+    public StackMobNioTransport withSSLContext(SSLContext context) {
+        this.sslContext = context;
+        return this;
+    }
+
+    /**
+     * the number of connections currently sitting idle
+     * @return the idle connection count
+     */
+    public int getIdleConnectionCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * the number of connections currently carrying a request
+     * @return the leased connection count
+     */
+    public int getLeasedConnectionCount() {
+        int leased = 0;
+        for(Route route : routes.values()) {
+            synchronized(route) {
+                leased += route.leased;
+            }
+        }
+        return leased;
+    }
+
+    /**
+     * the number of requests waiting for a connection because their host is at its limit
+     * @return the queued request count
+     */
+    public int getQueuedRequestCount() {
+        int queued = 0;
+        for(Route route : routes.values()) {
+            synchronized(route) {
+                queued += route.pending.size();
+            }
+        }
+        return queued;
+    }
+
+    @Override
+    public void sendAsync(final OAuthRequest request, final Listener listener) {
+        Exchange exchange;
+        try {
+            exchange = new Exchange(request, new Listener() {
+                @Override
+                public void completed(StackMobHttpResponse response) {
+                    inFlight.remove(request);
+                    listener.completed(response);
+                }
+
+                @Override
+                public void failed(IOException e) {
+                    inFlight.remove(request);
+                    listener.failed(e);
+                }
+            });
+            start();
+        } catch(IOException e) {
+            listener.failed(e);
+            return;
+        }
+        inFlight.put(request, exchange);
+        dispatch(exchange);
+    }
+
+    @Override
+    public void cancel(OAuthRequest request) {
+        final Exchange exchange = inFlight.get(request);
+        if(exchange == null) return;
+        exchange.cancelled = true;
+        Route route = route(exchange.url);
+        boolean dequeued;
+        synchronized(route) {
+            dequeued = route.pending.remove(exchange);
+        }
+        if(dequeued) {
+            exchange.fail(new InterruptedIOException("The request was cancelled"));
+            return;
+        }
+        // a connection that hasn't picked the exchange up yet sees the flag instead
+        final Connection conn = exchange.conn;
+        if(conn != null) {
+            conn.loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(conn.exchange == exchange) conn.fail(new InterruptedIOException("The request was cancelled"));
+                }
+            });
+        }
+    }
+
+    @Override
+    public StackMobHttpResponse send(OAuthRequest request) throws IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final StackMobHttpResponse[] response = new StackMobHttpResponse[1];
+        final IOException[] error = new IOException[1];
+        sendAsync(request, new Listener() {
+            @Override
+            public void completed(StackMobHttpResponse r) {
+                response[0] = r;
+                latch.countDown();
+            }
+
+            @Override
+            public void failed(IOException e) {
+                error[0] = e;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        }
+        if(error[0] != null) throw error[0];
+        return response[0];
+    }
+
+    @Override
+    public void shutdown() {
+        IoLoop[] current;
+        synchronized(lifecycleLock) {
+            shutdown = true;
+            current = loops;
+            if(resolver != null) resolver.shutdown();
+        }
+        if(current != null) {
+            for(IoLoop loop : current) loop.selector.wakeup();
+        }
+        List<Exchange> abandoned = new ArrayList<Exchange>();
+        for(Route route : routes.values()) {
+            synchronized(route) {
+                abandoned.addAll(route.pending);
+                route.pending.clear();
+            }
+        }
+        for(Exchange exchange : abandoned) {
+            exchange.fail(new IOException("The transport has been shut down"));
+        }
+    }
+
+    private void start() throws IOException {
+        if(loops != null) return;
+        synchronized(lifecycleLock) {
+            if(shutdown) throw new IOException("The transport has been shut down");
+            if(loops != null) return;
+            if(sslContext == null) {
+                try {
+                    sslContext = SSLContext.getDefault();
+                } catch(NoSuchAlgorithmException e) {
+                    throw new IOException("No SSL context is available: " + e.getMessage());
+                }
+            }
+            IoLoop[] started = new IoLoop[ioThreads];
+            for(int i = 0; i < started.length; i++) {
+                started[i] = new IoLoop(i == 0);
+                Thread thread = new Thread(started[i], "StackMob I/O " + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            resolver = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "StackMob DNS");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            loops = started;
+        }
+    }
+
+    private Route route(URL url) {
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + HttpWireFormat.port(url);
+        Route route = routes.get(key);
+        if(route == null) {
+            Route created = new Route(url);
+            route = routes.putIfAbsent(key, created);
+            if(route == null) route = created;
+        }
+        return route;
+    }
+
+    /**
+     * start the exchange on an idle connection, a new connection, or queue it if the host is at its limit
+     */
+    private void dispatch(final Exchange exchange) {
+        Route route = route(exchange.url);
+        Connection idle = null;
+        boolean closed;
+        synchronized(route) {
+            // read under the lock, so shutdown's drain either finds this exchange queued or it's failed below
+            closed = shutdown;
+            if(!closed) {
+                idle = route.idle.poll();
+                if(idle == null && route.leased >= maxConnectionsPerHost) {
+                    exchange.queuedAt = System.currentTimeMillis();
+                    route.pending.add(exchange);
+                    return;
+                }
+                route.leased++;
+            }
+        }
+        if(closed) {
+            exchange.fail(new IOException("The transport has been shut down"));
+            return;
+        }
+        if(idle != null) {
+            idleCount.decrementAndGet();
+            final Connection conn = idle;
+            conn.loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    conn.reuse(exchange);
+                }
+            });
+        } else {
+            open(route, exchange);
+        }
+    }
+
+    private void open(final Route route, final Exchange exchange) {
+        IoLoop[] current = loops;
+        final IoLoop loop = current[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+        final Connection conn = new Connection(route, loop);
+        Runnable resolve = new Runnable() {
+            @Override
+            public void run() {
+                final InetSocketAddress address = shutdown ? null : new InetSocketAddress(route.host, route.port);
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        conn.open(exchange, address);
+                    }
+                });
+            }
+        };
+        try {
+            resolver.execute(resolve);
+        } catch(RejectedExecutionException e) {
+            // shut down in the meantime; the connection fails as soon as it tries to open
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    conn.open(exchange, null);
+                }
+            });
+        }
+    }
+
+    /**
+     * called on the connection's I/O thread when it's done with an exchange. The connection goes to the next queued
+     * request for the host if there is one, otherwise it becomes idle or is closed
+     */
+    private void release(final Connection conn, boolean reusable) {
+        Route route = conn.route;
+        Exchange next;
+        boolean keep = false;
+        synchronized(route) {
+            next = shutdown ? null : route.pending.poll();
+            if(!reusable || next == null) {
+                route.leased--;
+                if(reusable && !shutdown && idleCount.get() < maxIdleConnections) {
+                    route.idle.addFirst(conn);
+                    idleCount.incrementAndGet();
+                    keep = true;
+                }
+                if(next != null) route.leased++;
+            } else {
+                keep = true;
+            }
+        }
+        if(!keep) conn.close();
+        if(next == null) return;
+        if(reusable) {
+            final Exchange exchange = next;
+            conn.loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    conn.reuse(exchange);
+                }
+            });
+        } else {
+            open(route, next);
+        }
+    }
+
+    /**
+     * fail queued requests that have waited longer than the connect timeout for a connection
+     */
+    private void expireQueuedRequests(long now) {
+        if(connectTimeoutMillis <= 0) return;
+        List<Exchange> expired = null;
+        for(Route route : routes.values()) {
+            synchronized(route) {
+                Iterator<Exchange> it = route.pending.iterator();
+                while(it.hasNext()) {
+                    Exchange exchange = it.next();
+                    if(now - exchange.queuedAt >= connectTimeoutMillis) {
+                        it.remove();
+                        if(expired == null) expired = new ArrayList<Exchange>();
+                        expired.add(exchange);
+                    }
+                }
+            }
+        }
+        if(expired != null) {
+            for(Exchange exchange : expired) {
+                exchange.fail(new SocketTimeoutException("Timed out waiting for a connection to " + exchange.url.getHost()));
+            }
+        }
+    }
+
+    private static boolean enableHostnameVerification(SSLEngine engine) {
+        // SSLParameters.setEndpointIdentificationAlgorithm was only added in Java 7
+        try {
+            SSLParameters params = engine.getSSLParameters();
+            Method setAlgorithm = SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm", String.class);
+            setAlgorithm.invoke(params, "HTTPS");
+            engine.setSSLParameters(params);
+            return true;
+        } catch(Exception e) {
+            return false;
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimum) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minimum));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    private static class Route {
+        final boolean secure;
+        final String host;
+        final int port;
+        // guarded by this
+        final LinkedList<Connection> idle = new LinkedList<Connection>();
+        final LinkedList<Exchange> pending = new LinkedList<Exchange>();
+        int leased = 0;
+
+        Route(URL url) {
+            this.secure = "https".equalsIgnoreCase(url.getProtocol());
+            this.host = url.getHost();
+            this.port = HttpWireFormat.port(url);
+        }
+    }
+
+    /**
+     * A single request and the listener waiting on it
+     */
+    private static class Exchange {
+        final URL url;
+        final String verb;
+        final byte[] request;
+        final Listener listener;
+        final long createdAt = System.nanoTime();
+        volatile boolean cancelled = false;
+        // the connection carrying the exchange, once one has picked it up
+        volatile Connection conn;
+        long queuedAt;
+        long connectedAt = -1;
+        long firstByteAt = -1;
+
+        Exchange(OAuthRequest request, Listener listener) throws IOException {
+            this.url = new URL(request.getCompleteUrl());
+            this.verb = request.getVerb().toString();
+            this.listener = listener;
+            byte[] body = HttpWireFormat.encodeRequestBody(request);
+            byte[] head = HttpWireFormat.encodeRequestHead(verb, url, request.getHeaders(), body);
+            if(body == null || body.length == 0) {
+                this.request = head;
+            } else {
+                this.request = new byte[head.length + body.length];
+                System.arraycopy(head, 0, this.request, 0, head.length);
+                System.arraycopy(body, 0, this.request, head.length, body.length);
+            }
+        }
+
+        void complete(StackMobHttpResponse response) {
+            response.withTimings(connectedAt < 0 ? -1 : connectedAt - createdAt, firstByteAt < 0 ? -1 : firstByteAt - createdAt);
+            try {
+                listener.completed(response);
+            } catch(RuntimeException ignore) { }
+        }
+
+        void fail(IOException e) {
+            try {
+                listener.failed(e);
+            } catch(RuntimeException ignore) { }
+        }
+    }
+
+    private enum ConnectionState { CONNECTING, HANDSHAKING, WRITING, READING, IDLE, CLOSED }
+
+    /**
+     * A connection and the exchange it's currently carrying. Everything here runs on the connection's I/O thread
+     */
+    private class Connection {
+        final Route route;
+        final IoLoop loop;
+        SocketChannel channel;
+        SelectionKey key;
+        SSLEngine engine;
+        ByteBuffer netIn;
+        ByteBuffer netOut;
+        ByteBuffer appIn;
+        ConnectionState state = ConnectionState.CONNECTING;
+        Exchange exchange;
+        ByteBuffer toWrite;
+        HttpResponseParser parser;
+        boolean reused = false;
+        boolean verifyHostnameAfterHandshake = false;
+        long deadline = 0;
+        long idleSince;
+
+        Connection(Route route, IoLoop loop) {
+            this.route = route;
+            this.loop = loop;
+        }
+
+        void open(Exchange ex, InetSocketAddress address) {
+            exchange = ex;
+            ex.conn = this;
+            try {
+                if(shutdown || address == null) throw new IOException("The transport has been shut down");
+                if(ex.cancelled) throw new InterruptedIOException("The request was cancelled");
+                if(connectTimeoutMillis > 0) deadline = System.currentTimeMillis() + connectTimeoutMillis;
+                if(address.isUnresolved()) throw new UnknownHostException(route.host);
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                key = channel.register(loop.selector, 0, this);
+                if(channel.connect(address)) {
+                    connected();
+                } else {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch(IOException e) {
+                fail(e);
+            }
+        }
+
+        void reuse(Exchange ex) {
+            exchange = ex;
+            ex.conn = this;
+            reused = true;
+            if(shutdown) {
+                fail(new IOException("The transport has been shut down"));
+                return;
+            }
+            if(ex.cancelled) {
+                fail(new InterruptedIOException("The request was cancelled"));
+                return;
+            }
+            if(state == ConnectionState.CLOSED) {
+                // the server closed it while it was idle
+                fail(new EOFException("Connection closed while idle"));
+                return;
+            }
+            try {
+                startExchange();
+            } catch(IOException e) {
+                fail(e);
+            }
+        }
+
+        void onReady() {
+            try {
+                if(state == ConnectionState.CONNECTING) {
+                    if(channel.finishConnect()) connected();
+                } else {
+                    progress();
+                }
+            } catch(IOException e) {
+                onError(e);
+            } catch(RuntimeException e) {
+                onError(new IOException(e.toString()));
+            }
+        }
+
+        void onError(IOException e) {
+            if(state == ConnectionState.IDLE) {
+                closeIdle();
+            } else {
+                fail(e);
+            }
+        }
+
+        private void connected() throws IOException {
+            if(route.secure) {
+                engine = sslContext.createSSLEngine(route.host, route.port);
+                engine.setUseClientMode(true);
+                // without endpoint identification (Java 6, Android before 7.0) check the certificate ourselves
+                // once the handshake is done
+                verifyHostnameAfterHandshake = !enableHostnameVerification(engine);
+                netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                engine.beginHandshake();
+                state = ConnectionState.HANDSHAKING;
+                progress();
+            } else {
+                appIn = ByteBuffer.allocate(PLAIN_BUFFER_SIZE);
+                startExchange();
+            }
+        }
+
+        private void startExchange() throws IOException {
+            exchange.connectedAt = System.nanoTime();
+            state = ConnectionState.WRITING;
+            toWrite = ByteBuffer.wrap(exchange.request);
+            parser = new HttpResponseParser(exchange.verb);
+            deadline = readTimeoutMillis > 0 ? System.currentTimeMillis() + readTimeoutMillis : 0;
+            progress();
+        }
+
+        private void progress() throws IOException {
+            if(state == ConnectionState.HANDSHAKING) {
+                if(!handshake()) return;
+                if(verifyHostnameAfterHandshake && !HttpsURLConnection.getDefaultHostnameVerifier().verify(route.host, engine.getSession())) {
+                    throw new SSLPeerUnverifiedException("The certificate presented doesn't match " + route.host);
+                }
+                startExchange();
+                return;
+            }
+            if(state == ConnectionState.WRITING) {
+                if(!write(toWrite)) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                toWrite = null;
+                state = ConnectionState.READING;
+            }
+            if(state == ConnectionState.READING) {
+                while(true) {
+                    int n = read();
+                    if(n > 0 && exchange.firstByteAt < 0) exchange.firstByteAt = System.nanoTime();
+                    appIn.flip();
+                    boolean done = parser.feed(appIn);
+                    appIn.clear();
+                    if(!done && n == -1) done = parser.eof();
+                    if(done) {
+                        complete();
+                        return;
+                    }
+                    if(n == 0) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    if(readTimeoutMillis > 0) deadline = System.currentTimeMillis() + readTimeoutMillis;
+                }
+            }
+            if(state == ConnectionState.IDLE) {
+                // an idle connection only becomes readable when the server closes it or sends something unexpected
+                closeIdle();
+            }
+        }
+
+        /**
+         * advance the TLS handshake as far as the socket allows
+         * @return true once the handshake is complete
+         */
+        private boolean handshake() throws IOException {
+            while(true) {
+                if(netOut.position() > 0) {
+                    flush();
+                    if(netOut.position() > 0) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return false;
+                    }
+                }
+                switch(engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        break;
+                    case NEED_WRAP: {
+                        SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                        if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                        } else if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            flush();
+                            throw new SSLException("The server closed the connection during the TLS handshake");
+                        }
+                        break;
+                    }
+                    case NEED_UNWRAP: {
+                        netIn.flip();
+                        SSLEngineResult result = engine.unwrap(netIn, appIn);
+                        netIn.compact();
+                        if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            if(!netIn.hasRemaining()) netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                            int n = channel.read(netIn);
+                            if(n == -1) throw new EOFException("The server closed the connection during the TLS handshake");
+                            if(n == 0) {
+                                key.interestOps(SelectionKey.OP_READ);
+                                return false;
+                            }
+                        } else if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                        } else if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new EOFException("The server closed the connection during the TLS handshake");
+                        }
+                        break;
+                    }
+                    default:
+                        return true;
+                }
+            }
+        }
+
+        private void runDelegatedTasks() {
+            Runnable task;
+            while((task = engine.getDelegatedTask()) != null) task.run();
+        }
+
+        private void flush() throws IOException {
+            netOut.flip();
+            channel.write(netOut);
+            netOut.compact();
+        }
+
+        /**
+         * @return true once everything has been written
+         */
+        private boolean write(ByteBuffer src) throws IOException {
+            if(engine == null) {
+                while(src.hasRemaining()) {
+                    if(channel.write(src) == 0) return false;
+                }
+                return true;
+            }
+            while(true) {
+                if(netOut.position() > 0) {
+                    flush();
+                    if(netOut.position() > 0) return false;
+                }
+                if(!src.hasRemaining()) return true;
+                SSLEngineResult result = engine.wrap(src, netOut);
+                if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("The TLS connection was closed");
+                } else if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0) {
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                }
+            }
+        }
+
+        /**
+         * read whatever is available into appIn
+         * @return 0 if there was nothing to read, -1 if the server closed the connection
+         */
+        private int read() throws IOException {
+            if(engine == null) return channel.read(appIn);
+            int n = channel.read(netIn);
+            netIn.flip();
+            try {
+                while(netIn.hasRemaining()) {
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        break;
+                    } else if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    } else if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        return -1;
+                    }
+                    // post-handshake messages such as session tickets
+                    if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    } else if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        engine.wrap(EMPTY, netOut);
+                        flush();
+                    }
+                }
+            } finally {
+                netIn.compact();
+            }
+            // records left over from the handshake can hold data even when nothing new arrived
+            return n == 0 && appIn.position() > 0 ? 1 : n;
+        }
+
+        private void complete() {
+            Exchange ex = exchange;
+            StackMobHttpResponse response = parser.toResponse();
+            boolean keepAlive = parser.isKeepAlive();
+            exchange = null;
+            parser = null;
+            deadline = 0;
+            if(keepAlive) {
+                state = ConnectionState.IDLE;
+                idleSince = System.currentTimeMillis();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            release(this, keepAlive);
+            ex.complete(response);
+        }
+
+        private void fail(IOException e) {
+            Exchange ex = exchange;
+            // a reused connection may have been closed by the server while it was idle. Send again only if the server
+            // can't have acted on the request
+            boolean retry = ex != null && reused && !shutdown && !ex.cancelled && (parser == null || !parser.hasReceivedAny())
+                    && HttpWireFormat.canResend(ex.verb, state == ConnectionState.READING, e);
+            exchange = null;
+            parser = null;
+            close();
+            release(this, false);
+            if(ex == null) return;
+            if(retry) {
+                dispatch(ex);
+            } else {
+                ex.fail(e);
+            }
+        }
+
+        void closeIdle() {
+            boolean removed;
+            synchronized(route) {
+                removed = route.idle.remove(this);
+            }
+            if(removed) idleCount.decrementAndGet();
+            close();
+        }
+
+        void close() {
+            state = ConnectionState.CLOSED;
+            if(key != null) key.cancel();
+            if(channel != null) {
+                try {
+                    channel.close();
+                } catch(IOException ignore) { }
+            }
+        }
+
+        void checkTimeouts(long now) {
+            if(state == ConnectionState.IDLE) {
+                if(now - idleSince >= idleTimeoutMillis) closeIdle();
+            } else if(deadline > 0 && now >= deadline && exchange != null) {
+                fail(new SocketTimeoutException(state == ConnectionState.CONNECTING || state == ConnectionState.HANDSHAKING ? "Connect timed out" : "Read timed out"));
+            }
+        }
+    }
+
+    /**
+     * One I/O thread and its selector
+     */
+    private class IoLoop implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        // set once run() has left its loop and nothing will take tasks off the queue
+        volatile boolean stopped = false;
+        // only one loop needs to look after the requests queued for a connection
+        final boolean expiresQueuedRequests;
+
+        IoLoop(boolean expiresQueuedRequests) throws IOException {
+            this.selector = Selector.open();
+            this.expiresQueuedRequests = expiresQueuedRequests;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if(stopped) {
+                // the loop has exited, so run what's left here. The transport is shut down, so tasks only fail their
+                // exchanges, such as a connection handed over by a DNS lookup that finished after shutdown
+                runTasks();
+            } else {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while(!shutdown) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MILLIS);
+                } catch(IOException e) {
+                    continue;
+                }
+                runTasks();
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while(selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if(key.isValid()) ((Connection) key.attachment()).onReady();
+                }
+                long now = System.currentTimeMillis();
+                if(now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+                    lastSweep = now;
+                    for(SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                        if(key.isValid()) ((Connection) key.attachment()).checkTimeouts(now);
+                    }
+                    if(expiresQueuedRequests) expireQueuedRequests(now);
+                }
+            }
+            // tasks submitted after shutdown see the flag and fail their exchanges
+            stopped = true;
+            runTasks();
+            for(SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                ((Connection) key.attachment()).onError(new IOException("The transport has been shut down"));
+            }
+            try {
+                selector.close();
+            } catch(IOException ignore) { }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch(RuntimeException ignore) { }
+            }
+        }
+    }
+}
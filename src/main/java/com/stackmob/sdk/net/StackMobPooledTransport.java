@@ -0,0 +1,288 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.OAuthRequest;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A blocking transport. Requests are sent over persistent HTTP/1.1 connections that are pooled per host, so
+ * consecutive requests to StackMob don't pay for a new TCP connection and TLS handshake each time. Like
+ * HttpURLConnection, connections go through the proxies chosen by the default {@link java.net.ProxySelector}, and
+ * https uses the default {@link javax.net.ssl.HttpsURLConnection} socket factory and hostname verifier. Settings can
+ * be chained, and should be set before the transport is used:
+ * <pre>
+ * {@code
+ * session.setTransport(new StackMobPooledTransport().withMaxConnectionsPerHost(8).withIdleTimeout(60000));
+ * }
+ * </pre>
+ */
+public class StackMobPooledTransport implements StackMobCancellableTransport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 32;
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 32;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 30000;
+
+    private final StackMobConnectionPool pool = new StackMobConnectionPool();
+    // requests waiting for their response head, so they can be cancelled
+    private final ConcurrentHashMap<OAuthRequest, InFlight> inFlight = new ConcurrentHashMap<OAuthRequest, InFlight>();
+
+    public StackMobPooledTransport() {
+        pool.maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        pool.maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+        pool.idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+        pool.connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        pool.readTimeoutMillis = 0;
+    }
+
+    /**
+     * limit the number of connections in use to a single host at once. Further requests to the host wait for a free
+     * connection, for up to the connect timeout
+     * @param max the maximum number of concurrent connections per host
+     * @return this transport
+     */
+    public StackMobPooledTransport withMaxConnectionsPerHost(int max) {
+        if(max < 1) throw new IllegalArgumentException("At least one connection per host is required");
+        pool.maxConnectionsPerHost = max;
+        return this;
+    }
+
+    /**
+     * set the pool size, the number of idle connections kept open across all hosts
+     * @param max the maximum number of idle connections
+     * @return this transport
+     */
+    public StackMobPooledTransport withMaxIdleConnections(int max) {
+        pool.maxIdleConnections = max;
+        return this;
+    }
+
+    /**
+     * set how long a connection can stay idle in the pool before it's closed
+     * @param millis the idle timeout in milliseconds
+     * @return this transport
+     */
+    public StackMobPooledTransport withIdleTimeout(long millis) {
+        pool.idleTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * set the timeout for opening a connection, or waiting for one when the host is at its limit
+     * @param millis the timeout in milliseconds, 0 to wait forever
+     * @return this transport
+     */
+    public StackMobPooledTransport withConnectTimeout(int millis) {
+        pool.connectTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * set the timeout for reading the response
+     * @param millis the timeout in milliseconds, 0 to wait forever
+     * @return this transport
+     */
+    public StackMobPooledTransport withReadTimeout(int millis) {
+        pool.readTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * use a custom socket factory for https connections. By default the one set with
+     * {@link javax.net.ssl.HttpsURLConnection#setDefaultSSLSocketFactory(SSLSocketFactory)} is used when each
+     * connection is opened
+     * @param factory the factory, or null to go back to the default
+     * @return this transport
+     */
+    public StackMobPooledTransport withSSLSocketFactory(SSLSocketFactory factory) {
+        pool.sslSocketFactory = factory;
+        return this;
+    }
+
+    /**
+     * the number of connections currently sitting idle in the pool
+     * @return the idle connection count
+     */
+    public int getIdleConnectionCount() {
+        return pool.getIdleConnectionCount();
+    }
+
+    /**
+     * the number of connections currently carrying a request
+     * @return the leased connection count
+     */
+    public int getLeasedConnectionCount() {
+        return pool.getLeasedConnectionCount();
+    }
+
+    /**
+     * close idle connections that have passed the idle timeout. This also happens periodically in the background
+     * @return the number of connections closed
+     */
+    public int evictIdleConnections() {
+        return pool.evictIdleConnections();
+    }
+
+    @Override
+    public StackMobHttpResponse send(OAuthRequest request) throws IOException {
+        URL url = new URL(request.getCompleteUrl());
+        String verb = request.getVerb().toString();
+        byte[] body = HttpWireFormat.encodeRequestBody(request);
+        long start = System.nanoTime();
+        InFlight flight = new InFlight();
+        inFlight.put(request, flight);
+        try {
+            while(true) {
+                StackMobConnectionPool.Connection conn = pool.acquire(url);
+                if(!flight.attach(conn)) {
+                    // nothing was written, so the connection can carry another request
+                    pool.release(conn, true);
+                    throw new InterruptedIOException("The request was cancelled");
+                }
+                long connected = System.nanoTime();
+                HttpWireFormat.ResponseHead head;
+                boolean written = false;
+                try {
+                    HttpWireFormat.writeRequest(conn.out, verb, url, request.getHeaders(), body, conn.absoluteTarget);
+                    written = true;
+                    head = HttpWireFormat.readResponseHead(conn.in);
+                } catch(IOException e) {
+                    pool.release(conn, false);
+                    if(flight.isCancelled()) throw new InterruptedIOException("The request was cancelled");
+                    // the server may have closed an idle connection just as we picked it up. If it can't have processed
+                    // the request, try again on a new connection
+                    if(conn.isReused() && HttpWireFormat.canResend(verb, written, e)) continue;
+                    throw e;
+                } catch(RuntimeException e) {
+                    pool.release(conn, false);
+                    throw e;
+                }
+                boolean keepAlive = HttpWireFormat.isKeepAlive(head, verb);
+                InputStream stream = new ReleasingInputStream(HttpWireFormat.bodyStream(head, verb, conn.in), conn, keepAlive);
+                return new StackMobHttpResponse(head.code, head.headers, stream).withTimings(connected - start, System.nanoTime() - start);
+            }
+        } finally {
+            inFlight.remove(request);
+        }
+    }
+
+    @Override
+    public void cancel(OAuthRequest request) {
+        InFlight flight = inFlight.get(request);
+        if(flight != null) flight.cancel();
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * The connection a request is using while it waits for its response head. Cancelling closes it, which unblocks
+     * the thread waiting on it
+     */
+    private static class InFlight {
+        private StackMobConnectionPool.Connection conn;
+        private boolean cancelled = false;
+
+        synchronized boolean attach(StackMobConnectionPool.Connection conn) {
+            if(cancelled) return false;
+            this.conn = conn;
+            return true;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if(conn != null) conn.close();
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Hands the connection back to the pool once the body has been read to the end, or closes it if the body
+     * is abandoned part way through
+     */
+    private class ReleasingInputStream extends InputStream {
+        private final InputStream in;
+        private final StackMobConnectionPool.Connection conn;
+        private final boolean keepAlive;
+        private boolean released = false;
+
+        ReleasingInputStream(InputStream in, StackMobConnectionPool.Connection conn, boolean keepAlive) {
+            this.in = in;
+            this.conn = conn;
+            this.keepAlive = keepAlive;
+        }
+
+        private int done(int n) {
+            if(n == -1) release(keepAlive);
+            return n;
+        }
+
+        private void release(boolean reusable) {
+            if(!released) {
+                released = true;
+                pool.release(conn, reusable);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(released) return -1;
+            try {
+                return done(in.read());
+            } catch(IOException e) {
+                release(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(released) return -1;
+            try {
+                return done(in.read(b, off, len));
+            } catch(IOException e) {
+                release(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return released ? 0 : in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(released) return;
+            // a body that was fully read (or empty, as with HEAD) can still go back to the pool
+            boolean atEnd = in instanceof HttpWireFormat.FixedLengthInputStream && ((HttpWireFormat.FixedLengthInputStream) in).isFinished();
+            release(atEnd && keepAlive);
+        }
+    }
+}
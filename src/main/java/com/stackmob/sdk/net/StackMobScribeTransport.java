@@ -0,0 +1,54 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Response;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The default transport, which sends each request through scribe on a new HttpURLConnection. Scribe turns off
+ * keep-alive, so every request pays for a new connection and handshake; use {@link StackMobPooledTransport} to
+ * reuse connections instead.
+ */
+public class StackMobScribeTransport implements StackMobTransport {
+
+    @Override
+    public StackMobHttpResponse send(OAuthRequest request) throws IOException {
+        long start = System.nanoTime();
+        if(HttpWireFormat.isGzipped(request)) {
+            // scribe only sends bytes as they are, so send a copy of the request with the body already compressed
+            OAuthRequest compressed = new OAuthRequest(request.getVerb(), request.getCompleteUrl());
+            for(Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                compressed.addHeader(header.getKey(), header.getValue());
+            }
+            compressed.addPayload(HttpWireFormat.encodeRequestBody(request));
+            request = compressed;
+        }
+        Response response = request.send();
+        // scribe returns once the status line is in, and HttpURLConnection doesn't say when it connected
+        long firstByte = System.nanoTime() - start;
+        return new StackMobHttpResponse(response.getCode(), response.getHeaders(), response.getStream()).withTimings(-1, firstByte);
+    }
+
+    @Override
+    public void shutdown() {
+        // nothing is held between requests
+    }
+}
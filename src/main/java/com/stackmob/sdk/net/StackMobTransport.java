@@ -0,0 +1,43 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.OAuthRequest;
+
+import java.io.IOException;
+
+/**
+ * Sends fully built and signed requests over the network. A single transport is shared by every request made with a
+ * {@link com.stackmob.sdk.api.StackMobSession}, so implementations must be thread safe. The default is
+ * {@link StackMobScribeTransport}, which sends through scribe and HttpURLConnection as older versions of the sdk
+ * did; {@link StackMobPooledTransport} keeps connections alive and reuses them.
+ */
+public interface StackMobTransport {
+
+    /**
+     * send a request and wait for the response headers. The body is left on the stream of the returned response
+     * @param request the request to send
+     * @return the response
+     * @throws IOException if the request couldn't be sent or the response couldn't be read
+     */
+    StackMobHttpResponse send(OAuthRequest request) throws IOException;
+
+    /**
+     * close any connections held by this transport
+     */
+    void shutdown();
+}
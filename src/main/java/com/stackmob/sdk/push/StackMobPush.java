@@ -16,6 +16,7 @@
 package com.stackmob.sdk.push;
 
 import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutionPolicy;
 import com.stackmob.sdk.api.StackMobOptions;
 import com.stackmob.sdk.api.StackMobSession;
 import com.stackmob.sdk.callback.StackMobRawCallback;
@@ -26,13 +27,14 @@ import com.stackmob.sdk.request.StackMobRequest;
 import com.stackmob.sdk.request.StackMobRequestWithPayload;
 import com.stackmob.sdk.request.StackMobRequestWithoutPayload;
 import com.stackmob.sdk.util.Pair;
+import com.stackmob.sdk.util.StackMobExecutor;
 
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
 public class StackMobPush {
 
@@ -57,7 +59,9 @@ public class StackMobPush {
         StackMobPushToken.setPushType(type);
     }
 
-    private ExecutorService executor;
+    // null while push requests run on the executor of the StackMob this was created from
+    private volatile ExecutorService executor;
+    private StackMob stackmob;
     private StackMobSession session;
     private String host;
     private StackMobRedirectedCallback redirectedCallback;
@@ -116,7 +120,7 @@ public class StackMobPush {
      * note that this callback may be called in a background thread
      */
     public StackMobPush(int apiVersionNumber, String apiKey, String apiSecret, String host, StackMobRedirectedCallback redirectedCallback) {
-        this.executor = Executors.newCachedThreadPool();
+        this.executor = StackMobExecutionPolicy.standard().createExecutor();
         this.session = new StackMobSession(StackMob.OAuthVersion.One, apiVersionNumber, apiKey, apiSecret, StackMob.DEFAULT_USER_SCHEMA_NAME, StackMob.DEFAULT_USER_ID);
         this.host = host;
         this.redirectedCallback = redirectedCallback;
@@ -137,13 +141,48 @@ public class StackMobPush {
      * @param host the base url for requests
      */
     public StackMobPush(StackMob stackmob, String host) {
-        this.executor = stackmob.getExecutor();
+        this.stackmob = stackmob;
         this.session = stackmob.getSession();
         this.host = host;
         this.redirectedCallback = stackmob.getRedirectedCallback();
         if(push == null) push = this;
     }
 
+    /**
+     * replace the executor used for push requests with one following the given policy. Work already running or
+     * waiting for a thread on an executor this created before finishes there, and then it shuts down; anything
+     * submitted later runs on the new executor
+     * @param policy the policy for the new executor
+     */
+    public synchronized void setExecutionPolicy(StackMobExecutionPolicy policy) {
+        ExecutorService replaced = this.executor;
+        this.executor = policy.createExecutor();
+        if(replaced != null) StackMobExecutor.replace(replaced, executor);
+    }
+
+    private ExecutorService getExecutor() {
+        ExecutorService own = executor;
+        return own != null ? own : stackmob.getExecutor();
+    }
+
+    /**
+     * the number of push requests waiting for a thread to process them
+     * @return the queue depth, or 0 if the executor doesn't report it
+     */
+    public int getRequestQueueDepth() {
+        ExecutorService current = getExecutor();
+        return current instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) current).getQueue().size() : 0;
+    }
+
+    /**
+     * the number of threads currently processing push requests
+     * @return the active count, or 0 if the executor doesn't report it
+     */
+    public int getActiveRequestCount() {
+        ExecutorService current = getExecutor();
+        return current instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) current).getActiveCount() : 0;
+    }
+
     ////////////////////
     //Push Notifications
     ////////////////////
@@ -242,7 +281,7 @@ public class StackMobPush {
 
 
     private void sendWithPayload(HttpVerbWithPayload verb, String path, Object requestObject, StackMobRawCallback callback) {
-        new StackMobRequestWithPayload(this.executor,
+        new StackMobRequestWithPayload(getExecutor(),
                 this.session,
                 StackMob.OAuthVersion.One,
                 verb,
@@ -261,7 +300,7 @@ public class StackMobPush {
      * contains no information about the response - that will be passed to the callback when the response comes back
      */
     private void sendWithoutPayload(HttpVerbWithoutPayload verb, String path, List<Map.Entry<String, String>> arguments, StackMobRawCallback callback) {
-        new StackMobRequestWithoutPayload(this.executor,
+        new StackMobRequestWithoutPayload(getExecutor(),
                 this.session,
                 StackMob.OAuthVersion.One,
                 verb,
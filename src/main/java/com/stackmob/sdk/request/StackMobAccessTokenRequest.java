@@ -16,7 +16,7 @@
 package com.stackmob.sdk.request;
 
 import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMobMetricsListener;
 import com.stackmob.sdk.api.StackMobOptions;
 import com.stackmob.sdk.api.StackMobSession;
 import com.stackmob.sdk.callback.StackMobRawCallback;
@@ -24,7 +24,9 @@ import com.stackmob.sdk.callback.StackMobRedirectedCallback;
 import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.net.HttpVerb;
 import com.stackmob.sdk.net.HttpVerbWithPayload;
+import com.stackmob.sdk.util.Http;
 import com.stackmob.sdk.util.Pair;
+import com.stackmob.sdk.util.StackMobParseTimer;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -48,6 +50,60 @@ public class StackMobAccessTokenRequest extends StackMobRequest {
                 redirectedCallback);
     }
 
+    /**
+     * refresh the session's login, or wait for the refresh already in progress, so concurrent callers send one
+     * refreshToken request between them. Redirects are recorded in the session's redirect cache.
+     * @param executor the executor to send the refresh with
+     * @param session the session to refresh
+     * @param urlFormat the api host
+     * @param waiter run once the refresh finishes, whether or not it succeeded
+     */
+    public static void sendSharedRefresh(ExecutorService executor, StackMobSession session, String urlFormat, Runnable waiter) {
+        if(!session.awaitTokenRefresh(waiter)) return;
+        newRefreshTokenRequest(executor, session, null, finishingRefresh(session)).setUrlFormat(urlFormat).sendRequest();
+    }
+
+    /**
+     * as {@link #sendSharedRefresh(ExecutorService, StackMobSession, String, Runnable)} for a request whose login
+     * expired, also telling the request's redirected callback about redirects
+     * @param expired the request to take the executor, session, host and redirected callback from
+     * @param waiter run once the refresh finishes, whether or not it succeeded
+     */
+    static void sendSharedRefresh(StackMobRequest expired, Runnable waiter) {
+        if(!expired.session.awaitTokenRefresh(waiter)) return;
+        newRefreshTokenRequest(expired.executor, expired.session, expired.redirectedCallback, finishingRefresh(expired.session)).setUrlFormat(expired.urlFormat).sendRequest();
+    }
+
+    private static StackMobRawCallback finishingRefresh(final StackMobSession session) {
+        return new StackMobRawCallback() {
+            @Override
+            public void unsent(StackMobException e) {
+                finishTokenRefresh(session, false);
+            }
+
+            @Override
+            public void temporaryPasswordResetRequired(StackMobException e) {
+                finishTokenRefresh(session, false);
+            }
+
+            @Override
+            public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+                finishTokenRefresh(session, Http.isSuccess(responseStatusCode) && session.oauth2TokenValid());
+            }
+
+            @Override
+            public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+                finishTokenRefresh(session, false);
+            }
+        };
+    }
+
+    private static void finishTokenRefresh(StackMobSession session, boolean succeeded) {
+        StackMobMetricsListener metrics = session.getMetricsListener();
+        if(metrics != null) metrics.tokenRefreshed(succeeded);
+        session.finishTokenRefresh();
+    }
+
     List<Map.Entry<String, String>> bodyParams;
 
     public StackMobAccessTokenRequest(ExecutorService executor,
@@ -84,28 +140,32 @@ public class StackMobAccessTokenRequest extends StackMobRequest {
 
             @Override
             public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
-                JsonElement responseElt = new JsonParser().parse(new String(responseBody));
                 byte[] finalResponseBody = responseBody;
-                if(responseElt.isJsonObject()) {
-                    // Parse out the token and expiration
-                    JsonElement tokenElt = responseElt.getAsJsonObject().get("access_token");
-                    JsonElement macKeyElt = responseElt.getAsJsonObject().get("mac_key");
-                    JsonElement expirationElt = responseElt.getAsJsonObject().get("expires_in");
-                    JsonElement refreshTokenElt = responseElt.getAsJsonObject().get("refresh_token");
-                    if(tokenElt != null && tokenElt.isJsonPrimitive() && tokenElt.getAsJsonPrimitive().isString()
-                       && macKeyElt != null && macKeyElt.isJsonPrimitive() && macKeyElt.getAsJsonPrimitive().isString()
-                       && expirationElt != null && expirationElt.isJsonPrimitive() && expirationElt.getAsJsonPrimitive().isNumber()
-                       && refreshTokenElt != null && refreshTokenElt.isJsonPrimitive() && refreshTokenElt.getAsJsonPrimitive().isString()) {
-                        session.setOAuth2TokensAndExpiration(tokenElt.getAsString(), macKeyElt.getAsString(), refreshTokenElt.getAsString(), expirationElt.getAsInt());
-
-                    }
-                    JsonElement stackmobElt = responseElt.getAsJsonObject().get("stackmob");
-                    if(stackmobElt != null && stackmobElt.isJsonObject()) {
-                        // Return only the user to be compatible with the old login
-                        JsonElement userElt = stackmobElt.getAsJsonObject().get("user");
-                        session.setLastUserLoginName(userElt.getAsJsonObject().get(session.getUserIdName()).getAsString());
-                        finalResponseBody = userElt.toString().getBytes();
+                try {
+                    JsonElement responseElt = StackMobParseTimer.parse(new String(responseBody));
+                    if(responseElt.isJsonObject()) {
+                        // Parse out the token and expiration
+                        JsonElement tokenElt = responseElt.getAsJsonObject().get("access_token");
+                        JsonElement macKeyElt = responseElt.getAsJsonObject().get("mac_key");
+                        JsonElement expirationElt = responseElt.getAsJsonObject().get("expires_in");
+                        JsonElement refreshTokenElt = responseElt.getAsJsonObject().get("refresh_token");
+                        if(tokenElt != null && tokenElt.isJsonPrimitive() && tokenElt.getAsJsonPrimitive().isString()
+                           && macKeyElt != null && macKeyElt.isJsonPrimitive() && macKeyElt.getAsJsonPrimitive().isString()
+                           && expirationElt != null && expirationElt.isJsonPrimitive() && expirationElt.getAsJsonPrimitive().isNumber()
+                           && refreshTokenElt != null && refreshTokenElt.isJsonPrimitive() && refreshTokenElt.getAsJsonPrimitive().isString()) {
+                            session.setOAuth2TokensAndExpiration(tokenElt.getAsString(), macKeyElt.getAsString(), refreshTokenElt.getAsString(), expirationElt.getAsInt());
+
+                        }
+                        JsonElement stackmobElt = responseElt.getAsJsonObject().get("stackmob");
+                        if(stackmobElt != null && stackmobElt.isJsonObject()) {
+                            // Return only the user to be compatible with the old login
+                            JsonElement userElt = stackmobElt.getAsJsonObject().get("user");
+                            session.setLastUserLoginName(userElt.getAsJsonObject().get(session.getUserIdName()).getAsString());
+                            finalResponseBody = userElt.toString().getBytes();
+                        }
                     }
+                } catch(RuntimeException e) {
+                    // not a token response, so pass the body on as it is
                 }
                 callback.setDone(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, finalResponseBody);
             }
@@ -17,33 +17,35 @@
 package com.stackmob.sdk.request;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.stackmob.sdk.api.*;
 import com.stackmob.sdk.api.StackMob.OAuthVersion;
 import com.stackmob.sdk.callback.StackMobRawCallback;
 import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobCircuitOpenException;
 import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.net.*;
-import com.stackmob.sdk.push.StackMobPushToken;
 import com.stackmob.sdk.util.*;
-import org.scribe.builder.ServiceBuilder;
 import org.scribe.exceptions.OAuthException;
 import org.scribe.model.OAuthRequest;
-import org.scribe.model.Response;
-import org.scribe.model.Token;
 import org.scribe.model.Verb;
-import org.scribe.oauth.OAuthService;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Modifier;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -58,6 +60,8 @@ public abstract class StackMobRequest {
     protected static final String REGULAR_SCHEME = "http";
     protected static final String API_KEY_HEADER = "X-StackMob-API-Key";
     protected static final String AUTHORIZATION_HEADER = "Authorization";
+    protected static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    protected static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
 
 
     protected final ExecutorService executor;
@@ -74,13 +78,16 @@ public abstract class StackMobRequest {
     protected List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
     private AtomicBoolean triedRefreshToken = new AtomicBoolean(false);
     private OAuthVersion oauthVersionOverride;
+    private StackMobHedgingPolicy hedgingPolicy;
+    private Flight flight;
+    // the cached response whose validators were last sent, so a 304 can be answered even if it's since been evicted
+    private volatile StackMobValidatorCache.Entry revalidating;
+    private long retryStartedAt = 0;
+    private long lastRetryDelay = 0;
+    private int retryAttempts = 0;
 
     protected Gson gson;
 
-    private OAuthService oAuthService;
-
-
-
 
     protected StackMobRequest(ExecutorService executor,
                               StackMobSession session,
@@ -101,18 +108,9 @@ public abstract class StackMobRequest {
         this.callback = cb;
         this.redirectedCallback = redirCb;
         this.oauthVersionOverride = oauthVersionOverride;
+        this.hedgingPolicy = options.getHedgingPolicy();
 
-        GsonBuilder gsonBuilder = new GsonBuilder()
-                                  .registerTypeAdapter(StackMobPushToken.class, new StackMobPushToken.Deserializer())
-                                  .registerTypeAdapter(StackMobPushToken.class, new StackMobPushToken.Serializer())
-                                  .registerTypeAdapter(StackMobForgotPasswordEmail.class, new StackMobForgotPasswordEmail.Deserializer())
-                                  .registerTypeAdapter(StackMobForgotPasswordEmail.class, new StackMobForgotPasswordEmail.Serializer())
-                                  .registerTypeAdapter(StackMobNull.class, new StackMobNull.Adapter())
-                                  .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.PROTECTED, Modifier.TRANSIENT, Modifier.STATIC);
-        gson = gsonBuilder.create();
-
-        if(!isOAuth2()) oAuthService = new ServiceBuilder().provider(StackMobApi.class).apiKey(session.getKey()).apiSecret(session.getSecret()).build();
-
+        gson = session.getRequestFactory().getGson();
     }
 
     public StackMobRequest setUrlFormat(String urlFmt) {
@@ -141,11 +139,11 @@ public abstract class StackMobRequest {
             }
             else {
                 StackMobException ex = new StackMobException(String.format("The StackMob SDK doesn't support the HTTP verb %s at this time", httpVerb.toString()));
-                callback.unsent(ex);
+                reportUnsent(callback, ex);
             }
         }
         catch(StackMobException e) {
-            callback.unsent(e);
+            reportUnsent(callback, e);
         }
     }
 
@@ -288,11 +286,7 @@ public abstract class StackMobRequest {
     }
 
     protected String getScheme() {
-        if(session.getHTTPSOverride() == null) {
-            return isSecure ? SECURE_SCHEME : REGULAR_SCHEME;
-        } else {
-            return session.getHTTPSOverride() ? SECURE_SCHEME : REGULAR_SCHEME;
-        }
+        return session.isHTTPS(isSecure) ? SECURE_SCHEME : REGULAR_SCHEME;
     }
 
     protected static String percentEncode(String s) throws UnsupportedEncodingException {
@@ -331,37 +325,33 @@ public abstract class StackMobRequest {
     protected OAuthRequest getOAuthRequest(String scheme, HttpVerb method, String url) {
         Verb verb = Verb.valueOf(method.toString());
         OAuthRequest oReq = new OAuthRequest(verb, url);
-        int apiVersion = session.getApiVersionNumber();
-        final String accept = "application/vnd.stackmob+json; version="+apiVersion;
-
-        List<Map.Entry<String, String>> headerList = new ArrayList<Map.Entry<String, String>>();
+        oReq.setCharset("UTF-8");
+        StackMobRequestFactory factory = session.getRequestFactory();
 
-        //build basic headers
+        //add basic headers
         if(!verb.equals(Verb.GET) && !verb.equals(Verb.DELETE) && !verb.equals(Verb.HEAD)) {
-            headerList.add(new Pair<String, String>("Content-Type", getContentType()));
+            oReq.addHeader("Content-Type", getContentType());
         }
 
-        //build user headers
+        //add user headers
         boolean hasAcceptHeader = false;
+        boolean hasAcceptEncodingHeader = false;
         if(this.headers != null) {
             for(Map.Entry<String, String> header : this.headers) {
                 if(header.getKey().equals("Accept")) hasAcceptHeader = true;
-                headerList.add(new Pair<String, String>(header.getKey(), header.getValue()));
+                if(header.getKey().equalsIgnoreCase("Accept-Encoding")) hasAcceptEncodingHeader = true;
+                oReq.addHeader(header.getKey(), header.getValue());
             }
         }
 
-        if(!hasAcceptHeader) headerList.add(new Pair<String, String>("Accept", accept));
-        headerList.add(new Pair<String, String>("User-Agent", session.getUserAgent()));
+        if(!hasAcceptHeader) oReq.addHeader("Accept", factory.getAccept());
+        if(!hasAcceptEncodingHeader && session.isAcceptingCompressedResponses()) oReq.addHeader("Accept-Encoding", "gzip");
+        oReq.addHeader("User-Agent", factory.getUserAgent());
         String cookieHeader = session.getCookieManager().cookieHeader();
-        if(cookieHeader.length() > 0) headerList.add(new Pair<String, String>("Cookie", cookieHeader));
-
-        //add headers to request
-        for(Map.Entry<String, String> header: headerList) {
-            oReq.addHeader(header.getKey(), header.getValue());
-        }
+        if(cookieHeader.length() > 0) oReq.addHeader("Cookie", cookieHeader);
 
         switch(getOAuthVersion()) {
-            case One: oAuthService.signRequest(new Token("", ""), oReq); break;
+            case One: factory.getOAuthService().signRequest(StackMobRequestFactory.EMPTY_TOKEN, oReq); break;
             case Two: {
                 oReq.addHeader(API_KEY_HEADER, session.getKey());
                 if(session.oauth2TokenValid()) {
@@ -389,27 +379,51 @@ public abstract class StackMobRequest {
         }
     }
 
-    private byte[] getByteArray(InputStream is) {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-        int nRead;
-        byte[] data = new byte[16384];
+    private byte[] getByteArray(InputStream is, String contentLength) {
+        int length = -1;
+        try {
+            if(contentLength != null) length = Integer.parseInt(contentLength.trim());
+        } catch(NumberFormatException ignore) { }
 
         try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            if(length >= 0) {
+                // the size is known, so read straight into the result rather than growing and copying a buffer
+                byte[] body = new byte[length];
+                int offset = 0;
+                int nRead;
+                while (offset < length && (nRead = is.read(body, offset, length - offset)) != -1) {
+                    offset += nRead;
+                }
+                if(offset < length) return Arrays.copyOf(body, offset);
+                int next = is.read();
+                if(next == -1) return body;
+                // the stream was decoded to more than the header said, so fall back to growing a buffer
+                buffer.write(body, 0, length);
+                buffer.write(next);
+            }
+
+            int nRead;
+            byte[] data = new byte[16384];
             while ((nRead = is.read(data, 0, data.length)) != -1) {
                 buffer.write(data, 0, nRead);
             }
-            buffer.flush();
+            return buffer.toByteArray();
         } catch (IOException ex) {
             return new byte[0];
+        } finally {
+            try {
+                if(is != null) is.close();
+            } catch(IOException ignore) { }
         }
-
-        return buffer.toByteArray();
     }
 
     protected OAuthRequest getOAuthRequest(String scheme, HttpVerb method, String url, String payload) {
         OAuthRequest req = getOAuthRequest(scheme, method, url);
         req.addPayload(payload);
+        int threshold = session.getRequestCompressionThreshold();
+        // the transport compresses the body as it's sent, so the payload stays readable for logging and redirects
+        if(threshold >= 0 && payload != null && payload.length() >= threshold) req.addHeader("Content-Encoding", "gzip");
         return req;
     }
 
@@ -440,140 +454,797 @@ public abstract class StackMobRequest {
 
     protected void refreshTokenAndResend() {
         triedRefreshToken.set(true);
-        StackMobAccessTokenRequest.newRefreshTokenRequest(executor, session, redirectedCallback, new StackMobRawCallback() {
+        // every request that finds the token expired resends once the session's one refresh is done
+        StackMobAccessTokenRequest.sendSharedRefresh(this, new Runnable() {
             @Override
-            public void unsent(StackMobException e) {
-               sendRequest();
+            public void run() {
+                sendRequest();
+            }
+        });
+    }
+    
+    protected void sendRequest(final OAuthRequest req) throws InterruptedException, ExecutionException {
+        if(callback instanceof StackMobStreamingCallback && session.getTransport() instanceof StackMobAsyncTransport) {
+            // async transports read the whole body before handing it over, which is what streaming is meant to avoid
+            reportUnsent(callback, new StackMobException("Streaming responses requires a blocking transport such as StackMobPooledTransport"));
+            return;
+        }
+        if(isOAuth2() && !session.oauth2TokenValid() && canDoRefreshToken()) {
+            refreshTokenAndResend();
+            return;
+        }
+        if(flight == null && session.isCoalescingReads() && isCoalescable(req)) {
+            Flight mine = new Flight(new FlightKey(session, req));
+            Flight existing = flights.putIfAbsent(mine.key, mine);
+            if(existing != null && existing.join(callback)) {
+                session.getLogger().logInfo("Waiting on an identical request already in flight to %s", req.getUrl());
+                return;
+            }
+            if(existing == null) {
+                // the response, or the reason it wasn't sent, goes to every request that joined
+                flight = mine;
+                mine.join(callback);
+                callback = new FanOutCallback(mine, callback);
+            }
+        }
+        if(session.getValidatorCache() != null) addValidators(req);
+        final StackMobCircuitBreaker breaker = session.getCircuitBreaker();
+        if(breaker != null) {
+            try {
+                breaker.acquirePermission(getHost(req));
+            } catch(StackMobCircuitOpenException e) {
+                session.getLogger().logWarning("Not sending request: %s", e.getMessage());
+                reportUnsent(callback, e);
+                return;
             }
+        }
+        if(hedgingPolicy != null && (req.getVerb() == Verb.GET || req.getVerb() == Verb.HEAD)) {
+            final Hedge hedge = new Hedge(hedgingPolicy, session.getTransport());
+            transmit(req, hedge, false);
+            StackMobScheduler.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if(breaker != null && breaker.getState(getHost(req)) != StackMobCircuitBreaker.State.CLOSED) return;
+                    // signing and sending happen on the executor, since this is the scheduler's only thread
+                    boolean handedOff = handOff(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(!hedge.startHedge()) return;
+                            session.getLogger().logInfo("No response after %dms, sending a hedge request", hedge.delayMillis);
+                            // a fresh copy, so the signature's nonce isn't reused
+                            OAuthRequest duplicate = getOAuthRequest(req.getUrl().startsWith(SECURE_SCHEME + ":") ? SECURE_SCHEME : REGULAR_SCHEME, getRequestVerb(req), req.getUrl());
+                            if(session.getValidatorCache() != null) addValidators(duplicate);
+                            transmit(duplicate, hedge, true);
+                        }
+                    });
+                    if(!handedOff) session.getLogger().logWarning("Not sending a hedge request, the executor is saturated");
+                }
+            }, hedge.delayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            transmit(req, null, false);
+        }
+    }
 
-            @Override
-            public void temporaryPasswordResetRequired(StackMobException e) {
-                sendRequest();
+    /**
+     * send a request on the session's transport and handle the response on the executor. When the request is one of
+     * a hedged pair, only the first answer is handled
+     */
+    private void transmit(final OAuthRequest req, final Hedge hedge, final boolean isHedge) {
+        final StackMobTransport transport = session.getTransport();
+        final StackMobCircuitBreaker breaker = session.getCircuitBreaker();
+        final long start = System.currentTimeMillis();
+        // nothing is measured unless someone is listening
+        final Timing timing = session.getMetricsListener() == null ? null : new Timing();
+        if(transport instanceof StackMobAsyncTransport) {
+            // no thread is held while the request is in flight; the executor only runs the response handling
+            logRequest(req);
+            if(timing != null) timing.sent();
+            ((StackMobAsyncTransport) transport).sendAsync(req, new StackMobAsyncTransport.Listener() {
+                @Override
+                public void completed(final StackMobHttpResponse response) {
+                    if(timing != null) timing.received();
+                    recordOutcome(breaker, req, response.getCode() < 500, start);
+                    if(hedge != null && !hedge.answered(start, isHedge)) {
+                        response.close();
+                        return;
+                    }
+                    complete(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            handleResponse(req, response, timing);
+                            return null;
+                        }
+                    }, timing, response);
+                }
+
+                @Override
+                public void failed(final IOException e) {
+                    // a request cancelled because the other of its hedged pair won says nothing about the host
+                    if(hedge == null || !hedge.lost(isHedge)) recordOutcome(breaker, req, false, start);
+                    if(hedge != null && !hedge.failed()) return;
+                    complete(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            handleFailure(req, e);
+                            return null;
+                        }
+                    }, null, null);
+                }
+            });
+            if(hedge != null) hedge.sent(isHedge, req, null);
+        } else {
+            Future<?> task = submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    StackMobHttpResponse response;
+                    try {
+                        logRequest(req);
+                        if(timing != null) timing.sent();
+                        response = transport.send(req);
+                        if(timing != null) timing.received();
+                    } catch(Throwable t) {
+                        if(hedge == null || !hedge.lost(isHedge)) recordOutcome(breaker, req, false, start);
+                        if(hedge == null || hedge.failed()) handleFailure(req, t);
+                        return null;
+                    }
+                    recordOutcome(breaker, req, response.getCode() < 500, start);
+                    if(hedge != null && !hedge.answered(start, isHedge)) {
+                        response.close();
+                        return null;
+                    }
+                    handleResponse(req, response, timing);
+                    return null;
+                }
+            }, hedge, timing);
+            if(hedge != null) hedge.sent(isHedge, req, task);
+        }
+    }
+
+    private static void recordOutcome(StackMobCircuitBreaker breaker, OAuthRequest req, boolean succeeded, long start) {
+        if(breaker != null) breaker.record(getHost(req), succeeded, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * the scheme and host a request is going to, after redirects. Circuit breakers track each one separately
+     */
+    private static String getHost(OAuthRequest req) {
+        try {
+            URL url = new URL(req.getUrl());
+            return Http.fullDomain(url.getProtocol(), url.getAuthority());
+        } catch(MalformedURLException e) {
+            return req.getUrl();
+        }
+    }
+
+    /**
+     * hand work to the executor, reporting the request as unsent if the executor turns it away
+     */
+    private void submit(Callable<Object> task) {
+        submit(task, null, null);
+    }
+
+    private Future<?> submit(Callable<Object> task, Hedge hedge, Timing timing) {
+        try {
+            return executor.submit(timed(task, timing));
+        } catch(RejectedExecutionException e) {
+            session.getLogger().logWarning("Request was rejected by the executor: %s", e.getMessage());
+            // the other half of a hedged pair may still be answered
+            if(hedge == null || hedge.failed()) reportUnsent(callback, new StackMobException(e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * hand the outcome from an async transport to the executor. This runs on the transport's I/O thread, which must
+     * never block or run callbacks itself, and by now the server may have acted on the request, so it can't be
+     * reported unsent. If the executor is saturated the work goes to the overflow thread instead, and if that's full
+     * too the request is rejected the same way a request the executor turns away is
+     */
+    private void complete(Callable<Object> task, Timing timing, StackMobHttpResponse response) {
+        FutureTask<Object> work = new FutureTask<Object>(timed(task, timing));
+        try {
+            if(!StackMobOverflow.handOff(executor, work)) {
+                session.getLogger().logWarning("The executor is saturated, handling the response on the overflow thread");
             }
+        } catch(RejectedExecutionException e) {
+            session.getLogger().logWarning("Request was rejected by the executor: %s", e.getMessage());
+            if(response != null) response.close();
+            reportUnsent(callback, new StackMobException(e.getMessage()));
+        }
+    }
 
-            @Override
-            public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
-                sendRequest();
+    /**
+     * hand work from the shared scheduler thread to the executor. Every retry, hedge and background refresh in the
+     * process waits on that one thread, so it must never block on a saturated executor or send requests itself. If
+     * the executor is saturated the work goes to the overflow thread instead
+     * @return false if neither would take the work
+     */
+    private boolean handOff(Runnable work) {
+        try {
+            if(!StackMobOverflow.handOff(executor, work)) {
+                session.getLogger().logWarning("The executor is saturated, running scheduled work on the overflow thread");
             }
+            return true;
+        } catch(RejectedExecutionException e) {
+            session.getLogger().logWarning("Request was rejected by the executor: %s", e.getMessage());
+            return false;
+        }
+    }
 
+    private static Callable<Object> timed(final Callable<Object> task, final Timing timing) {
+        if(timing == null) return task;
+        final long queuedAt = System.nanoTime();
+        return new Callable<Object>() {
             @Override
-            public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            public Object call() throws Exception {
+                timing.queueWait += System.nanoTime() - queuedAt;
+                return task.call();
+            }
+        };
+    }
+
+    /**
+     * When each phase of one attempt at a request happened, for the session's metrics listener. The fields are
+     * written and read by one thread at a time, handed over through the executor
+     */
+    private static class Timing {
+        final long startedAt = System.nanoTime();
+        long queueWait = 0;
+        long sentAt = -1;
+        long transport = -1;
+        long bodyRead = -1;
+        long callback = -1;
+        long parse = -1;
+
+        void sent() {
+            sentAt = System.nanoTime();
+        }
+
+        void received() {
+            transport = System.nanoTime() - sentAt;
+        }
+
+        /**
+         * start timing the callback, and the parsing done inside it
+         * @return when the callback started
+         */
+        long startCallback() {
+            StackMobParseTimer.reset();
+            return System.nanoTime();
+        }
+
+        void finishCallback(long callbackStart) {
+            callback = System.nanoTime() - callbackStart;
+            parse = StackMobParseTimer.getElapsedNanos();
+        }
+
+        StackMobRequestMetrics toMetrics(HttpVerb verb, String schema, StackMobHttpResponse response) {
+            long[] nanos = new long[StackMobRequestMetrics.Phase.values().length];
+            nanos[StackMobRequestMetrics.Phase.QUEUE_WAIT.ordinal()] = queueWait;
+            nanos[StackMobRequestMetrics.Phase.CONNECT.ordinal()] = response.getConnectNanos();
+            long firstByte = response.getFirstByteNanos();
+            nanos[StackMobRequestMetrics.Phase.FIRST_BYTE.ordinal()] = firstByte;
+            // a transport that reads the whole body before returning spent part of its time on the body
+            long bodyInTransport = firstByte >= 0 && transport > firstByte ? transport - firstByte : 0;
+            nanos[StackMobRequestMetrics.Phase.BODY_READ.ordinal()] = bodyRead < 0 ? -1 : bodyRead + bodyInTransport;
+            nanos[StackMobRequestMetrics.Phase.CALLBACK.ordinal()] = callback;
+            nanos[StackMobRequestMetrics.Phase.PARSE.ordinal()] = parse;
+            return new StackMobRequestMetrics(verb, schema, response.getCode(), nanos, System.nanoTime() - startedAt);
+        }
+    }
+
+    /**
+     * the first part of the method, which is the schema for datastore requests
+     */
+    private String getSchema() {
+        String path = methodName.startsWith("/") ? methodName.substring(1) : methodName;
+        int end = path.length();
+        int slash = path.indexOf('/');
+        if(slash >= 0) end = slash;
+        int query = path.indexOf('?');
+        if(query >= 0 && query < end) end = query;
+        return path.substring(0, end);
+    }
+
+    private void reportUnsent(StackMobRawCallback cb, StackMobException e) {
+        StackMobMetricsListener metrics = session.getMetricsListener();
+        if(metrics != null) metrics.requestUnsent(httpVerb, getSchema(), e);
+        cb.unsent(e);
+    }
+
+    private boolean isCoalescable(OAuthRequest req) {
+        return (req.getVerb() == Verb.GET || req.getVerb() == Verb.HEAD) && !(callback instanceof StackMobStreamingCallback);
+    }
+
+    /**
+     * the URL and headers of a request, which identify its response. The Authorization header is left out since its
+     * signature differs on every request, and so are the validators added from the cache
+     */
+    private static String getRequestKey(OAuthRequest req) {
+        StringBuilder builder = new StringBuilder(req.getCompleteUrl());
+        for(Map.Entry<String, String> header : new TreeMap<String, String>(req.getHeaders()).entrySet()) {
+            if(AUTHORIZATION_HEADER.equalsIgnoreCase(header.getKey()) || IF_NONE_MATCH_HEADER.equalsIgnoreCase(header.getKey())
+               || IF_MODIFIED_SINCE_HEADER.equalsIgnoreCase(header.getKey())) continue;
+            builder.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * ask StackMob to answer a GET with 304 Not Modified if the cached response is still current
+     */
+    private void addValidators(OAuthRequest req) {
+        if(req.getVerb() != Verb.GET) return;
+        StackMobValidatorCache.Entry cached = session.getValidatorCache().get(getRequestKey(req));
+        if(cached == null) return;
+        revalidating = cached;
+        if(cached.getETag() != null) req.addHeader(IF_NONE_MATCH_HEADER, cached.getETag());
+        if(cached.getLastModified() != null) req.addHeader(IF_MODIFIED_SINCE_HEADER, cached.getLastModified());
+    }
+
+    /**
+     * the cached response a request was revalidating, if its validators are the ones that were sent
+     */
+    private StackMobValidatorCache.Entry getRevalidated(OAuthRequest req) {
+        StackMobValidatorCache.Entry sent = revalidating;
+        if(sent == null) return null;
+        Map<String, String> headers = req.getHeaders();
+        boolean sameETag = sent.getETag() == null ? !headers.containsKey(IF_NONE_MATCH_HEADER) : sent.getETag().equals(headers.get(IF_NONE_MATCH_HEADER));
+        boolean sameDate = sent.getLastModified() == null ? !headers.containsKey(IF_MODIFIED_SINCE_HEADER) : sent.getLastModified().equals(headers.get(IF_MODIFIED_SINCE_HEADER));
+        return sameETag && sameDate ? sent : null;
+    }
+
+    /**
+     * Identifies requests that would get the same response: the same session, verb, URL and headers
+     */
+    private static class FlightKey {
+        private final StackMobSession session;
+        private final String request;
+
+        FlightKey(StackMobSession session, OAuthRequest req) {
+            this.session = session;
+            this.request = req.getVerb() + " " + getRequestKey(req);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FlightKey && ((FlightKey) o).session == session && ((FlightKey) o).request.equals(request);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(session) + request.hashCode();
+        }
+    }
+
+    private static final ConcurrentMap<FlightKey, Flight> flights = new ConcurrentHashMap<FlightKey, Flight>();
+
+    /**
+     * A request in flight and the callbacks waiting on it. Once it finishes, later requests are sent anew
+     */
+    private static class Flight {
+        final FlightKey key;
+        private final List<StackMobRawCallback> callbacks = new ArrayList<StackMobRawCallback>();
+        private boolean finished = false;
 
+        Flight(FlightKey key) {
+            this.key = key;
+        }
+
+        synchronized boolean join(StackMobRawCallback callback) {
+            if(finished) return false;
+            callbacks.add(callback);
+            return true;
+        }
+
+        synchronized List<StackMobRawCallback> finish() {
+            finished = true;
+            flights.remove(key, this);
+            return callbacks;
+        }
+    }
+
+    /**
+     * Stands in for the callback of a request others have joined, and hands the outcome to all of them, each with its
+     * own copy of the response. Redirects and retries are left to the original callback
+     */
+    private class FanOutCallback extends StackMobRawCallback {
+        private final Flight flight;
+        private final StackMobRawCallback original;
+
+        FanOutCallback(Flight flight, StackMobRawCallback original) {
+            this.flight = flight;
+            this.original = original;
+            this.retriesRemaining = original.getRetriesRemaining();
+        }
+
+        @Override
+        public void unsent(StackMobException e) {
+            for(StackMobRawCallback cb : flight.finish()) {
+                try {
+                    cb.unsent(e);
+                } catch(Throwable t) {
+                    session.getLogger().logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
+                }
             }
-        }).setUrlFormat(urlFormat).sendRequest();
+        }
+
+        @Override
+        public void temporaryPasswordResetRequired(StackMobException e) {
+            for(StackMobRawCallback cb : flight.finish()) {
+                try {
+                    cb.temporaryPasswordResetRequired(e);
+                } catch(Throwable t) {
+                    session.getLogger().logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
+                }
+            }
+        }
+
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            List<StackMobRawCallback> callbacks = flight.finish();
+            for(int i = 0; i < callbacks.size(); i++) {
+                StackMobRawCallback cb = callbacks.get(i);
+                // callbacks may modify what they're given, so all but the last get copies of the untouched response
+                boolean last = i == callbacks.size() - 1;
+                byte[] body = last || responseBody == null ? responseBody : responseBody.clone();
+                List<Map.Entry<String, String>> headers = last || responseHeaders == null ? responseHeaders : new ArrayList<Map.Entry<String, String>>(responseHeaders);
+                try {
+                    cb.setDone(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, headers, body);
+                } catch(Throwable t) {
+                    session.getLogger().logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
+                }
+            }
+        }
+
+        @Override
+        public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            for(StackMobRawCallback cb : flight.finish()) {
+                try {
+                    cb.circularRedirect(originalUrl, redirectHeaders, redirectBody, newURL);
+                } catch(Throwable t) {
+                    session.getLogger().logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
+                }
+            }
+        }
+
+        @Override
+        public boolean retry(int afterMilliseconds) {
+            return original.retry(afterMilliseconds);
+        }
+
+        @Override
+        public boolean redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            return original.redirected(originalUrl, redirectHeaders, redirectBody, newURL);
+        }
     }
-    
-    protected void sendRequest(final OAuthRequest req) throws InterruptedException, ExecutionException {
-        final StackMobRawCallback cb = this.callback;
 
-        if(isOAuth2() && !session.oauth2TokenValid() && canDoRefreshToken()) {
-            refreshTokenAndResend();
-        } else {
-            executor.submit(new Callable<Object>() {
-                @Override
-                public String call() throws Exception {
-                    try {
-                        session.getLogger().logInfo("%s", "Request URL: " + req.getUrl() + "\nRequest Verb: " + getRequestVerb(req) + "\nRequest Headers: " + getRequestHeaders(req) + "\nRequest Body: " + req.getBodyContents());
-                        Response ret = req.send();
-                        byte[] rawBody;
-                        String stringBody;
-                        try {
-                           // Apparently sometime this just NPEs
-                           rawBody = getByteArray(ret.getStream());
-                           stringBody = new String(rawBody, "UTF-8");
-                        } catch(Exception e) {
-                           stringBody = "{}";
-                           rawBody = new byte[0];
+    /**
+     * Tracks a hedged pair of requests, so only the first answer is handled and a failure is only reported once
+     * neither can succeed. Once one is answered the other is cancelled: taken off the executor if it hasn't started,
+     * and its connection closed if the transport can cancel requests
+     */
+    private static class Hedge {
+        private final StackMobHedgingPolicy policy;
+        private final StackMobTransport transport;
+        final long delayMillis;
+        private int outstanding = 1;
+        private boolean done = false;
+        // indexed by whether the attempt is the hedge
+        private final OAuthRequest[] requests = new OAuthRequest[2];
+        private final Future<?>[] tasks = new Future<?>[2];
+        private int winner = -1;
+
+        Hedge(StackMobHedgingPolicy policy, StackMobTransport transport) {
+            this.policy = policy;
+            this.transport = transport;
+            this.delayMillis = policy.getHedgeDelayMillis();
+        }
+
+        /**
+         * record an attempt that has been handed to the transport or executor, cancelling it straight away if the
+         * other attempt has already won
+         */
+        void sent(boolean isHedge, OAuthRequest req, Future<?> task) {
+            int index = isHedge ? 1 : 0;
+            synchronized(this) {
+                requests[index] = req;
+                tasks[index] = task;
+                if(winner < 0 || winner == index) return;
+            }
+            cancel(req, task);
+        }
+
+        synchronized boolean startHedge() {
+            if(done) return false;
+            outstanding++;
+            policy.recordHedge();
+            return true;
+        }
+
+        boolean answered(long start, boolean isHedge) {
+            policy.recordLatency(System.currentTimeMillis() - start);
+            int loser = isHedge ? 0 : 1;
+            OAuthRequest other;
+            Future<?> otherTask;
+            synchronized(this) {
+                outstanding--;
+                if(done) return false;
+                done = true;
+                winner = isHedge ? 1 : 0;
+                other = requests[loser];
+                otherTask = tasks[loser];
+            }
+            if(isHedge) policy.recordHedgeWon();
+            if(other != null) cancel(other, otherTask);
+            return true;
+        }
+
+        /**
+         * whether the other attempt was answered first, so this one was or is about to be cancelled
+         */
+        synchronized boolean lost(boolean isHedge) {
+            return winner >= 0 && winner != (isHedge ? 1 : 0);
+        }
+
+        private void cancel(OAuthRequest req, Future<?> task) {
+            if(task != null) task.cancel(false);
+            if(transport instanceof StackMobCancellableTransport) ((StackMobCancellableTransport) transport).cancel(req);
+        }
+
+        synchronized boolean failed() {
+            outstanding--;
+            if(done || outstanding > 0) return false;
+            done = true;
+            return true;
+        }
+    }
+
+    private void logRequest(OAuthRequest req) {
+        // the body of a bulk request can be megabytes, so don't build the message unless it's going somewhere
+        StackMobLogger logger = session.getLogger();
+        if(!logger.isEnabled(StackMobLogger.Level.INFO)) return;
+        logger.logInfo("Request URL: %s\nRequest Verb: %s\nRequest Headers: %s\nRequest Body: %s", req.getUrl(), getRequestVerb(req), getRequestHeaders(req), req.getBodyContents());
+    }
+
+    private void handleResponse(OAuthRequest req, StackMobHttpResponse ret, Timing timing) {
+        final StackMobRawCallback cb = this.callback;
+        try {
+            if(cb instanceof StackMobStreamingCallback && Http.isSuccess(ret.getCode())) {
+                streamResponse(req, ret, (StackMobStreamingCallback) cb, timing);
+                return;
+            }
+            byte[] rawBody;
+            String stringBody = null;
+            long readStart = System.nanoTime();
+            try {
+               // Apparently sometime this just NPEs
+               boolean lengthKnown = getRequestVerb(req) != HttpVerbWithoutPayload.HEAD && !ret.isCompressed();
+               rawBody = getByteArray(ret.getDecodedStream(), lengthKnown ? ret.getHeader("Content-Length") : null);
+            } catch(Exception e) {
+               stringBody = "{}";
+               rawBody = new byte[0];
+            }
+            if(timing != null) timing.bodyRead = System.nanoTime() - readStart;
+            if(session.getLogger().isEnabled(StackMobLogger.Level.INFO)) {
+                session.getLogger().logInfo("Response StatusCode: %d\nResponse Headers: %s\nResponse: %s", ret.getCode(), ret.getHeaders(), stringBody == null ? getTrimmedBody(rawBody) : stringBody);
+            }
+            if(!isOAuth2() && ret.getHeaders() != null) session.recordServerTimeDiff(ret.getHeader("Date"));
+            if(HttpRedirectHelper.isRedirected(ret.getCode())) {
+                session.getLogger().logInfo("Response was redirected");
+                if(stringBody == null) stringBody = new String(rawBody, "UTF-8");
+                String newLocation = HttpRedirectHelper.getNewLocation(ret.getHeaders());
+                URL url = new URL(newLocation);
+                String oldDomain = Http.fullDomain(getScheme(), urlFormat);
+                String newDomain = Http.fullDomain(url.getProtocol(), url.getAuthority());
+                if(session.getRedirect(oldDomain).equals(newDomain)) {
+                    callback.circularRedirect(req.getUrl(), ret.getHeaders(), stringBody, newLocation);
+                } else {
+                    session.setRedirect(oldDomain, newDomain, HttpRedirectHelper.isPermanentRedirect(ret.getCode()));
+                    HttpVerb verb = HttpVerbHelper.valueOf(req.getVerb().toString());
+                    OAuthRequest newReq = getOAuthRequest(url.getProtocol(), verb, newLocation);
+                    if(req.getBodyContents() != null && req.getBodyContents().length() > 0) {
+                        newReq = getOAuthRequest(url.getProtocol(), verb, newLocation, req.getBodyContents());
+                    }
+                    if(redirectedCallback != null) redirectedCallback.redirected(req.getUrl(), ret.getHeaders(), stringBody, newReq.getUrl());
+                    if(callback.redirected(req.getUrl(), ret.getHeaders(), stringBody, newReq.getUrl())) {
+                        StackMobMetricsListener metrics = session.getMetricsListener();
+                        if(metrics != null) metrics.requestRedirected(httpVerb, getSchema());
+                        sendRequest(newReq);
+                    }
+                }
+            }
+            else {
+                List<Map.Entry<String, String>> headers = getResponseHeaders(ret);
+                int statusCode = ret.getCode();
+                StackMobValidatorCache validators = session.getValidatorCache();
+                if(validators != null && req.getVerb() == Verb.GET) {
+                    String key = getRequestKey(req);
+                    StackMobValidatorCache.Entry cached = getRevalidated(req);
+                    if(statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                        session.getLogger().logInfo("Response was not modified, using the cached body");
+                        validators.recordRevalidation(true);
+                        statusCode = HttpURLConnection.HTTP_OK;
+                        // callbacks may modify what they're given, so each gets its own copy of the cached response
+                        headers = copyOf(cached.getHeaders());
+                        rawBody = cached.getBody() == null ? null : cached.getBody().clone();
+                    } else if(Http.isSuccess(statusCode)) {
+                        if(cached != null) validators.recordRevalidation(false);
+                        String eTag = ret.getHeader("ETag");
+                        String lastModified = ret.getHeader("Last-Modified");
+                        if(eTag != null || lastModified != null) {
+                            validators.put(key, new StackMobValidatorCache.Entry(eTag, lastModified, copyOf(headers), rawBody.clone()));
                         }
-                        String trimmedBody = stringBody.length() < 1000 ? stringBody : (stringBody.subSequence(0, 1000) + " (truncated)");
-                        session.getLogger().logInfo("%s", "Response StatusCode: " + ret.getCode() + "\nResponse Headers: " + ret.getHeaders() + "\nResponse: " + trimmedBody);
-                        if(!isOAuth2() && ret.getHeaders() != null) session.recordServerTimeDiff(ret.getHeader("Date"));
-                        if(HttpRedirectHelper.isRedirected(ret.getCode())) {
-                            session.getLogger().logInfo("Response was redirected");
-                            String newLocation = HttpRedirectHelper.getNewLocation(ret.getHeaders());
-                            URL url = new URL(newLocation);
-                            String oldDomain = Http.fullDomain(getScheme(), urlFormat);
-                            String newDomain = Http.fullDomain(url.getProtocol(), url.getAuthority());
-                            if(session.getRedirect(oldDomain).equals(newDomain)) {
-                                callback.circularRedirect(req.getUrl(), ret.getHeaders(), stringBody, newLocation);
-                            } else {
-                                session.setRedirect(oldDomain, newDomain, HttpRedirectHelper.isPermanentRedirect(ret.getCode()));
-                                HttpVerb verb = HttpVerbHelper.valueOf(req.getVerb().toString());
-                                OAuthRequest newReq = getOAuthRequest(url.getProtocol(), verb, newLocation);
-                                if(req.getBodyContents() != null && req.getBodyContents().length() > 0) {
-                                    newReq = getOAuthRequest(url.getProtocol(), verb, newLocation, req.getBodyContents());
-                                }
-                                redirectedCallback.redirected(req.getUrl(), ret.getHeaders(), stringBody, newReq.getUrl());
-                                if(callback.redirected(req.getUrl(), ret.getHeaders(), stringBody, newReq.getUrl())) {
-                                    sendRequest(newReq);
+                    }
+                }
+                if(Http.isSuccess(statusCode)) {
+                    session.getCookieManager().storeCookies(ret.getHeaders());
+                }
+                boolean retried = false;
+                if(Http.isUnavailable(statusCode)) {
+                    int afterMilliseconds = -1;
+                    for(Map.Entry<String, String> headerPair : headers) {
+                        if(Http.isRetryAfterHeader(headerPair.getKey())) {
+                            try {
+                                int candidateMilliseconds = Integer.parseInt(headerPair.getValue()) * 1000;
+                                if(candidateMilliseconds > 0) {
+                                    afterMilliseconds = candidateMilliseconds;
                                 }
-                            }
+                            } catch(Throwable ignore) { }
                         }
-                        else {
-                            List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
-                            if(ret.getHeaders() != null) {
-                                for(Map.Entry<String, String> header : ret.getHeaders().entrySet()) {
-                                    headers.add(header);
-                                }
-                            }
-                            if(Http.isSuccess(ret.getCode())) {
-                                session.getCookieManager().storeCookies(ret);
-                            }
-                            boolean retried = false;
-                            if(Http.isUnavailable(ret.getCode())) {
-                                int afterMilliseconds = -1;
-                                for(Map.Entry<String, String> headerPair : headers) {
-                                    if(Http.isRetryAfterHeader(headerPair.getKey())) {
-                                        try {
-                                            int candidateMilliseconds = Integer.parseInt(headerPair.getValue()) * 1000;
-                                            if(candidateMilliseconds > 0) {
-                                                afterMilliseconds = candidateMilliseconds;
-                                            }
-                                        } catch(Throwable ignore) { }
-                                    }
-                                }
-                                if(afterMilliseconds != -1 && cb.getRetriesRemaining() > 0 && cb.retry(afterMilliseconds)) {
-                                    cb.setRetriesRemaining(cb.getRetriesRemaining() - 1);
-                                    sendRequest();
-                                    retried = true;
-                                }
-                            }
-                            if(!retried) {
-                                if(ret.getCode() == HttpURLConnection.HTTP_UNAUTHORIZED && canDoRefreshToken()) {
-                                    refreshTokenAndResend();
-                                } else {
-                                    try {
-                                        cb.setDone(getRequestVerb(req),
-                                                req.getUrl(),
-                                                getRequestHeaders(req),
-                                                req.getBodyContents(),
-                                                ret.getCode(),
-                                                headers,
-                                                rawBody);
-                                    }
-                                    catch(Throwable t) {
-                                        session.getLogger().logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
-                                    }
-                                }
-                            }
+                    }
+                    if(afterMilliseconds != -1) {
+                        retried = scheduleRetry(afterMilliseconds);
+                    }
+                }
+                if(!retried) {
+                    if(statusCode == HttpURLConnection.HTTP_UNAUTHORIZED && canDoRefreshToken()) {
+                        refreshTokenAndResend();
+                    } else {
+                        long callbackStart = timing == null ? 0 : timing.startCallback();
+                        try {
+                            cb.setDone(getRequestVerb(req),
+                                    req.getUrl(),
+                                    getRequestHeaders(req),
+                                    req.getBodyContents(),
+                                    statusCode,
+                                    headers,
+                                    rawBody);
                         }
-                    } catch(OAuthException e) {
-                        session.getLogger().logWarning("Unexpected OAuth exception prevented message from being sent %s", StackMobLogger.getStackTrace(e));
-                        cb.unsent(new StackMobException(e.getMessage()));
-
-                    } catch(Throwable t) {
-                        session.getLogger().logWarning("Invoking callback after unexpected exception %s", StackMobLogger.getStackTrace(t));
-                        cb.setDone(getRequestVerb(req),
-                                req.getUrl(),
-                                getRequestHeaders(req),
-                                req.getBodyContents(),
-                                -1,
-                                EmptyHeaders,
-                                t.getMessage().getBytes());
+                        catch(Throwable t) {
+                            session.getLogger().logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
+                        }
+                        if(timing != null) timing.finishCallback(callbackStart);
                     }
-                    return null;
                 }
-            });
+            }
+            reportCompleted(ret, timing);
+        } catch(Throwable t) {
+            handleFailure(req, t);
+        }
+    }
+
+    private static List<Map.Entry<String, String>> copyOf(List<Map.Entry<String, String>> headers) {
+        return headers == null ? null : new ArrayList<Map.Entry<String, String>>(headers);
+    }
+
+    private void reportCompleted(StackMobHttpResponse ret, Timing timing) {
+        StackMobMetricsListener metrics = session.getMetricsListener();
+        if(metrics != null && timing != null) metrics.requestCompleted(timing.toMetrics(httpVerb, getSchema(), ret));
+    }
+
+    /**
+     * resend the request on the executor after the backoff policy's delay, if the policy and the callback allow
+     * another attempt
+     * @param retryAfterMillis the delay the server asked for, or -1 if it didn't
+     * @return whether a retry was scheduled
+     */
+    private boolean scheduleRetry(long retryAfterMillis) {
+        StackMobBackoffPolicy policy = session.getBackoffPolicy();
+        if(policy == null || callback.getRetriesRemaining() <= 0) return false;
+        long now = System.currentTimeMillis();
+        if(retryStartedAt == 0) retryStartedAt = now;
+        long delay = policy.getRetryDelayMillis(retryAttempts + 1, lastRetryDelay, retryAfterMillis, now - retryStartedAt);
+        if(delay == StackMobBackoffPolicy.STOP || !callback.retry((int) delay)) return false;
+        callback.setRetriesRemaining(callback.getRetriesRemaining() - 1);
+        retryAttempts++;
+        lastRetryDelay = delay;
+        session.getLogger().logInfo("Retrying request in %dms", delay);
+        StackMobMetricsListener metrics = session.getMetricsListener();
+        if(metrics != null) metrics.requestRetried(httpVerb, getSchema());
+        StackMobScheduler.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                boolean handedOff = handOff(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendRequest();
+                    }
+                });
+                if(!handedOff) reportUnsent(callback, new StackMobException("The retry was rejected by the executor"));
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * a connection failure can be retried if the request never reached the server, or if repeating it is safe
+     */
+    private boolean isRetryableFailure(OAuthRequest req, Throwable t) {
+        StackMobBackoffPolicy policy = session.getBackoffPolicy();
+        if(policy == null || !policy.isRetryingConnectionFailures()) return false;
+        // scribe wraps connection failures in an OAuthException
+        Throwable cause = t instanceof OAuthException && t.getCause() != null ? t.getCause() : t;
+        if(!(cause instanceof IOException)) return false;
+        if(cause instanceof ConnectException || cause instanceof UnknownHostException || cause instanceof NoRouteToHostException) return true;
+        return req.getVerb() != Verb.POST;
+    }
+
+    /**
+     * hand a successful response to a streaming callback without reading the body into memory first
+     */
+    private void streamResponse(OAuthRequest req, StackMobHttpResponse ret, StackMobStreamingCallback cb, Timing timing) throws IOException {
+        if(session.getLogger().isEnabled(StackMobLogger.Level.INFO)) {
+            session.getLogger().logInfo("Response StatusCode: %d\nResponse Headers: %s\nResponse: (streamed)", ret.getCode(), ret.getHeaders());
+        }
+        if(!isOAuth2() && ret.getHeaders() != null) session.recordServerTimeDiff(ret.getHeader("Date"));
+        session.getCookieManager().storeCookies(ret.getHeaders());
+        InputStream body = ret.getStream() == null ? new ByteArrayInputStream(new byte[0]) : ret.getDecodedStream();
+        // the callback reads the body itself, so that time is part of the callback's
+        long callbackStart = timing == null ? 0 : timing.startCallback();
+        try {
+            cb.setStream(getRequestVerb(req),
+                    req.getUrl(),
+                    getRequestHeaders(req),
+                    req.getBodyContents(),
+                    ret.getCode(),
+                    getResponseHeaders(ret),
+                    body);
+        }
+        catch(Throwable t) {
+            session.getLogger().logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
+        }
+        if(timing != null) timing.finishCallback(callbackStart);
+        reportCompleted(ret, timing);
+    }
+
+    private static List<Map.Entry<String, String>> getResponseHeaders(StackMobHttpResponse ret) {
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        if(ret.getHeaders() != null) {
+            for(Map.Entry<String, String> header : ret.getHeaders().entrySet()) {
+                headers.add(header);
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * decode no more of the body than will be logged
+     */
+    private static String getTrimmedBody(byte[] rawBody) throws UnsupportedEncodingException {
+        if(rawBody.length < 1000) return new String(rawBody, "UTF-8");
+        return new String(rawBody, 0, 1000, "UTF-8") + " (truncated)";
+    }
+
+    private void handleFailure(OAuthRequest req, Throwable t) {
+        final StackMobRawCallback cb = this.callback;
+        if(isRetryableFailure(req, t) && scheduleRetry(-1)) {
+            session.getLogger().logWarning("Request could not be sent, retrying: %s", t.getMessage());
+        } else if(t instanceof OAuthException) {
+            session.getLogger().logWarning("Unexpected OAuth exception prevented message from being sent %s", StackMobLogger.getStackTrace(t));
+            reportUnsent(cb, new StackMobException(t.getMessage()));
+        } else if(t instanceof IOException) {
+            session.getLogger().logWarning("Request could not be sent %s", StackMobLogger.getStackTrace(t));
+            reportUnsent(cb, new StackMobException(t.getMessage()));
+        } else {
+            session.getLogger().logWarning("Invoking callback after unexpected exception %s", StackMobLogger.getStackTrace(t));
+            cb.setDone(getRequestVerb(req),
+                    req.getUrl(),
+                    getRequestHeaders(req),
+                    req.getBodyContents(),
+                    -1,
+                    EmptyHeaders,
+                    t.getMessage().getBytes());
         }
     }
 
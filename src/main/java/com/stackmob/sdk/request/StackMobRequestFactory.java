@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.stackmob.sdk.api.StackMobForgotPasswordEmail;
+import com.stackmob.sdk.api.StackMobSession;
+import com.stackmob.sdk.net.StackMobApi;
+import com.stackmob.sdk.push.StackMobPushToken;
+import com.stackmob.sdk.util.StackMobNull;
+import org.scribe.builder.ServiceBuilder;
+import org.scribe.model.Token;
+import org.scribe.oauth.OAuthService;
+
+import java.lang.reflect.Modifier;
+
+/**
+ * The parts of a request that are the same for every request made with a session: the Gson used for bodies, the
+ * OAuth1 signer and the Accept and User-Agent headers. They're built once and shared, so each request doesn't rebuild
+ * them. Get one from {@link StackMobSession#getRequestFactory()}. This class is only meant to be used inside the sdk
+ */
+public class StackMobRequestFactory {
+
+    // the adapters are stateless and Gson is thread safe, so every session can use the same one
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(StackMobPushToken.class, new StackMobPushToken.Deserializer())
+            .registerTypeAdapter(StackMobPushToken.class, new StackMobPushToken.Serializer())
+            .registerTypeAdapter(StackMobForgotPasswordEmail.class, new StackMobForgotPasswordEmail.Deserializer())
+            .registerTypeAdapter(StackMobForgotPasswordEmail.class, new StackMobForgotPasswordEmail.Serializer())
+            .registerTypeAdapter(StackMobNull.class, new StackMobNull.Adapter())
+            .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.PROTECTED, Modifier.TRANSIENT, Modifier.STATIC)
+            .create();
+
+    static final Token EMPTY_TOKEN = new Token("", "");
+
+    private final String key;
+    private final String secret;
+    private final String accept;
+    private final String userAgent;
+    private volatile OAuthService oAuthService;
+
+    public StackMobRequestFactory(StackMobSession session) {
+        this.key = session.getKey();
+        this.secret = session.getSecret();
+        this.accept = "application/vnd.stackmob+json; version=" + session.getApiVersionNumber();
+        this.userAgent = session.getUserAgent();
+    }
+
+    public Gson getGson() {
+        return gson;
+    }
+
+    /**
+     * the value of the Accept header, which selects the API version
+     * @return the header value
+     */
+    public String getAccept() {
+        return accept;
+    }
+
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    /**
+     * get the service that signs OAuth1 requests, building it the first time it's needed
+     * @return the service
+     */
+    public OAuthService getOAuthService() {
+        OAuthService service = oAuthService;
+        if(service == null) {
+            // building it twice in a race is harmless
+            service = new ServiceBuilder().provider(StackMobApi.class).apiKey(key).apiSecret(secret).build();
+            oAuthService = service;
+        }
+        return service;
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands messages to another logger on a background thread, so threads doing I/O never wait on a slow console or
+ * file. Messages go into a fixed size ring buffer; if it fills up faster than it can be written, new messages are
+ * dropped and counted rather than blocking the caller. Formatting happens on the background thread too, so pass
+ * arguments that won't change after the call.
+ * <pre>
+ * {@code
+ * StackMobLogger console = new StackMobLogger();
+ * console.setLogging(true);
+ * stackmob.getSession().setLogger(new StackMobAsyncLogger(console));
+ * }
+ * </pre>
+ */
+public class StackMobAsyncLogger extends StackMobLogger {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static class Record {
+        final Level level;
+        final String format;
+        final Object[] args;
+
+        Record(Level level, String format, Object[] args) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+    }
+
+    private final StackMobLogger delegate;
+    private final BlockingQueue<Record> buffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private volatile Thread writer;
+
+    public StackMobAsyncLogger(StackMobLogger delegate) {
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * create a logger that buffers at most the given number of messages
+     * @param delegate the logger that writes the messages
+     * @param capacity the most messages waiting to be written
+     */
+    public StackMobAsyncLogger(StackMobLogger delegate, int capacity) {
+        this.delegate = delegate;
+        this.buffer = new ArrayBlockingQueue<Record>(capacity);
+    }
+
+    @Override
+    public void setLogging(boolean logging) {
+        delegate.setLogging(logging);
+    }
+
+    @Override
+    public void setLevel(Level level) {
+        delegate.setLevel(level);
+    }
+
+    @Override
+    public Level getLevel() {
+        return delegate.getLevel();
+    }
+
+    @Override
+    public boolean isEnabled(Level level) {
+        return delegate.isEnabled(level);
+    }
+
+    @Override
+    public void logDebug(String format, Object... args) {
+        enqueue(Level.DEBUG, format, args);
+    }
+
+    @Override
+    public void logInfo(String format, Object... args) {
+        enqueue(Level.INFO, format, args);
+    }
+
+    @Override
+    public void logWarning(String format, Object... args) {
+        enqueue(Level.WARNING, format, args);
+    }
+
+    @Override
+    public void logError(String format, Object... args) {
+        enqueue(Level.ERROR, format, args);
+    }
+
+    /**
+     * the number of messages dropped because the buffer was full
+     * @return the count
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * wait for the messages logged so far to be written
+     * @param timeoutMillis the longest to wait
+     * @return true if everything was written in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized(pending) {
+            long remaining = timeoutMillis;
+            while(pending.get() > 0 && remaining > 0) {
+                pending.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return pending.get() == 0;
+        }
+    }
+
+    private void enqueue(Level level, String format, Object[] args) {
+        if(!delegate.isEnabled(level)) return;
+        if(writer == null) startWriter();
+        pending.incrementAndGet();
+        if(!buffer.offer(new Record(level, format, args))) {
+            finished();
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void finished() {
+        if(pending.decrementAndGet() == 0) {
+            synchronized(pending) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+    private synchronized void startWriter() {
+        if(writer != null) return;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(true) {
+                    Record record;
+                    try {
+                        record = buffer.take();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        delegate.log(record.level, record.format, record.args);
+                    } catch(Throwable ignore) {
+                        // a bad format shouldn't stop everything after it from being logged
+                    } finally {
+                        finished();
+                    }
+                }
+            }
+        }, "StackMob logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+}
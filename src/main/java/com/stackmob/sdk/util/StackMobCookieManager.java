@@ -24,20 +24,135 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Used internally by the sdk to manage OAuth1 cookies.
+ * Used internally by the sdk to manage OAuth1 cookies. The Cookie header goes on every request, so it's built once
+ * and kept until a cookie changes or the first of them expires.
  */
 public class StackMobCookieManager {
 
     protected static final String SetCookieHeaderKey = "Set-Cookie";
     protected static final String EXPIRES = "Expires";
+    protected static final String MAX_AGE = "Max-Age";
     protected static final String SESSION_PREFIX = "session_";
 
-    protected final ConcurrentHashMap<String, Map.Entry<String, Date>> cookies = new ConcurrentHashMap<String, Map.Entry<String, Date>>();
+    // Netscape style first, since that's what StackMob sends, then RFC 1123
+    private static final String[] EXPIRES_FORMATS = {"EEE, dd-MMM-yyyy HH:mm:ss z", "EEE, dd MMM yyyy HH:mm:ss z"};
 
+    private static final ThreadLocal<DateFormat[]> expiresParsers = new ThreadLocal<DateFormat[]>() {
+        @Override
+        protected DateFormat[] initialValue() {
+            DateFormat[] parsers = new DateFormat[EXPIRES_FORMATS.length];
+            for(int i = 0; i < parsers.length; i++) {
+                parsers[i] = new SimpleDateFormat(EXPIRES_FORMATS[i], Locale.US);
+                parsers[i].setTimeZone(TimeZone.getTimeZone("GMT"));
+            }
+            return parsers;
+        }
+    };
+
+    /**
+     * A built Cookie header and the time it stops being right
+     */
+    private static class Snapshot {
+        final String header;
+        final long validUntil;
+
+        Snapshot(String header, long validUntil) {
+            this.header = header;
+            this.validUntil = validUntil;
+        }
+    }
+
+    /**
+     * Throws away the cached header whenever a cookie is added, changed or removed
+     */
+    private class CookieMap extends ConcurrentHashMap<String, Map.Entry<String, Date>> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Map.Entry<String, Date> put(String key, Map.Entry<String, Date> value) {
+            try {
+                return super.put(key, value);
+            } finally {
+                invalidate();
+            }
+        }
+
+        @Override
+        public Map.Entry<String, Date> putIfAbsent(String key, Map.Entry<String, Date> value) {
+            try {
+                return super.putIfAbsent(key, value);
+            } finally {
+                invalidate();
+            }
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ? extends Map.Entry<String, Date>> m) {
+            try {
+                super.putAll(m);
+            } finally {
+                invalidate();
+            }
+        }
+
+        @Override
+        public Map.Entry<String, Date> remove(Object key) {
+            try {
+                return super.remove(key);
+            } finally {
+                invalidate();
+            }
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            try {
+                return super.remove(key, value);
+            } finally {
+                invalidate();
+            }
+        }
+
+        @Override
+        public Map.Entry<String, Date> replace(String key, Map.Entry<String, Date> value) {
+            try {
+                return super.replace(key, value);
+            } finally {
+                invalidate();
+            }
+        }
+
+        @Override
+        public boolean replace(String key, Map.Entry<String, Date> oldValue, Map.Entry<String, Date> newValue) {
+            try {
+                return super.replace(key, oldValue, newValue);
+            } finally {
+                invalidate();
+            }
+        }
+
+        @Override
+        public void clear() {
+            try {
+                super.clear();
+            } finally {
+                invalidate();
+            }
+        }
+    }
+
+    protected final ConcurrentHashMap<String, Map.Entry<String, Date>> cookies = new CookieMap();
+
+    // a fresh stale snapshot replaces the header on every change, so a rebuild that raced with the change can't be
+    // published over it
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot("", 0));
 
     public Map<String, Map.Entry<String, Date>> getCookies() {
         return cookies;
@@ -51,7 +166,11 @@ public class StackMobCookieManager {
     }
 
     public void storeCookies(Response resp) {
-        storeCookie(resp.getHeaders().get(SetCookieHeaderKey));
+        storeCookies(resp.getHeaders());
+    }
+
+    public void storeCookies(Map<String, String> responseHeaders) {
+        storeCookie(responseHeaders.get(SetCookieHeaderKey));
     }
     
     protected void storeCookie(String cookieString) {
@@ -62,37 +181,63 @@ public class StackMobCookieManager {
         if(cookieString != null) {
             String session = null;
             String expires = null;
+            String maxAge = null;
             for(String cookie : cookieString.split(";")) {
+                cookie = cookie.trim();
                 if(cookie.startsWith(SESSION_PREFIX)) session = cookie;
-                if(cookie.startsWith(EXPIRES)) expires = cookie;
+                if(cookie.regionMatches(true, 0, EXPIRES + "=", 0, EXPIRES.length() + 1)) expires = cookie.substring(EXPIRES.length() + 1);
+                if(cookie.regionMatches(true, 0, MAX_AGE + "=", 0, MAX_AGE.length() + 1)) maxAge = cookie.substring(MAX_AGE.length() + 1);
             }
             if(session != null) {
-                String[] sessionSplit = session.split("=");
+                // values such as base64 can contain '=', so only split on the first
+                String[] sessionSplit = session.split("=", 2);
                 if(sessionSplit.length == 2) {
-                    Date expiryDate = null;
-                    if(expires != null) {
-                        String[] expiresSplit = expires.split("=");
-                        if(expiresSplit.length == 2) {
-                            try {
-                                expiryDate = new SimpleDateFormat("EEE, dd-MMM-yyyy hh:mm:ss z").parse(expiresSplit[1]);
-                            } catch (ParseException e) {
-                                //do nothing
-                            }
-                        }
-                    }
+                    Date expiryDate = maxAge != null ? parseMaxAge(maxAge) : null;
+                    if(expiryDate == null && expires != null) expiryDate = parseExpires(expires);
                     map.put(sessionSplit[0], new Pair<String, Date>(sessionSplit[1], expiryDate));
                 }
             }
         }
     }
+
+    /**
+     * parse the date in an Expires attribute, reusing this thread's parsers
+     * @param expires the attribute's value
+     * @return the date, or null if it isn't in a format StackMob uses
+     */
+    protected static Date parseExpires(String expires) {
+        for(DateFormat parser : expiresParsers.get()) {
+            try {
+                return parser.parse(expires.trim());
+            } catch (ParseException e) {
+                //try the next format
+            }
+        }
+        return null;
+    }
+
+    private static Date parseMaxAge(String maxAge) {
+        try {
+            return new Date(System.currentTimeMillis() + Long.parseLong(maxAge.trim()) * 1000);
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
     
     protected String cookieMapToHeaderString(Map<String,Map.Entry<String,Date>> map) {
+        return buildSnapshot(map, System.currentTimeMillis()).header;
+    }
+
+    private static Snapshot buildSnapshot(Map<String,Map.Entry<String,Date>> map, long now) {
         //build cookie header
         StringBuilder cookieBuilder = new StringBuilder();
+        long validUntil = Long.MAX_VALUE;
         boolean first = true;
-        for(Map.Entry<String, Map.Entry<String, Date>> c : cookies.entrySet()) {
+        for(Map.Entry<String, Map.Entry<String, Date>> c : map.entrySet()) {
             //only use unexpired cookies
-            if (isUnexpired(c.getValue())) {
+            Date expires = c.getValue().getValue();
+            if(expires == null || expires.getTime() > now) {
+                if(expires != null) validUntil = Math.min(validUntil, expires.getTime());
                 if(!first) {
                     cookieBuilder.append("; ");
                 }
@@ -100,20 +245,40 @@ public class StackMobCookieManager {
                 cookieBuilder.append(c.getKey()).append("=").append(c.getValue().getKey());
             }
         }
-        return cookieBuilder.toString();
+        return new Snapshot(cookieBuilder.toString(), validUntil);
     }
 
-    private boolean isUnexpired(Map.Entry<String, Date> values) {
-        Date expires = values.getValue();
-        return expires == null || new Date().compareTo(expires) == 1;
+    private void invalidate() {
+        snapshot.set(new Snapshot("", 0));
     }
 
     public void clear() {
         cookies.clear();
     }
 
+    /**
+     * get the value of the Cookie header, leaving out expired cookies
+     * @return the header value, which is empty if there are no cookies
+     */
     public String cookieHeader() {
-        return cookieMapToHeaderString(cookies);
+        Snapshot current = snapshot.get();
+        if(current.validUntil == Long.MAX_VALUE) return current.header;
+        return cookieHeader(current, System.currentTimeMillis());
+    }
+
+    /**
+     * get the value of the Cookie header as of a given time, so tests can check expiry without waiting
+     * @param now the time in milliseconds
+     * @return the header value, which is empty if there are no cookies
+     */
+    String cookieHeader(long now) {
+        return cookieHeader(snapshot.get(), now);
     }
-}
 
+    private String cookieHeader(Snapshot current, long now) {
+        if(now < current.validUntil) return current.header;
+        Snapshot built = buildSnapshot(cookies, now);
+        snapshot.compareAndSet(current, built);
+        return built.header;
+    }
+}
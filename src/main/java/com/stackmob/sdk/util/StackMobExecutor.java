@@ -0,0 +1,165 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool that runs requests and callbacks, and reports how busy it is. Create these through
+ * {@link com.stackmob.sdk.api.StackMobExecutionPolicy}.
+ */
+public class StackMobExecutor extends ThreadPoolExecutor {
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+    // set while tryExecute is running, so a saturated executor turns work away instead of applying its strategy
+    private final ThreadLocal<Boolean> noFallback = new ThreadLocal<Boolean>();
+    // where new work goes once this executor has been replaced
+    private volatile ExecutorService successor;
+
+    public StackMobExecutor(int maxThreads, long keepAliveMillis, BlockingQueue<Runnable> queue, RejectedExecutionHandler rejectionHandler) {
+        this(maxThreads, keepAliveMillis, queue, rejectionHandler, false);
+    }
+
+    /**
+     * create an executor on platform threads
+     * @param daemonThreads whether the threads are daemon threads, which don't keep the JVM running while requests
+     *                      are in progress
+     */
+    public StackMobExecutor(int maxThreads, long keepAliveMillis, BlockingQueue<Runnable> queue, RejectedExecutionHandler rejectionHandler, final boolean daemonThreads) {
+        this(maxThreads, keepAliveMillis, queue, rejectionHandler, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "StackMob worker " + count.incrementAndGet());
+                thread.setDaemon(daemonThreads);
+                return thread;
+            }
+        });
+    }
+
+    public StackMobExecutor(int maxThreads, long keepAliveMillis, BlockingQueue<Runnable> queue, final RejectedExecutionHandler rejectionHandler, ThreadFactory threadFactory) {
+        super(maxThreads, maxThreads, keepAliveMillis, TimeUnit.MILLISECONDS, queue, threadFactory);
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if(noFallback.get() != null) throw new RejectedExecutionException("The executor is saturated");
+                try {
+                    rejectionHandler.rejectedExecution(r, executor);
+                } catch(RejectedExecutionException e) {
+                    rejectedCount.incrementAndGet();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * run a task if there's a free thread or room in the queue, without falling back to the rejection strategy. This
+     * is for threads that must never block or run the work themselves, such as a transport's I/O threads
+     * @param task the task to run
+     * @return false if the executor is saturated or shut down and the task wasn't accepted
+     */
+    public boolean tryExecute(Runnable task) {
+        if(successor == null) {
+            noFallback.set(Boolean.TRUE);
+            try {
+                super.execute(task);
+                return true;
+            } catch(RejectedExecutionException e) {
+                if(successor == null) return false;
+            } finally {
+                noFallback.remove();
+            }
+        }
+        return tryExecute(successor, task);
+    }
+
+    private static boolean tryExecute(ExecutorService executor, Runnable task) {
+        if(executor instanceof StackMobExecutor) return ((StackMobExecutor) executor).tryExecute(task);
+        try {
+            executor.execute(task);
+            return true;
+        } catch(RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if(successor == null) {
+            try {
+                super.execute(task);
+                return;
+            } catch(RejectedExecutionException e) {
+                // retired while the task was being handed over
+                if(successor == null) throw e;
+            }
+        }
+        successor.execute(task);
+    }
+
+    /**
+     * hand over to another executor. Tasks already running or queued here still run, and then this executor shuts
+     * down. Anything submitted from now on, such as the retries and redirects of requests already in progress, goes
+     * to the successor
+     * @param successor the executor taking over
+     */
+    public void retire(ExecutorService successor) {
+        this.successor = successor;
+        shutdown();
+    }
+
+    /**
+     * shut down an executor that has been replaced. A StackMobExecutor is retired in favour of its successor, and
+     * any other executor is just shut down
+     * @param replaced the executor being replaced
+     * @param successor the executor replacing it
+     */
+    public static void replace(ExecutorService replaced, ExecutorService successor) {
+        if(replaced instanceof StackMobExecutor) {
+            ((StackMobExecutor) replaced).retire(successor);
+        } else {
+            replaced.shutdown();
+        }
+    }
+
+    /**
+     * the number of tasks waiting for a thread
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * the total number of tasks that were turned away because the executor was saturated or shut down
+     * @return the rejected count
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
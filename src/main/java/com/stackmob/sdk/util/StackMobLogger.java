@@ -21,11 +21,33 @@ import java.io.StringWriter;
 /**
  * Logs messages to System.out. When set in {@link com.stackmob.sdk.api.StackMob#setLogger(StackMobLogger)}, this class will be used
  * to log helpful messages. It does nothing unless enabled with {@link #setLogging(boolean)}. This class can be
- * overridden on platforms to log to the appropriate location
+ * overridden on platforms to log to the appropriate location. Messages that are expensive to build should be guarded
+ * with {@link #isEnabled(Level)} or passed as a {@link Message}, so they cost nothing when logging is off. Wrap a
+ * logger in a {@link StackMobAsyncLogger} to write messages from a background thread
  */
 public class StackMobLogger {
-    
-    private boolean enableLogging = false;
+
+    /**
+     * How important a message is
+     */
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARNING,
+        ERROR
+    }
+
+    /**
+     * A message that is only built if it's going to be logged
+     */
+    public interface Message {
+        String get();
+    }
+
+    private volatile boolean enableLogging = false;
+    private volatile Level minimumLevel = Level.DEBUG;
+    // subclasses written before isEnabled existed decide what to log in their own log methods
+    private final boolean decidesInLogMethods = overridesLogMethodsOnly(getClass());
 
     /**
      * enables or diables actual logging. By default it is disabled.
@@ -35,6 +57,69 @@ public class StackMobLogger {
         enableLogging = logging;
     }
 
+    /**
+     * only log messages at least this important. By default everything is logged once logging is enabled
+     * @param level the least important level to log
+     */
+    public void setLevel(Level level) {
+        minimumLevel = level;
+    }
+
+    public Level getLevel() {
+        return minimumLevel;
+    }
+
+    /**
+     * whether messages at a level will be logged. Override this along with the log methods to send messages
+     * somewhere else. Subclasses that override the log methods or {@link #setLogging(boolean)} but not this are
+     * always considered enabled, so their log methods are still called and can decide for themselves
+     * @param level the level
+     * @return true if messages at the level are logged
+     */
+    public boolean isEnabled(Level level) {
+        if(level.compareTo(minimumLevel) < 0) return false;
+        return enableLogging || decidesInLogMethods;
+    }
+
+    private boolean printing(Level level) {
+        return enableLogging && level.compareTo(minimumLevel) >= 0;
+    }
+
+    private static boolean overridesLogMethodsOnly(Class<?> type) {
+        if(type == StackMobLogger.class) return false;
+        try {
+            if(type.getMethod("isEnabled", Level.class).getDeclaringClass() != StackMobLogger.class) return false;
+            if(type.getMethod("setLogging", boolean.class).getDeclaringClass() != StackMobLogger.class) return true;
+            for(String name : new String[] { "logDebug", "logInfo", "logWarning", "logError" }) {
+                if(type.getMethod(name, String.class, Object[].class).getDeclaringClass() != StackMobLogger.class) return true;
+            }
+        } catch(NoSuchMethodException ignore) { }
+        return false;
+    }
+
+    /**
+     * log a message at a level
+     * @param level the priority
+     * @param format the format
+     * @param args arguments for the format
+     */
+    public void log(Level level, String format, Object... args) {
+        switch(level) {
+            case DEBUG: logDebug(format, args); break;
+            case INFO: logInfo(format, args); break;
+            case WARNING: logWarning(format, args); break;
+            case ERROR: logError(format, args); break;
+        }
+    }
+
+    /**
+     * log a message at a level, building it only if the level is enabled
+     * @param level the priority
+     * @param message builds the message
+     */
+    public void log(Level level, Message message) {
+        if(isEnabled(level)) log(level, "%s", message.get());
+    }
 
     /**
      * log a message with debug priority
@@ -42,7 +127,7 @@ public class StackMobLogger {
      * @param args arguments for the format
      */
     public void logDebug(String format, Object... args) {
-        if(enableLogging) System.out.println(String.format(format, args));
+        if(printing(Level.DEBUG)) System.out.println(String.format(format, args));
     }
 
     /**
@@ -51,7 +136,7 @@ public class StackMobLogger {
      * @param args arguments for the format
      */
     public void logInfo(String format, Object... args) {
-        if(enableLogging) System.out.println(String.format(format, args));
+        if(printing(Level.INFO)) System.out.println(String.format(format, args));
     }
 
     /**
@@ -60,7 +145,7 @@ public class StackMobLogger {
      * @param args arguments for the format
      */
     public void logWarning(String format, Object... args) {
-        if(enableLogging) System.out.println(String.format(format, args));
+        if(printing(Level.WARNING)) System.out.println(String.format(format, args));
     }
 
     /**
@@ -69,7 +154,7 @@ public class StackMobLogger {
      * @param args arguments for the format
      */
     public void logError(String format, Object... args) {
-        if(enableLogging) System.err.println(String.format(format, args));
+        if(printing(Level.ERROR)) System.err.println(String.format(format, args));
     }
 
     /**
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Signs OAuth2 requests with an HMAC-SHA1 MAC token. Signing happens on every OAuth2 request, so each thread keeps an
+ * initialized Mac and its buffers and reuses them, and the key and header prefix are prepared once per login. This
+ * class is only meant to be used inside the sdk
+ */
+public class StackMobMacSigner {
+
+    private static final String SIGNATURE_ALGORITHM = "HmacSHA1";
+    private static final int MAC_LENGTH = 20;
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * Everything a thread needs to sign, reused from one request to the next
+     */
+    private static class State {
+        final Mac mac;
+        final Random random = new Random();
+        final StringBuilder builder = new StringBuilder(160);
+        final byte[] macBytes = new byte[MAC_LENGTH];
+        byte[] buffer = new byte[256];
+        SecretKeySpec initializedWith;
+
+        State() throws NoSuchAlgorithmException {
+            mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+        }
+    }
+
+    private static final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            try {
+                return new State();
+            } catch(NoSuchAlgorithmException e) {
+                throw new IllegalStateException("This device doesn't have SHA1");
+            }
+        }
+    };
+
+    private final SecretKeySpec key;
+    private final String prefix;
+
+    /**
+     * create a signer for one login
+     * @param token the OAuth2 access token
+     * @param macKey the MAC key that came with it
+     */
+    public StackMobMacSigner(String token, String macKey) {
+        this.key = new SecretKeySpec(macKey.getBytes(), SIGNATURE_ALGORITHM);
+        this.prefix = "MAC id=\"" + token + "\",ts=\"";
+    }
+
+    /**
+     * sign a request
+     * @param method the HTTP verb
+     * @param uri the path and query of the request
+     * @param host the host the request goes to
+     * @param port the port the request goes to
+     * @return the value of the Authorization header
+     */
+    public String sign(String method, String uri, String host, String port) {
+        return sign(System.currentTimeMillis() / 1000, method, uri, host, port);
+    }
+
+    /**
+     * sign a request made at a given time
+     * @param timestamp the time of the request in seconds
+     * @param method the HTTP verb
+     * @param uri the path and query of the request
+     * @param host the host the request goes to
+     * @param port the port the request goes to
+     * @return the value of the Authorization header
+     */
+    public String sign(long timestamp, String method, String uri, String host, String port) {
+        State state = states.get();
+        if(state.initializedWith != key) {
+            try {
+                state.mac.init(key);
+            } catch(InvalidKeyException ike) {
+                throw new IllegalStateException(ike);
+            }
+            state.initializedWith = key;
+        }
+
+        StringBuilder builder = state.builder;
+        builder.setLength(0);
+        builder.append(timestamp).append('\n');
+        int nonceStart = builder.length();
+        builder.append('n').append(Long.toString(state.random.nextLong() & Long.MAX_VALUE, 36));
+        int nonceEnd = builder.length();
+        builder.append('\n').append(method).append('\n').append(uri).append('\n').append(host).append('\n').append(port).append("\n\n");
+        updateMac(state, builder);
+        try {
+            state.mac.doFinal(state.macBytes, 0);
+        } catch(ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // the base string is no longer needed, so the header is built after it in the same builder
+        int baseLength = builder.length();
+        builder.append(prefix).append(timestamp).append("\",nonce=\"").append(builder, nonceStart, nonceEnd).append("\",mac=\"");
+        appendBase64(builder, state.macBytes);
+        builder.append('"');
+        return builder.substring(baseLength);
+    }
+
+    /**
+     * feed the base string to the Mac, as ASCII when it can be, without making a new String or byte array
+     */
+    private static void updateMac(State state, StringBuilder builder) {
+        int length = builder.length();
+        if(state.buffer.length < length) state.buffer = new byte[Math.max(length, state.buffer.length * 2)];
+        byte[] buffer = state.buffer;
+        for(int i = 0; i < length; i++) {
+            char c = builder.charAt(i);
+            if(c >= 0x80) {
+                // a URI should already be encoded, but fall back to what the platform would have done
+                state.mac.update(builder.toString().getBytes());
+                return;
+            }
+            buffer[i] = (byte) c;
+        }
+        state.mac.update(buffer, 0, length);
+    }
+
+    private static void appendBase64(StringBuilder builder, byte[] bytes) {
+        int i = 0;
+        for(; i + 2 < bytes.length; i += 3) {
+            int n = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            builder.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 0x3f]).append(BASE64[(n >>> 6) & 0x3f]).append(BASE64[n & 0x3f]);
+        }
+        int remaining = bytes.length - i;
+        if(remaining == 1) {
+            int n = (bytes[i] & 0xff) << 16;
+            builder.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 0x3f]).append("==");
+        } else if(remaining == 2) {
+            int n = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8;
+            builder.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 0x3f]).append(BASE64[(n >>> 6) & 0x3f]).append('=');
+        }
+    }
+}
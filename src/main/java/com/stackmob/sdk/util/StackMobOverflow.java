@@ -0,0 +1,83 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where work goes when it has to run somewhere but the request executor is saturated and the current thread can't
+ * take it, such as the response to a request the server has already acted on arriving on an I/O thread. Tasks run
+ * one at a time on a single daemon thread, and at most {@value #QUEUE_SIZE} can wait, so this only absorbs bursts;
+ * it isn't a second pool. Work beyond that is rejected with a {@link java.util.concurrent.RejectedExecutionException}.
+ */
+public class StackMobOverflow {
+
+    public static final int QUEUE_SIZE = 1024;
+
+    private static ExecutorService overflow;
+
+    private StackMobOverflow() { }
+
+    /**
+     * get the shared overflow executor, creating it the first time it's needed
+     * @return the overflow executor
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if(overflow == null) {
+            overflow = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "StackMob overflow");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.AbortPolicy());
+        }
+        return overflow;
+    }
+
+    /**
+     * hand a task to an executor without blocking or running it on the current thread, whatever the executor's
+     * rejection strategy. If a {@link StackMobExecutor} is saturated the task goes to the overflow thread instead;
+     * other executors are given the task as usual, and their rejection strategy applies
+     * @param executor the executor to run the task on
+     * @param task the task to run
+     * @return true if the executor took the task, false if it went to the overflow thread
+     * @throws RejectedExecutionException if the overflow thread's queue is full too
+     */
+    public static boolean handOff(ExecutorService executor, Runnable task) {
+        boolean accepted;
+        if(executor instanceof StackMobExecutor) {
+            accepted = ((StackMobExecutor) executor).tryExecute(task);
+        } else {
+            try {
+                executor.execute(task);
+                accepted = true;
+            } catch(RejectedExecutionException e) {
+                accepted = false;
+            }
+        }
+        if(!accepted) getExecutor().execute(task);
+        return accepted;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Parses response JSON and adds up how long it took on each thread, so the time a callback spends parsing can be
+ * reported apart from the rest of the callback. This class is only meant to be used inside the sdk
+ */
+public class StackMobParseTimer {
+
+    private static final ThreadLocal<long[]> elapsed = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * parse JSON, counting the time against the current thread
+     * @param json the JSON to parse
+     * @return the parsed element
+     */
+    public static JsonElement parse(String json) {
+        long start = System.nanoTime();
+        try {
+            return new JsonParser().parse(json);
+        } finally {
+            elapsed.get()[0] += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * start counting from zero on the current thread
+     */
+    public static void reset() {
+        elapsed.get()[0] = 0;
+    }
+
+    /**
+     * how long the current thread has spent parsing since {@link #reset()}
+     * @return the time in nanoseconds
+     */
+    public static long getElapsedNanos() {
+        return elapsed.get()[0];
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.StackMobExecutor;
+import com.stackmob.sdk.util.StackMobScheduler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobBackoffPolicyTests extends StackMobTestCommon {
+
+    private static final StackMobRedirectedCallback redirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+    };
+
+    private HttpServer server;
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    @After
+    public void stopServer() {
+        if(server != null) server.stop(0);
+    }
+
+    // the first request to /busy gets a 503 asking for a retry in a second
+    private void startServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int count = requestCount.incrementAndGet();
+                boolean busy = exchange.getRequestURI().getPath().endsWith("busy") && count == 1;
+                byte[] response = ("{\"request\":" + count + "}").getBytes("UTF-8");
+                if(busy) exchange.getResponseHeaders().add("Retry-After", "1");
+                exchange.sendResponseHeaders(busy ? 503 : 200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    private static class Result extends StackMobCallback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> body = new AtomicReference<String>();
+        volatile long finishedAt;
+
+        @Override
+        public void success(String responseBody) {
+            body.set(responseBody);
+            finishedAt = System.currentTimeMillis();
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            body.set("failed: " + e.getMessage());
+            finishedAt = System.currentTimeMillis();
+            latch.countDown();
+        }
+    }
+
+    private StackMobDatastore datastore(ExecutorService executor, StackMobBackoffPolicy policy, int port) {
+        StackMobSession session = new StackMobSession(stackmob.getSession());
+        session.setBackoffPolicy(policy);
+        return new StackMobDatastore(executor, session, "127.0.0.1:" + port, redirectedCallback);
+    }
+
+    @Test public void retryAfterDoesNotHoldAWorker() throws Exception {
+        startServer(0);
+        // a single worker, which a sleeping retry would tie up for the whole second
+        StackMobDatastore datastore = datastore(Executors.newSingleThreadExecutor(), StackMobBackoffPolicy.standard(), server.getAddress().getPort());
+        Result busy = new Result();
+        datastore.get("busy", StackMobOptions.https(false), busy);
+        Thread.sleep(200);
+        Result other = new Result();
+        datastore.get("other", StackMobOptions.https(false), other);
+        assertTrue(other.latch.await(5, TimeUnit.SECONDS));
+        assertTrue(busy.latch.await(5, TimeUnit.SECONDS));
+        assertEquals("{\"request\":3}", busy.body.get());
+        assertTrue(other.finishedAt < busy.finishedAt);
+    }
+
+    @Test public void connectionFailuresAreRetried() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        StackMobDatastore datastore = datastore(Executors.newCachedThreadPool(), StackMobBackoffPolicy.exponential(300, 300).withConnectionFailureRetries(true), port);
+        Result result = new Result();
+        datastore.get("thing", StackMobOptions.https(false), result);
+        Thread.sleep(100);
+        startServer(port);
+        assertTrue(result.latch.await(5, TimeUnit.SECONDS));
+        assertEquals("{\"request\":1}", result.body.get());
+    }
+
+    @Test public void connectionFailuresAreReportedImmediatelyByDefault() throws Exception {
+        for(StackMobBackoffPolicy policy : new StackMobBackoffPolicy[] { StackMobBackoffPolicy.standard(), StackMobBackoffPolicy.none() }) {
+            ServerSocket socket = new ServerSocket(0);
+            int port = socket.getLocalPort();
+            socket.close();
+            StackMobDatastore datastore = datastore(Executors.newCachedThreadPool(), policy, port);
+            Result result = new Result();
+            datastore.get("thing", StackMobOptions.https(false), result);
+            assertTrue(result.latch.await(2, TimeUnit.SECONDS));
+            assertTrue(result.body.get().startsWith("failed"));
+        }
+    }
+
+    @Test public void retriesDoNotHoldTheSchedulerOnASaturatedExecutor() throws Exception {
+        // the first request to each path gets a 503 asking for a retry in a second, and the retry is answered slowly
+        final Map<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                counts.putIfAbsent(path, new AtomicInteger());
+                boolean first = counts.get(path).incrementAndGet() == 1;
+                if(!first) {
+                    try {
+                        Thread.sleep(2000);
+                    } catch(InterruptedException ignore) { }
+                }
+                byte[] response = "{}".getBytes("UTF-8");
+                if(first) exchange.getResponseHeaders().add("Retry-After", "1");
+                exchange.sendResponseHeaders(first ? 503 : 200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        StackMobExecutionPolicy.RejectionStrategy[] strategies = { StackMobExecutionPolicy.RejectionStrategy.BLOCK, StackMobExecutionPolicy.RejectionStrategy.CALLER_RUNS };
+        for(StackMobExecutionPolicy.RejectionStrategy strategy : strategies) {
+            StackMobExecutor executor = StackMobExecutionPolicy.standard().withMaxThreads(1).withQueueSize(0).withRejectionStrategy(strategy).createExecutor();
+            StackMobDatastore datastore = datastore(executor, StackMobBackoffPolicy.standard(), server.getAddress().getPort());
+            final CountDownLatch retryScheduled = new CountDownLatch(1);
+            final Result retried = new Result() {
+                @Override
+                public boolean retry(int afterMilliseconds) {
+                    retryScheduled.countDown();
+                    return super.retry(afterMilliseconds);
+                }
+            };
+            datastore.get("retried-" + strategy, StackMobOptions.https(false), retried);
+            assertTrue(retryScheduled.await(5, TimeUnit.SECONDS));
+
+            // tie up the only worker, so the retry finds the executor saturated
+            final CountDownLatch release = new CountDownLatch(1);
+            Runnable blocker = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch(InterruptedException ignore) { }
+                }
+            };
+            while(!executor.tryExecute(blocker)) Thread.sleep(10);
+            final CountDownLatch fired = new CountDownLatch(1);
+            final AtomicBoolean retryFinishedFirst = new AtomicBoolean();
+            StackMobScheduler.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retryFinishedFirst.set(retried.latch.getCount() == 0);
+                    fired.countDown();
+                }
+            }, 1500, TimeUnit.MILLISECONDS);
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+            assertFalse(retryFinishedFirst.get());
+
+            release.countDown();
+            assertTrue(retried.latch.await(5, TimeUnit.SECONDS));
+            assertEquals("{}", retried.body.get());
+            executor.shutdown();
+        }
+    }
+
+    @Test public void delaysGrowAndStop() {
+        StackMobBackoffPolicy exponential = StackMobBackoffPolicy.exponential(100, 1000).withMaxElapsed(2000);
+        assertEquals(100, exponential.getRetryDelayMillis(1, 0, -1, 0));
+        assertEquals(400, exponential.getRetryDelayMillis(3, 200, -1, 300));
+        assertEquals(1000, exponential.getRetryDelayMillis(10, 800, -1, 700));
+        assertEquals(StackMobBackoffPolicy.STOP, exponential.getRetryDelayMillis(10, 1000, -1, 1500));
+        assertEquals(1500, exponential.getRetryDelayMillis(1, 0, 1500, 0));
+
+        StackMobBackoffPolicy jitter = StackMobBackoffPolicy.decorrelatedJitter(100, 1000);
+        long previous = 0;
+        for(int i = 1; i <= 50; i++) {
+            long delay = jitter.getDelayMillis(i, previous);
+            assertTrue(delay >= 100 && delay <= Math.max(100, Math.min(1000, previous * 3)));
+            previous = delay;
+        }
+        assertEquals(StackMobBackoffPolicy.STOP, StackMobBackoffPolicy.none().getRetryDelayMillis(1, 0, 1000, 0));
+    }
+}
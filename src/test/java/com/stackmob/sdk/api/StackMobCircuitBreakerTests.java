@@ -0,0 +1,146 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobCircuitOpenException;
+import com.stackmob.sdk.exception.StackMobException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobCircuitBreakerTests extends StackMobTestCommon {
+
+    private HttpServer server;
+    private String host;
+    private StackMobDatastore datastore;
+    private StackMobCircuitBreaker breaker;
+    private final AtomicBoolean serverDown = new AtomicBoolean(true);
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requestCount.incrementAndGet();
+                byte[] response = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(serverDown.get() ? 503 : 200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        host = "127.0.0.1:" + server.getAddress().getPort();
+        breaker = new StackMobCircuitBreaker().withMinimumRequests(4).withWindowSize(4).withOpenDuration(300).withTrialRequests(2);
+        StackMobSession session = new StackMobSession(stackmob.getSession());
+        session.setCircuitBreaker(breaker);
+        datastore = new StackMobDatastore(Executors.newCachedThreadPool(), session, host, new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private StackMobException get() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<StackMobException> error = new AtomicReference<StackMobException>();
+        datastore.get("thing", StackMobOptions.https(false), new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                error.set(e);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return error.get();
+    }
+
+    @Test public void opensAfterFailuresAndFailsFast() throws Exception {
+        for(int i = 0; i < 4; i++) assertNotNull(get());
+        assertEquals(StackMobCircuitBreaker.State.OPEN, breaker.getState("http://" + host));
+        StackMobException e = get();
+        assertTrue(e instanceof StackMobCircuitOpenException);
+        assertEquals("http://" + host, ((StackMobCircuitOpenException) e).getHost());
+        assertEquals(4, requestCount.get());
+    }
+
+    @Test public void closesAfterSuccessfulTrials() throws Exception {
+        for(int i = 0; i < 4; i++) get();
+        serverDown.set(false);
+        Thread.sleep(350);
+        assertNull(get());
+        assertEquals(StackMobCircuitBreaker.State.HALF_OPEN, breaker.getState("http://" + host));
+        assertNull(get());
+        assertEquals(StackMobCircuitBreaker.State.CLOSED, breaker.getState("http://" + host));
+        assertEquals(6, requestCount.get());
+    }
+
+    @Test public void reopensWhenATrialFails() throws Exception {
+        for(int i = 0; i < 4; i++) get();
+        Thread.sleep(350);
+        assertFalse(get() instanceof StackMobCircuitOpenException);
+        assertEquals(StackMobCircuitBreaker.State.OPEN, breaker.getState("http://" + host));
+        assertTrue(get() instanceof StackMobCircuitOpenException);
+        assertEquals(5, requestCount.get());
+    }
+
+    @Test public void slowRequestsOpenTheCircuit() {
+        StackMobCircuitBreaker slowBreaker = new StackMobCircuitBreaker().withMinimumRequests(2).withSlowRequestThreshold(100).withSlowRequestRateThreshold(0.5);
+        slowBreaker.record("https://api.stackmob.com", true, 10);
+        slowBreaker.record("https://api.stackmob.com", true, 500);
+        assertEquals(StackMobCircuitBreaker.State.OPEN, slowBreaker.getState("https://api.stackmob.com"));
+        assertEquals(StackMobCircuitBreaker.State.CLOSED, slowBreaker.getState("https://other.stackmob.com"));
+    }
+
+    @Test public void windowSizeCanChangeAfterUse() {
+        StackMobCircuitBreaker resized = new StackMobCircuitBreaker().withWindowSize(2).withMinimumRequests(4);
+        for(int i = 0; i < 3; i++) resized.record("https://api.stackmob.com", true, 10);
+        resized.withWindowSize(8);
+        for(int i = 0; i < 10; i++) resized.record("https://api.stackmob.com", i % 2 == 0, 10);
+        assertEquals(StackMobCircuitBreaker.State.OPEN, resized.getState("https://api.stackmob.com"));
+    }
+}
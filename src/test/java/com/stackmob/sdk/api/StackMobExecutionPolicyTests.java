@@ -0,0 +1,395 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.api.StackMobExecutionPolicy.RejectionStrategy;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import com.stackmob.sdk.net.StackMobNioTransport;
+import com.stackmob.sdk.net.StackMobPooledTransport;
+import com.stackmob.sdk.request.StackMobRequest;
+import com.stackmob.sdk.request.StackMobRequestWithoutPayload;
+import com.stackmob.sdk.server.StackMobStandInServer;
+import com.stackmob.sdk.util.StackMobExecutor;
+import com.stackmob.sdk.util.StackMobOverflow;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobExecutionPolicyTests extends StackMobTestCommon {
+
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch(InterruptedException ignore) { }
+            }
+        };
+    }
+
+    @Test public void rejectsOnceThreadsAndQueueAreFull() throws Exception {
+        StackMobExecutor executor = StackMobExecutionPolicy.standard().withMaxThreads(2).withQueueSize(3).createExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        for(int i = 0; i < 5; i++) executor.execute(await(release));
+        assertEquals(2, executor.getActiveCount());
+        assertEquals(3, executor.getQueueDepth());
+        try {
+            executor.execute(await(release));
+            fail("the sixth task should have been rejected");
+        } catch(RejectedExecutionException expected) { }
+        assertEquals(1, executor.getRejectedCount());
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test public void callerRunsWhenFull() throws Exception {
+        StackMobExecutor executor = StackMobExecutionPolicy.standard().withMaxThreads(1).withQueueSize(0)
+                .withRejectionStrategy(RejectionStrategy.CALLER_RUNS).createExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(await(release));
+        final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        });
+        assertSame(Thread.currentThread(), ranOn.get());
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test public void blocksUntilThereIsRoom() throws Exception {
+        StackMobExecutor executor = StackMobExecutionPolicy.standard().withMaxThreads(1).withQueueSize(1)
+                .withRejectionStrategy(RejectionStrategy.BLOCK).createExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(await(release));
+        executor.execute(await(release));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch(InterruptedException ignore) { }
+                release.countDown();
+            }
+        }).start();
+        long start = System.currentTimeMillis();
+        executor.execute(await(release));
+        assertTrue(System.currentTimeMillis() - start >= 150);
+        assertEquals(0, executor.getRejectedCount());
+        executor.shutdown();
+    }
+
+    @Test public void tryExecuteNeverRunsOrBlocksOnTheCaller() throws Exception {
+        for(RejectionStrategy strategy : new RejectionStrategy[] { RejectionStrategy.CALLER_RUNS, RejectionStrategy.BLOCK }) {
+            StackMobExecutor executor = StackMobExecutionPolicy.standard().withMaxThreads(1).withQueueSize(0)
+                    .withRejectionStrategy(strategy).createExecutor();
+            CountDownLatch release = new CountDownLatch(1);
+            assertTrue(executor.tryExecute(await(release)));
+            final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+            assertFalse(executor.tryExecute(new Runnable() {
+                @Override
+                public void run() {
+                    ranOn.set(Thread.currentThread());
+                }
+            }));
+            assertNull(ranOn.get());
+            assertEquals(0, executor.getRejectedCount());
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test public void asyncResponsesOverflowWhenTheExecutorIsFull() throws Exception {
+        StackMobStandInServer server = new StackMobStandInServer().start();
+        try {
+            StackMob local = new StackMob(StackMob.OAuthVersion.One, 0, "KEY", "SECRET", server.getHost(), "user", "username", "password", StackMob.DEFAULT_REDIRECTED_CALLBACK);
+            local.getSession().setHTTPSOverride(false);
+            local.getSession().setTransport(new StackMobNioTransport());
+            local.setExecutionPolicy(StackMobExecutionPolicy.standard().withMaxThreads(1).withQueueSize(0)
+                    .withRejectionStrategy(RejectionStrategy.CALLER_RUNS));
+            CountDownLatch release = new CountDownLatch(1);
+            local.getExecutor().execute(await(release));
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<String> handledOn = new AtomicReference<String>();
+            local.getDatastore().post("thing", "{\"name\":\"first\"}", new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    handledOn.set(Thread.currentThread().getName());
+                    latch.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    latch.countDown();
+                }
+            });
+            // the server has the object, so the response is handled rather than reported unsent, and not on the I/O thread
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals("StackMob overflow", handledOn.get());
+            assertEquals(1, server.count("thing"));
+            release.countDown();
+            local.getSession().getTransport().shutdown();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void rejectedRequestsAreReportedAsUnsent() throws Exception {
+        StackMobSession session = new StackMobSession(stackmob.getSession());
+        session.setTransport(new StackMobPooledTransport());
+        StackMobExecutor executor = StackMobExecutionPolicy.standard().createExecutor();
+        executor.shutdown();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<StackMobException> unsent = new AtomicReference<StackMobException>();
+        new StackMobRequestWithoutPayload(executor, session, null, HttpVerbWithoutPayload.GET, StackMobOptions.none(),
+                StackMobRequest.EmptyParams, "rejected", new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                unsent.set(e);
+                latch.countDown();
+            }
+        }, StackMob.DEFAULT_REDIRECTED_CALLBACK).sendRequest();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNotNull(unsent.get());
+        assertEquals(1, executor.getRejectedCount());
+    }
+
+    @Test public void overflowIsBounded() throws Exception {
+        ExecutorService overflow = StackMobOverflow.getExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        overflow.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+            }
+        });
+        overflow.execute(await(release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        try {
+            for(int i = 0; i <= StackMobOverflow.QUEUE_SIZE; i++) overflow.execute(await(release));
+            fail("the overflow queue should have filled up");
+        } catch(RejectedExecutionException expected) {
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test public void blockedCallersGiveUpWhenTheExecutorShutsDown() throws Exception {
+        final StackMobExecutor executor = StackMobExecutionPolicy.standard().withMaxThreads(1).withQueueSize(0)
+                .withRejectionStrategy(RejectionStrategy.BLOCK).createExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(await(release));
+        final AtomicReference<Throwable> outcome = new AtomicReference<Throwable>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() { }
+                    });
+                } catch(Throwable t) {
+                    outcome.set(t);
+                }
+                finished.countDown();
+            }
+        }).start();
+        Thread.sleep(200);
+        assertEquals(1, finished.getCount());
+        executor.shutdown();
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertTrue(outcome.get() instanceof RejectedExecutionException);
+    }
+
+    @Test public void threadsAreNotDaemonsByDefault() throws Exception {
+        for(boolean daemon : new boolean[] { false, true }) {
+            StackMobExecutionPolicy policy = StackMobExecutionPolicy.standard();
+            if(daemon) policy.withDaemonThreads(true);
+            StackMobExecutor executor = policy.createExecutor();
+            final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ranOn.set(Thread.currentThread());
+                }
+            }).get();
+            assertEquals(daemon, ranOn.get().isDaemon());
+            executor.shutdown();
+        }
+    }
+
+    @Test public void replacedExecutorIsShutDown() throws Exception {
+        StackMob local = new StackMob(StackMob.OAuthVersion.One, 0, "KEY", "SECRET", "localhost", "user", "username", "password", StackMob.DEFAULT_REDIRECTED_CALLBACK);
+        ExecutorService original = local.getExecutor();
+        local.setExecutionPolicy(StackMobExecutionPolicy.standard().withMaxThreads(2));
+        assertTrue(original.isShutdown());
+        assertFalse(local.getExecutor().isShutdown());
+        // a copy shares the original's executor, and leaves it running when it gets its own
+        StackMob copy = new StackMob(local);
+        copy.setExecutionPolicy(StackMobExecutionPolicy.standard());
+        assertFalse(local.getExecutor().isShutdown());
+        local.getExecutor().shutdown();
+        copy.getExecutor().shutdown();
+    }
+
+    @Test public void retiredExecutorsHandNewWorkToTheirSuccessor() throws Exception {
+        StackMobExecutor retired = StackMobExecutionPolicy.standard().withMaxThreads(1).createExecutor();
+        StackMobExecutor successor = StackMobExecutionPolicy.standard().createExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        retired.execute(await(release));
+        final AtomicReference<Thread> queuedRanOn = new AtomicReference<Thread>();
+        final CountDownLatch queuedRan = new CountDownLatch(1);
+        retired.execute(new Runnable() {
+            @Override
+            public void run() {
+                queuedRanOn.set(Thread.currentThread());
+                queuedRan.countDown();
+            }
+        });
+        retired.retire(successor);
+        final AtomicReference<Thread> laterRanOn = new AtomicReference<Thread>();
+        retired.submit(new Runnable() {
+            @Override
+            public void run() {
+                laterRanOn.set(Thread.currentThread());
+            }
+        }).get(5, TimeUnit.SECONDS);
+        // the old executor's only thread is still busy, so the successor ran it
+        assertNotNull(laterRanOn.get());
+        // work that was already waiting still runs on the old executor
+        release.countDown();
+        assertTrue(queuedRan.await(5, TimeUnit.SECONDS));
+        assertNotSame(laterRanOn.get(), queuedRanOn.get());
+        assertTrue(retired.awaitTermination(5, TimeUnit.SECONDS));
+        successor.shutdown();
+    }
+
+    @Test public void requestsInProgressSurviveAnExecutorChange() throws Exception {
+        // the first request gets a 503 asking for a retry in a second
+        final AtomicInteger count = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean first = count.incrementAndGet() == 1;
+                byte[] response = "{}".getBytes("UTF-8");
+                if(first) exchange.getResponseHeaders().add("Retry-After", "1");
+                exchange.sendResponseHeaders(first ? 503 : 200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        try {
+            StackMob local = new StackMob(StackMob.OAuthVersion.One, 0, "KEY", "SECRET", "127.0.0.1:" + server.getAddress().getPort(),
+                    "user", "username", "password", StackMob.DEFAULT_REDIRECTED_CALLBACK);
+            local.getSession().setHTTPSOverride(false);
+            local.getSession().setBackoffPolicy(StackMobBackoffPolicy.standard());
+            final CountDownLatch retrying = new CountDownLatch(1);
+            final CountDownLatch finished = new CountDownLatch(1);
+            final AtomicReference<String> outcome = new AtomicReference<String>();
+            local.getDatastore().get("thing", new StackMobCallback() {
+                @Override
+                public boolean retry(int afterMilliseconds) {
+                    retrying.countDown();
+                    return super.retry(afterMilliseconds);
+                }
+
+                @Override
+                public void success(String responseBody) {
+                    outcome.set(responseBody);
+                    finished.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    outcome.set("failed: " + e.getMessage());
+                    finished.countDown();
+                }
+            });
+            assertTrue(retrying.await(5, TimeUnit.SECONDS));
+            ExecutorService original = local.getExecutor();
+            local.setExecutionPolicy(StackMobExecutionPolicy.standard().withMaxThreads(2));
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            assertEquals("{}", outcome.get());
+            assertTrue(original.isShutdown());
+            local.getExecutor().shutdown();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test public void stackmobReportsExecutorMetrics() throws Exception {
+        StackMob bounded = new StackMob(stackmob);
+        assertEquals(0, bounded.getRequestQueueDepth());
+        assertEquals(0, bounded.getActiveRequestCount());
+        bounded.setExecutionPolicy(StackMobExecutionPolicy.standard().withMaxThreads(4));
+        assertEquals(4, ((StackMobExecutor) bounded.getExecutor()).getMaximumPoolSize());
+    }
+
+    @Test public void virtualThreadsWhereSupported() throws Exception {
+        StackMobExecutionPolicy policy = StackMobExecutionPolicy.virtualThreads();
+        assertEquals(StackMobExecutionPolicy.isVirtualThreadSupported(), policy.usesVirtualThreads());
+        StackMobExecutor executor = policy.createExecutor();
+        final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        }).get();
+        if(policy.usesVirtualThreads()) {
+            assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(ranOn.get()));
+            assertEquals(StackMobExecutionPolicy.DEFAULT_MAX_VIRTUAL_THREADS, executor.getMaximumPoolSize());
+        } else {
+            // older JVMs fall back to the standard platform threads
+            assertTrue(ranOn.get().getName().startsWith("StackMob worker"));
+            assertEquals(StackMobExecutionPolicy.DEFAULT_MAX_THREADS, executor.getMaximumPoolSize());
+        }
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.model.StackMobModel;
+import com.stackmob.sdk.server.StackMobStandInServer;
+import com.stackmob.sdk.testobjects.Book;
+import com.stackmob.sdk.util.StackMobLogger;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobFutureTests extends StackMobTestCommon {
+
+    private static final StackMobFuture.Transform<Integer, Integer> DOUBLE = new StackMobFuture.Transform<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer value) {
+            return value * 2;
+        }
+    };
+
+    @Test public void completesFromAnotherThread() throws Exception {
+        final StackMobFuture<String> future = new StackMobFuture<String>();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                future.complete("done");
+            }
+        }).start();
+        assertEquals("done", future.get(5, TimeUnit.SECONDS));
+        assertTrue(future.isDone());
+        assertFalse(future.complete("again"));
+    }
+
+    @Test public void failuresAreWrapped() throws Exception {
+        StackMobException e = new StackMobException("nope");
+        try {
+            StackMobFuture.<String>failed(e).get();
+            fail("get should have thrown");
+        } catch(ExecutionException expected) {
+            assertSame(e, expected.getCause());
+        }
+    }
+
+    @Test public void timesOut() throws Exception {
+        try {
+            new StackMobFuture<String>().get(10, TimeUnit.MILLISECONDS);
+            fail("get should have timed out");
+        } catch(TimeoutException expected) { }
+    }
+
+    @Test public void cancels() throws Exception {
+        StackMobFuture<String> future = new StackMobFuture<String>();
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertFalse(future.complete("too late"));
+        try {
+            future.get();
+            fail("get should have thrown");
+        } catch(CancellationException expected) { }
+    }
+
+    @Test public void listenersHearAboutEarlierResults() throws Exception {
+        final AtomicReference<String> heard = new AtomicReference<String>();
+        StackMobFuture.completed("done").addListener(new StackMobFuture.Listener<String>() {
+            @Override
+            public void success(String result) {
+                heard.set(result);
+            }
+
+            @Override
+            public void failure(StackMobException e) { }
+        });
+        assertEquals("done", heard.get());
+    }
+
+    @Test public void mapsAndChains() throws Exception {
+        StackMobFuture<Integer> source = new StackMobFuture<Integer>();
+        StackMobFuture<Integer> chained = source.map(DOUBLE).flatMap(new StackMobFuture.Transform<Integer, StackMobFuture<Integer>>() {
+            @Override
+            public StackMobFuture<Integer> apply(Integer value) {
+                return StackMobFuture.completed(value + 1);
+            }
+        });
+        assertFalse(chained.isDone());
+        source.complete(4);
+        assertEquals(Integer.valueOf(9), chained.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test public void mapPassesFailuresThrough() throws Exception {
+        StackMobException e = new StackMobException("nope");
+        try {
+            StackMobFuture.<Integer>failed(e).map(DOUBLE).get();
+            fail("get should have thrown");
+        } catch(ExecutionException expected) {
+            assertSame(e, expected.getCause());
+        }
+    }
+
+    @Test public void flatMapFailsWhenTheTransformReturnsNull() throws Exception {
+        StackMobFuture<Integer> chained = StackMobFuture.completed(1).flatMap(new StackMobFuture.Transform<Integer, StackMobFuture<Integer>>() {
+            @Override
+            public StackMobFuture<Integer> apply(Integer value) {
+                return null;
+            }
+        });
+        try {
+            chained.get(5, TimeUnit.SECONDS);
+            fail("get should have thrown");
+        } catch(ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof StackMobException);
+        }
+    }
+
+    @Test public void listenerExceptionsAreLogged() throws Exception {
+        final List<String> warnings = new ArrayList<String>();
+        StackMobFuture<Integer> future = new StackMobFuture<Integer>(new StackMobLogger() {
+            @Override
+            public void logWarning(String format, Object... args) {
+                warnings.add(String.format(format, args));
+            }
+        });
+        final AtomicReference<Integer> heard = new AtomicReference<Integer>();
+        future.addListener(new StackMobFuture.Listener<Integer>() {
+            @Override
+            public void success(Integer result) {
+                throw new IllegalStateException("listener bug");
+            }
+
+            @Override
+            public void failure(StackMobException e) { }
+        });
+        future.addListener(new StackMobFuture.Listener<Integer>() {
+            @Override
+            public void success(Integer result) {
+                heard.set(result);
+            }
+
+            @Override
+            public void failure(StackMobException e) { }
+        });
+        future.complete(3);
+        assertEquals(Integer.valueOf(3), heard.get());
+        assertEquals(1, warnings.size());
+        assertTrue(warnings.get(0).contains("listener bug"));
+    }
+
+    @Test public void joinsInOrder() throws Exception {
+        StackMobFuture<Integer> first = new StackMobFuture<Integer>();
+        StackMobFuture<Integer> second = new StackMobFuture<Integer>();
+        List<StackMobFuture<Integer>> futures = new ArrayList<StackMobFuture<Integer>>();
+        futures.add(first);
+        futures.add(second);
+        StackMobFuture<List<Integer>> all = StackMobFuture.allOf(futures);
+        second.complete(2);
+        assertFalse(all.isDone());
+        first.complete(1);
+        assertEquals(Arrays.asList(1, 2), all.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test public void joinFailsFast() throws Exception {
+        StackMobFuture<Integer> first = new StackMobFuture<Integer>();
+        List<StackMobFuture<Integer>> futures = new ArrayList<StackMobFuture<Integer>>();
+        futures.add(first);
+        futures.add(StackMobFuture.<Integer>failed(new StackMobException("nope")));
+        StackMobFuture<List<Integer>> all = StackMobFuture.allOf(futures);
+        assertTrue(all.isDone());
+        try {
+            all.get();
+            fail("get should have thrown");
+        } catch(ExecutionException expected) { }
+    }
+
+    @Test public void modelFuturesCarryTheModelType() throws Exception {
+        StackMobStandInServer server = new StackMobStandInServer().start();
+        try {
+            StackMob local = new StackMob(StackMob.OAuthVersion.One, 0, "KEY", "SECRET", server.getHost(), "user", "username", "password", StackMob.DEFAULT_REDIRECTED_CALLBACK);
+            local.getSession().setHTTPSOverride(false);
+            Book book = new Book("Hamlet", "Penguin", null);
+            book.setStackMob(local);
+            Book saved = StackMobModel.saveAsync(book).get(10, TimeUnit.SECONDS);
+            assertSame(book, saved);
+            assertNotNull(saved.getID());
+            Book fetched = StackMobModel.fetchAsync(book).get(10, TimeUnit.SECONDS);
+            assertEquals("Hamlet", fetched.getTitle());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.StackMobNioTransport;
+import com.stackmob.sdk.net.StackMobPooledTransport;
+import com.stackmob.sdk.util.StackMobExecutor;
+import com.stackmob.sdk.util.StackMobScheduler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobHedgingPolicyTests extends StackMobTestCommon {
+
+    private HttpServer server;
+    private StackMobSession session;
+    private StackMobDatastore datastore;
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // the first request stalls, as if it had landed on a bad connection
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int count = requestCount.incrementAndGet();
+                try {
+                    if(count == 1) Thread.sleep(1000);
+                } catch(InterruptedException ignore) { }
+                byte[] response = ("{\"request\":" + count + "}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        session = new StackMobSession(stackmob.getSession());
+        datastore = new StackMobDatastore(Executors.newCachedThreadPool(), session,
+                "127.0.0.1:" + server.getAddress().getPort(), new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private static class Result extends StackMobCallback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> body = new AtomicReference<String>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void success(String responseBody) {
+            calls.incrementAndGet();
+            body.set(responseBody);
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            calls.incrementAndGet();
+            body.set(e.getMessage());
+            latch.countDown();
+        }
+    }
+
+    @Test public void slowReadsAreHedged() throws Exception {
+        StackMobHedgingPolicy policy = StackMobHedgingPolicy.fixedDelay(100);
+        Result result = new Result();
+        datastore.get("thing", StackMobOptions.hedged(policy), result);
+        assertTrue(result.latch.await(5, TimeUnit.SECONDS));
+        // the hedge was answered while the original was still stalled
+        assertEquals("{\"request\":2}", result.body.get());
+        assertEquals(1, policy.getHedgesSent());
+        assertEquals(1, policy.getHedgesWon());
+        // the original's late answer is discarded
+        Thread.sleep(1200);
+        assertEquals(1, result.calls.get());
+    }
+
+    @Test public void theSlowerRequestIsCancelled() throws Exception {
+        StackMobPooledTransport transport = new StackMobPooledTransport();
+        session.setTransport(transport);
+        StackMobHedgingPolicy policy = StackMobHedgingPolicy.fixedDelay(100);
+        Result result = new Result();
+        datastore.get("thing", StackMobOptions.hedged(policy), result);
+        assertTrue(result.latch.await(5, TimeUnit.SECONDS));
+        assertEquals("{\"request\":2}", result.body.get());
+        // the stalled original's connection was closed rather than held until its answer arrived
+        Thread.sleep(200);
+        assertEquals(0, transport.getLeasedConnectionCount());
+        assertEquals(1, result.calls.get());
+        transport.shutdown();
+    }
+
+    @Test public void theSlowerRequestIsCancelledOnTheNioTransport() throws Exception {
+        StackMobNioTransport transport = new StackMobNioTransport();
+        session.setTransport(transport);
+        StackMobHedgingPolicy policy = StackMobHedgingPolicy.fixedDelay(100);
+        Result result = new Result();
+        datastore.get("thing", StackMobOptions.hedged(policy), result);
+        assertTrue(result.latch.await(5, TimeUnit.SECONDS));
+        assertEquals("{\"request\":2}", result.body.get());
+        Thread.sleep(200);
+        assertEquals(0, transport.getLeasedConnectionCount());
+        assertEquals(1, result.calls.get());
+        transport.shutdown();
+    }
+
+    @Test public void hedgesDoNotHoldTheSchedulerOnASaturatedExecutor() throws Exception {
+        // the stalled original holds the only worker, so the hedge finds the executor saturated
+        StackMobExecutor executor = StackMobExecutionPolicy.standard().withMaxThreads(1).withQueueSize(0)
+                .withRejectionStrategy(StackMobExecutionPolicy.RejectionStrategy.BLOCK).createExecutor();
+        StackMobDatastore saturated = new StackMobDatastore(executor, session, "127.0.0.1:" + server.getAddress().getPort(), new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+        Result result = new Result();
+        saturated.get("thing", StackMobOptions.hedged(StackMobHedgingPolicy.fixedDelay(100)), result);
+        final CountDownLatch fired = new CountDownLatch(1);
+        StackMobScheduler.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 300, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(700, TimeUnit.MILLISECONDS));
+        assertTrue(result.latch.await(5, TimeUnit.SECONDS));
+        assertEquals("{\"request\":1}", result.body.get());
+        executor.shutdown();
+    }
+
+    @Test public void fastReadsAreNotHedged() throws Exception {
+        requestCount.set(1);
+        StackMobHedgingPolicy policy = StackMobHedgingPolicy.fixedDelay(500);
+        Result result = new Result();
+        datastore.get("thing", StackMobOptions.hedged(policy), result);
+        assertTrue(result.latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(600);
+        assertEquals(0, policy.getHedgesSent());
+        assertEquals(2, requestCount.get());
+    }
+
+    @Test public void writesAreNeverHedged() throws Exception {
+        StackMobHedgingPolicy policy = StackMobHedgingPolicy.fixedDelay(50);
+        Result result = new Result();
+        datastore.post("thing", "{}", StackMobOptions.hedged(policy), result);
+        assertTrue(result.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, policy.getHedgesSent());
+        assertEquals(1, requestCount.get());
+    }
+
+    @Test public void learnsTheDelayFromLatencies() throws Exception {
+        StackMobHedgingPolicy policy = StackMobHedgingPolicy.atPercentile(0.95).withInitialDelay(300);
+        assertEquals(300, policy.getHedgeDelayMillis());
+        for(int i = 1; i <= 100; i++) policy.recordLatency(i);
+        assertEquals(95, policy.getHedgeDelayMillis());
+        for(int i = 0; i < 300; i++) policy.recordLatency(1);
+        assertEquals(StackMobHedgingPolicy.DEFAULT_MINIMUM_DELAY_MILLIS, policy.getHedgeDelayMillis());
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import com.stackmob.sdk.net.StackMobPooledTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobMetricsTests extends StackMobTestCommon {
+
+    private HttpServer server;
+    private StackMobSession session;
+    private final AtomicReference<StackMobRequestMetrics> last = new AtomicReference<StackMobRequestMetrics>();
+    private CountDownLatch completed;
+    private CountDownLatch unsent;
+    private final StackMobMetrics metrics = new StackMobMetrics() {
+        @Override
+        public void requestCompleted(StackMobRequestMetrics m) {
+            super.requestCompleted(m);
+            last.set(m);
+            completed.countDown();
+        }
+
+        @Override
+        public void requestUnsent(HttpVerb verb, String schema, StackMobException e) {
+            super.requestUnsent(verb, schema, e);
+            unsent.countDown();
+        }
+    };
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean missing = exchange.getRequestURI().getPath().contains("missing");
+                byte[] bytes = (missing ? "{\"error\":\"not found\"}" : "[{\"thing_id\":\"1\"}]").getBytes("UTF-8");
+                exchange.sendResponseHeaders(missing ? 404 : 200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.start();
+        session = new StackMobSession(stackmob.getSession());
+        session.setMetricsListener(metrics);
+        // the default transport can't say how long connecting took
+        session.setTransport(new StackMobPooledTransport());
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        session.getTransport().shutdown();
+    }
+
+    private StackMobDatastore datastore(int port) {
+        return new StackMobDatastore(Executors.newCachedThreadPool(), session, "127.0.0.1:" + port, new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+    }
+
+    private void get(StackMobDatastore datastore, String path) {
+        datastore.get(path, StackMobOptions.https(false), new StackMobCallback() {
+            @Override
+            public void success(String responseBody) { }
+
+            @Override
+            public void failure(StackMobException e) { }
+        });
+    }
+
+    @Test public void completedRequestsAreTimedByPhase() throws Exception {
+        completed = new CountDownLatch(1);
+        get(datastore(server.getAddress().getPort()), "thing/1");
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        StackMobRequestMetrics m = last.get();
+        assertEquals(HttpVerbWithoutPayload.GET, m.getVerb());
+        assertEquals("thing", m.getSchema());
+        assertEquals(200, m.getStatusCode());
+        assertTrue(m.getNanos(StackMobRequestMetrics.Phase.QUEUE_WAIT) >= 0);
+        assertTrue(m.getNanos(StackMobRequestMetrics.Phase.CONNECT) >= 0);
+        assertTrue(m.getNanos(StackMobRequestMetrics.Phase.FIRST_BYTE) >= m.getNanos(StackMobRequestMetrics.Phase.CONNECT));
+        assertTrue(m.getNanos(StackMobRequestMetrics.Phase.BODY_READ) >= 0);
+        assertTrue(m.getNanos(StackMobRequestMetrics.Phase.CALLBACK) >= 0);
+        assertTrue(m.getTotalNanos() >= m.getNanos(StackMobRequestMetrics.Phase.FIRST_BYTE) + m.getNanos(StackMobRequestMetrics.Phase.CALLBACK));
+        assertEquals(1, metrics.getRequestCount());
+        assertEquals(1, metrics.getTotalHistogram().getCount());
+        assertEquals(0, metrics.getErrorCount());
+    }
+
+    @Test public void failuresAreCounted() throws Exception {
+        completed = new CountDownLatch(1);
+        get(datastore(server.getAddress().getPort()), "missing/1");
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(404, last.get().getStatusCode());
+        assertEquals(1, metrics.getErrorCount());
+
+        // nothing is listening once the server stops, so the request can't be sent
+        int port = server.getAddress().getPort();
+        server.stop(0);
+        session.setBackoffPolicy(StackMobBackoffPolicy.exponential(1, 5).withConnectionFailureRetries(true));
+        unsent = new CountDownLatch(1);
+        get(datastore(port), "thing/1");
+        assertTrue(unsent.await(5, TimeUnit.SECONDS));
+        assertEquals(1, metrics.getUnsentCount());
+        assertEquals(3, metrics.getRetryCount());
+        assertEquals(1, metrics.getRequestCount());
+    }
+
+    @Test public void histogramPercentilesAreWithinABucket() {
+        StackMobLatencyHistogram histogram = new StackMobLatencyHistogram();
+        for(int i = 1; i <= 1000; i++) histogram.record(i * 1000000L);
+        histogram.record(-1);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000000L, histogram.getMaxNanos());
+        assertEquals(500500000L, histogram.getMeanNanos());
+        long p50 = histogram.getPercentileNanos(50);
+        long p99 = histogram.getPercentileNanos(99);
+        assertTrue(p50 >= 500000000L && p50 <= 500000000L * 5 / 4);
+        assertTrue(p99 >= 990000000L && p99 <= 1000000000L);
+        assertEquals(1000000000L, histogram.getPercentileNanos(100));
+        histogram.reset();
+        assertEquals(0, histogram.getPercentileNanos(99));
+    }
+}
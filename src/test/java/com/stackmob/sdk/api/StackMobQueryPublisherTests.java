@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.model.StackMobModel;
+import com.stackmob.sdk.testobjects.Author;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class StackMobQueryPublisherTests extends StackMobTestCommon {
+
+    private static final int TOTAL = 7;
+
+    private HttpServer server;
+    private StackMob local;
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                ranges.add(range);
+                String[] bounds = range.substring("objects=".length()).split("-");
+                int start = Integer.parseInt(bounds[0]);
+                int end = Math.min(Integer.parseInt(bounds[1]), TOTAL - 1);
+                StringBuilder body = new StringBuilder("[");
+                for(int i = start; i <= end; i++) {
+                    if(i > start) body.append(",");
+                    body.append("{\"author_id\":\"").append(i).append("\",\"name\":\"author ").append(i).append("\"}");
+                }
+                byte[] response = body.append("]").toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Range", "objects " + start + "-" + end + "/" + TOTAL);
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        local = new StackMob(StackMob.OAuthVersion.One, 0, "API_KEY", "API_SECRET", "127.0.0.1:" + server.getAddress().getPort(),
+                "user", "username", "password", new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private static class RecordingSubscriber implements Subscriber<Author> {
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile Subscription subscription;
+        volatile Throwable error;
+        CountDownLatch received;
+
+        RecordingSubscriber(int expected) {
+            received = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(Author author) {
+            names.add(author.getName());
+            received.countDown();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            finished.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            finished.countDown();
+        }
+    }
+
+    @Test public void fetchesPagesOnDemand() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(3);
+        StackMobModel.publish(local, Author.class, new StackMobQuery(), StackMobOptions.none(), 3).subscribe(subscriber);
+        assertTrue(ranges.isEmpty());
+        subscriber.subscription.request(3);
+        assertTrue(subscriber.received.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("objects=0-2"), ranges);
+        assertEquals(1, subscriber.finished.getCount());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.finished.await(5, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+        assertEquals(Arrays.asList("objects=0-2", "objects=3-5", "objects=6-8"), ranges);
+        assertEquals(TOTAL, subscriber.names.size());
+        assertEquals("author 6", subscriber.names.get(TOTAL - 1));
+    }
+
+    @Test public void stopsAtTheReportedTotal() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(TOTAL);
+        StackMobModel.publish(local, Author.class, new StackMobQuery(), StackMobOptions.none(), TOTAL).subscribe(subscriber);
+        subscriber.subscription.request(100);
+        assertTrue(subscriber.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(TOTAL, subscriber.names.size());
+        assertEquals(1, ranges.size());
+    }
+
+    @Test public void cancellingStopsFetching() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(2);
+        StackMobModel.publish(local, Author.class, new StackMobQuery(), StackMobOptions.none(), 2).subscribe(subscriber);
+        subscriber.subscription.request(2);
+        assertTrue(subscriber.received.await(5, TimeUnit.SECONDS));
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(10);
+        Thread.sleep(200);
+        assertEquals(1, ranges.size());
+        assertEquals(2, subscriber.names.size());
+    }
+
+    @Test public void nonPositiveRequestsAreErrors() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        StackMobModel.publish(local, Author.class, new StackMobQuery(), StackMobOptions.none(), 10).subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.finished.await(5, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertTrue(ranges.isEmpty());
+    }
+
+    @Test public void nothingIsSignalledDuringOnSubscribe() throws Exception {
+        final AtomicBoolean subscribing = new AtomicBoolean(false);
+        final AtomicBoolean overlapped = new AtomicBoolean(false);
+        RecordingSubscriber subscriber = new RecordingSubscriber(3) {
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscribing.set(true);
+                super.onSubscribe(s);
+                s.request(3);
+                try {
+                    Thread.sleep(300);
+                } catch(InterruptedException ignore) { }
+                subscribing.set(false);
+            }
+
+            @Override
+            public void onNext(Author author) {
+                if(subscribing.get()) overlapped.set(true);
+                super.onNext(author);
+            }
+        };
+        StackMobModel.publish(local, Author.class, new StackMobQuery(), StackMobOptions.none(), 3).subscribe(subscriber);
+        assertTrue(subscriber.received.await(5, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+        assertEquals(Arrays.asList("objects=0-2"), ranges);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobRedirectCacheTests {
+
+    @Test public void temporaryRedirectsExpire() throws Exception {
+        StackMobRedirectCache cache = new StackMobRedirectCache().withTemporaryTtl(50);
+        cache.put("https://api.stackmob.com", "https://api2.stackmob.com", false);
+        cache.put("http://api.stackmob.com", "http://api2.stackmob.com", true);
+        assertEquals("https://api2.stackmob.com", cache.get("https://api.stackmob.com"));
+        assertEquals("https://other.com", cache.get("https://other.com"));
+        Thread.sleep(100);
+        assertEquals("https://api.stackmob.com", cache.get("https://api.stackmob.com"));
+        assertEquals("http://api2.stackmob.com", cache.get("http://api.stackmob.com"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test public void permanentRedirectsSurviveARestart() throws Exception {
+        File file = File.createTempFile("redirects", ".properties");
+        file.delete();
+        try {
+            StackMobRedirectCache cache = new StackMobRedirectCache().withPersistence(file);
+            cache.put("https://api.stackmob.com", "https://api2.stackmob.com", true);
+            cache.put("http://api.stackmob.com", "http://api3.stackmob.com", false);
+            assertTrue(file.exists());
+
+            StackMobRedirectCache restarted = new StackMobRedirectCache().withPersistence(file);
+            assertEquals("https://api2.stackmob.com", restarted.get("https://api.stackmob.com"));
+            assertEquals("http://api.stackmob.com", restarted.get("http://api.stackmob.com"));
+
+            restarted.remove("https://api.stackmob.com");
+            assertEquals(0, new StackMobRedirectCache().withPersistence(file).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test public void sessionsShareTheirRedirects() throws Exception {
+        StackMobSession session = new StackMobSession(StackMob.OAuthVersion.Two, 0, "KEY", "SECRET", "user", "username");
+        session.setRedirect("https://api.stackmob.com", "https://api2.stackmob.com", false);
+        StackMobSession copy = new StackMobSession(session);
+        assertEquals("https://api2.stackmob.com", copy.getRedirect("https://api.stackmob.com"));
+
+        // readers on other threads see a consistent table while it's written
+        final StackMobRedirectCache cache = session.getRedirectCache();
+        final AtomicReference<String> wrong = new AtomicReference<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < 4; t++) {
+            final int id = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < 10000; i++) {
+                        String host = "https://host" + (i % 50);
+                        cache.put(host, host + ".moved", id % 2 == 0);
+                        String redirect = cache.get(host);
+                        if(!redirect.equals(host + ".moved") && !redirect.equals(host)) wrong.set(redirect);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) thread.join();
+        assertNull(wrong.get());
+        assertEquals(51, cache.size());
+    }
+
+    @Test public void sessionSubclassesStillSeeCachedRedirects() throws Exception {
+        StackMobSession session = new StackMobSession(StackMob.OAuthVersion.Two, 0, "KEY", "SECRET", "user", "username") {
+            @SuppressWarnings("deprecation")
+            @Override public String getRedirect(String host) {
+                assertEquals(getRedirectCache().asMap(), cachedRedirects);
+                return super.getRedirect(host);
+            }
+        };
+        session.setRedirect("https://api.stackmob.com", "https://api2.stackmob.com", false);
+        assertEquals("https://api2.stackmob.com", session.getRedirect("https://api.stackmob.com"));
+
+        Map<String, String> redirects = session.getRedirectCache().asMap();
+        assertEquals(1, redirects.size());
+        assertNull(redirects.get("https://other.stackmob.com"));
+        redirects.put("https://other.stackmob.com", "https://api2.stackmob.com");
+        assertEquals("https://api2.stackmob.com", session.getRedirect("https://other.stackmob.com"));
+        assertEquals("https://api2.stackmob.com", redirects.remove("https://api.stackmob.com"));
+        assertEquals("https://api.stackmob.com", session.getRedirect("https://api.stackmob.com"));
+    }
+}
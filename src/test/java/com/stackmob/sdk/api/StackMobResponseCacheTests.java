@@ -0,0 +1,294 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobResponseCacheTests extends StackMobTestCommon {
+
+    private HttpServer server;
+    private StackMobResponseCache cache;
+    private StackMobSession session;
+    private StackMobDatastore datastore;
+    private final AtomicInteger reads = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // every read gets a new body so cached responses can be told apart
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String response = "{}";
+                if(exchange.getRequestMethod().equals("GET")) {
+                    response = "{\"read\":" + reads.incrementAndGet() + "}";
+                }
+                byte[] bytes = response.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.start();
+        cache = new StackMobResponseCache();
+        session = new StackMobSession(stackmob.getSession());
+        session.setResponseCache(cache);
+        datastore = new StackMobDatastore(Executors.newCachedThreadPool(), session, "127.0.0.1:" + server.getAddress().getPort(), new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private StackMobCallback callback(final CountDownLatch latch, final AtomicReference<String> body) {
+        return new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                body.set(responseBody);
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                body.set("failed: " + e.getMessage());
+                latch.countDown();
+            }
+        };
+    }
+
+    private String get(String path) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> body = new AtomicReference<String>();
+        datastore.get(path, StackMobOptions.https(false), callback(latch, body));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return body.get();
+    }
+
+    private void post(String path) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        datastore.post(path, "{}", StackMobOptions.https(false), callback(latch, new AtomicReference<String>()));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test public void repeatedReadsComeFromTheCache() throws Exception {
+        assertEquals("{\"read\":1}", get("thing/1"));
+        assertEquals("{\"read\":1}", get("thing/1"));
+        assertEquals("{\"read\":2}", get("thing/2"));
+        assertEquals(2, reads.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test public void writesInvalidateTheirSchema() throws Exception {
+        assertEquals("{\"read\":1}", get("thing/1"));
+        assertEquals("{\"read\":2}", get("other/1"));
+        post("thing");
+        assertEquals("{\"read\":3}", get("thing/1"));
+        assertEquals("{\"read\":2}", get("other/1"));
+    }
+
+    @Test public void eachReadGetsItsOwnCopy() throws Exception {
+        for(int i = 0; i < 3; i++) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<String> body = new AtomicReference<String>();
+            final AtomicInteger headerCount = new AtomicInteger();
+            datastore.get("thing/1", StackMobOptions.https(false), new StackMobRawCallback() {
+                @Override
+                public void unsent(StackMobException e) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void temporaryPasswordResetRequired(StackMobException e) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+                    try {
+                        body.set(new String(responseBody, "UTF-8"));
+                    } catch(UnsupportedEncodingException ignore) { }
+                    headerCount.set(responseHeaders.size());
+                    // scribble over what was handed over, which mustn't reach the cache or later reads
+                    Arrays.fill(responseBody, (byte) 'x');
+                    responseHeaders.clear();
+                    latch.countDown();
+                }
+
+                @Override
+                public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals("{\"read\":1}", body.get());
+            assertTrue(headerCount.get() > 0);
+        }
+        assertEquals(1, reads.get());
+    }
+
+    @Test public void relatedWritesInvalidateTheRelatedSchema() throws Exception {
+        assertEquals("{\"read\":1}", get("book/1"));
+        assertEquals("{\"read\":2}", get("author/1"));
+        CountDownLatch posted = new CountDownLatch(1);
+        datastore.postRelated("book", "1", "authors", "{}", callback(posted, new AtomicReference<String>()));
+        assertTrue(posted.await(5, TimeUnit.SECONDS));
+        assertEquals("{\"read\":3}", get("book/1"));
+        assertEquals("{\"read\":4}", get("author/1"));
+
+        // removing an id from a relation only changes the parent, unless the related object is deleted too
+        CountDownLatch removed = new CountDownLatch(1);
+        datastore.deleteIdFrom("book", "1", "authors", "1", false, callback(removed, new AtomicReference<String>()));
+        assertTrue(removed.await(5, TimeUnit.SECONDS));
+        assertEquals("{\"read\":5}", get("book/1"));
+        assertEquals("{\"read\":4}", get("author/1"));
+        CountDownLatch deleted = new CountDownLatch(1);
+        datastore.deleteIdFrom("book", "1", "authors", "1", true, callback(deleted, new AtomicReference<String>()));
+        assertTrue(deleted.await(5, TimeUnit.SECONDS));
+        assertEquals("{\"read\":6}", get("book/1"));
+        assertEquals("{\"read\":7}", get("author/1"));
+    }
+
+    @Test public void cacheKeysUseTheSchemeTheSessionSends() throws Exception {
+        session.setHTTPSOverride(false);
+        // both reads go out over http, so they're the same read
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> body = new AtomicReference<String>();
+        datastore.get("thing/1", StackMobOptions.https(true), callback(latch, body));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("{\"read\":1}", body.get());
+        assertEquals("{\"read\":1}", get("thing/1"));
+        assertEquals(1, reads.get());
+    }
+
+    @Test public void timesToLiveArePerSchema() throws Exception {
+        cache.withTimeToLive("uncached", 0).withTimeToLive("brief", 100);
+        get("uncached");
+        get("uncached");
+        assertEquals(2, reads.get());
+        assertEquals("{\"read\":3}", get("brief"));
+        assertEquals("{\"read\":3}", get("brief"));
+        Thread.sleep(150);
+        assertEquals("{\"read\":4}", get("brief"));
+    }
+
+    @Test public void cacheHitsAreDeliveredOnTheExecutor() throws Exception {
+        get("thing/1");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Thread> deliveredOn = new AtomicReference<Thread>();
+        datastore.get("thing/1", StackMobOptions.https(false), new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                deliveredOn.set(Thread.currentThread());
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, cache.getHitCount());
+        assertNotSame(Thread.currentThread(), deliveredOn.get());
+    }
+
+    @Test public void loginAndLogoutClearTheCache() throws Exception {
+        StackMob local = new StackMob(StackMob.OAuthVersion.One, 0, "KEY", "SECRET", "127.0.0.1:" + server.getAddress().getPort(),
+                "user", "username", "password", StackMob.DEFAULT_REDIRECTED_CALLBACK);
+        local.getSession().setHTTPSOverride(false);
+        StackMobValidatorCache validators = new StackMobValidatorCache();
+        local.getSession().setResponseCache(cache);
+        local.getSession().setValidatorCache(validators);
+        datastore = local.getDatastore();
+        assertEquals("{\"read\":1}", get("thing/1"));
+        assertEquals("{\"read\":1}", get("thing/1"));
+        assertEquals(1, cache.size());
+        validators.put("thing/1", new StackMobValidatorCache.Entry("\"v1\"", null, null, new byte[0]));
+
+        CountDownLatch loggedOut = new CountDownLatch(1);
+        local.logout(callback(loggedOut, new AtomicReference<String>()));
+        assertTrue(loggedOut.await(5, TimeUnit.SECONDS));
+        assertEquals(0, cache.size());
+        assertEquals(0, validators.size());
+        // the next user's read goes to the server
+        String afterLogout = get("thing/1");
+        assertFalse("{\"read\":1}".equals(afterLogout));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("username", "bob");
+        params.put("password", "secret");
+        CountDownLatch loggedIn = new CountDownLatch(1);
+        local.login(params, callback(loggedIn, new AtomicReference<String>()));
+        assertTrue(loggedIn.await(5, TimeUnit.SECONDS));
+        assertEquals(0, cache.size());
+        assertFalse(afterLogout.equals(get("thing/1")));
+    }
+
+    @Test public void leastRecentlyUsedResponsesAreEvictedBySize() {
+        StackMobResponseCache small = new StackMobResponseCache(3000);
+        long expiresAt = System.currentTimeMillis() + 60000;
+        small.put("thing", "a", 0, new StackMobResponseCache.Entry("thing", "a", null, new byte[1000], expiresAt));
+        small.put("thing", "b", 0, new StackMobResponseCache.Entry("thing", "b", null, new byte[1000], expiresAt));
+        small.get("a");
+        small.put("thing", "c", 0, new StackMobResponseCache.Entry("thing", "c", null, new byte[1000], expiresAt));
+        assertNotNull(small.get("a"));
+        assertNull(small.get("b"));
+        assertNotNull(small.get("c"));
+        assertEquals(1, small.getEvictionCount());
+        assertTrue(small.getSizeInBytes() <= 3000);
+
+        // a response from a read sent before an invalidation isn't kept
+        long generation = small.getGeneration("thing");
+        small.invalidate("thing");
+        small.put("thing", "d", generation, new StackMobResponseCache.Entry("thing", "d", null, new byte[10], expiresAt));
+        assertEquals(0, small.size());
+    }
+}
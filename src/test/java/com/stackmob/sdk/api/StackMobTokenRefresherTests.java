@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.util.StackMobExecutor;
+import com.stackmob.sdk.util.StackMobScheduler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StackMobTokenRefresherTests extends StackMobTestCommon {
+
+    private HttpServer server;
+    private StackMob oauth2;
+    private final AtomicInteger refreshCount = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                refreshCount.incrementAndGet();
+                byte[] response = "{\"access_token\":\"fresh\",\"mac_key\":\"freshkey\",\"expires_in\":3600,\"refresh_token\":\"refresh2\"}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        String host = "127.0.0.1:" + server.getAddress().getPort();
+        oauth2 = new StackMob(StackMob.OAuthVersion.Two, 0, "KEY", "SECRET", host, "user", "username", "password", new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+        // token requests always use https, which the test server doesn't speak
+        oauth2.getSession().setRedirect("https://" + host, "http://" + host, false);
+    }
+
+    @After
+    public void stopServer() {
+        oauth2.disableBackgroundTokenRefresh();
+        server.stop(0);
+    }
+
+    @Test public void refreshesBeforeExpiry() throws Exception {
+        oauth2.getSession().setOAuth2TokensAndExpiration("stale", "stalekey", "refresh1", 3);
+        oauth2.enableBackgroundTokenRefresh(1000);
+        Thread.sleep(1000);
+        assertEquals(0, refreshCount.get());
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!"refresh2".equals(oauth2.getSession().getOAuth2RefreshToken()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        // refreshed without a request asking for it, and the next refresh is an hour away
+        assertEquals("refresh2", oauth2.getSession().getOAuth2RefreshToken());
+        assertTrue(oauth2.getSession().getOAuth2TokenExpiration().getTime() - System.currentTimeMillis() > 3500 * 1000);
+        Thread.sleep(500);
+        assertEquals(1, refreshCount.get());
+    }
+
+    @Test public void doesNotHoldTheSchedulerOnASaturatedExecutor() throws Exception {
+        oauth2.setExecutionPolicy(StackMobExecutionPolicy.standard().withMaxThreads(1).withQueueSize(0)
+                .withRejectionStrategy(StackMobExecutionPolicy.RejectionStrategy.BLOCK));
+        StackMobExecutor executor = (StackMobExecutor) oauth2.getExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch(InterruptedException ignore) { }
+            }
+        };
+        while(!executor.tryExecute(blocker)) Thread.sleep(10);
+        oauth2.getSession().setOAuth2TokensAndExpiration("stale", "stalekey", "refresh1", 1);
+        // due in half a second, when the executor is still saturated
+        oauth2.enableBackgroundTokenRefresh(800);
+        final CountDownLatch fired = new CountDownLatch(1);
+        StackMobScheduler.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 1000, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(1500, TimeUnit.MILLISECONDS));
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!"refresh2".equals(oauth2.getSession().getOAuth2RefreshToken()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("refresh2", oauth2.getSession().getOAuth2RefreshToken());
+        executor.shutdown();
+    }
+
+    @Test public void stopsWhenDisabled() throws Exception {
+        oauth2.getSession().setOAuth2TokensAndExpiration("stale", "stalekey", "refresh1", 1);
+        oauth2.enableBackgroundTokenRefresh(800);
+        oauth2.disableBackgroundTokenRefresh();
+        Thread.sleep(700);
+        assertEquals(0, refreshCount.get());
+    }
+}
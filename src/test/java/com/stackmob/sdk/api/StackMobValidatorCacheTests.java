@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobValidatorCacheTests extends StackMobTestCommon {
+
+    private HttpServer server;
+    private StackMobSession session;
+    private StackMobDatastore datastore;
+    private final AtomicInteger version = new AtomicInteger(1);
+    private final AtomicInteger fullResponses = new AtomicInteger();
+    private final List<String> conditions = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean clearBeforeAnswering = false;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // answers 304 when the client already has the current version
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String eTag = "\"v" + version.get() + "\"";
+                String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                conditions.add(String.valueOf(ifNoneMatch));
+                exchange.getResponseHeaders().add("ETag", eTag);
+                if(eTag.equals(ifNoneMatch)) {
+                    if(clearBeforeAnswering) session.getValidatorCache().clear();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                fullResponses.incrementAndGet();
+                byte[] response = ("{\"version\":" + version.get() + "}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        session = new StackMobSession(stackmob.getSession());
+        session.setValidatorCache(new StackMobValidatorCache());
+        datastore = new StackMobDatastore(Executors.newCachedThreadPool(), session, "127.0.0.1:" + server.getAddress().getPort(), new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private String get() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> body = new AtomicReference<String>();
+        datastore.get("thing", StackMobOptions.https(false), new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                body.set(responseBody);
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                body.set("failed: " + e.getMessage());
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return body.get();
+    }
+
+    @Test public void unchangedResponsesComeFromTheCache() throws Exception {
+        assertEquals("{\"version\":1}", get());
+        assertEquals("{\"version\":1}", get());
+        assertEquals("{\"version\":1}", get());
+        assertEquals(1, fullResponses.get());
+        assertEquals("null", conditions.get(0));
+        assertEquals("\"v1\"", conditions.get(1));
+        assertEquals(2, session.getValidatorCache().getNotModifiedCount());
+    }
+
+    @Test public void changedResponsesReplaceTheCachedOne() throws Exception {
+        assertEquals("{\"version\":1}", get());
+        version.set(2);
+        assertEquals("{\"version\":2}", get());
+        assertEquals("{\"version\":2}", get());
+        assertEquals(2, fullResponses.get());
+        assertEquals(1, session.getValidatorCache().getModifiedCount());
+        assertEquals(1, session.getValidatorCache().getNotModifiedCount());
+    }
+
+    @Test public void notModifiedUsesTheEntryFromWhenTheRequestWasSent() throws Exception {
+        assertEquals("{\"version\":1}", get());
+        // the cache is cleared while the revalidation is in flight
+        clearBeforeAnswering = true;
+        assertEquals("{\"version\":1}", get());
+        assertEquals(1, fullResponses.get());
+        assertEquals("\"v1\"", conditions.get(1));
+    }
+
+    @Test public void eachResponseGetsItsOwnCopy() throws Exception {
+        for(int i = 0; i < 3; i++) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<String> body = new AtomicReference<String>();
+            final AtomicInteger headerCount = new AtomicInteger();
+            datastore.get("thing", StackMobOptions.https(false), new StackMobRawCallback() {
+                @Override
+                public void unsent(StackMobException e) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void temporaryPasswordResetRequired(StackMobException e) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+                    try {
+                        body.set(new String(responseBody, "UTF-8"));
+                    } catch(UnsupportedEncodingException ignore) { }
+                    headerCount.set(responseHeaders.size());
+                    // scribble over what was handed over, which mustn't reach the cached entry
+                    Arrays.fill(responseBody, (byte) 'x');
+                    responseHeaders.clear();
+                    latch.countDown();
+                }
+
+                @Override
+                public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals("{\"version\":1}", body.get());
+            assertTrue(headerCount.get() > 0);
+        }
+        assertEquals(1, fullResponses.get());
+    }
+
+    @Test public void leastRecentlyUsedEntriesAreDropped() {
+        StackMobValidatorCache cache = new StackMobValidatorCache(2);
+        cache.put("a", new StackMobValidatorCache.Entry("1", null, null, new byte[0]));
+        cache.put("b", new StackMobValidatorCache.Entry("2", null, null, new byte[0]));
+        cache.get("a");
+        cache.put("c", new StackMobValidatorCache.Entry("3", null, null, new byte[0]));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(2, cache.size());
+    }
+}
@@ -0,0 +1,832 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.load;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutionPolicy;
+import com.stackmob.sdk.api.StackMobLatencyHistogram;
+import com.stackmob.sdk.api.StackMobMetrics;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.model.StackMobModel;
+import com.stackmob.sdk.net.StackMobNioTransport;
+import com.stackmob.sdk.net.StackMobPooledTransport;
+import com.stackmob.sdk.net.StackMobScribeTransport;
+import com.stackmob.sdk.server.StackMobStandInServer;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a mix of model and datastore calls from many threads and measures how the SDK holds up: a latency
+ * histogram, throughput, allocation rate and thread count for each execution mode at each level of concurrency. By
+ * default it starts a {@link StackMobStandInServer} in the same JVM, so a whole scaling curve can be drawn on one
+ * machine; point it at another host to keep the server's work out of the numbers.
+ * <pre>
+ * {@code
+ * List<StackMobLoadResult> results = new StackMobLoadHarness().withThreads(1, 8, 64)
+ *                                                             .withModes(Mode.BOUNDED, Mode.ASYNC)
+ *                                                             .withServerLatency(2, 5)
+ *                                                             .run();
+ * StackMobLoadHarness.printReport(results, System.out);
+ * }
+ * </pre>
+ * From the command line, run {@code mvn -P load test}, or run this class with arguments such as
+ * {@code threads=1,4,16 modes=bounded,async duration=10 rate=500 mix=save:1,fetch:4 latency=2-5 csv=load.csv}.
+ */
+public class StackMobLoadHarness {
+
+    public static final String DRIVER_THREAD_NAME_PREFIX = "StackMob load driver ";
+    private static final String USERNAME = "loadtester";
+    private static final String PASSWORD = "loadtester";
+    private static final long CALL_TIMEOUT_SECONDS = 60;
+
+    /**
+     * How the SDK runs requests: the executor callbacks run on and the transport that does the I/O
+     */
+    public enum Mode {
+        /**
+         * an unbounded cached thread pool with a new HttpURLConnection for each request, the way the SDK used to work
+         */
+        CACHED("cached pool, blocking") {
+            @Override
+            ExecutorService configure(StackMob stackmob) {
+                ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "StackMob cached worker " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                stackmob.getDatastore().setExecutor(executor);
+                stackmob.getSession().setTransport(new StackMobScribeTransport());
+                return executor;
+            }
+        },
+        /**
+         * the standard bounded pool with pooled, blocking connections
+         */
+        BOUNDED("bounded pool, pooled") {
+            @Override
+            ExecutorService configure(StackMob stackmob) {
+                stackmob.setExecutionPolicy(StackMobExecutionPolicy.standard());
+                stackmob.getSession().setTransport(new StackMobPooledTransport());
+                return stackmob.getExecutor();
+            }
+        },
+        /**
+         * a virtual thread per request with pooled connections, on JVMs that have virtual threads
+         */
+        VIRTUAL("virtual threads, pooled") {
+            @Override
+            ExecutorService configure(StackMob stackmob) {
+                stackmob.setExecutionPolicy(StackMobExecutionPolicy.virtualThreads());
+                stackmob.getSession().setTransport(new StackMobPooledTransport());
+                return stackmob.getExecutor();
+            }
+
+            @Override
+            public boolean isSupported() {
+                return StackMobExecutionPolicy.isVirtualThreadSupported();
+            }
+        },
+        /**
+         * the standard bounded pool for callbacks, with requests multiplexed by the NIO transport's selector threads
+         */
+        ASYNC("bounded pool, NIO") {
+            @Override
+            ExecutorService configure(StackMob stackmob) {
+                stackmob.setExecutionPolicy(StackMobExecutionPolicy.standard());
+                stackmob.getSession().setTransport(new StackMobNioTransport());
+                return stackmob.getExecutor();
+            }
+        };
+
+        private final String description;
+
+        Mode(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public boolean isSupported() {
+            return true;
+        }
+
+        /**
+         * set up a StackMob to run in this mode
+         * @return the executor to shut down once the run is over
+         */
+        abstract ExecutorService configure(StackMob stackmob);
+    }
+
+    /**
+     * The calls a driver thread can make
+     */
+    public enum Operation {
+        /**
+         * create a model with {@link StackMobModel#save}
+         */
+        SAVE,
+        /**
+         * fetch an existing model with {@link StackMobModel#fetch}
+         */
+        FETCH,
+        /**
+         * query a page of models with {@link StackMobModel#query}
+         */
+        QUERY,
+        /**
+         * query a page of raw json with {@link com.stackmob.sdk.api.StackMobDatastore#get(StackMobQuery, com.stackmob.sdk.callback.StackMobRawCallback)}
+         */
+        GET,
+        /**
+         * create raw json with {@link com.stackmob.sdk.api.StackMobDatastore#post(String, String, com.stackmob.sdk.callback.StackMobRawCallback)}
+         */
+        POST,
+        /**
+         * count the results of a query with {@link com.stackmob.sdk.api.StackMobDatastore#count(StackMobQuery, com.stackmob.sdk.callback.StackMobRawCallback)}
+         */
+        COUNT
+    }
+
+    /**
+     * The model the harness saves, fetches and queries
+     */
+    public static class LoadThing extends StackMobModel {
+        private String name;
+        private int score;
+
+        public LoadThing() {
+            super(LoadThing.class);
+        }
+
+        public LoadThing(String id) {
+            super(id, LoadThing.class);
+        }
+
+        public LoadThing(String name, int score) {
+            this();
+            this.name = name;
+            this.score = score;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+
+    private int[] threads = new int[] {1, 4, 16, 64};
+    private List<Mode> modes = Arrays.asList(Mode.values());
+    private double durationSeconds = 10;
+    private double warmupSeconds = 3;
+    private double rate = 0;
+    private final Map<Operation, Integer> mix = new EnumMap<Operation, Integer>(Operation.class);
+    private long minServerLatencyMillis = 0;
+    private long maxServerLatencyMillis = 0;
+    private double serverErrorRate = 0;
+    private int objects = 500;
+    private String host;
+    private PrintStream progress;
+
+    public StackMobLoadHarness() {
+        withMix("save:1,fetch:4,query:2,get:2,post:1");
+    }
+
+    /**
+     * set the levels of concurrency to measure each mode at
+     * @param threads the number of threads issuing calls at each level
+     * @return this harness
+     */
+    public StackMobLoadHarness withThreads(int... threads) {
+        for(int count : threads) if(count < 1) throw new IllegalArgumentException("At least one thread is required");
+        this.threads = threads.clone();
+        return this;
+    }
+
+    public StackMobLoadHarness withModes(Mode... modes) {
+        this.modes = Arrays.asList(modes);
+        return this;
+    }
+
+    /**
+     * set how long each run is measured for
+     * @param seconds the length of the measured period
+     * @return this harness
+     */
+    public StackMobLoadHarness withDuration(double seconds) {
+        this.durationSeconds = seconds;
+        return this;
+    }
+
+    /**
+     * set how long each run goes before it starts measuring, to let threads, connections and the JIT warm up
+     * @param seconds the length of the warmup
+     * @return this harness
+     */
+    public StackMobLoadHarness withWarmup(double seconds) {
+        this.warmupSeconds = seconds;
+        return this;
+    }
+
+    /**
+     * set the total rate to issue calls at, shared between the threads. With no rate, each thread issues its next
+     * call as soon as the last finishes
+     * @param callsPerSecond the target rate, or 0 to go as fast as possible
+     * @return this harness
+     */
+    public StackMobLoadHarness withRate(double callsPerSecond) {
+        this.rate = callsPerSecond;
+        return this;
+    }
+
+    /**
+     * set how often each kind of call is made relative to the others
+     * @param operation the kind of call
+     * @param weight its share of the calls, or 0 to leave it out
+     * @return this harness
+     */
+    public StackMobLoadHarness withWeight(Operation operation, int weight) {
+        if(weight < 0) throw new IllegalArgumentException("Weights can't be negative");
+        mix.put(operation, weight);
+        return this;
+    }
+
+    /**
+     * set the whole mix of calls from a string like "save:1,fetch:4,query:2", leaving out any call not named
+     * @param spec the calls and their weights
+     * @return this harness
+     */
+    public StackMobLoadHarness withMix(String spec) {
+        mix.clear();
+        for(String entry : spec.split(",")) {
+            String[] pair = entry.trim().split(":");
+            withWeight(Operation.valueOf(pair[0].trim().toUpperCase()), pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1);
+        }
+        return this;
+    }
+
+    /**
+     * make the stand-in server take a random time in a range to answer, as a real network and server would
+     * @param minMillis the shortest delay
+     * @param maxMillis the longest delay
+     * @return this harness
+     */
+    public StackMobLoadHarness withServerLatency(long minMillis, long maxMillis) {
+        this.minServerLatencyMillis = minMillis;
+        this.maxServerLatencyMillis = maxMillis;
+        return this;
+    }
+
+    /**
+     * make the stand-in server fail a fraction of calls with a 500
+     * @param rate the fraction to fail, between 0 and 1
+     * @return this harness
+     */
+    public StackMobLoadHarness withServerErrorRate(double rate) {
+        this.serverErrorRate = rate;
+        return this;
+    }
+
+    /**
+     * set how many objects to create before the runs, for fetches and queries to find
+     * @param objects the number of objects
+     * @return this harness
+     */
+    public StackMobLoadHarness withObjects(int objects) {
+        this.objects = Math.max(1, objects);
+        return this;
+    }
+
+    /**
+     * send calls to a server that's already running instead of starting a stand-in
+     * @param host the host and port, spoken to over http
+     * @return this harness
+     */
+    public StackMobLoadHarness withHost(String host) {
+        this.host = host;
+        return this;
+    }
+
+    /**
+     * print a line as each run finishes
+     * @param progress where to print, or null for nothing
+     * @return this harness
+     */
+    public StackMobLoadHarness withProgress(PrintStream progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * run every supported mode at every level of concurrency
+     * @return a result for each run, grouped by mode in increasing concurrency
+     * @throws Exception if the server can't be started or seeded
+     */
+    public List<StackMobLoadResult> run() throws Exception {
+        int totalWeight = 0;
+        for(int weight : mix.values()) totalWeight += weight;
+        if(totalWeight == 0) throw new IllegalStateException("The mix doesn't include any calls");
+
+        StackMobStandInServer server = null;
+        String target = host;
+        if(target == null) {
+            server = new StackMobStandInServer().withLatency(minServerLatencyMillis, maxServerLatencyMillis).start();
+            target = server.getHost();
+        }
+        try {
+            List<String> ids = seed(target);
+            if(server != null) server.withErrorRate(serverErrorRate, 500);
+            List<StackMobLoadResult> results = new ArrayList<StackMobLoadResult>();
+            for(Mode mode : modes) {
+                if(!mode.isSupported()) {
+                    if(progress != null) progress.println("Skipping " + mode + ": not supported on this JVM");
+                    continue;
+                }
+                StackMobLoadResult baseline = null;
+                for(int count : threads) {
+                    StackMobLoadResult result = runOnce(target, mode, count, ids);
+                    if(baseline == null) baseline = result;
+                    results.add(result);
+                    if(progress != null) progress.println(formatRow(result, baseline));
+                }
+            }
+            return results;
+        } finally {
+            if(server != null) server.stop();
+        }
+    }
+
+    private StackMob connect(String target) {
+        StackMob stackmob = new StackMob(StackMob.OAuthVersion.Two, 0, "LOAD_KEY", "LOAD_SECRET", target, "user", "username", "password", new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+        stackmob.getSession().setHTTPSOverride(false);
+        return stackmob;
+    }
+
+    /**
+     * create the user the runs log in as and the objects they read
+     * @return the ids of the objects
+     */
+    private List<String> seed(String target) throws Exception {
+        StackMob stackmob = connect(target);
+        try {
+            JsonObject user = new JsonObject();
+            user.addProperty("username", USERNAME);
+            user.addProperty("password", PASSWORD);
+            Call created = new Call();
+            stackmob.getDatastore().post("user", user.toString(), created);
+            created.await();
+
+            List<String> ids = new ArrayList<String>(objects);
+            Random random = new Random(42);
+            for(int start = 0; start < objects; start += 100) {
+                JsonArray batch = new JsonArray();
+                for(int i = start; i < Math.min(objects, start + 100); i++) {
+                    JsonObject thing = new JsonObject();
+                    thing.addProperty("name", "thing " + i);
+                    thing.addProperty("score", random.nextInt(1000));
+                    batch.add(thing);
+                }
+                Call posted = new Call();
+                stackmob.getDatastore().post("loadthing", batch.toString(), posted);
+                if(!posted.await()) throw new IllegalStateException("Couldn't create objects: " + posted.error);
+                for(JsonElement thing : new JsonParser().parse(posted.body).getAsJsonArray()) {
+                    ids.add(thing.getAsJsonObject().get("loadthing_id").getAsString());
+                }
+            }
+            return ids;
+        } finally {
+            stackmob.getSession().getTransport().shutdown();
+            shutdown(stackmob.getExecutor());
+        }
+    }
+
+    private StackMobLoadResult runOnce(String target, Mode mode, int threadCount, final List<String> ids) throws Exception {
+        int threadsBefore = countSdkThreads();
+        final StackMob stackmob = connect(target);
+        ExecutorService original = stackmob.getExecutor();
+        ExecutorService executor = mode.configure(stackmob);
+        StackMobMetrics metrics = new StackMobMetrics();
+        stackmob.setMetricsListener(metrics);
+        try {
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("username", USERNAME);
+            params.put("password", PASSWORD);
+            Call login = new Call();
+            stackmob.login(params, login);
+            if(!login.await()) throw new IllegalStateException("Couldn't log in: " + login.error);
+
+            final List<Operation> choices = new ArrayList<Operation>();
+            for(Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+                for(int i = 0; i < entry.getValue(); i++) choices.add(entry.getKey());
+            }
+            final StackMobLatencyHistogram latency = new StackMobLatencyHistogram();
+            final Map<Operation, StackMobLatencyHistogram> operationLatency = new EnumMap<Operation, StackMobLatencyHistogram>(Operation.class);
+            for(Operation operation : new HashSet<Operation>(choices)) operationLatency.put(operation, new StackMobLatencyHistogram());
+            final AtomicLong completed = new AtomicLong();
+            final AtomicLong errors = new AtomicLong();
+
+            long now = System.nanoTime();
+            final long measureStart = now + (long) (warmupSeconds * 1e9);
+            final long end = measureStart + (long) (durationSeconds * 1e9);
+            final long interval = rate > 0 ? (long) (threadCount * 1e9 / rate) : 0;
+            List<Thread> drivers = new ArrayList<Thread>();
+            for(int i = 0; i < threadCount; i++) {
+                // spread the threads' schedules out so a target rate isn't met in bursts
+                final long firstCall = now + (interval * i) / threadCount;
+                final Random random = new Random(i);
+                Thread driver = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        long next = firstCall;
+                        while(true) {
+                            long intended;
+                            if(interval > 0) {
+                                long wait = next - System.nanoTime();
+                                if(wait > 0) LockSupport.parkNanos(wait);
+                                intended = next;
+                                next += interval;
+                            } else {
+                                intended = System.nanoTime();
+                            }
+                            if(intended >= end) return;
+                            Operation operation = choices.get(random.nextInt(choices.size()));
+                            boolean succeeded = perform(stackmob, operation, ids, random);
+                            long finished = System.nanoTime();
+                            if(intended >= measureStart && finished <= end) {
+                                latency.record(finished - intended);
+                                operationLatency.get(operation).record(finished - intended);
+                                completed.incrementAndGet();
+                                if(!succeeded) errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }, DRIVER_THREAD_NAME_PREFIX + i);
+                driver.setDaemon(true);
+                drivers.add(driver);
+                driver.start();
+            }
+
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            sleepUntil(measureStart);
+            metrics.reset();
+            threadBean.resetPeakThreadCount();
+            long allocatedBefore = allocatedBytes();
+            sleepUntil(end);
+            long allocatedAfter = allocatedBytes();
+            int sdkThreads = countSdkThreads() - threadsBefore;
+            int peakThreads = threadBean.getPeakThreadCount();
+            for(Thread driver : drivers) driver.join(TimeUnit.SECONDS.toMillis(CALL_TIMEOUT_SECONDS));
+
+            return new StackMobLoadResult(mode,
+                                          threadCount,
+                                          durationSeconds,
+                                          completed.get(),
+                                          errors.get(),
+                                          latency,
+                                          operationLatency,
+                                          allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore,
+                                          sdkThreads,
+                                          peakThreads,
+                                          metrics);
+        } finally {
+            stackmob.getSession().getTransport().shutdown();
+            shutdown(executor);
+            shutdown(original);
+        }
+    }
+
+    /**
+     * stop an executor and wait for its threads to go, so they aren't counted against the next run
+     */
+    private static void shutdown(ExecutorService executor) throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * make one call and wait for it to finish
+     * @return whether it succeeded
+     */
+    private static boolean perform(StackMob stackmob, Operation operation, List<String> ids, Random random) {
+        Call call = new Call();
+        switch(operation) {
+            case SAVE:
+                LoadThing thing = new LoadThing("saved", random.nextInt(1000));
+                thing.setStackMob(stackmob);
+                thing.save(call);
+                break;
+            case FETCH:
+                LoadThing existing = new LoadThing(ids.get(random.nextInt(ids.size())));
+                existing.setStackMob(stackmob);
+                existing.fetch(call);
+                break;
+            case QUERY:
+                StackMobModel.query(stackmob, LoadThing.class, pageQuery(random), call.<LoadThing>forQuery());
+                break;
+            case GET:
+                stackmob.getDatastore().get(pageQuery(random), call);
+                break;
+            case POST:
+                JsonObject event = new JsonObject();
+                event.addProperty("kind", "load");
+                event.addProperty("value", random.nextInt(1000));
+                stackmob.getDatastore().post("loadevent", event.toString(), call);
+                break;
+            case COUNT:
+                stackmob.getDatastore().count(new StackMobQuery("loadthing").fieldIsGreaterThan("score", random.nextInt(1000)), call);
+                break;
+        }
+        try {
+            return call.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static StackMobQuery pageQuery(Random random) {
+        return new StackMobQuery("loadthing").fieldIsGreaterThanOrEqualTo("score", random.nextInt(900))
+                                             .fieldIsOrderedBy("score", StackMobQuery.Ordering.ASCENDING)
+                                             .isInRange(0, 19);
+    }
+
+    /**
+     * Waits for one call to finish
+     */
+    private static class Call extends StackMobCallback {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile String body;
+        private volatile StackMobException error;
+
+        @Override
+        public void success(String responseBody) {
+            body = responseBody;
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            error = e;
+            latch.countDown();
+        }
+
+        <T extends StackMobModel> StackMobQueryCallback<T> forQuery() {
+            return new StackMobQueryCallback<T>() {
+                @Override
+                public void success(List<T> result) {
+                    Call.this.success(null);
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    Call.this.failure(e);
+                }
+            };
+        }
+
+        /**
+         * @return true if the call succeeded in time
+         */
+        boolean await() throws InterruptedException {
+            return latch.await(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS) && error == null;
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long remaining;
+        while((remaining = nanoTime - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    private static boolean isHarnessThread(String name) {
+        return name == null
+                || name.startsWith(DRIVER_THREAD_NAME_PREFIX)
+                || name.startsWith(StackMobStandInServer.THREAD_NAME_PREFIX)
+                || name.startsWith("HTTP-Dispatcher");
+    }
+
+    /**
+     * the bytes allocated so far by threads that are still alive, leaving out the stand-in server's
+     * @return the total, or -1 if the JVM doesn't track allocation
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+        if(!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) return -1;
+        long[] ids = bean.getAllThreadIds();
+        ThreadInfo[] infos = bean.getThreadInfo(ids);
+        long[] bytes = allocations.getThreadAllocatedBytes(ids);
+        long total = 0;
+        for(int i = 0; i < ids.length; i++) {
+            // the drivers' allocation is counted, since it's the caller's share of each call
+            String name = infos[i] == null ? null : infos[i].getThreadName();
+            if(bytes[i] > 0 && (name == null || !isHarnessThread(name) || name.startsWith(DRIVER_THREAD_NAME_PREFIX))) total += bytes[i];
+        }
+        return total;
+    }
+
+    private static int countSdkThreads() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        int count = 0;
+        for(ThreadInfo info : bean.getThreadInfo(bean.getAllThreadIds())) {
+            if(info != null && !isHarnessThread(info.getThreadName())) count++;
+        }
+        return count;
+    }
+
+    // ================================================================================================================
+    // Reporting
+
+    private static final String HEADER = String.format("%-26s %7s %10s %7s %9s %9s %9s %9s %10s %8s %8s %8s",
+            "mode", "threads", "calls/s", "scale", "p50 ms", "p90 ms", "p99 ms", "max ms", "alloc MB/s", "threads", "peak", "errors");
+
+    /**
+     * print a table of results, with each mode's throughput scaled against its lowest concurrency
+     * @param results the results of {@link #run()}
+     * @param out where to print
+     */
+    public static void printReport(List<StackMobLoadResult> results, PrintStream out) {
+        out.println(HEADER);
+        Mode mode = null;
+        StackMobLoadResult baseline = null;
+        for(StackMobLoadResult result : results) {
+            if(result.getMode() != mode) {
+                mode = result.getMode();
+                baseline = result;
+            }
+            out.println(formatRow(result, baseline));
+        }
+        out.println();
+        out.println("Latency by call, p50/p99 ms");
+        for(StackMobLoadResult result : results) {
+            StringBuilder line = new StringBuilder(String.format("%-26s %7d ", result.getMode().getDescription(), result.getThreads()));
+            for(Operation operation : Operation.values()) {
+                StackMobLatencyHistogram histogram = result.getLatency(operation);
+                if(histogram == null) continue;
+                line.append(String.format(" %s %.1f/%.1f", operation.name().toLowerCase(), millis(histogram.getPercentileNanos(50)), millis(histogram.getPercentileNanos(99))));
+            }
+            StackMobMetrics metrics = result.getMetrics();
+            line.append(String.format("  queued p99 %.1f, retries %d", millis(metrics.getHistogram(com.stackmob.sdk.api.StackMobRequestMetrics.Phase.QUEUE_WAIT).getPercentileNanos(99)), metrics.getRetryCount()));
+            out.println(line);
+        }
+    }
+
+    private static String formatRow(StackMobLoadResult result, StackMobLoadResult baseline) {
+        StackMobLatencyHistogram latency = result.getLatency();
+        double scale = baseline == null || baseline.getThroughput() == 0 ? 1 : result.getThroughput() / baseline.getThroughput();
+        double allocation = result.getAllocationRate();
+        return String.format("%-26s %7d %10.1f %6.2fx %9.2f %9.2f %9.2f %9.2f %10s %8d %8d %8d",
+                result.getMode().getDescription(),
+                result.getThreads(),
+                result.getThroughput(),
+                scale,
+                millis(latency.getPercentileNanos(50)),
+                millis(latency.getPercentileNanos(90)),
+                millis(latency.getPercentileNanos(99)),
+                millis(latency.getMaxNanos()),
+                allocation < 0 ? "n/a" : String.format("%.1f", allocation / (1024 * 1024)),
+                result.getSdkThreads(),
+                result.getPeakThreads(),
+                result.getErrors());
+    }
+
+    /**
+     * write the results as CSV, one row per run, for plotting scaling curves
+     * @param results the results of {@link #run()}
+     * @param path the file to write
+     * @throws IOException if the file can't be written
+     */
+    public static void writeCsv(List<StackMobLoadResult> results, String path) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(path));
+        try {
+            out.println("mode,threads,throughput,p50_ms,p90_ms,p99_ms,max_ms,alloc_bytes_per_s,sdk_threads,peak_threads,completed,errors,retries");
+            for(StackMobLoadResult result : results) {
+                StackMobLatencyHistogram latency = result.getLatency();
+                out.println(String.format(Locale.US, "%s,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%.0f,%d,%d,%d,%d,%d",
+                        result.getMode().name().toLowerCase(),
+                        result.getThreads(),
+                        result.getThroughput(),
+                        millis(latency.getPercentileNanos(50)),
+                        millis(latency.getPercentileNanos(90)),
+                        millis(latency.getPercentileNanos(99)),
+                        millis(latency.getMaxNanos()),
+                        result.getAllocationRate(),
+                        result.getSdkThreads(),
+                        result.getPeakThreads(),
+                        result.getCompleted(),
+                        result.getErrors(),
+                        result.getMetrics().getRetryCount()));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * run the harness from the command line with arguments like threads=1,4,16 modes=bounded,async duration=10
+     * rate=0 warmup=3 mix=save:1,fetch:4 latency=2-5 errors=0.01 objects=500 host=host:port csv=results.csv
+     */
+    public static void main(String[] args) throws Exception {
+        StackMobLoadHarness harness = new StackMobLoadHarness().withProgress(System.out);
+        String csv = null;
+        for(String arg : args) {
+            int equals = arg.indexOf('=');
+            if(equals < 0) throw new IllegalArgumentException("Expected name=value but got " + arg);
+            String name = arg.substring(0, equals).trim();
+            String value = arg.substring(equals + 1).trim();
+            if(value.length() == 0) continue;
+            if(name.equals("threads")) {
+                String[] counts = value.split(",");
+                int[] threads = new int[counts.length];
+                for(int i = 0; i < counts.length; i++) threads[i] = Integer.parseInt(counts[i].trim());
+                harness.withThreads(threads);
+            } else if(name.equals("modes")) {
+                String[] names = value.split(",");
+                Mode[] modes = new Mode[names.length];
+                for(int i = 0; i < names.length; i++) modes[i] = Mode.valueOf(names[i].trim().toUpperCase());
+                harness.withModes(modes);
+            } else if(name.equals("duration")) {
+                harness.withDuration(Double.parseDouble(value));
+            } else if(name.equals("warmup")) {
+                harness.withWarmup(Double.parseDouble(value));
+            } else if(name.equals("rate")) {
+                harness.withRate(Double.parseDouble(value));
+            } else if(name.equals("mix")) {
+                harness.withMix(value);
+            } else if(name.equals("latency")) {
+                String[] range = value.split("-");
+                harness.withServerLatency(Long.parseLong(range[0].trim()), Long.parseLong(range[range.length - 1].trim()));
+            } else if(name.equals("errors")) {
+                harness.withServerErrorRate(Double.parseDouble(value));
+            } else if(name.equals("objects")) {
+                harness.withObjects(Integer.parseInt(value));
+            } else if(name.equals("host")) {
+                harness.withHost(value);
+            } else if(name.equals("csv")) {
+                csv = value;
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + name);
+            }
+        }
+        System.out.println(HEADER);
+        List<StackMobLoadResult> results = harness.run();
+        System.out.println();
+        printReport(results, System.out);
+        if(csv != null) writeCsv(results, csv);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.load;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StackMobLoadHarnessTests {
+
+    @Test public void runsEachModeAtEachConcurrency() throws Exception {
+        List<StackMobLoadResult> results = new StackMobLoadHarness().withThreads(1, 2)
+                                                                    .withModes(StackMobLoadHarness.Mode.BOUNDED, StackMobLoadHarness.Mode.ASYNC)
+                                                                    .withDuration(0.5)
+                                                                    .withWarmup(0.2)
+                                                                    .withObjects(20)
+                                                                    .run();
+        assertEquals(4, results.size());
+        for(StackMobLoadResult result : results) {
+            assertTrue(result.getCompleted() > 0);
+            assertEquals(0, result.getErrors());
+            assertEquals(result.getCompleted(), result.getLatency().getCount());
+            assertNotNull(result.getLatency(StackMobLoadHarness.Operation.FETCH));
+            assertNull(result.getLatency(StackMobLoadHarness.Operation.COUNT));
+        }
+        assertEquals(StackMobLoadHarness.Mode.BOUNDED, results.get(0).getMode());
+        assertEquals(2, results.get(1).getThreads());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StackMobLoadHarness.printReport(results, new PrintStream(out, true));
+        assertTrue(out.toString().contains(StackMobLoadHarness.Mode.ASYNC.getDescription()));
+    }
+
+    @Test public void invalidSettingsAreRejected() {
+        StackMobLoadHarness harness = new StackMobLoadHarness().withMix("fetch:3, count");
+        try {
+            harness.withMix("teleport:1");
+            fail("an unknown call should be rejected");
+        } catch(IllegalArgumentException expected) { }
+        try {
+            new StackMobLoadHarness().withThreads(0);
+            fail("zero threads should be rejected");
+        } catch(IllegalArgumentException expected) { }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.load;
+
+import com.stackmob.sdk.api.StackMobLatencyHistogram;
+import com.stackmob.sdk.api.StackMobMetrics;
+
+import java.util.Map;
+
+/**
+ * What one load run measured: a single execution mode driven by a fixed number of threads for a fixed time
+ */
+public class StackMobLoadResult {
+
+    private final StackMobLoadHarness.Mode mode;
+    private final int threads;
+    private final double seconds;
+    private final long completed;
+    private final long errors;
+    private final StackMobLatencyHistogram latency;
+    private final Map<StackMobLoadHarness.Operation, StackMobLatencyHistogram> operationLatency;
+    private final long allocatedBytes;
+    private final int sdkThreads;
+    private final int peakThreads;
+    private final StackMobMetrics metrics;
+
+    StackMobLoadResult(StackMobLoadHarness.Mode mode,
+                       int threads,
+                       double seconds,
+                       long completed,
+                       long errors,
+                       StackMobLatencyHistogram latency,
+                       Map<StackMobLoadHarness.Operation, StackMobLatencyHistogram> operationLatency,
+                       long allocatedBytes,
+                       int sdkThreads,
+                       int peakThreads,
+                       StackMobMetrics metrics) {
+        this.mode = mode;
+        this.threads = threads;
+        this.seconds = seconds;
+        this.completed = completed;
+        this.errors = errors;
+        this.latency = latency;
+        this.operationLatency = operationLatency;
+        this.allocatedBytes = allocatedBytes;
+        this.sdkThreads = sdkThreads;
+        this.peakThreads = peakThreads;
+        this.metrics = metrics;
+    }
+
+    public StackMobLoadHarness.Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * the number of threads issuing calls, which is also the most calls in flight at once
+     * @return the concurrency
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public double getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * the number of calls that finished in the measured period, including failed ones
+     * @return the count
+     */
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * calls finished per second
+     * @return the throughput
+     */
+    public double getThroughput() {
+        return seconds <= 0 ? 0 : completed / seconds;
+    }
+
+    /**
+     * the time from when each call was due to start until its callback finished. When a target rate is set, a call
+     * held up by a slow one before it counts the time it spent waiting
+     * @return the histogram
+     */
+    public StackMobLatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * the latency of one kind of call
+     * @param operation the kind of call
+     * @return the histogram, or null if the mix didn't include it
+     */
+    public StackMobLatencyHistogram getLatency(StackMobLoadHarness.Operation operation) {
+        return operationLatency.get(operation);
+    }
+
+    /**
+     * bytes allocated per second by every thread except the stand-in server's, or -1 if the JVM can't say
+     * @return the allocation rate
+     */
+    public double getAllocationRate() {
+        return allocatedBytes < 0 || seconds <= 0 ? -1 : allocatedBytes / seconds;
+    }
+
+    /**
+     * the number of threads the run added by the time it finished, not counting the harness's or the stand-in
+     * server's
+     * @return the count
+     */
+    public int getSdkThreads() {
+        return sdkThreads;
+    }
+
+    /**
+     * the most threads alive in the whole JVM during the run
+     * @return the count
+     */
+    public int getPeakThreads() {
+        return peakThreads;
+    }
+
+    /**
+     * the SDK's own view of the requests made, including retries and time spent queued
+     * @return the metrics
+     */
+    public StackMobMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobSession;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.request.StackMobRequestWithoutPayload;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobNioTransportTests extends StackMobTestCommon {
+
+    private HttpServer server;
+    private String baseUrl;
+    private final Set<String> clientAddresses = Collections.synchronizedSet(new HashSet<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientAddresses.add(exchange.getRemoteAddress().toString());
+                byte[] requestBody = readFully(exchange.getRequestBody());
+                String path = exchange.getRequestURI().getPath();
+                try {
+                    if(path.startsWith("/slow")) Thread.sleep(100);
+                    if(path.startsWith("/stall")) Thread.sleep(1000);
+                } catch(InterruptedException ignore) { }
+                byte[] response = path.equals("/echo") ? requestBody : ("{\"path\":\"" + path + "\"}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, path.equals("/chunked") ? 0 : response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while((n = in.read(buf)) != -1) out.write(buf, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private String send(StackMobTransport transport, Verb verb, String path, String body) throws IOException {
+        OAuthRequest req = new OAuthRequest(verb, baseUrl + path);
+        req.setCharset("UTF-8");
+        if(body != null) req.addPayload(body);
+        StackMobHttpResponse response = transport.send(req);
+        assertEquals(200, response.getCode());
+        return new String(readFully(response.getStream()), "UTF-8");
+    }
+
+    @Test public void reusesConnections() throws Exception {
+        StackMobNioTransport transport = new StackMobNioTransport();
+        for(int i = 0; i < 5; i++) {
+            assertEquals("{\"path\":\"/thing" + i + "\"}", send(transport, Verb.GET, "/thing" + i, null));
+        }
+        assertEquals("{\"path\":\"/chunked\"}", send(transport, Verb.GET, "/chunked", null));
+        assertEquals(1, clientAddresses.size());
+        assertEquals(1, transport.getIdleConnectionCount());
+        assertEquals(0, transport.getLeasedConnectionCount());
+        transport.shutdown();
+    }
+
+    @Test public void sendsBodies() throws Exception {
+        StackMobNioTransport transport = new StackMobNioTransport();
+        assertEquals("{\"name\":\"café\"}", send(transport, Verb.POST, "/echo", "{\"name\":\"café\"}"));
+        assertEquals("", send(transport, Verb.PUT, "/echo", ""));
+        transport.shutdown();
+    }
+
+    @Test public void multiplexesManyRequestsOverFewThreads() throws Exception {
+        awaitStoppedIoThreads();
+        int ioThreadsBefore = countIoThreads();
+        StackMobNioTransport transport = new StackMobNioTransport().withIoThreads(1).withMaxConnectionsPerHost(50);
+        int requests = 200;
+        final CountDownLatch latch = new CountDownLatch(requests);
+        final AtomicInteger succeeded = new AtomicInteger();
+        for(int i = 0; i < requests; i++) {
+            transport.sendAsync(new OAuthRequest(Verb.GET, baseUrl + "/slow" + i), new StackMobAsyncTransport.Listener() {
+                @Override
+                public void completed(StackMobHttpResponse response) {
+                    if(response.getCode() == 200) succeeded.incrementAndGet();
+                    latch.countDown();
+                }
+
+                @Override
+                public void failed(IOException e) {
+                    latch.countDown();
+                }
+            });
+        }
+        // the caller isn't blocked, and the requests all share the one I/O thread
+        assertEquals(1, countIoThreads() - ioThreadsBefore);
+        assertTrue(transport.getQueuedRequestCount() > 0);
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(requests, succeeded.get());
+        assertTrue(clientAddresses.size() <= 50);
+        assertEquals(0, transport.getQueuedRequestCount());
+        transport.shutdown();
+    }
+
+    private static int countIoThreads() {
+        int count = 0;
+        for(Thread thread : Thread.getAllStackTraces().keySet()) {
+            if(thread.getName().startsWith("StackMob I/O")) count++;
+        }
+        return count;
+    }
+
+    // transports shut down by earlier tests may still be winding down
+    private static void awaitStoppedIoThreads() throws InterruptedException {
+        for(Thread thread : Thread.getAllStackTraces().keySet()) {
+            if(thread.getName().startsWith("StackMob I/O")) thread.join(1000);
+        }
+    }
+
+    @Test public void queuedRequestsTimeOut() throws Exception {
+        StackMobNioTransport transport = new StackMobNioTransport().withMaxConnectionsPerHost(1).withConnectTimeout(50);
+        final CountDownLatch latch = new CountDownLatch(2);
+        final IOException[] failures = new IOException[2];
+        for(int i = 0; i < 2; i++) {
+            final int index = i;
+            transport.sendAsync(new OAuthRequest(Verb.GET, baseUrl + "/stall"), new StackMobAsyncTransport.Listener() {
+                @Override
+                public void completed(StackMobHttpResponse response) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void failed(IOException e) {
+                    failures[index] = e;
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNull(failures[0]);
+        assertTrue(failures[1] instanceof SocketTimeoutException);
+        transport.shutdown();
+    }
+
+    @Test public void failsForUnknownHosts() throws Exception {
+        StackMobNioTransport transport = new StackMobNioTransport();
+        try {
+            transport.send(new OAuthRequest(Verb.GET, "http://unknown-host.invalid/thing"));
+            fail("a request to a host that doesn't resolve should fail");
+        } catch(UnknownHostException expected) { }
+        // the lookup didn't hold up the I/O thread
+        assertEquals("{\"path\":\"/thing\"}", send(transport, Verb.GET, "/thing", null));
+        transport.shutdown();
+    }
+
+    @Test public void failsAfterShutdown() throws Exception {
+        StackMobNioTransport transport = new StackMobNioTransport();
+        transport.shutdown();
+        try {
+            send(transport, Verb.GET, "/closed", null);
+            fail("a request on a shut down transport should fail");
+        } catch(IOException expected) { }
+    }
+
+    @Test public void shutdownFailsRequestsInFlightAndQueued() throws Exception {
+        StackMobNioTransport transport = new StackMobNioTransport().withMaxConnectionsPerHost(1);
+        final CountDownLatch latch = new CountDownLatch(3);
+        final IOException[] failures = new IOException[3];
+        for(int i = 0; i < 3; i++) {
+            final int index = i;
+            transport.sendAsync(new OAuthRequest(Verb.GET, baseUrl + "/stall"), new StackMobAsyncTransport.Listener() {
+                @Override
+                public void completed(StackMobHttpResponse response) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void failed(IOException e) {
+                    failures[index] = e;
+                    latch.countDown();
+                }
+            });
+        }
+        assertEquals(2, transport.getQueuedRequestCount());
+        transport.shutdown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for(IOException failure : failures) assertNotNull(failure);
+        assertEquals(0, transport.getQueuedRequestCount());
+    }
+
+    @Test public void completesRequestCallbacks() throws Exception {
+        StackMobSession session = new StackMobSession(stackmob.getSession());
+        StackMobNioTransport transport = new StackMobNioTransport();
+        session.setTransport(transport);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> body = new AtomicReference<String>();
+        new StackMobRequestWithoutPayload(Executors.newSingleThreadExecutor(), session, null, HttpVerbWithoutPayload.GET,
+                StackMobOptions.https(false), new ArrayList<Map.Entry<String, String>>(), "thing", new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                body.set(responseBody);
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                latch.countDown();
+            }
+        }, new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        }).setUrlFormat("127.0.0.1:" + server.getAddress().getPort()).sendRequest();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals("{\"path\":\"/thing\"}", body.get());
+        transport.shutdown();
+    }
+
+    @Test public void refusesStreamingCallbacks() throws Exception {
+        StackMobSession session = new StackMobSession(stackmob.getSession());
+        StackMobNioTransport transport = new StackMobNioTransport();
+        session.setTransport(transport);
+        final AtomicReference<StackMobException> failure = new AtomicReference<StackMobException>();
+        new StackMobRequestWithoutPayload(Executors.newSingleThreadExecutor(), session, null, HttpVerbWithoutPayload.GET,
+                StackMobOptions.https(false), new ArrayList<Map.Entry<String, String>>(), "thing", new StackMobStreamingCallback() {
+            @Override
+            public void success(InputStream body) throws IOException { }
+
+            @Override
+            public void failure(StackMobException e) {
+                failure.set(e);
+            }
+        }, new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        }).setUrlFormat("127.0.0.1:" + server.getAddress().getPort()).sendRequest();
+        // the whole body would be buffered, so the request isn't sent
+        assertNotNull(failure.get());
+        assertEquals(0, clientAddresses.size());
+        transport.shutdown();
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobSession;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.request.StackMobRequestWithoutPayload;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class StackMobPooledTransportTests extends StackMobTestCommon {
+
+    private static final int LARGE_SIZE = 4 * 1024 * 1024;
+
+    private HttpServer server;
+    private String baseUrl;
+    private final Set<String> clientAddresses = Collections.synchronizedSet(new HashSet<String>());
+    private final List<String> requestTargets = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientAddresses.add(exchange.getRemoteAddress().toString());
+                requestTargets.add(exchange.getRequestURI().toString());
+                byte[] requestBody = readFully(exchange.getRequestBody());
+                String path = exchange.getRequestURI().getPath();
+                byte[] response;
+                if(path.equals("/echo")) {
+                    response = requestBody;
+                } else if(path.equals("/large")) {
+                    response = new byte[LARGE_SIZE];
+                    Arrays.fill(response, (byte) 'x');
+                } else {
+                    response = ("{\"path\":\"" + path + "\"}").getBytes("UTF-8");
+                }
+                // a length of 0 makes the server send the body chunked
+                exchange.sendResponseHeaders(200, path.equals("/chunked") || path.equals("/large") ? 0 : response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while((n = in.read(buf)) != -1) out.write(buf, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private String send(StackMobTransport transport, Verb verb, String path, String body) throws IOException {
+        OAuthRequest req = new OAuthRequest(verb, baseUrl + path);
+        req.addHeader("Accept", "application/json");
+        req.setCharset("UTF-8");
+        if(body != null) req.addPayload(body);
+        StackMobHttpResponse response = transport.send(req);
+        assertEquals(200, response.getCode());
+        return new String(readFully(response.getStream()), "UTF-8");
+    }
+
+    @Test public void isOptIn() {
+        assertTrue(stackmob.getSession().getTransport() instanceof StackMobScribeTransport);
+    }
+
+    @Test public void reusesConnections() throws Exception {
+        StackMobPooledTransport transport = new StackMobPooledTransport();
+        for(int i = 0; i < 5; i++) {
+            assertEquals("{\"path\":\"/thing" + i + "\"}", send(transport, Verb.GET, "/thing" + i, null));
+        }
+        assertEquals(1, clientAddresses.size());
+        assertEquals(1, transport.getIdleConnectionCount());
+        assertEquals(0, transport.getLeasedConnectionCount());
+        transport.shutdown();
+        assertEquals(0, transport.getIdleConnectionCount());
+    }
+
+    @Test public void onlyResendsRequestsTheServerCantHaveProcessed() throws Exception {
+        assertTrue(HttpWireFormat.canResend("POST", false, new IOException("reset")));
+        assertFalse(HttpWireFormat.canResend("POST", true, new IOException("reset")));
+        assertFalse(HttpWireFormat.canResend("PUT", true, new IOException("reset")));
+        assertTrue(HttpWireFormat.canResend("GET", true, new IOException("reset")));
+        assertFalse(HttpWireFormat.canResend("GET", true, new SocketTimeoutException("slow")));
+        assertFalse(HttpWireFormat.canResend("GET", false, new SocketTimeoutException("slow")));
+    }
+
+    @Test public void readsChunkedBodies() throws Exception {
+        StackMobPooledTransport transport = new StackMobPooledTransport();
+        assertEquals("{\"path\":\"/chunked\"}", send(transport, Verb.GET, "/chunked", null));
+        assertEquals("{\"path\":\"/chunked\"}", send(transport, Verb.GET, "/chunked", null));
+        assertEquals(1, clientAddresses.size());
+        transport.shutdown();
+    }
+
+    @Test public void sendsBodies() throws Exception {
+        StackMobPooledTransport transport = new StackMobPooledTransport();
+        assertEquals("{\"name\":\"café\"}", send(transport, Verb.POST, "/echo", "{\"name\":\"café\"}"));
+        assertEquals("", send(transport, Verb.PUT, "/echo", ""));
+        transport.shutdown();
+    }
+
+    @Test public void limitsConnectionsPerHost() throws Exception {
+        StackMobPooledTransport transport = new StackMobPooledTransport().withMaxConnectionsPerHost(1).withConnectTimeout(200);
+        StackMobHttpResponse held = transport.send(new OAuthRequest(Verb.GET, baseUrl + "/held"));
+        try {
+            transport.send(new OAuthRequest(Verb.GET, baseUrl + "/blocked"));
+            fail("the second request should have timed out waiting for a connection");
+        } catch(IOException expected) { }
+        readFully(held.getStream());
+        assertEquals("{\"path\":\"/free\"}", send(transport, Verb.GET, "/free", null));
+        transport.shutdown();
+    }
+
+    @Test public void abandonedBodiesCloseTheConnection() throws Exception {
+        StackMobPooledTransport transport = new StackMobPooledTransport();
+        StackMobHttpResponse response = transport.send(new OAuthRequest(Verb.GET, baseUrl + "/abandoned"));
+        response.close();
+        assertEquals(0, transport.getIdleConnectionCount());
+        assertEquals(0, transport.getLeasedConnectionCount());
+        transport.shutdown();
+    }
+
+    @Test public void streamsToStreamingCallbacks() throws Exception {
+        StackMobSession session = new StackMobSession(stackmob.getSession());
+        StackMobPooledTransport transport = new StackMobPooledTransport();
+        session.setTransport(transport);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicLong read = new AtomicLong();
+        final AtomicLong buffered = new AtomicLong(-1);
+        new StackMobRequestWithoutPayload(Executors.newSingleThreadExecutor(), session, null, HttpVerbWithoutPayload.GET,
+                StackMobOptions.https(false), new ArrayList<Map.Entry<String, String>>(), "large", new StackMobStreamingCallback() {
+            @Override
+            public void success(InputStream body) throws IOException {
+                // the body is read from the socket a piece at a time, so it's never all available at once
+                buffered.set(body.available());
+                byte[] buf = new byte[8192];
+                int n;
+                while((n = body.read(buf)) != -1) read.addAndGet(n);
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                latch.countDown();
+            }
+        }, new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        }).setUrlFormat("127.0.0.1:" + server.getAddress().getPort()).sendRequest();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(LARGE_SIZE, read.get());
+        assertTrue(buffered.get() < LARGE_SIZE);
+        assertEquals(1, transport.getIdleConnectionCount());
+        transport.shutdown();
+    }
+
+    @Test public void sendsThroughTheDefaultProxySelector() throws Exception {
+        ProxySelector original = ProxySelector.getDefault();
+        final Proxy proxy = new Proxy(Proxy.Type.HTTP, server.getAddress());
+        final List<URI> selected = Collections.synchronizedList(new ArrayList<URI>());
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                selected.add(uri);
+                return Collections.singletonList(proxy);
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress sa, IOException ioe) { }
+        });
+        StackMobPooledTransport transport = new StackMobPooledTransport();
+        try {
+            // the host doesn't exist, so the request only arrives if it went through the proxy
+            OAuthRequest req = new OAuthRequest(Verb.GET, "http://stackmob.invalid/thing");
+            StackMobHttpResponse response = transport.send(req);
+            assertEquals(200, response.getCode());
+            assertEquals("{\"path\":\"/thing\"}", new String(readFully(response.getStream()), "UTF-8"));
+            assertEquals(Arrays.asList(URI.create("http://stackmob.invalid")), selected);
+            assertEquals(Arrays.asList("http://stackmob.invalid/thing"), requestTargets);
+        } finally {
+            ProxySelector.setDefault(original);
+            transport.shutdown();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.api.StackMobDatastore;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobSession;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StackMobCoalescingTests extends StackMobTestCommon {
+
+    private HttpServer server;
+    private StackMobSession session;
+    private StackMobDatastore datastore;
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // slow enough that the concurrent requests all arrive while the first is in flight
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int count = requestCount.incrementAndGet();
+                try {
+                    Thread.sleep(300);
+                } catch(InterruptedException ignore) { }
+                byte[] response = ("{\"path\":\"" + exchange.getRequestURI().getPath() + "\",\"request\":" + count + "}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        session = new StackMobSession(stackmob.getSession());
+        session.setCoalesceReads(true);
+        datastore = new StackMobDatastore(Executors.newCachedThreadPool(), session, "127.0.0.1:" + server.getAddress().getPort(), new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private ConcurrentLinkedQueue<String> getAll(String[] paths) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(paths.length);
+        final ConcurrentLinkedQueue<String> bodies = new ConcurrentLinkedQueue<String>();
+        for(String path : paths) {
+            datastore.get(path, StackMobOptions.https(false), new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    bodies.add(responseBody);
+                    latch.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    bodies.add("failed: " + e.getMessage());
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return bodies;
+    }
+
+    @Test public void identicalReadsShareOneRequest() throws Exception {
+        String[] paths = new String[10];
+        for(int i = 0; i < paths.length; i++) paths[i] = "hot";
+        ConcurrentLinkedQueue<String> bodies = getAll(paths);
+        assertEquals(1, requestCount.get());
+        for(String body : bodies) assertEquals("{\"path\":\"/hot\",\"request\":1}", body);
+
+        // once the response is in, the next read goes to the server
+        getAll(new String[] { "hot" });
+        assertEquals(2, requestCount.get());
+    }
+
+    @Test public void differentReadsAreSentSeparately() throws Exception {
+        getAll(new String[] { "hot", "cold", "hot", "cold" });
+        assertEquals(2, requestCount.get());
+    }
+
+    @Test public void coalescingIsOptIn() throws Exception {
+        session.setCoalesceReads(false);
+        getAll(new String[] { "hot", "hot", "hot" });
+        assertEquals(3, requestCount.get());
+    }
+
+    @Test public void eachCallerGetsItsOwnBody() throws Exception {
+        final int callers = 5;
+        final CountDownLatch latch = new CountDownLatch(callers);
+        final ConcurrentLinkedQueue<String> bodies = new ConcurrentLinkedQueue<String>();
+        for(int i = 0; i < callers; i++) {
+            datastore.get("hot", StackMobOptions.https(false), new StackMobRawCallback() {
+                @Override
+                public void unsent(StackMobException e) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void temporaryPasswordResetRequired(StackMobException e) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+                    try {
+                        bodies.add(new String(responseBody, "UTF-8"));
+                    } catch(UnsupportedEncodingException ignore) { }
+                    // scribble over the body, which mustn't show up in anyone else's
+                    Arrays.fill(responseBody, (byte) 'x');
+                    latch.countDown();
+                }
+
+                @Override
+                public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(1, requestCount.get());
+        assertEquals(callers, bodies.size());
+        for(String body : bodies) assertEquals("{\"path\":\"/hot\",\"request\":1}", body);
+    }
+}
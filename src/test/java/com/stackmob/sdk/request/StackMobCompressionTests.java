@@ -0,0 +1,168 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobSession;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class StackMobCompressionTests extends StackMobTestCommon {
+
+    private static final StackMobRedirectedCallback redirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+    };
+
+    private HttpServer server;
+    private final List<String> requestEncodings = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // echoes the request body, decompressing and compressing it as the client asks
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String requestEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                requestEncodings.add(String.valueOf(requestEncoding));
+                InputStream in = exchange.getRequestBody();
+                if("gzip".equals(requestEncoding)) in = new GZIPInputStream(in);
+                byte[] response = readFully(in);
+                String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if(accept != null && accept.contains("gzip")) {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                    gzip.write(response);
+                    gzip.close();
+                    response = compressed.toByteArray();
+                    exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while((n = in.read(buf)) != -1) out.write(buf, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private String post(StackMobSession session, String body) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> response = new AtomicReference<String>();
+        StackMobRawCallback callback = new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                response.set(responseBody);
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                response.set("failed: " + e.getMessage());
+                latch.countDown();
+            }
+        };
+        new StackMobRequestWithPayload(Executors.newSingleThreadExecutor(), session, HttpVerbWithPayload.POST, StackMobOptions.https(false),
+                StackMobRequest.EmptyParams, body, "echo", callback, redirectedCallback)
+                .setUrlFormat("127.0.0.1:" + server.getAddress().getPort()).sendRequest();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return response.get();
+    }
+
+    private static String bulkBody() {
+        StringBuilder body = new StringBuilder("[");
+        for(int i = 0; i < 500; i++) {
+            if(i > 0) body.append(",");
+            body.append("{\"name\":\"task ").append(i).append("\",\"done\":false}");
+        }
+        return body.append("]").toString();
+    }
+
+    @Test public void compressesOnEveryTransport() throws Exception {
+        String bulk = bulkBody();
+        StackMobTransport[] transports = { new StackMobNioTransport(), new StackMobPooledTransport(), new StackMobScribeTransport() };
+        for(StackMobTransport transport : transports) {
+            StackMobSession session = new StackMobSession(stackmob.getSession());
+            session.setTransport(transport);
+            session.setRequestCompressionThreshold(1024);
+            assertEquals(bulk, post(session, bulk));
+            assertEquals("{\"small\":true}", post(session, "{\"small\":true}"));
+            transport.shutdown();
+        }
+        assertEquals(6, requestEncodings.size());
+        for(int i = 0; i < 6; i += 2) {
+            assertEquals("gzip", requestEncodings.get(i));
+            assertEquals("null", requestEncodings.get(i + 1));
+        }
+    }
+
+    @Test public void requestCompressionIsOffByDefault() throws Exception {
+        StackMobSession session = new StackMobSession(stackmob.getSession());
+        String bulk = bulkBody();
+        assertEquals(bulk, post(session, bulk));
+        assertEquals("null", requestEncodings.get(0));
+    }
+
+    @Test public void responseCompressionCanBeTurnedOff() throws Exception {
+        StackMobSession session = new StackMobSession(stackmob.getSession());
+        session.setAcceptCompressedResponses(false);
+        assertEquals("{\"plain\":true}", post(session, "{\"plain\":true}"));
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobSession;
+import com.stackmob.sdk.callback.StackMobNoopCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StackMobRequestFactoryTests extends StackMobTestCommon {
+
+    private static OAuthRequest build(StackMobSession session) {
+        StackMobRequestWithoutPayload request = new StackMobRequestWithoutPayload(null,
+                                                                                 session,
+                                                                                 HttpVerbWithoutPayload.GET,
+                                                                                 StackMobOptions.none(),
+                                                                                 StackMobRequest.EmptyParams,
+                                                                                 "thing/1",
+                                                                                 new StackMobNoopCallback(),
+                                                                                 new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+        return request.getOAuthRequest("https", HttpVerbWithoutPayload.GET, "https://api.stackmob.com/thing/1");
+    }
+
+    @Test public void requestsShareTheSessionsFactory() {
+        StackMobSession session = new StackMobSession(StackMob.OAuthVersion.Two, 3, "KEY", "SECRET", "user", "username");
+        StackMobRequestFactory factory = session.getRequestFactory();
+        assertSame(factory, session.getRequestFactory());
+        assertSame(factory.getGson(), new StackMobSession(session).getRequestFactory().getGson());
+        assertSame(factory.getOAuthService(), factory.getOAuthService());
+        assertEquals("application/vnd.stackmob+json; version=3", factory.getAccept());
+        assertEquals(session.getUserAgent(), factory.getUserAgent());
+    }
+
+    @Test public void requestsGetTheSharedHeaders() {
+        StackMobSession session = new StackMobSession(StackMob.OAuthVersion.Two, 0, "KEY", "SECRET", "user", "username");
+        OAuthRequest req = build(session);
+        assertEquals("application/vnd.stackmob+json; version=0", req.getHeaders().get("Accept"));
+        assertEquals(session.getUserAgent(), req.getHeaders().get("User-Agent"));
+        assertEquals("KEY", req.getHeaders().get("X-StackMob-API-Key"));
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobDatastore;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobSession;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StackMobTokenRefreshTests extends StackMobTestCommon {
+
+    private HttpServer server;
+    private String host;
+    private final AtomicInteger refreshCount = new AtomicInteger();
+    private final List<String> authorizations = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // refreshes are slow enough that every request finds the token expired while one is in flight
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String response = "{}";
+                if(exchange.getRequestURI().getPath().endsWith("/refreshToken")) {
+                    refreshCount.incrementAndGet();
+                    try {
+                        Thread.sleep(200);
+                    } catch(InterruptedException ignore) { }
+                    response = "{\"access_token\":\"fresh\",\"mac_key\":\"freshkey\",\"expires_in\":3600,\"refresh_token\":\"refresh2\"}";
+                } else {
+                    authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                }
+                byte[] bytes = response.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        host = "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test public void concurrentRequestsShareOneRefresh() throws Exception {
+        StackMobSession session = new StackMobSession(StackMob.OAuthVersion.Two, 0, "KEY", "SECRET", "user", "username");
+        session.setOAuth2TokensAndExpiration("stale", "stalekey", "refresh1", -60);
+        // token requests always use https, which the test server doesn't speak
+        session.setRedirect("https://" + host, "http://" + host, false);
+        StackMobDatastore datastore = new StackMobDatastore(Executors.newCachedThreadPool(), session, host, new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+        });
+
+        int requests = 10;
+        final CountDownLatch latch = new CountDownLatch(requests);
+        final AtomicInteger succeeded = new AtomicInteger();
+        for(int i = 0; i < requests; i++) {
+            datastore.get("thing", StackMobOptions.https(false), new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    succeeded.incrementAndGet();
+                    latch.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(requests, succeeded.get());
+        assertEquals(1, refreshCount.get());
+        assertEquals(requests, authorizations.size());
+        for(String authorization : authorizations) {
+            assertTrue(authorization.contains("id=\"fresh\""));
+        }
+        assertEquals("refresh2", session.getOAuth2RefreshToken());
+    }
+}
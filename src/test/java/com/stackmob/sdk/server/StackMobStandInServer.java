@@ -0,0 +1,1147 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.server;
+
+import com.google.gson.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A stand-in for the StackMob REST API that runs inside the test JVM, so the SDK can be tested and load tested
+ * without a network or a StackMob account. It keeps schemas in memory and emulates the parts of the API the SDK uses:
+ * <ul>
+ *     <li>create, read, update and delete on any schema, including bulk and related object requests</li>
+ *     <li>the query operators, OR and AND groups, ordering, and Range pagination with Content-Range</li>
+ *     <li>the Expand and Select headers, with relations learned from the Relations header or {@link #withRelation}</li>
+ *     <li>[inc] atomic counters</li>
+ *     <li>OAuth1 login and logout, and OAuth2 accessToken and refreshToken with expiring MAC tokens</li>
+ * </ul>
+ * Latency, random errors, redirects and 503s can be injected to see how the SDK copes. Signatures aren't checked,
+ * but an unknown or expired OAuth2 token gets a 401 so token refreshes can be exercised.
+ * <pre>
+ * {@code
+ * StackMobStandInServer server = new StackMobStandInServer().withLatency(5, 20).start();
+ * StackMob stackmob = new StackMob(OAuthVersion.Two, 0, "KEY", "SECRET", server.getHost(), "user", "username", "password", callback);
+ * stackmob.getSession().setHTTPSOverride(false);
+ * }
+ * </pre>
+ */
+public class StackMobStandInServer {
+
+    public static final int DEFAULT_TOKEN_LIFETIME_SECONDS = 3600;
+    /**
+     * the name every thread handling requests starts with, so a load test can tell them apart from the SDK's threads
+     */
+    public static final String THREAD_NAME_PREFIX = "StackMob stand-in ";
+
+    private static final String RELATIONS_HEADER = "X-StackMob-Relations";
+    private static final String EXPAND_HEADER = "X-StackMob-Expand";
+    private static final String SELECT_HEADER = "X-StackMob-Select";
+    private static final String ORDER_BY_HEADER = "X-StackMob-OrderBy";
+    private static final String CASCADE_DELETE_HEADER = "X-StackMob-CascadeDelete";
+    private static final String CREATED_DATE = "createddate";
+    private static final String LAST_MOD_DATE = "lastmoddate";
+    private static final String INC_SUFFIX = "[inc]";
+
+    static {
+        // the JDK server writes a response's head and body separately, so with Nagle on, a reused connection waits
+        // out the client's delayed ack on every response. This is only read once, when the first server is made
+        if(System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final String userSchema;
+    private final String userIdName;
+    private final String passwordField;
+
+    // schema -> primary key -> object, and schema -> field -> related schema
+    private final Map<String, LinkedHashMap<String, JsonObject>> schemas = new HashMap<String, LinkedHashMap<String, JsonObject>>();
+    private final Map<String, Map<String, String>> relations = new HashMap<String, Map<String, String>>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Token> accessTokens = new ConcurrentHashMap<String, Token>();
+    private final Map<String, String> refreshTokens = new ConcurrentHashMap<String, String>();
+    private volatile int tokenLifetimeSeconds = DEFAULT_TOKEN_LIFETIME_SECONDS;
+
+    private volatile long minLatencyMillis = 0;
+    private volatile long maxLatencyMillis = 0;
+    private volatile double errorRate = 0;
+    private volatile int errorStatus = 500;
+    private final AtomicInteger redirectsRemaining = new AtomicInteger();
+    private volatile String redirectHost;
+    private final AtomicInteger unavailableRemaining = new AtomicInteger();
+    private volatile int retryAfterSeconds = 1;
+    private final AtomicInteger failuresRemaining = new AtomicInteger();
+    private volatile int failureStatus = 500;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final Random random = new Random();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private static class Token {
+        final String username;
+        final long expiresAt;
+
+        Token(String username, long expiresAt) {
+            this.username = username;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Thrown while handling a request to answer it with an error
+     */
+    private static class ApiException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    public StackMobStandInServer() {
+        this("user", "username", "password");
+    }
+
+    /**
+     * create a server with a custom user schema, matching the StackMob it will be used with
+     * @param userSchema the schema users are kept in
+     * @param userIdName the primary key of the user schema
+     * @param passwordField the field holding a user's password
+     */
+    public StackMobStandInServer(String userSchema, String userIdName, String passwordField) {
+        this.userSchema = userSchema;
+        this.userIdName = userIdName;
+        this.passwordField = passwordField;
+    }
+
+    /**
+     * start listening on a free port on the loopback interface
+     * @return this server
+     * @throws IOException if the server can't be started
+     */
+    public StackMobStandInServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    StackMobStandInServer.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, THREAD_NAME_PREFIX + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        if(server != null) server.stop(0);
+        if(executor != null) executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * the host and port to give the SDK as its API host
+     * @return the host
+     */
+    public String getHost() {
+        return "127.0.0.1:" + getPort();
+    }
+
+    /**
+     * delay every response by a random time in a range
+     * @param minMillis the shortest delay
+     * @param maxMillis the longest delay
+     * @return this server
+     */
+    public StackMobStandInServer withLatency(long minMillis, long maxMillis) {
+        this.minLatencyMillis = minMillis;
+        this.maxLatencyMillis = Math.max(minMillis, maxMillis);
+        return this;
+    }
+
+    /**
+     * answer a fraction of requests, chosen at random, with an error
+     * @param rate the fraction of requests to fail, between 0 and 1
+     * @param status the status code to fail them with
+     * @return this server
+     */
+    public StackMobStandInServer withErrorRate(double rate, int status) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+        return this;
+    }
+
+    /**
+     * set how long OAuth2 tokens last
+     * @param seconds the lifetime
+     * @return this server
+     */
+    public StackMobStandInServer withTokenLifetime(int seconds) {
+        this.tokenLifetimeSeconds = seconds;
+        return this;
+    }
+
+    /**
+     * declare that a field of a schema holds the ids of objects in another schema, so it can be expanded
+     * @param schema the schema with the relation
+     * @param field the relation field
+     * @param relatedSchema the schema of the related objects
+     * @return this server
+     */
+    public StackMobStandInServer withRelation(String schema, String field, String relatedSchema) {
+        lock.writeLock().lock();
+        try {
+            addRelation(schema, field, relatedSchema);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * redirect the next requests to another host with a 302, as a StackMob cluster move would
+     * @param count how many requests to redirect
+     * @param host the host and port to redirect to
+     */
+    public void redirectNext(int count, String host) {
+        this.redirectHost = host;
+        redirectsRemaining.set(count);
+    }
+
+    /**
+     * answer the next requests with a 503 and a Retry-After header
+     * @param count how many requests to turn away
+     * @param retryAfterSeconds the value of the Retry-After header
+     */
+    public void unavailableNext(int count, int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        unavailableRemaining.set(count);
+    }
+
+    /**
+     * answer the next requests with an error
+     * @param count how many requests to fail
+     * @param status the status code to fail them with
+     */
+    public void failNext(int count, int status) {
+        this.failureStatus = status;
+        failuresRemaining.set(count);
+    }
+
+    /**
+     * expire every OAuth2 access token handed out so far, so the next request with one gets a 401
+     */
+    public void expireAccessTokens() {
+        for(Map.Entry<String, Token> token : accessTokens.entrySet()) {
+            token.setValue(new Token(token.getValue().username, 0));
+        }
+    }
+
+    /**
+     * the number of requests received, including ones answered with an injected error
+     * @return the count
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * the number of OAuth2 tokens refreshed
+     * @return the count
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * the number of objects in a schema
+     * @param schema the schema
+     * @return the count
+     */
+    public int count(String schema) {
+        lock.readLock().lock();
+        try {
+            LinkedHashMap<String, JsonObject> objects = schemas.get(schema);
+            return objects == null ? 0 : objects.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * forget every object and token
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            schemas.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        accessTokens.clear();
+        refreshTokens.clear();
+    }
+
+    // ================================================================================================================
+    // Request handling
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String method = exchange.getRequestMethod();
+        List<String> path = new ArrayList<String>();
+        for(String segment : exchange.getRequestURI().getRawPath().split("/")) {
+            if(segment.length() > 0) path.add(decode(segment));
+        }
+        List<Map.Entry<String, String>> params = parseForm(exchange.getRequestURI().getRawQuery());
+        byte[] body = readBody(exchange);
+
+        injectLatency();
+        if(injectFaults(exchange)) return;
+
+        try {
+            if(path.isEmpty()) throw new ApiException(404, "No schema given");
+            String schema = path.get(0).toLowerCase();
+            if(schema.equals(userSchema) && path.size() == 2 && isUserMethod(path.get(1))) {
+                handleUserMethod(exchange, path.get(1), params, body);
+                return;
+            }
+            checkAccessToken(exchange);
+            if(method.equals("GET") || method.equals("HEAD")) {
+                handleGet(exchange, schema, path, params);
+            } else if(method.equals("POST")) {
+                handlePost(exchange, schema, path, body);
+            } else if(method.equals("PUT")) {
+                handlePut(exchange, schema, path, body);
+            } else if(method.equals("DELETE")) {
+                handleDelete(exchange, schema, path, params);
+            } else {
+                throw new ApiException(405, "Unsupported method " + method);
+            }
+        } catch(ApiException e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", e.getMessage());
+            send(exchange, e.status, error.toString(), null);
+        } catch(RuntimeException e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "Bad request: " + e);
+            send(exchange, 400, error.toString(), null);
+        }
+    }
+
+    private void injectLatency() {
+        long min = minLatencyMillis;
+        long max = maxLatencyMillis;
+        if(max <= 0) return;
+        long delay = min + (max > min ? (long) (random.nextDouble() * (max - min)) : 0);
+        try {
+            Thread.sleep(delay);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the request was answered with an injected redirect or error
+     */
+    private boolean injectFaults(HttpExchange exchange) throws IOException {
+        if(takeOne(redirectsRemaining)) {
+            String query = exchange.getRequestURI().getRawQuery();
+            exchange.getResponseHeaders().set("Location", "http://" + redirectHost + exchange.getRequestURI().getRawPath() + (query == null ? "" : "?" + query));
+            send(exchange, 302, "{}", null);
+            return true;
+        }
+        if(takeOne(unavailableRemaining)) {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+            send(exchange, 503, "{\"error\":\"Service unavailable\"}", null);
+            return true;
+        }
+        if(takeOne(failuresRemaining)) {
+            send(exchange, failureStatus, "{\"error\":\"Injected failure\"}", null);
+            return true;
+        }
+        if(errorRate > 0 && random.nextDouble() < errorRate) {
+            send(exchange, errorStatus, "{\"error\":\"Injected failure\"}", null);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean takeOne(AtomicInteger remaining) {
+        while(true) {
+            int current = remaining.get();
+            if(current <= 0) return false;
+            if(remaining.compareAndSet(current, current - 1)) return true;
+        }
+    }
+
+    private void handleGet(HttpExchange exchange, String schema, List<String> path, List<Map.Entry<String, String>> params) throws IOException, ApiException {
+        int depth = getDepth(exchange);
+        Selection selection = Selection.parse(exchange.getRequestHeaders().getFirst(SELECT_HEADER));
+        lock.readLock().lock();
+        try {
+            if(path.size() >= 2) {
+                JsonObject object = find(schema, path.get(1));
+                send(exchange, 200, render(schema, object, depth, selection).toString(), null);
+                return;
+            }
+            List<JsonObject> matches = query(schema, params, exchange.getRequestHeaders().getFirst(ORDER_BY_HEADER));
+            int total = matches.size();
+            String contentRange = null;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if(range != null && range.startsWith("objects=")) {
+                String[] bounds = range.substring("objects=".length()).split("-", -1);
+                int start = Integer.parseInt(bounds[0].trim());
+                int end = bounds.length > 1 && bounds[1].trim().length() > 0 ? Integer.parseInt(bounds[1].trim()) : total - 1;
+                end = Math.min(end, total - 1);
+                if(start <= end) {
+                    matches = matches.subList(start, end + 1);
+                    contentRange = "objects " + start + "-" + end + "/" + total;
+                } else {
+                    matches = Collections.emptyList();
+                }
+            }
+            Condition near = Clause.parse(params).findNear();
+            JsonArray result = new JsonArray();
+            for(JsonObject match : matches) {
+                JsonObject rendered = render(schema, match, depth, selection).getAsJsonObject();
+                if(near != null && rendered.has(near.field)) {
+                    // like StackMob, tell the caller how far each result is from the point it asked about
+                    JsonObject point = new JsonObject();
+                    for(Map.Entry<String, JsonElement> coordinate : rendered.getAsJsonObject(near.field).entrySet()) {
+                        point.add(coordinate.getKey(), coordinate.getValue());
+                    }
+                    point.addProperty("distance", near.distance(match));
+                    rendered.add(near.field, point);
+                }
+                result.add(rendered);
+            }
+            send(exchange, 200, result.toString(), contentRange);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void handlePost(HttpExchange exchange, String schema, List<String> path, byte[] body) throws IOException, ApiException {
+        JsonElement json = parseJson(body);
+        lock.writeLock().lock();
+        try {
+            learnRelations(schema, exchange.getRequestHeaders().getFirst(RELATIONS_HEADER));
+            if(path.size() == 3) {
+                // create related objects and add them to the parent's relation
+                JsonObject parent = find(schema, path.get(1));
+                String field = path.get(2).toLowerCase();
+                String relatedSchema = getRelatedSchema(schema, field);
+                JsonArray ids = parent.has(field) && parent.get(field).isJsonArray() ? parent.get(field).getAsJsonArray() : new JsonArray();
+                JsonArray created = new JsonArray();
+                for(JsonElement element : json.isJsonArray() ? json.getAsJsonArray() : singleton(json)) {
+                    JsonObject related = store(relatedSchema, element.getAsJsonObject());
+                    ids.add(related.get(getIdField(relatedSchema)));
+                    created.add(render(relatedSchema, related, 0, null));
+                }
+                parent.add(field, ids);
+                touch(parent);
+                send(exchange, 201, (json.isJsonArray() ? created : created.get(0)).toString(), null);
+            } else if(json.isJsonArray()) {
+                JsonArray created = new JsonArray();
+                for(JsonElement element : json.getAsJsonArray()) {
+                    created.add(render(schema, store(schema, element.getAsJsonObject()), 0, null));
+                }
+                send(exchange, 201, created.toString(), null);
+            } else {
+                JsonObject stored = store(schema, json.getAsJsonObject());
+                send(exchange, 201, render(schema, stored, 0, null).toString(), null);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void handlePut(HttpExchange exchange, String schema, List<String> path, byte[] body) throws IOException, ApiException {
+        if(path.size() < 2) throw new ApiException(400, "PUT needs an id");
+        JsonElement json = parseJson(body);
+        lock.writeLock().lock();
+        try {
+            learnRelations(schema, exchange.getRequestHeaders().getFirst(RELATIONS_HEADER));
+            JsonObject object = find(schema, path.get(1));
+            if(path.size() == 3) {
+                // append ids to an array or relation
+                String field = path.get(2).toLowerCase();
+                JsonArray values = object.has(field) && object.get(field).isJsonArray() ? object.get(field).getAsJsonArray() : new JsonArray();
+                for(JsonElement value : json.isJsonArray() ? json.getAsJsonArray() : singleton(json)) {
+                    if(!contains(values, value)) values.add(value);
+                }
+                object.add(field, values);
+            } else {
+                for(Map.Entry<String, JsonElement> field : json.getAsJsonObject().entrySet()) {
+                    String name = field.getKey().toLowerCase();
+                    if(name.endsWith(INC_SUFFIX)) {
+                        name = name.substring(0, name.length() - INC_SUFFIX.length());
+                        double current = object.has(name) && !object.get(name).isJsonNull() ? object.get(name).getAsDouble() : 0;
+                        object.add(name, number(current + field.getValue().getAsDouble()));
+                    } else if(!name.equals(getIdField(schema))) {
+                        object.add(name, storeRelated(schema, name, field.getValue()));
+                    }
+                }
+            }
+            touch(object);
+            send(exchange, 200, render(schema, object, 0, null).toString(), null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void handleDelete(HttpExchange exchange, String schema, List<String> path, List<Map.Entry<String, String>> params) throws IOException, ApiException {
+        lock.writeLock().lock();
+        try {
+            LinkedHashMap<String, JsonObject> objects = getSchema(schema);
+            if(path.size() == 1) {
+                for(JsonObject match : query(schema, params, null)) objects.remove(match.get(getIdField(schema)).getAsString());
+            } else if(path.size() == 2) {
+                if(objects.remove(path.get(1)) == null) throw new ApiException(404, "No " + schema + " with id " + path.get(1));
+            } else if(path.size() == 4) {
+                // remove ids from an array or relation, deleting the related objects too if asked
+                JsonObject object = find(schema, path.get(1));
+                String field = path.get(2).toLowerCase();
+                Set<String> ids = new HashSet<String>(Arrays.asList(path.get(3).split(",")));
+                JsonArray kept = new JsonArray();
+                if(object.has(field) && object.get(field).isJsonArray()) {
+                    for(JsonElement value : object.get(field).getAsJsonArray()) {
+                        if(!ids.contains(value.getAsString())) kept.add(value);
+                    }
+                }
+                object.add(field, kept);
+                touch(object);
+                String relatedSchema = getRelations(schema).get(field);
+                if("true".equals(exchange.getRequestHeaders().getFirst(CASCADE_DELETE_HEADER)) && relatedSchema != null) {
+                    for(String id : ids) getSchema(relatedSchema).remove(id);
+                }
+            } else {
+                throw new ApiException(404, "Unknown path");
+            }
+            send(exchange, 200, "{\"succeed\":\"true\"}", null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ================================================================================================================
+    // Users and tokens
+
+    private static boolean isUserMethod(String method) {
+        return method.equals("accessToken") || method.equals("refreshToken") || method.equals("login") || method.equals("logout");
+    }
+
+    private void handleUserMethod(HttpExchange exchange, String method, List<Map.Entry<String, String>> params, byte[] body) throws IOException, ApiException {
+        List<Map.Entry<String, String>> form = new ArrayList<Map.Entry<String, String>>(params);
+        if(body.length > 0) form.addAll(parseForm(new String(body, "UTF-8")));
+        if(method.equals("logout")) {
+            send(exchange, 200, "{}", null);
+            return;
+        }
+        String username;
+        if(method.equals("refreshToken")) {
+            username = refreshTokens.remove(String.valueOf(get(form, "refresh_token")));
+            if(username == null) throw new ApiException(401, "invalid_grant");
+            refreshes.incrementAndGet();
+        } else {
+            username = get(form, userIdName);
+            String password = get(form, passwordField);
+            lock.readLock().lock();
+            try {
+                JsonObject user = getSchema(userSchema).get(username);
+                if(user == null || password == null || !user.has(passwordField) || !password.equals(user.get(passwordField).getAsString())) {
+                    throw new ApiException(401, "Invalid username or password");
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        JsonObject user;
+        lock.readLock().lock();
+        try {
+            JsonObject stored = getSchema(userSchema).get(username);
+            if(stored == null) throw new ApiException(401, "The user no longer exists");
+            user = render(userSchema, stored, 0, null).getAsJsonObject();
+        } finally {
+            lock.readLock().unlock();
+        }
+        if(method.equals("login")) {
+            exchange.getResponseHeaders().set("Set-Cookie", "session_standin=" + newId() + "; Path=/");
+            send(exchange, 200, user.toString(), null);
+            return;
+        }
+        String accessToken = newId();
+        String refreshToken = newId();
+        accessTokens.put(accessToken, new Token(username, System.currentTimeMillis() + tokenLifetimeSeconds * 1000L));
+        refreshTokens.put(refreshToken, username);
+        JsonObject response = new JsonObject();
+        response.addProperty("access_token", accessToken);
+        response.addProperty("mac_key", newId());
+        response.addProperty("mac_algorithm", "hmac-sha-1");
+        response.addProperty("token_type", "mac");
+        response.addProperty("expires_in", tokenLifetimeSeconds);
+        response.addProperty("refresh_token", refreshToken);
+        JsonObject stackmob = new JsonObject();
+        stackmob.add("user", user);
+        response.add("stackmob", stackmob);
+        send(exchange, 200, response.toString(), null);
+    }
+
+    private void checkAccessToken(HttpExchange exchange) throws ApiException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if(authorization == null || !authorization.startsWith("MAC ")) return;
+        int start = authorization.indexOf("id=\"");
+        int end = start < 0 ? -1 : authorization.indexOf('"', start + 4);
+        Token token = end < 0 ? null : accessTokens.get(authorization.substring(start + 4, end));
+        if(token == null || token.expiresAt < System.currentTimeMillis()) throw new ApiException(401, "Access token expired");
+    }
+
+    // ================================================================================================================
+    // Storage, always called holding the lock
+
+    private LinkedHashMap<String, JsonObject> getSchema(String schema) {
+        LinkedHashMap<String, JsonObject> objects = schemas.get(schema);
+        if(objects == null) {
+            objects = new LinkedHashMap<String, JsonObject>();
+            schemas.put(schema, objects);
+        }
+        return objects;
+    }
+
+    private String getIdField(String schema) {
+        return schema.equals(userSchema) ? userIdName : schema + "_id";
+    }
+
+    private JsonObject find(String schema, String id) throws ApiException {
+        LinkedHashMap<String, JsonObject> objects = schemas.get(schema);
+        JsonObject object = objects == null ? null : objects.get(id);
+        if(object == null) throw new ApiException(404, "No " + schema + " with id " + id);
+        return object;
+    }
+
+    /**
+     * create an object, or update it if its id is already taken, storing any nested related objects first
+     */
+    private JsonObject store(String schema, JsonObject incoming) {
+        String idField = getIdField(schema);
+        String id = incoming.has(idField) && !incoming.get(idField).isJsonNull() ? incoming.get(idField).getAsString() : newId();
+        LinkedHashMap<String, JsonObject> objects = getSchema(schema);
+        JsonObject object = objects.get(id);
+        long now = System.currentTimeMillis();
+        if(object == null) {
+            object = new JsonObject();
+            object.addProperty(idField, id);
+            object.addProperty(CREATED_DATE, now);
+            objects.put(id, object);
+        }
+        for(Map.Entry<String, JsonElement> field : incoming.entrySet()) {
+            String name = field.getKey().toLowerCase();
+            if(name.equals(idField) || name.equals(CREATED_DATE) || name.equals(LAST_MOD_DATE)) continue;
+            object.add(name, storeRelated(schema, name, field.getValue()));
+        }
+        object.addProperty(LAST_MOD_DATE, now);
+        return object;
+    }
+
+    /**
+     * store nested objects in a relation field in their own schema, leaving their ids in the field
+     */
+    private JsonElement storeRelated(String schema, String field, JsonElement value) {
+        String relatedSchema = getRelations(schema).get(field);
+        if(relatedSchema == null) return value;
+        if(value.isJsonObject()) return store(relatedSchema, value.getAsJsonObject()).get(getIdField(relatedSchema));
+        if(value.isJsonArray()) {
+            JsonArray ids = new JsonArray();
+            for(JsonElement element : value.getAsJsonArray()) {
+                ids.add(element.isJsonObject() ? store(relatedSchema, element.getAsJsonObject()).get(getIdField(relatedSchema)) : element);
+            }
+            return ids;
+        }
+        return value;
+    }
+
+    private static void touch(JsonObject object) {
+        object.addProperty(LAST_MOD_DATE, System.currentTimeMillis());
+    }
+
+    private Map<String, String> getRelations(String schema) {
+        Map<String, String> fields = relations.get(schema);
+        return fields == null ? Collections.<String, String>emptyMap() : fields;
+    }
+
+    private void addRelation(String schema, String field, String relatedSchema) {
+        Map<String, String> fields = relations.get(schema);
+        if(fields == null) {
+            fields = new HashMap<String, String>();
+            relations.put(schema, fields);
+        }
+        fields.put(field.toLowerCase(), relatedSchema.toLowerCase());
+    }
+
+    private String getRelatedSchema(String schema, String field) {
+        String related = getRelations(schema).get(field);
+        if(related == null) {
+            related = field;
+            addRelation(schema, field, related);
+        }
+        return related;
+    }
+
+    /**
+     * learn relations from a header like "author=author&amp;books=book&amp;books.author=author", where each path is
+     * relative to the schema the request was made to
+     */
+    private void learnRelations(String schema, String header) {
+        if(header == null || header.length() == 0) return;
+        List<String[]> hints = new ArrayList<String[]>();
+        for(String hint : header.split("&")) {
+            String[] pair = hint.split("=", 2);
+            if(pair.length == 2 && pair[0].length() > 0) hints.add(pair);
+        }
+        // shorter paths first, so the schema each longer path passes through is already known
+        Collections.sort(hints, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                return a[0].split("\\.").length - b[0].split("\\.").length;
+            }
+        });
+        for(String[] hint : hints) {
+            String[] fields = hint[0].toLowerCase().split("\\.");
+            String owner = schema;
+            for(int i = 0; i < fields.length - 1 && owner != null; i++) owner = getRelations(owner).get(fields[i]);
+            if(owner != null) addRelation(owner, fields[fields.length - 1], hint[1]);
+        }
+    }
+
+    /**
+     * copy an object for a response, expanding relations to the given depth and keeping only the selected fields
+     */
+    private JsonElement render(String schema, JsonObject object, int depth, Selection selection) {
+        JsonObject copy = new JsonObject();
+        Map<String, String> fields = getRelations(schema);
+        for(Map.Entry<String, JsonElement> field : object.entrySet()) {
+            String name = field.getKey();
+            if(schema.equals(userSchema) && name.equals(passwordField)) continue;
+            if(selection != null && !selection.includes(name) && !name.equals(getIdField(schema))) continue;
+            String relatedSchema = fields.get(name);
+            JsonElement value = field.getValue();
+            if(depth > 0 && relatedSchema != null) {
+                value = expand(relatedSchema, value, depth - 1, selection == null ? null : selection.under(name));
+            } else if(value.isJsonArray()) {
+                JsonArray elements = new JsonArray();
+                for(JsonElement element : value.getAsJsonArray()) elements.add(element);
+                value = elements;
+            }
+            copy.add(name, value);
+        }
+        return copy;
+    }
+
+    private JsonElement expand(String schema, JsonElement ids, int depth, Selection selection) {
+        LinkedHashMap<String, JsonObject> objects = getSchema(schema);
+        if(ids.isJsonArray()) {
+            JsonArray expanded = new JsonArray();
+            for(JsonElement id : ids.getAsJsonArray()) {
+                JsonObject related = id.isJsonPrimitive() ? objects.get(id.getAsString()) : null;
+                expanded.add(related == null ? id : render(schema, related, depth, selection));
+            }
+            return expanded;
+        }
+        JsonObject related = ids.isJsonPrimitive() ? objects.get(ids.getAsString()) : null;
+        return related == null ? ids : render(schema, related, depth, selection);
+    }
+
+    private int getDepth(HttpExchange exchange) {
+        String expand = exchange.getRequestHeaders().getFirst(EXPAND_HEADER);
+        if(expand == null) return 0;
+        try {
+            return Math.min(3, Integer.parseInt(expand.trim()));
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The fields named in a Select header, where "author.name" selects the name of an expanded author
+     */
+    private static class Selection {
+        final Map<String, Set<String>> fields = new HashMap<String, Set<String>>();
+
+        static Selection parse(String header) {
+            if(header == null || header.trim().length() == 0) return null;
+            return new Selection(Arrays.asList(header.toLowerCase().split(",")));
+        }
+
+        Selection(Collection<String> names) {
+            for(String name : names) {
+                name = name.trim();
+                int dot = name.indexOf('.');
+                String top = dot < 0 ? name : name.substring(0, dot);
+                Set<String> nested = fields.get(top);
+                if(nested == null) {
+                    nested = new HashSet<String>();
+                    fields.put(top, nested);
+                }
+                if(dot >= 0) nested.add(name.substring(dot + 1));
+            }
+        }
+
+        boolean includes(String field) {
+            return fields.containsKey(field);
+        }
+
+        Selection under(String field) {
+            Set<String> nested = fields.get(field);
+            return nested == null || nested.isEmpty() ? null : new Selection(nested);
+        }
+    }
+
+    // ================================================================================================================
+    // Queries
+
+    private List<JsonObject> query(String schema, List<Map.Entry<String, String>> params, String orderBy) {
+        LinkedHashMap<String, JsonObject> objects = schemas.get(schema);
+        List<JsonObject> matches = new ArrayList<JsonObject>();
+        if(objects == null) return matches;
+        Clause where = Clause.parse(params);
+        for(JsonObject object : objects.values()) {
+            if(where.matches(object)) matches.add(object);
+        }
+        final Condition near = where.findNear();
+        if(orderBy != null && orderBy.trim().length() > 0) {
+            final List<String[]> orders = new ArrayList<String[]>();
+            for(String order : orderBy.split(",")) orders.add(order.trim().toLowerCase().split(":"));
+            Collections.sort(matches, new Comparator<JsonObject>() {
+                @Override
+                public int compare(JsonObject a, JsonObject b) {
+                    for(String[] order : orders) {
+                        int result = compareValues(a.get(order[0]), b.get(order[0]));
+                        if(order.length > 1 && order[1].equals("desc")) result = -result;
+                        if(result != 0) return result;
+                    }
+                    return 0;
+                }
+            });
+        } else if(near != null) {
+            Collections.sort(matches, new Comparator<JsonObject>() {
+                @Override
+                public int compare(JsonObject a, JsonObject b) {
+                    return Double.compare(near.distance(a), near.distance(b));
+                }
+            });
+        }
+        return matches;
+    }
+
+    /**
+     * One constraint on a field, such as "age[gt]=30"
+     */
+    private static class Condition {
+        final String field;
+        final String operator;
+        final String value;
+
+        Condition(String key, String value) {
+            int bracket = key.indexOf('[');
+            this.field = (bracket < 0 ? key : key.substring(0, bracket)).toLowerCase();
+            this.operator = bracket < 0 ? "eq" : key.substring(bracket + 1, key.length() - 1);
+            this.value = value;
+        }
+
+        boolean matches(JsonObject object) {
+            JsonElement actual = object.get(field);
+            boolean missing = actual == null || actual.isJsonNull();
+            if(operator.equals("null")) return missing == Boolean.parseBoolean(value);
+            if(operator.equals("empty")) {
+                boolean empty = missing || (actual.isJsonArray() && actual.getAsJsonArray().size() == 0) || (actual.isJsonPrimitive() && actual.getAsString().length() == 0);
+                return empty == Boolean.parseBoolean(value);
+            }
+            if(operator.equals("ne")) return missing || !equalTo(actual, value);
+            if(operator.equals("nin")) {
+                if(missing) return true;
+                for(String candidate : value.split(",")) if(equalTo(actual, candidate)) return false;
+                return true;
+            }
+            if(missing) return false;
+            if(operator.equals("eq")) return equalTo(actual, value);
+            if(operator.equals("in")) {
+                for(String candidate : value.split(",")) if(equalTo(actual, candidate)) return true;
+                return false;
+            }
+            if(operator.equals("near")) {
+                String[] parts = value.split(",");
+                return parts.length < 3 || distance(object) <= Double.parseDouble(parts[2]);
+            }
+            if(operator.equals("within")) {
+                String[] parts = value.split(",");
+                if(parts.length == 3) return distance(object) <= Double.parseDouble(parts[2]);
+                double lat = latitude(actual);
+                double lon = longitude(actual);
+                return lat >= Double.parseDouble(parts[0]) && lon >= Double.parseDouble(parts[1])
+                        && lat <= Double.parseDouble(parts[2]) && lon <= Double.parseDouble(parts[3]);
+            }
+            if(!actual.isJsonPrimitive()) return false;
+            int comparison = compareValues(actual, new JsonPrimitive(value));
+            if(operator.equals("lt")) return comparison < 0;
+            if(operator.equals("lte")) return comparison <= 0;
+            if(operator.equals("gt")) return comparison > 0;
+            if(operator.equals("gte")) return comparison >= 0;
+            throw new IllegalArgumentException("Unknown operator " + operator);
+        }
+
+        /**
+         * the great circle distance from the point in this condition to the object's value, in radians
+         */
+        double distance(JsonObject object) {
+            JsonElement actual = object.get(field);
+            if(actual == null || !actual.isJsonObject()) return Double.MAX_VALUE;
+            String[] parts = value.split(",");
+            double lat1 = Math.toRadians(Double.parseDouble(parts[0]));
+            double lon1 = Math.toRadians(Double.parseDouble(parts[1]));
+            double lat2 = Math.toRadians(latitude(actual));
+            double lon2 = Math.toRadians(longitude(actual));
+            double a = Math.pow(Math.sin((lat2 - lat1) / 2), 2) + Math.cos(lat1) * Math.cos(lat2) * Math.pow(Math.sin((lon2 - lon1) / 2), 2);
+            return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+        }
+
+        private static double latitude(JsonElement point) {
+            return point.getAsJsonObject().get("lat").getAsDouble();
+        }
+
+        private static double longitude(JsonElement point) {
+            return point.getAsJsonObject().get("lon").getAsDouble();
+        }
+
+        private static boolean equalTo(JsonElement actual, String expected) {
+            if(actual.isJsonArray()) {
+                for(JsonElement element : actual.getAsJsonArray()) if(equalTo(element, expected)) return true;
+                return false;
+            }
+            if(!actual.isJsonPrimitive()) return false;
+            return compareValues(actual, new JsonPrimitive(expected)) == 0;
+        }
+    }
+
+    /**
+     * A set of conditions joined by AND or OR. Arguments like "[or1].a=1" and "[or1].[and2].b=2" put conditions in
+     * nested groups
+     */
+    private static class Clause {
+        final boolean isOr;
+        final List<Condition> conditions = new ArrayList<Condition>();
+        final Map<String, Clause> groups = new LinkedHashMap<String, Clause>();
+
+        Clause(boolean isOr) {
+            this.isOr = isOr;
+        }
+
+        static Clause parse(List<Map.Entry<String, String>> params) {
+            Clause root = new Clause(false);
+            boolean topLevelOr = false;
+            for(Map.Entry<String, String> param : params) {
+                root.add(param.getKey(), param.getValue());
+            }
+            // a query whose arguments are all in a single OR group is an OR at the top level
+            if(root.conditions.isEmpty() && root.groups.size() == 1) topLevelOr = true;
+            return topLevelOr ? root.groups.values().iterator().next() : root;
+        }
+
+        void add(String key, String value) {
+            if(key.startsWith("[")) {
+                int end = key.indexOf("].");
+                String group = key.substring(1, end);
+                Clause clause = groups.get(group);
+                if(clause == null) {
+                    clause = new Clause(group.startsWith("or"));
+                    groups.put(group, clause);
+                }
+                clause.add(key.substring(end + 2), value);
+            } else {
+                conditions.add(new Condition(key, value));
+            }
+        }
+
+        boolean matches(JsonObject object) {
+            if(isOr) {
+                for(Condition condition : conditions) if(condition.matches(object)) return true;
+                for(Clause group : groups.values()) if(group.matches(object)) return true;
+                return conditions.isEmpty() && groups.isEmpty();
+            }
+            for(Condition condition : conditions) if(!condition.matches(object)) return false;
+            for(Clause group : groups.values()) if(!group.matches(object)) return false;
+            return true;
+        }
+
+        Condition findNear() {
+            for(Condition condition : conditions) if(condition.operator.equals("near")) return condition;
+            for(Clause group : groups.values()) {
+                Condition near = group.findNear();
+                if(near != null) return near;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * compare two values, as numbers if both are numbers and as strings otherwise. Missing values sort first
+     */
+    private static int compareValues(JsonElement a, JsonElement b) {
+        boolean aMissing = a == null || a.isJsonNull();
+        boolean bMissing = b == null || b.isJsonNull();
+        if(aMissing || bMissing) return aMissing == bMissing ? 0 : aMissing ? -1 : 1;
+        if(!a.isJsonPrimitive() || !b.isJsonPrimitive()) return a.toString().compareTo(b.toString());
+        Double aNumber = asNumber(a.getAsString());
+        Double bNumber = asNumber(b.getAsString());
+        if(aNumber != null && bNumber != null) return Double.compare(aNumber, bNumber);
+        return a.getAsString().compareTo(b.getAsString());
+    }
+
+    private static Double asNumber(String value) {
+        try {
+            return Double.valueOf(value);
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // ================================================================================================================
+    // HTTP helpers
+
+    private static void send(HttpExchange exchange, int status, String body, String contentRange) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Date", new java.text.SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).format(new Date()));
+        if(contentRange != null) exchange.getResponseHeaders().set("Content-Range", contentRange);
+        boolean head = exchange.getRequestMethod().equals("HEAD");
+        exchange.sendResponseHeaders(status, head ? -1 : bytes.length);
+        if(!head) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) in = new GZIPInputStream(in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    private static JsonElement parseJson(byte[] body) throws ApiException {
+        try {
+            JsonElement json = new JsonParser().parse(new String(body, "UTF-8"));
+            if(!json.isJsonObject() && !json.isJsonArray()) throw new ApiException(400, "Expected a JSON object or array");
+            return json;
+        } catch(JsonParseException e) {
+            throw new ApiException(400, "Invalid JSON: " + e.getMessage());
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Map.Entry<String, String>> parseForm(String form) {
+        List<Map.Entry<String, String>> params = new ArrayList<Map.Entry<String, String>>();
+        if(form == null || form.length() == 0) return params;
+        for(String pair : form.split("&")) {
+            if(pair.length() == 0) continue;
+            int equals = pair.indexOf('=');
+            String key = decode(equals < 0 ? pair : pair.substring(0, equals));
+            String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+            params.add(new AbstractMap.SimpleEntry<String, String>(key, value));
+        }
+        return params;
+    }
+
+    private static String get(List<Map.Entry<String, String>> params, String name) {
+        for(Map.Entry<String, String> param : params) {
+            if(param.getKey().equals(name)) return param.getValue();
+        }
+        return null;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JsonArray singleton(JsonElement element) {
+        JsonArray array = new JsonArray();
+        array.add(element);
+        return array;
+    }
+
+    private static boolean contains(JsonArray array, JsonElement value) {
+        for(JsonElement element : array) if(element.equals(value)) return true;
+        return false;
+    }
+
+    private static JsonPrimitive number(double value) {
+        return value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE ? new JsonPrimitive((long) value) : new JsonPrimitive(value);
+    }
+
+    private static String newId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.StackMobTestCommon;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobDatastore;
+import com.stackmob.sdk.api.StackMobGeoPoint;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StackMobStandInServerTests extends StackMobTestCommon {
+
+    private StackMobStandInServer server;
+    private StackMob local;
+    private StackMobDatastore datastore;
+
+    private static final StackMobRedirectedCallback redirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) { }
+    };
+
+    /**
+     * Waits for a request to finish and remembers how it went
+     */
+    private static class Result extends StackMobCallback {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private String body;
+        private StackMobException error;
+
+        @Override
+        public void success(String responseBody) {
+            body = responseBody;
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            error = e;
+            latch.countDown();
+        }
+
+        String await() throws InterruptedException {
+            assertTrue("request timed out", latch.await(10, TimeUnit.SECONDS));
+            if(error != null) fail(error.getMessage());
+            return body;
+        }
+
+        StackMobException awaitFailure() throws InterruptedException {
+            assertTrue("request timed out", latch.await(10, TimeUnit.SECONDS));
+            assertNotNull("expected a failure but got " + body, error);
+            return error;
+        }
+    }
+
+    @Before
+    public void startServer() throws Exception {
+        server = new StackMobStandInServer().start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private void connect(StackMob.OAuthVersion version) {
+        local = new StackMob(version, 0, "KEY", "SECRET", server.getHost(), "user", "username", "password", redirectedCallback);
+        local.getSession().setHTTPSOverride(false);
+        datastore = local.getDatastore();
+    }
+
+    private static JsonObject object(String json) {
+        return new JsonParser().parse(json).getAsJsonObject();
+    }
+
+    private static JsonArray array(String json) {
+        return new JsonParser().parse(json).getAsJsonArray();
+    }
+
+    @Test public void createReadUpdateAndDelete() throws Exception {
+        connect(StackMob.OAuthVersion.One);
+        Result created = new Result();
+        datastore.post("thing", "{\"name\":\"first\",\"count\":1}", created);
+        String id = object(created.await()).get("thing_id").getAsString();
+
+        Result incremented = new Result();
+        datastore.updateAtomicCounter("thing", id, "count", 2, incremented);
+        assertEquals(3, object(incremented.await()).get("count").getAsInt());
+
+        Result fetched = new Result();
+        datastore.get("thing/" + id, fetched);
+        JsonObject thing = object(fetched.await());
+        assertEquals("first", thing.get("name").getAsString());
+        assertEquals(3, thing.get("count").getAsInt());
+        assertTrue(thing.has("createddate"));
+
+        Result deleted = new Result();
+        datastore.delete("thing", id, deleted);
+        deleted.await();
+        Result missing = new Result();
+        datastore.get("thing/" + id, missing);
+        missing.awaitFailure();
+        assertEquals(0, server.count("thing"));
+    }
+
+    @Test public void queriesFilterOrderAndPaginate() throws Exception {
+        connect(StackMob.OAuthVersion.One);
+        List<Map<String, Object>> things = new ArrayList<Map<String, Object>>();
+        for(int i = 0; i < 10; i++) {
+            Map<String, Object> thing = new HashMap<String, Object>();
+            thing.put("score", i);
+            thing.put("kind", i % 2 == 0 ? "even" : "odd");
+            things.add(thing);
+        }
+        Result created = new Result();
+        datastore.postBulk("thing", things, created);
+        created.await();
+
+        StackMobQuery query = new StackMobQuery("thing")
+                .fieldIsGreaterThan("score", 2)
+                .fieldIsEqualTo("kind", "odd")
+                .fieldIsOrderedBy("score", StackMobQuery.Ordering.DESCENDING)
+                .isInRange(0, 1);
+        Result page = new Result();
+        datastore.get(query, page);
+        JsonArray results = array(page.await());
+        assertEquals(2, results.size());
+        assertEquals(9, results.get(0).getAsJsonObject().get("score").getAsInt());
+        assertEquals(7, results.get(1).getAsJsonObject().get("score").getAsInt());
+
+        StackMobQuery either = new StackMobQuery("thing").fieldIsLessThan("score", 1).or().fieldIsIn("score", Arrays.asList("8", "9"));
+        Result count = new Result();
+        datastore.count(either, count);
+        assertEquals("3", count.await());
+    }
+
+    @Test public void geoQueriesSortByDistance() throws Exception {
+        connect(StackMob.OAuthVersion.One);
+        Result created = new Result();
+        datastore.post("place", "[{\"name\":\"far\",\"location\":{\"lat\":40.0,\"lon\":-120.0}}," +
+                                 "{\"name\":\"near\",\"location\":{\"lat\":37.78,\"lon\":-122.41}}]", created);
+        created.await();
+
+        StackMobGeoPoint sanFrancisco = new StackMobGeoPoint(-122.42, 37.77);
+        Result near = new Result();
+        datastore.get(new StackMobQuery("place").fieldIsNear("location", sanFrancisco), near);
+        JsonArray sorted = array(near.await());
+        assertEquals("near", sorted.get(0).getAsJsonObject().get("name").getAsString());
+        assertTrue(sorted.get(0).getAsJsonObject().getAsJsonObject("location").has("distance"));
+
+        Result within = new Result();
+        datastore.get(new StackMobQuery("place").fieldIsWithinRadiusInMi("location", sanFrancisco, 10.0), within);
+        assertEquals(1, array(within.await()).size());
+    }
+
+    @Test public void relationsExpandAndSelect() throws Exception {
+        connect(StackMob.OAuthVersion.One);
+        server.withRelation("book", "author", "author");
+        Result created = new Result();
+        datastore.post("book", "{\"title\":\"Dune\",\"pages\":412,\"author\":{\"name\":\"Herbert\",\"born\":1920}}", created);
+        JsonObject book = object(created.await());
+        assertTrue(book.get("author").isJsonPrimitive());
+        assertEquals(1, server.count("author"));
+
+        Result expanded = new Result();
+        datastore.get("book/" + book.get("book_id").getAsString(),
+                      StackMobOptions.depthOf(1).withSelectedFields(Arrays.asList("title", "author.name")),
+                      expanded);
+        JsonObject fetched = object(expanded.await());
+        assertFalse(fetched.has("pages"));
+        assertTrue(fetched.has("book_id"));
+        assertEquals("Herbert", fetched.getAsJsonObject("author").get("name").getAsString());
+        assertFalse(fetched.getAsJsonObject("author").has("born"));
+    }
+
+    @Test public void oauth2LoginAndRefresh() throws Exception {
+        server.withTokenLifetime(1);
+        connect(StackMob.OAuthVersion.Two);
+        Result created = new Result();
+        datastore.post("user", "{\"username\":\"bob\",\"password\":\"secret\"}", created);
+        assertFalse(object(created.await()).has("password"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("username", "bob");
+        params.put("password", "secret");
+        Result login = new Result();
+        local.login(params, login);
+        login.await();
+        assertTrue(local.getSession().oauth2TokenValid());
+
+        Thread.sleep(1100);
+        Result afterExpiry = new Result();
+        datastore.get("user/bob", afterExpiry);
+        assertEquals("bob", object(afterExpiry.await()).get("username").getAsString());
+        assertEquals(1, server.getRefreshCount());
+
+        params.put("password", "wrong");
+        Result badLogin = new Result();
+        local.login(params, badLogin);
+        badLogin.awaitFailure();
+    }
+
+    @Test public void injectedFaults() throws Exception {
+        connect(StackMob.OAuthVersion.One);
+        server.unavailableNext(1, 1);
+        Result retried = new Result();
+        datastore.get("thing", retried);
+        assertEquals("[]", retried.await());
+        assertEquals(2, server.getRequestCount());
+
+        server.redirectNext(1, "localhost:" + server.getPort());
+        Result redirected = new Result();
+        datastore.get("thing", redirected);
+        assertEquals("[]", redirected.await());
+        assertEquals(4, server.getRequestCount());
+
+        server.failNext(1, 500);
+        Result failed = new Result();
+        datastore.get("thing", failed);
+        failed.awaitFailure();
+
+        server.withLatency(100, 100);
+        long start = System.currentTimeMillis();
+        Result slow = new Result();
+        datastore.get("thing", slow);
+        slow.await();
+        assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+}
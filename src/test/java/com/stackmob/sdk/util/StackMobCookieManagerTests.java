@@ -0,0 +1,107 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import com.stackmob.sdk.api.StackMob;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StackMobCookieManagerTests {
+
+    private static void store(StackMobCookieManager manager, String setCookie) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Set-Cookie", setCookie);
+        manager.storeCookies(headers);
+    }
+
+    @Test public void headerIsReusedUntilCookiesChange() {
+        StackMobCookieManager manager = new StackMobCookieManager();
+        assertEquals("", manager.cookieHeader());
+        store(manager, "session_a=abc==; Path=/");
+        String header = manager.cookieHeader();
+        assertEquals("session_a=abc==", header);
+        assertSame(header, manager.cookieHeader());
+
+        store(manager, "session_a=def; Path=/");
+        assertEquals("session_a=def", manager.cookieHeader());
+        manager.clear();
+        assertEquals("", manager.cookieHeader());
+    }
+
+    @Test public void expiredCookiesAreLeftOut() {
+        StackMobCookieManager manager = new StackMobCookieManager();
+        store(manager, "session_a=1; Path=/; Expires=Wed, 09-Jun-2100 10:18:14 GMT");
+        store(manager, "session_b=2; expires=Sun, 06 Nov 1994 08:49:37 GMT; Path=/");
+        store(manager, "session_c=3; Expires=Thu, 01-Jan-1970 00:00:10 GMT");
+
+        Date expires = manager.getCookies().get("session_a").getValue();
+        assertNotNull(expires);
+        assertEquals(4116219494000L, expires.getTime());
+        assertEquals(784111777000L, manager.getCookies().get("session_b").getValue().getTime());
+
+        // the header is rebuilt once a cookie in it expires, even though nothing changed
+        String early = manager.cookieHeader(5000);
+        assertTrue(early.contains("session_c=3"));
+        assertSame(early, manager.cookieHeader(9999));
+        assertFalse(manager.cookieHeader(10000).contains("session_c"));
+        assertEquals("session_a=1", manager.cookieHeader());
+        assertEquals("", manager.cookieHeader(expires.getTime()));
+    }
+
+    @Test public void unparseableExpiryMeansNoExpiry() {
+        StackMobCookieManager manager = new StackMobCookieManager();
+        store(manager, "session_a=1; Expires=someday");
+        assertNull(manager.getCookies().get("session_a").getValue());
+        assertEquals("session_a=1", manager.cookieHeader());
+        assertNull(StackMobCookieManager.parseExpires("someday"));
+    }
+
+    @Test public void expiresUsesTheTwentyFourHourClock() {
+        StackMobCookieManager manager = new StackMobCookieManager();
+        store(manager, "session_a=1; Expires=Wed, 09-Jun-2100 22:18:14 GMT");
+        // 22:18:14, not 10:18:14
+        assertEquals(4116262694000L, manager.getCookies().get("session_a").getValue().getTime());
+    }
+
+    @Test public void attributesAfterTheFirstAreParsed() {
+        StackMobCookieManager manager = new StackMobCookieManager();
+        // every attribute but the first follows "; ", which has to be trimmed before it's recognized
+        store(manager, "session_a=1; Path=/; Expires=Wed, 09-Jun-2100 10:18:14 GMT");
+        assertEquals(4116219494000L, manager.getCookies().get("session_a").getValue().getTime());
+    }
+
+    @Test public void valuesMayContainEquals() {
+        StackMobCookieManager manager = new StackMobCookieManager();
+        store(manager, "session_a=YWJj=ZA==; Path=/");
+        assertEquals("YWJj=ZA==", manager.getCookies().get("session_a").getKey());
+    }
+
+    @Test public void oauth1LoginLastsUntilTheSessionCookieExpires() {
+        StackMob current = new StackMob(StackMob.OAuthVersion.One, 0, "KEY", "SECRET");
+        store(current.getSession().getCookieManager(), "session_a=1; Expires=Wed, 09-Jun-2100 10:18:14 GMT");
+        assertTrue(current.isLoggedIn());
+
+        StackMob expired = new StackMob(StackMob.OAuthVersion.One, 0, "KEY", "SECRET");
+        store(expired.getSession().getCookieManager(), "session_a=1; Expires=Sun, 06 Nov 1994 08:49:37 GMT");
+        assertFalse(expired.isLoggedIn());
+    }
+}
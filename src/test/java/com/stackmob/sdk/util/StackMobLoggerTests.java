@@ -0,0 +1,138 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StackMobLoggerTests {
+
+    /**
+     * Remembers what it logs instead of printing it
+     */
+    private static class RecordingLogger extends StackMobLogger {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        volatile CountDownLatch gate = new CountDownLatch(0);
+
+        @Override
+        public boolean isEnabled(Level level) {
+            // uses setLogging and setLevel like the base class
+            return super.isEnabled(level);
+        }
+
+        @Override
+        public void logInfo(String format, Object... args) {
+            if(!isEnabled(Level.INFO)) return;
+            try {
+                gate.await(5, TimeUnit.SECONDS);
+            } catch(InterruptedException ignore) { }
+            messages.add(String.format(format, args));
+        }
+
+        @Override
+        public void logError(String format, Object... args) {
+            if(isEnabled(Level.ERROR)) messages.add(String.format(format, args));
+        }
+    }
+
+    /**
+     * A logger written before isEnabled existed, which keeps its own switch
+     */
+    private static class PlatformLogger extends StackMobLogger {
+        final List<String> messages = new ArrayList<String>();
+        boolean on = false;
+
+        @Override
+        public void setLogging(boolean logging) {
+            on = logging;
+        }
+
+        @Override
+        public void logInfo(String format, Object... args) {
+            if(on) messages.add(String.format(format, args));
+        }
+    }
+
+    private static class CountingMessage implements StackMobLogger.Message {
+        int built = 0;
+
+        @Override
+        public String get() {
+            built++;
+            return "built";
+        }
+    }
+
+    @Test public void disabledMessagesAreNeverBuilt() {
+        RecordingLogger logger = new RecordingLogger();
+        CountingMessage message = new CountingMessage();
+        logger.log(StackMobLogger.Level.INFO, message);
+        assertEquals(0, message.built);
+        assertFalse(logger.isEnabled(StackMobLogger.Level.ERROR));
+
+        logger.setLogging(true);
+        logger.setLevel(StackMobLogger.Level.ERROR);
+        logger.log(StackMobLogger.Level.INFO, message);
+        assertEquals(0, message.built);
+        logger.log(StackMobLogger.Level.ERROR, message);
+        assertEquals(1, message.built);
+        assertEquals(Collections.singletonList("built"), logger.messages);
+    }
+
+    @Test public void loggersWithTheirOwnSwitchStillGetMessages() {
+        PlatformLogger logger = new PlatformLogger();
+        logger.setLogging(true);
+        assertTrue(logger.isEnabled(StackMobLogger.Level.INFO));
+        logger.log(StackMobLogger.Level.INFO, new CountingMessage());
+        assertEquals(Collections.singletonList("built"), logger.messages);
+        // the base class's own output still follows its switch
+        assertFalse(new StackMobLogger().isEnabled(StackMobLogger.Level.ERROR));
+    }
+
+    @Test public void asyncLoggerWritesInOrderOnAnotherThread() throws Exception {
+        RecordingLogger delegate = new RecordingLogger();
+        delegate.setLogging(true);
+        StackMobAsyncLogger logger = new StackMobAsyncLogger(delegate);
+        for(int i = 0; i < 100; i++) logger.logInfo("message %d", i);
+        assertTrue(logger.flush(5000));
+        assertEquals(100, delegate.messages.size());
+        for(int i = 0; i < 100; i++) assertEquals("message " + i, delegate.messages.get(i));
+        assertEquals(0, logger.getDroppedCount());
+    }
+
+    @Test public void asyncLoggerDropsRatherThanBlocks() throws Exception {
+        RecordingLogger delegate = new RecordingLogger();
+        delegate.setLogging(true);
+        delegate.gate = new CountDownLatch(1);
+        StackMobAsyncLogger logger = new StackMobAsyncLogger(delegate, 2);
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 10; i++) logger.logInfo("message %d", i);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        // at most one is being written and two are waiting
+        assertTrue(logger.getDroppedCount() >= 7);
+        delegate.gate.countDown();
+        assertTrue(logger.flush(5000));
+        assertEquals(10, delegate.messages.size() + logger.getDroppedCount());
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class StackMobMacSignerTests {
+
+    private static final Pattern HEADER = Pattern.compile("MAC id=\"(.*)\",ts=\"(\\d+)\",nonce=\"(.*)\",mac=\"(.*)\"");
+
+    // the way signatures were made before there was a signer
+    private static String expectedMac(String macKey, String ts, String nonce, String method, String uri, String host, String port) throws Exception {
+        String baseString = ts + "\n" + nonce + "\n" + method + "\n" + uri + "\n" + host + "\n" + port + "\n\n";
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(macKey.getBytes(), "HmacSHA1"));
+        return new String(Base64.encodeBase64(mac.doFinal(baseString.getBytes())));
+    }
+
+    private static void assertSignature(String header, String token, String macKey, String method, String uri, String host, String port) throws Exception {
+        Matcher matcher = HEADER.matcher(header);
+        assertTrue(header, matcher.matches());
+        assertEquals(token, matcher.group(1));
+        assertEquals(expectedMac(macKey, matcher.group(2), matcher.group(3), method, uri, host, port), matcher.group(4));
+    }
+
+    @Test public void signaturesMatchTheReferenceImplementation() throws Exception {
+        StackMobMacSigner signer = new StackMobMacSigner("token", "mackey");
+        String header = signer.sign(1357000000, "GET", "/thing/1?a=b", "api.stackmob.com", "443");
+        assertTrue(header.startsWith("MAC id=\"token\",ts=\"1357000000\",nonce=\"n"));
+        assertSignature(header, "token", "mackey", "GET", "/thing/1?a=b", "api.stackmob.com", "443");
+        // a second signature reuses the thread's Mac, and mustn't carry anything over from the first
+        assertSignature(signer.sign("POST", "/thing", "localhost", "80"), "token", "mackey", "POST", "/thing", "localhost", "80");
+    }
+
+    @Test public void noncesDiffer() {
+        StackMobMacSigner signer = new StackMobMacSigner("token", "mackey");
+        assertFalse(signer.sign(1, "GET", "/", "h", "80").equals(signer.sign(1, "GET", "/", "h", "80")));
+    }
+
+    @Test public void signersForDifferentLoginsShareThreadsSafely() throws Exception {
+        final StackMobMacSigner first = new StackMobMacSigner("first", "key1");
+        final StackMobMacSigner second = new StackMobMacSigner("second", "key2");
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < 4; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = 0; i < 500; i++) {
+                            String uri = "/thing/" + i;
+                            assertSignature(first.sign("GET", uri, "h", "80"), "first", "key1", "GET", uri, "h", "80");
+                            assertSignature(second.sign("GET", uri, "h", "80"), "second", "key2", "GET", uri, "h", "80");
+                        }
+                    } catch(Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) thread.join();
+        assertNull(failure.get());
+    }
+}